@@ -0,0 +1,213 @@
+package edu.ucsb.nceas.osti_elink;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Look up the metadata of many dois. The dois are split into batches and each batch is
+ * searched by one multi-valued query of the searchRecordsAsync method. A bounded number of
+ * the batches are in flight at a time, so a reconciliation of thousands of dois neither sends
+ * one blocking query per doi nor floods the service. If the service rejects a multi-valued
+ * search, the batches are looked up doi by doi.
+ * @author Tao
+ */
+final class BulkLookup {
+    public static final String BATCH_SIZE_PROP_NAME = "ostiService.bulk.batchSize";
+    public static final String BATCH_SIZE_ENV_NAME = "METACAT_OSTI_BULK_BATCH_SIZE";
+    public static final String PARALLELISM_PROP_NAME = "ostiService.bulk.parallelism";
+    public static final String PARALLELISM_ENV_NAME = "METACAT_OSTI_BULK_PARALLELISM";
+    public static final int DEFAULT_BATCH_SIZE = 20;
+    public static final int DEFAULT_PARALLELISM = 4;
+    private static final Log log = LogFactory.getLog(BulkLookup.class);
+
+    private final OSTIElinkService service;
+    private final int batchSize;
+    private final int parallelism;
+    private volatile boolean multiValuedSearch = true;
+
+    /**
+     * Constructor
+     * @param service  the service which searches the records
+     * @param batchSize  the max number of the dois in a search
+     * @param parallelism  the max number of the searches in flight
+     */
+    BulkLookup(OSTIElinkService service, int batchSize, int parallelism) {
+        this.service = service;
+        this.batchSize = Math.max(1, batchSize);
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Look up the metadata of the dois and block the calling thread until all of them are
+     * done. The deadline of the calling thread, if it has one, bounds the whole lookup.
+     * @param dois  the dois. The null, blank and duplicated ones are skipped.
+     * @return the results keyed by the dois in the given order
+     * @throws OSTIElinkException  an OSTIElinkTimeoutException if the deadline expires
+     */
+    Map<String, LookupResult<String>> getMetadata(Collection<String> dois)
+        throws OSTIElinkException {
+        List<String> ids = new ArrayList<>();
+        for (String doi : dois) {
+            if (doi != null && !doi.trim().equals("")) {
+                ids.add(doi);
+            }
+        }
+        ids = new ArrayList<>(new LinkedHashSet<>(ids));
+        List<List<String>> batches = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            batches.add(ids.subList(i, Math.min(i + batchSize, ids.size())));
+        }
+        Map<String, LookupResult<String>> results = new ConcurrentHashMap<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (batches.isEmpty()) {
+            done.complete(null);
+        }
+        Deadline deadline = Deadline.current();
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(batches.size());
+        for (int i = 0; i < Math.min(parallelism, batches.size()); i++) {
+            lane(batches, next, remaining, results, deadline, done);
+        }
+        try {
+            if (deadline == null) {
+                done.get();
+            } else {
+                done.get(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException e) {
+            next.set(batches.size());
+            throw new OSTIElinkTimeoutException("The deadline expired after " + results.size()
+                                                    + " of " + ids.size() + " dois were looked "
+                                                    + "up");
+        } catch (InterruptedException e) {
+            next.set(batches.size());
+            Thread.currentThread().interrupt();
+            throw new OSTIElinkException("The thread looking up " + ids.size() + " dois was "
+                                             + "interrupted");
+        } catch (ExecutionException e) {
+            // The batches never complete exceptionally
+            throw new IllegalStateException(e.getCause());
+        }
+        Map<String, LookupResult<String>> ordered = new LinkedHashMap<>();
+        for (String id : ids) {
+            ordered.put(id, results.get(id));
+        }
+        return ordered;
+    }
+
+    /**
+     * Look up the batches one after another until none is left
+     */
+    private void lane(List<List<String>> batches, AtomicInteger next, AtomicInteger remaining,
+                      Map<String, LookupResult<String>> results, Deadline deadline,
+                      CompletableFuture<Void> done) {
+        int index = next.getAndIncrement();
+        if (index >= batches.size()) {
+            return;
+        }
+        lookup(batches.get(index), results, deadline).whenComplete((result, error) -> {
+            if (remaining.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+            lane(batches, next, remaining, results, deadline, done);
+        });
+    }
+
+    /**
+     * Look up a batch by one multi-valued search
+     * @return the future completed when the results of the batch are put. It never completes
+     *         exceptionally.
+     */
+    private CompletableFuture<Void> lookup(List<String> batch,
+                                           Map<String, LookupResult<String>> results,
+                                           Deadline deadline) {
+        if (batch.size() == 1 || !multiValuedSearch) {
+            return lookupEach(batch, results, deadline);
+        }
+        CompletableFuture<Map<String, String>> search;
+        try {
+            search = run(deadline, () -> service.searchRecordsAsync(batch));
+        } catch (OSTIElinkException e) {
+            return lookupEach(batch, results, deadline);
+        }
+        return search.handle((records, error) -> {
+            if (error != null) {
+                return null;
+            }
+            Map<String, String> found = new LinkedHashMap<>();
+            for (Map.Entry<String, String> record : records.entrySet()) {
+                found.put(OSTIElinkService.normalizeDOI(record.getKey()), record.getValue());
+            }
+            for (String doi : batch) {
+                String metadata = found.get(OSTIElinkService.normalizeDOI(doi));
+                results.put(doi, metadata != null ? LookupResult.success(metadata)
+                    : LookupResult.failure(new OSTIElinkNotFoundException(
+                        "OSTI can't find the identifier " + doi)));
+            }
+            return batch;
+        }).thenCompose(searched -> {
+            if (searched != null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            log.warn("BulkLookup - the search of " + batch.size() + " dois failed, so they are "
+                         + "looked up one by one");
+            multiValuedSearch = false;
+            return lookupEach(batch, results, deadline);
+        });
+    }
+
+    /**
+     * Look up the dois of a batch by one query per doi
+     */
+    private CompletableFuture<Void> lookupEach(List<String> batch,
+                                               Map<String, LookupResult<String>> results,
+                                               Deadline deadline) {
+        List<CompletableFuture<Object>> queries = new ArrayList<>();
+        for (String doi : batch) {
+            CompletableFuture<String> query;
+            try {
+                query = run(deadline, () -> service.getMetadataAsync(doi));
+            } catch (OSTIElinkException e) {
+                results.put(doi, LookupResult.failure(e));
+                continue;
+            }
+            queries.add(query.handle((metadata, error) -> {
+                if (error instanceof CompletionException && error.getCause() != null) {
+                    error = error.getCause();
+                }
+                if (error == null) {
+                    results.put(doi, LookupResult.success(metadata));
+                } else if (error instanceof OSTIElinkException) {
+                    results.put(doi, LookupResult.failure((OSTIElinkException) error));
+                } else {
+                    results.put(doi, LookupResult.failure(
+                        new OSTIElinkException(error.getMessage())));
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(queries.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Start the queries under the deadline of the caller, since the lanes run on the threads
+     * completing the previous queries
+     */
+    private static <T> T run(Deadline deadline, Deadline.Task<T> task) throws OSTIElinkException {
+        return deadline == null ? task.call() : deadline.run(task);
+    }
+}
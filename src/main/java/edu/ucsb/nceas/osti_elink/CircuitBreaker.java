@@ -0,0 +1,303 @@
+package edu.ucsb.nceas.osti_elink;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The circuit breakers of the OSTI endpoint classes. Each endpoint class has a circuit with
+ * three states:
+ * 1. Closed - the requests are sent. The circuit opens after the given number of consecutive
+ *    failures (network errors, timeouts, 429 and 5xx responses).
+ * 2. Open - the requests fail fast with an OSTIElinkCircuitOpenException until the open
+ *    duration passes.
+ * 3. Half-open - a trickle of probe requests is let through. A successful probe closes the
+ *    circuit and a failed one opens it again.
+ * An authentication failure (401/403) opens the circuits of all the classes immediately, since
+ * the token is shared by all the endpoints. The other 4xx responses are the errors of the
+ * callers, so they count as successes of the endpoint.
+ * @author Tao
+ */
+public class CircuitBreaker {
+    public static final String ENABLED_PROP_NAME = "ostiService.circuitBreaker.enabled";
+    public static final String ENABLED_ENV_NAME = "METACAT_OSTI_CIRCUIT_BREAKER_ENABLED";
+    public static final String FAILURE_THRESHOLD_PROP_NAME =
+        "ostiService.circuitBreaker.failureThreshold";
+    public static final String FAILURE_THRESHOLD_ENV_NAME =
+        "METACAT_OSTI_CIRCUIT_BREAKER_FAILURE_THRESHOLD";
+    public static final String OPEN_DURATION_PROP_NAME = "ostiService.circuitBreaker.openMs";
+    public static final String OPEN_DURATION_ENV_NAME = "METACAT_OSTI_CIRCUIT_BREAKER_OPEN_MS";
+    public static final String HALF_OPEN_PROBES_PROP_NAME =
+        "ostiService.circuitBreaker.halfOpenProbes";
+    public static final String HALF_OPEN_PROBES_ENV_NAME =
+        "METACAT_OSTI_CIRCUIT_BREAKER_HALF_OPEN_PROBES";
+    public static final String MAX_PARK_PROP_NAME = "ostiService.circuitBreaker.maxParkMs";
+    public static final String MAX_PARK_ENV_NAME = "METACAT_OSTI_CIRCUIT_BREAKER_MAX_PARK_MS";
+    public static final boolean DEFAULT_ENABLED = false;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION_MS = 30000;
+    public static final int DEFAULT_HALF_OPEN_PROBES = 1;
+    public static final long DEFAULT_MAX_PARK_MS = 600000;
+    private static final long MAX_PROBE_WAIT_MS = 1000;
+
+    /**
+     * The states of a circuit
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final Log log = LogFactory.getLog(CircuitBreaker.class);
+    private final int failureThreshold;
+    private final long openDurationMillis;
+    private final int halfOpenProbes;
+    private final Map<EndpointClass, Circuit> circuits = new EnumMap<>(EndpointClass.class);
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong trips = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param failureThreshold  the number of the consecutive failures opening a circuit
+     * @param openDurationMillis  how long a circuit stays open before it lets probes through
+     * @param halfOpenProbes  the max number of the concurrent probes of a half-open circuit
+     */
+    public CircuitBreaker(int failureThreshold, long openDurationMillis, int halfOpenProbes) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDurationMillis = Math.max(0, openDurationMillis);
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+        for (EndpointClass endpointClass : EndpointClass.values()) {
+            circuits.put(endpointClass, new Circuit(endpointClass));
+        }
+    }
+
+    /**
+     * Ask the circuit of the given endpoint class for the permit of sending a request. The
+     * outcome of the request must be reported to the permit.
+     * @param endpointClass  the class of the endpoint the request is sent to
+     * @return the permit
+     * @throws OSTIElinkCircuitOpenException  if the circuit is open or it has enough probes
+     */
+    public Permit acquire(EndpointClass endpointClass) throws OSTIElinkCircuitOpenException {
+        return circuits.get(endpointClass).acquire();
+    }
+
+    /**
+     * Get the state of the circuit of the given endpoint class
+     * @param endpointClass  the class of the endpoint
+     * @return the state of the circuit
+     */
+    public State getState(EndpointClass endpointClass) {
+        return circuits.get(endpointClass).getState();
+    }
+
+    /**
+     * Get the number of the requests rejected by the open circuits
+     * @return the number of the rejected requests
+     */
+    public long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    /**
+     * Get the number of the times a circuit was opened
+     * @return the number of the trips
+     */
+    public long getTrips() {
+        return trips.get();
+    }
+
+    /**
+     * Close all the circuits, e.g. after the token or the transport is replaced
+     */
+    public void reset() {
+        for (Circuit circuit : circuits.values()) {
+            circuit.reset();
+        }
+    }
+
+    /**
+     * Open the circuits of all the endpoint classes
+     * @param reason  the reason of opening them
+     */
+    private void tripAll(String reason) {
+        for (Circuit circuit : circuits.values()) {
+            circuit.open(reason);
+        }
+    }
+
+    /**
+     * The permit of sending a request. One of its methods should be called when the outcome of
+     * the request is known. The later calls are ignored.
+     */
+    public static class Permit {
+        /**
+         * The permit used when there isn't a circuit breaker. It ignores the outcomes.
+         */
+        public static final Permit NONE = new Permit(null, null, false);
+        private final CircuitBreaker breaker;
+        private final Circuit circuit;
+        private final boolean probe;
+        private boolean done;
+
+        private Permit(CircuitBreaker breaker, Circuit circuit, boolean probe) {
+            this.breaker = breaker;
+            this.circuit = circuit;
+            this.probe = probe;
+            this.done = circuit == null;
+        }
+
+        /**
+         * Report the status code of the response of the request
+         * @param statusCode  the status code
+         */
+        public void complete(int statusCode) {
+            if (statusCode == 401 || statusCode == 403) {
+                authenticationFailed("HTTP " + statusCode);
+            } else if (statusCode == 429 || statusCode >= 500) {
+                failed("HTTP " + statusCode);
+            } else {
+                succeeded();
+            }
+        }
+
+        /**
+         * Report the request succeeded
+         */
+        public synchronized void succeeded() {
+            if (!done) {
+                done = true;
+                circuit.onSuccess(probe);
+            }
+        }
+
+        /**
+         * Report the request failed because of the endpoint, such as a network error or a
+         * timeout
+         * @param reason  the reason of the failure
+         */
+        public synchronized void failed(String reason) {
+            if (!done) {
+                done = true;
+                circuit.onFailure(probe, reason);
+            }
+        }
+
+        /**
+         * Report the request failed the authentication. All the circuits are opened.
+         * @param reason  the reason of the failure
+         */
+        public void authenticationFailed(String reason) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                circuit.releaseProbe(probe);
+            }
+            breaker.tripAll("the authentication failed: " + reason);
+        }
+
+        /**
+         * Release the permit without an outcome, e.g. the request was cancelled
+         */
+        public synchronized void release() {
+            if (!done) {
+                done = true;
+                circuit.releaseProbe(probe);
+            }
+        }
+    }
+
+    /**
+     * The circuit of an endpoint class
+     */
+    private class Circuit {
+        private final EndpointClass endpointClass;
+        private State state = State.CLOSED;
+        private int failures = 0;
+        private long openedAt = 0;
+        private int probes = 0;
+
+        Circuit(EndpointClass endpointClass) {
+            this.endpointClass = endpointClass;
+        }
+
+        synchronized Permit acquire() throws OSTIElinkCircuitOpenException {
+            if (state == State.OPEN) {
+                long waited = System.currentTimeMillis() - openedAt;
+                if (waited < openDurationMillis) {
+                    throw reject(openDurationMillis - waited);
+                }
+                state = State.HALF_OPEN;
+                probes = 0;
+                log.info("CircuitBreaker - the circuit of " + endpointClass
+                             + " is half-open and lets probes through");
+            }
+            if (state == State.HALF_OPEN) {
+                if (probes >= halfOpenProbes) {
+                    throw reject(Math.min(openDurationMillis, MAX_PROBE_WAIT_MS));
+                }
+                probes++;
+                return new Permit(CircuitBreaker.this, this, true);
+            }
+            return new Permit(CircuitBreaker.this, this, false);
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+
+        synchronized void onSuccess(boolean probe) {
+            failures = 0;
+            if (probe && state == State.HALF_OPEN) {
+                state = State.CLOSED;
+                probes = 0;
+                log.info("CircuitBreaker - the circuit of " + endpointClass + " is closed");
+            }
+        }
+
+        synchronized void onFailure(boolean probe, String reason) {
+            releaseProbe(probe);
+            failures++;
+            if ((probe && state == State.HALF_OPEN)
+                || (state == State.CLOSED && failures >= failureThreshold)) {
+                open(reason);
+            }
+        }
+
+        synchronized void releaseProbe(boolean probe) {
+            if (probe && probes > 0) {
+                probes--;
+            }
+        }
+
+        synchronized void open(String reason) {
+            if (state != State.OPEN) {
+                trips.incrementAndGet();
+                log.warn("CircuitBreaker - the circuit of " + endpointClass + " is open for "
+                             + openDurationMillis + " ms since " + reason);
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            probes = 0;
+        }
+
+        synchronized void reset() {
+            state = State.CLOSED;
+            failures = 0;
+            probes = 0;
+        }
+
+        private OSTIElinkCircuitOpenException reject(long retryAfterMillis) {
+            rejectedRequests.incrementAndGet();
+            return new OSTIElinkCircuitOpenException(
+                endpointClass, retryAfterMillis,
+                "The request to the " + endpointClass + " endpoints of the OSTI service wasn't "
+                    + "sent since its circuit is " + state + " after recent failures. Retry after "
+                    + retryAfterMillis + " ms.");
+        }
+    }
+}
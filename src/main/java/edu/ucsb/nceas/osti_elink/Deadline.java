@@ -0,0 +1,114 @@
+package edu.ucsb.nceas.osti_elink;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point of time by which a call to the OSTI elink service must complete. A deadline is bound
+ * to the calling thread while a task runs, so the nested calls (e.g. getStatus -> getOstiId ->
+ * getMetadata -> sendRequest) share the remaining budget and every http request is sent with
+ * a timeout no longer than it. A nested deadline never extends the one of its caller.
+ * @author Tao
+ */
+public final class Deadline {
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+    private final long expiresAtNanos;
+
+    /**
+     * A task which runs under a deadline
+     * @param <T>  the type of the result
+     */
+    public interface Task<T> {
+        /**
+         * Run the task
+         * @return the result of the task
+         * @throws OSTIElinkException
+         */
+        T call() throws OSTIElinkException;
+    }
+
+    private Deadline(long expiresAtNanos) {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    /**
+     * Create a deadline which expires after the given duration from now
+     * @param timeout  the duration. It can't be null or negative.
+     * @return the deadline
+     */
+    public static Deadline after(Duration timeout) {
+        if (timeout == null || timeout.isNegative()) {
+            throw new IllegalArgumentException("The timeout of a deadline can't be null or "
+                                                   + "negative.");
+        }
+        return new Deadline(System.nanoTime() + timeout.toNanos());
+    }
+
+    /**
+     * Get the deadline bound to the current thread
+     * @return the deadline. Null will be returned if the current thread doesn't have one.
+     */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    /**
+     * Get the remaining time before the deadline expires
+     * @return the remaining time in milliseconds. 0 will be returned if it has expired.
+     */
+    public long getRemainingMillis() {
+        long remaining = expiresAtNanos - System.nanoTime();
+        return remaining <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(remaining + 999_999);
+    }
+
+    /**
+     * Determine if the deadline has expired
+     * @return true if it has expired; otherwise false.
+     */
+    public boolean isExpired() {
+        return expiresAtNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Get the earlier one of this deadline and the given one
+     * @param other  the other deadline. It can be null.
+     * @return the earlier deadline
+     */
+    public Deadline min(Deadline other) {
+        return other == null || expiresAtNanos - other.expiresAtNanos <= 0 ? this : other;
+    }
+
+    /**
+     * Throw an OSTIElinkTimeoutException if the deadline has expired
+     * @param operation  the description of the operation which can't proceed
+     * @throws OSTIElinkTimeoutException
+     */
+    public void check(String operation) throws OSTIElinkTimeoutException {
+        if (isExpired()) {
+            throw new OSTIElinkTimeoutException("The deadline expired before " + operation);
+        }
+    }
+
+    /**
+     * Run the task with this deadline bound to the current thread. If the thread already has
+     * an earlier deadline, the earlier one is kept. The previous deadline is restored after
+     * the task finishes.
+     * @param task  the task will be run
+     * @param <T>  the type of the result
+     * @return the result of the task
+     * @throws OSTIElinkException
+     */
+    public <T> T run(Task<T> task) throws OSTIElinkException {
+        Deadline previous = current.get();
+        current.set(min(previous));
+        try {
+            return task.call();
+        } finally {
+            if (previous == null) {
+                current.remove();
+            } else {
+                current.set(previous);
+            }
+        }
+    }
+}
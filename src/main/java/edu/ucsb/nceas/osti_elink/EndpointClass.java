@@ -0,0 +1,62 @@
+package edu.ucsb.nceas.osti_elink;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * The classes of the OSTI endpoints. The requests of a class share the same backend of the
+ * OSTI service, so they tend to fail and recover together. A request is classified by its
+ * method and the path of its uri.
+ * @author Tao
+ */
+public enum EndpointClass {
+    /**
+     * The queries of the records, e.g. GET /elink2api/records?doi=...
+     */
+    SEARCH,
+    /**
+     * The creation and updates of the records, e.g. POST /elink2api/records/save or
+     * PATCH /elink2api/records/{id}/save
+     */
+    SAVE,
+    /**
+     * The submissions of the records for publishing, e.g. PATCH /elink2api/records/{id}/submit
+     */
+    SUBMIT,
+    /**
+     * The uploads of the xml metadata, e.g. POST /elink2xml/upload or the v1 api
+     */
+    UPLOAD;
+
+    /**
+     * Classify a request by its method and uri
+     * @param method  the http method of the request
+     * @param uri  the uri of the request
+     * @return the class of the endpoint
+     */
+    public static EndpointClass classify(String method, String uri) {
+        String path = uri;
+        try {
+            path = new URI(uri).getPath();
+        } catch (URISyntaxException e) {
+            int index = uri.indexOf('?');
+            if (index >= 0) {
+                path = uri.substring(0, index);
+            }
+        }
+        if (path == null) {
+            path = "";
+        }
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        if (path.endsWith("/submit")) {
+            return SUBMIT;
+        } else if (method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("HEAD")) {
+            return SEARCH;
+        } else if (path.contains("/records")) {
+            return SAVE;
+        }
+        return UPLOAD;
+    }
+}
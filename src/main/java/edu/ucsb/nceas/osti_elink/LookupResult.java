@@ -0,0 +1,75 @@
+package edu.ucsb.nceas.osti_elink;
+
+/**
+ * The result of looking up one identifier in a bulk lookup. A bulk lookup doesn't fail when
+ * some identifiers can't be found or their queries fail, so each identifier gets either its
+ * value or its error.
+ * @param <T>  the type of the value, e.g. the metadata, the status or the osti id
+ * @author Tao
+ */
+public final class LookupResult<T> {
+    private final T value;
+    private final OSTIElinkException error;
+
+    private LookupResult(T value, OSTIElinkException error) {
+        this.value = value;
+        this.error = error;
+    }
+
+    /**
+     * Create a successful result
+     * @param value  the value of the identifier
+     * @param <T>  the type of the value
+     * @return the result
+     */
+    public static <T> LookupResult<T> success(T value) {
+        return new LookupResult<>(value, null);
+    }
+
+    /**
+     * Create a failed result
+     * @param error  the error of the identifier. An OSTIElinkNotFoundException means it can't
+     *               be found.
+     * @param <T>  the type of the value
+     * @return the result
+     */
+    public static <T> LookupResult<T> failure(OSTIElinkException error) {
+        return new LookupResult<>(null, error);
+    }
+
+    /**
+     * Determine if the lookup succeeded
+     * @return true if it has the value; otherwise false.
+     */
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * Get the value of the identifier
+     * @return the value. Null will be returned if the lookup failed.
+     */
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * Get the error of the identifier
+     * @return the error. Null will be returned if the lookup succeeded.
+     */
+    public OSTIElinkException getError() {
+        return error;
+    }
+
+    /**
+     * Get the value of the identifier or throw its error
+     * @return the value
+     * @throws OSTIElinkException  the error of the lookup
+     */
+    public T get() throws OSTIElinkException {
+        if (error != null) {
+            throw error;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,40 @@
+package edu.ucsb.nceas.osti_elink;
+
+/**
+ * The exception will be thrown without sending the request when the circuit breaker of its
+ * endpoint class is open, since the OSTI service failed recently.
+ * @author Tao
+ */
+public class OSTIElinkCircuitOpenException extends OSTIElinkException {
+    private final EndpointClass endpointClass;
+    private final long retryAfterMillis;
+
+    /**
+     * Constructor
+     * @param endpointClass  the class of the endpoint whose circuit is open
+     * @param retryAfterMillis  the time after which the circuit may let a request through
+     * @param message
+     */
+    public OSTIElinkCircuitOpenException(EndpointClass endpointClass, long retryAfterMillis,
+                                         String message) {
+        super(message);
+        this.endpointClass = endpointClass;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Get the class of the endpoint whose circuit is open
+     * @return the endpoint class
+     */
+    public EndpointClass getEndpointClass() {
+        return endpointClass;
+    }
+
+    /**
+     * Get the time after which the circuit may let a request through again
+     * @return the time in milliseconds
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
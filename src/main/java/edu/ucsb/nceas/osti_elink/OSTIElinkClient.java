@@ -20,14 +20,25 @@ package edu.ucsb.nceas.osti_elink;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import edu.ucsb.nceas.osti_elink.exception.ClassNotSupported;
 import edu.ucsb.nceas.osti_elink.exception.PropertyNotFound;
+import edu.ucsb.nceas.osti_elink.transport.BulkheadTransport;
+import edu.ucsb.nceas.osti_elink.transport.ConcurrencyLimitTransport;
+import edu.ucsb.nceas.osti_elink.transport.DelegatingTransport;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.pool.PoolStats;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -45,7 +56,9 @@ public class OSTIElinkClient {
     public static final String BASE_URL_PROPERTY = "guid.doi.baseurl";
     private OSTIElinkErrorAgent errorAgent = null;
     private OSTIElinkService service = null;
-    private ExecutorService executor = null;
+    private ScheduledExecutorService executor = null;
+    private long maxParkMillis = CircuitBreaker.DEFAULT_MAX_PARK_MS;
+    private final Set<OSTIElinkServiceRequest> parkedRequests = ConcurrentHashMap.newKeySet();
     private static Properties properties = null;
 
     protected static Log log = LogFactory.getLog(OSTIElinkClient.class);
@@ -79,6 +92,10 @@ public class OSTIElinkClient {
             throw new RuntimeException(e);
         }
         this.errorAgent = errorAgent;
+        maxParkMillis = OSTIServiceFactory.getLongSetting(CircuitBreaker.MAX_PARK_ENV_NAME,
+                                                          CircuitBreaker.MAX_PARK_PROP_NAME,
+                                                          properties,
+                                                          CircuitBreaker.DEFAULT_MAX_PARK_MS);
         startExecutorLoop();
     }
 
@@ -104,12 +121,16 @@ public class OSTIElinkClient {
      * Set the meta data for a given identifier. The identifier should already exist in the elink service.
      * The method will run the commands in another thread.
      * We always use the query method to figure out internal OSTI id (not the prefix comparison).
+     * If the circuit of the endpoint is open, the request is parked and tried again after the
+     * circuit allows a probe, until the max park time runs out.
      * @param identifier  the identifier of object which will be set a new metadata
      * @param metadata  the new metadata which will be used
      */
     public void setMetadata(String identifier, String metadata) throws InterruptedException {
         OSTIElinkServiceRequest request =
-                new OSTIElinkServiceRequest(service, OSTIElinkServiceRequest.SETMETADATA, identifier, errorAgent, metadata);
+                new OSTIElinkServiceRequest(service, OSTIElinkServiceRequest.SETMETADATA, identifier,
+                                            errorAgent, metadata, executor, maxParkMillis,
+                                            parkedRequests);
         executor.execute(request);
     }
     
@@ -132,6 +153,25 @@ public class OSTIElinkClient {
         }
         return identifier;
     }
+
+    /**
+     * Ask the elink service to generate a doi for the given siteCode. The thread blocks until
+     * the identifier is returned or the given time runs out.
+     * @param siteCode  the siteCode will be used. If it is null, the default one, ess-dive, will be used.
+     * @param timeout  the max time the call can take
+     * @return  the newly generated doi
+     * @throws OSTIElinkException  an OSTIElinkTimeoutException if the time runs out
+     */
+    public String mintIdentifier(String siteCode, Duration timeout) throws OSTIElinkException {
+        try {
+            return service.mintIdentifier(siteCode, timeout);
+        } catch (OSTIElinkException e) {
+            if (errorAgent != null) {
+                errorAgent.notify(e.getMessage());
+            }
+            throw e;
+        }
+    }
     
     /**
      * Get the associated metadata for the given identifier.
@@ -143,6 +183,30 @@ public class OSTIElinkClient {
     public String getMetadata(String identifier) throws OSTIElinkException {
         return service.getMetadata(identifier);
     }
+
+    /**
+     * Get the associated metadata for the given identifier. The thread blocks until the
+     * metadata is returned or the given time runs out.
+     * @param identifier  for which metadata should be returned
+     * @param timeout  the max time the call can take
+     * @return  the metadata associated with the identifier
+     * @throws OSTIElinkException  an OSTIElinkTimeoutException if the time runs out
+     */
+    public String getMetadata(String identifier, Duration timeout) throws OSTIElinkException {
+        return service.getMetadata(identifier, timeout);
+    }
+
+
+    /**
+     * Get the associated metadata for the given identifier without blocking the calling thread.
+     * The returned future completes with the metadata or completes exceptionally with an
+     * OSTIElinkException.
+     * @param identifier  for which metadata should be returned
+     * @return  a future of the metadata associated with the identifier
+     */
+    public CompletableFuture<String> getMetadataAsync(String identifier) {
+        return service.getMetadataAsync(identifier);
+    }
     
     
     /**
@@ -156,26 +220,148 @@ public class OSTIElinkClient {
     public String getStatus(String identifier) throws OSTIElinkException {
         return service.getStatus(identifier);
     }
-    
+
+    /**
+     * Get the status for the given identifier. The thread blocks until the status is returned
+     * or the given time runs out.
+     * @param identifier  id to identify whose status should be returned
+     * @param timeout  the max time the call can take
+     * @return  the status associated with the identifier
+     * @throws OSTIElinkException  an OSTIElinkTimeoutException if the time runs out
+     */
+    public String getStatus(String identifier, Duration timeout) throws OSTIElinkException {
+        return service.getStatus(identifier, timeout);
+    }
+
+    /**
+     * Wait until the record of the identifier matches the given condition without blocking the
+     * calling thread. For example, awaitRecord(doi, RecordCondition.SEARCHABLE, deadline) waits
+     * for a new doi to be searchable and awaitRecord(doi, hasStatus("R"), deadline) waits for
+     * it to be released.
+     * @param identifier  the doi of the record
+     * @param condition  the condition the record should match
+     * @param deadline  the deadline of the wait
+     * @return  a future of the metadata which matches the condition. It completes
+     *          exceptionally with an OSTIElinkTimeoutException when the deadline expires.
+     */
+    public CompletableFuture<String> awaitRecord(String identifier, RecordCondition condition,
+                                                 Deadline deadline) {
+        return service.awaitRecord(identifier, condition, deadline);
+    }
+
+    /**
+     * Create the condition that the status of a record is the given one
+     * @param status  the expected status, such as R or Saved
+     * @return  the condition which can be passed to the awaitRecord method
+     */
+    public RecordCondition hasStatus(String status) {
+        return service.hasStatus(status);
+    }
+
+    /**
+     * Get the metadata of many identifiers by batched searches. The failure of an identifier
+     * doesn't fail the others.
+     * @param identifiers  the dois of the records
+     * @return  the results keyed by the identifiers in the given order
+     * @throws OSTIElinkException
+     */
+    public Map<String, LookupResult<String>> getMetadata(Collection<String> identifiers)
+        throws OSTIElinkException {
+        return service.getMetadata(identifiers);
+    }
+
+    /**
+     * Get the statuses of many identifiers by batched searches
+     * @param identifiers  the dois of the records
+     * @return  the statuses keyed by the identifiers in the given order
+     * @throws OSTIElinkException
+     */
+    public Map<String, LookupResult<String>> getStatuses(Collection<String> identifiers)
+        throws OSTIElinkException {
+        return service.getStatuses(identifiers);
+    }
+
+    /**
+     * Get the osti ids of many identifiers by batched searches
+     * @param identifiers  the dois of the records
+     * @return  the osti ids keyed by the identifiers in the given order
+     * @throws OSTIElinkException
+     */
+    public Map<String, LookupResult<String>> resolveOstiIds(Collection<String> identifiers)
+        throws OSTIElinkException {
+        return service.resolveOstiIds(identifiers);
+    }
+
     private void startExecutorLoop() {
         // Query the runtime to see how many CPUs are available, and configure that many threads
         Runtime runtime = Runtime.getRuntime();        
         int numCores = runtime.availableProcessors();
         log.debug("OSTIElinkClient.startExecutorLoop - Number of cores available: " + numCores);
-        executor = Executors.newFixedThreadPool(numCores);
+        // Let the queued requests use all the slots the adaptive limiter can grow to. With the
+        // bulkheads, the queued writes use the limiter of their compartment. The pool is never
+        // smaller than the write quota either, and it runs the parked requests as well.
+        int numThreads = numCores;
+        try {
+            BulkheadTransport bulkhead = service.findTransport(BulkheadTransport.class);
+            ConcurrencyLimitTransport limiter = bulkhead == null
+                ? service.findTransport(ConcurrencyLimitTransport.class)
+                : DelegatingTransport.find(bulkhead.getDelegate(
+                    BulkheadTransport.Compartment.WRITE), ConcurrencyLimitTransport.class);
+            if (limiter != null) {
+                numThreads = Math.max(numThreads, limiter.getMaxLimit());
+            }
+            if (bulkhead != null) {
+                numThreads = Math.max(numThreads,
+                                      bulkhead.getLimit(BulkheadTransport.Compartment.WRITE));
+            }
+        } catch (OSTIElinkException e) {
+            log.warn("OSTIElinkClient.startExecutorLoop - can't find the transports limiting "
+                         + "the requests since " + e.getMessage());
+        }
+        // A scheduled pool so the requests hitting an open circuit can be parked and run later.
+        // The shutdown drops the parked requests instead of waiting out their delays.
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(numThreads);
+        pool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        pool.setRemoveOnCancelPolicy(true);
+        executor = pool;
     }
     
     /**
-     * Shut down the excutor loop until all submitted tasks are completed.
+     * Shut down the excutor loop until all submitted tasks are completed. The requests parked
+     * for an open circuit are dropped and reported as failed.
      */
     public void shutdown() {
         log.debug("Shutting down executor...");
         // Stop the executor from accepting new requests and finishing existing Runnables
         executor.shutdown();
+        // The delayed runs of the parked requests were cancelled by the shutdown. A request
+        // is reported by whoever takes it from the set first: here, or its own running.
+        for (OSTIElinkServiceRequest request : parkedRequests) {
+            if (parkedRequests.remove(request)) {
+                request.drop();
+            }
+        }
         // Wait until all Runnables are finished
-        while (!executor.isTerminated()) {
-            //log.debug("OSTIElinkClient.shutdown....");
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.debug("OSTIElinkClient.shutdown - still waiting for the running requests");
+            }
+        } catch (InterruptedException e) {
+            log.warn("OSTIElinkClient.shutdown - interrupted while waiting for the requests");
+            Thread.currentThread().interrupt();
         }
+        service.close();
+    }
+
+    /**
+     * Get the live statistics (leased, pending, available and max connections) of the
+     * connection pool which the service uses to send requests.
+     * @return the statistics of the connection pool. Null will be returned if the transport
+     * doesn't use the Apache connection pool.
+     * @throws OSTIElinkException
+     */
+    public PoolStats getConnectionPoolStats() throws OSTIElinkException {
+        return service.getConnectionPoolStats();
     }
 
     /**
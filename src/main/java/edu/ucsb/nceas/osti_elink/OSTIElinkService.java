@@ -3,23 +3,46 @@ package edu.ucsb.nceas.osti_elink;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import edu.ucsb.nceas.osti_elink.exception.ClassNotSupported;
+import edu.ucsb.nceas.osti_elink.transport.ApacheHttpTransport;
+import edu.ucsb.nceas.osti_elink.transport.DelegatingTransport;
+import edu.ucsb.nceas.osti_elink.transport.OSTIElinkTransport;
+import edu.ucsb.nceas.osti_elink.transport.StreamingTransportResponse;
+import edu.ucsb.nceas.osti_elink.transport.TransportRequest;
+import edu.ucsb.nceas.osti_elink.transport.TransportResponse;
+
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
@@ -28,9 +51,7 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -61,7 +82,6 @@ public abstract class OSTIElinkService {
     protected static final int POST = 3;
     protected static final int DELETE = 4;
     protected static final int PATCH = 5;
-    private static final int CONNECTIONS_PER_ROUTE = 8;
     private static final String minimalMetadataFile = "minimal-osti.xml";
 
     protected static final String STATUS = "status";
@@ -73,7 +93,25 @@ public abstract class OSTIElinkService {
     private String username = null;
     private String password = null;
     protected String baseURL = "https://www.osti.gov/elink/2416api";
-    protected CloseableHttpClient httpClient = null;
+    private volatile OSTIElinkTransport transport = null;
+    private CircuitBreaker circuitBreaker = null;
+    private volatile boolean circuitBreakerLoaded = false;
+    private RecentWrites recentWrites = null;
+    private volatile RecordPoller recordPoller = null;
+    private volatile BulkLookup bulkLookup = null;
+    private volatile boolean recentWritesLoaded = false;
+    private OstiIdCache ostiIdCache = null;
+    private volatile boolean ostiIdCacheLoaded = false;
+    private OstiIdIndex ostiIdIndex = null;
+    private RecordCache recordCache = null;
+    private volatile boolean recordCacheLoaded = false;
+    protected final SingleFlight singleFlight = new SingleFlight();
+    // The write generations of the dois, shared by their hashes so they are bounded. They are
+    // part of the flight keys, so a lookup after a write never joins one started before it.
+    private final AtomicLongArray writeGenerations = new AtomicLongArray(1024);
+    private volatile boolean ostiIdIndexLoaded = false;
+    private PrefixRules prefixRules = null;
+    private volatile boolean prefixRulesLoaded = false;
     protected byte[] encodedAuthStr = null;
     protected Document minimalMetadataDoc = null;
     private String originalDefaultSiteCode = null;
@@ -93,7 +131,6 @@ public abstract class OSTIElinkService {
         if (baseURL != null && !baseURL.trim().equals("")) {
             this.baseURL = baseURL;
         }
-        httpClient = createThreadSafeClient();
         String authentication = username + ":" + password;
         encodedAuthStr = Base64.encodeBase64(authentication.getBytes(Charset.forName("ISO-8859-1")));
     }
@@ -131,6 +168,18 @@ public abstract class OSTIElinkService {
         return identifier;
     }
     
+    /**
+     * Create a new identifier for the site code like the mintIdentifier(String) method does,
+     * but an OSTIElinkTimeoutException will be thrown if it doesn't complete in the given time.
+     * @param siteCode  a pre-dinfined site code which associates doi prefixes
+     * @param timeout  the max time the call can take
+     * @return  the identifier generated by OSTI for this site code
+     * @throws OSTIElinkException
+     */
+    public String mintIdentifier(String siteCode, Duration timeout) throws OSTIElinkException {
+        return Deadline.after(timeout).run(() -> mintIdentifier(siteCode));
+    }
+
     /**
      * Get the metadata associated with the given identifier, which should be a doi. An OSTIElinkNotFoundException
      * will be thrown if the identifier can't be found. It may contains multiple records.
@@ -139,9 +188,72 @@ public abstract class OSTIElinkService {
      * @throws OSTIElinkException 
      */
     public String getMetadata(String doi) throws OSTIElinkException {
-        return getMetadata(doi, DOI);
+        RecordCache cache = getRecordCache();
+        if (cache == null) {
+            return singleFlight.run(flightKey("metadata", doi, DOI), () -> getMetadata(doi, DOI));
+        }
+        // Read before the lookup, so its result is dropped if a write happens meanwhile
+        long generation = cache.getGeneration(doi);
+        String metadata = getCachedMetadata(doi);
+        if (metadata == null) {
+            metadata = singleFlight.run(flightKey("metadata", doi, DOI),
+                                        () -> getMetadata(doi, DOI));
+            cache.put(doi, metadata, generation);
+        }
+        return metadata;
+    }
+
+    /**
+     * Get the metadata associated with the given doi like the getMetadata(String) method does,
+     * but an OSTIElinkTimeoutException will be thrown if it doesn't complete in the given time.
+     * @param doi  the identifier for which the metadata should be returned
+     * @param timeout  the max time the call can take
+     * @return  the metadata
+     * @throws OSTIElinkException
+     */
+    public String getMetadata(String doi, Duration timeout) throws OSTIElinkException {
+        return Deadline.after(timeout).run(() -> getMetadata(doi));
     }
     
+    /**
+     * Get the metadata associated with the given doi without blocking the calling thread. The
+     * returned future completes exceptionally with an OSTIElinkNotFoundException if the doi can't
+     * be found.
+     * @param doi  the identifier for which the metadata should be returned
+     * @return  a future of the metadata
+     */
+    public CompletableFuture<String> getMetadataAsync(String doi) {
+        RecordCache cache = getRecordCache();
+        long generation = cache == null ? 0 : cache.getGeneration(doi);
+        CompletableFuture<String> result = singleFlight.runAsync(
+            flightKey("metadata", doi, DOI), () -> getMetadataAsync(doi, DOI));
+        if (cache != null) {
+            // The waits and the bulk lookups need the current records, so they don't read the
+            // cache, but their results refresh it
+            result.thenAccept(metadata -> cache.put(doi, metadata, generation));
+        }
+        return result;
+    }
+
+    /**
+     * Get the metadata associated with the given identifier without blocking the calling thread.
+     * This default implementation runs the blocking getMetadata method and returns a completed
+     * future. The child classes which can query the service in the non-blocking way should
+     * overwrite it.
+     * @param identifier  the identifier for which the metadata should be returned
+     * @param  type  the type of the identifier, which can be doi or OSTIId
+     * @return  a future of the metadata
+     */
+    protected CompletableFuture<String> getMetadataAsync(String identifier, String type) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            result.complete(getMetadata(identifier, type));
+        } catch (OSTIElinkException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
     /**
      * Get the metadata associated with the osti id. An OSTIElinkNotFoundException
      * will be thrown if the identifier can't be found.
@@ -150,7 +262,8 @@ public abstract class OSTIElinkService {
      * @throws OSTIElinkException
      */
     protected String getMetadataFromOstiId(String ostiId) throws OSTIElinkException {
-        return getMetadata(ostiId, OSTI_ID);
+        return singleFlight.run(flightKey("metadata", ostiId, OSTI_ID),
+                                () -> getMetadata(ostiId, OSTI_ID));
     }
     
     /**
@@ -217,6 +330,27 @@ public abstract class OSTIElinkService {
      * @throws OSTIElinkException 
      */
     public void setMetadata(String doi, String doiPrefix, String metadataXML) throws OSTIElinkException {
+        String derived = applyPrefixRules(doi, doiPrefix);
+        try {
+            writeWithPrefixRules(doi, derived, () -> {
+                setXMLMetadata(doi, doiPrefix, derived, metadataXML);
+                return null;
+            });
+        } finally {
+            endFlights(doi);
+            // The xml response doesn't have the whole record
+            RecordCache cache = getRecordCache();
+            if (cache != null) {
+                cache.invalidate(doi);
+            }
+        }
+    }
+
+    /**
+     * Set the xml metadata to the given doi as the setMetadata method describes
+     */
+    private void setXMLMetadata(String doi, String doiPrefix, String derived, String metadataXML)
+        throws OSTIElinkException {
         String ostiId = getOstiId(doi, doiPrefix);// if the doi can't be found, an exception will be thrown.
         String newMetadataXML = addOrReplaceOstiIdToXMLMetadata(ostiId, metadataXML);
         log.debug("OSTIElinkService.setMetadata - the new xml metadata with the osti id " + ostiId +
@@ -225,7 +359,7 @@ public abstract class OSTIElinkService {
         if (command.parse(newMetadataXML)) {
             log.info(newMetadataXML + " is a publishIdentifier command and it should be handled "
                          + "by a different route.");
-            handlePublishIdentifierCommand(command.getOstiId(), command.getUrl());
+            handlePublishIdentifierCommand(command.getOstiId(), command.getUrl(), doi, derived);
         } else {
             log.debug("The metadata in the setMetadata method is NOT a publishIdentifier command "
                           + "and the method just use the regular route.");
@@ -245,6 +379,7 @@ public abstract class OSTIElinkService {
                 throw new OSTIElinkException("OSTIElinkService.setMetadata - Error:\n"
                                                  + new String(reponse));
             }
+            verifyDerivedWrite(doi, derived, ostiId, getElementValue(doc, DOI));
         }
     }
     
@@ -261,12 +396,308 @@ public abstract class OSTIElinkService {
         if (metadata == null) {
             throw new OSTIElinkException("OSTIElinkService.getStatus - the metadata of the DOI " + doi + " can't be found.");
         }
-        Document doc = generateDOM(metadata.getBytes());
-        status = getAttributeValue(doc, "record", "status");//get the attribute value of the first element
+        status = parseStatus(metadata);
         log.debug("OSTIElinkService.getStatus - the status of " + doi + " is " + status);
         return status;
     }
+
+    /**
+     * Parse the status from the metadata of a record. If there are multiple records, the status
+     * of the first one will be returned.
+     * @param metadata  the metadata returned by the search of a doi
+     * @return  the status of the record
+     * @throws OSTIElinkException
+     */
+    protected String parseStatus(String metadata) throws OSTIElinkException {
+        Document doc = generateDOM(metadata.getBytes());
+        return getAttributeValue(doc, "record", "status");//get the attribute value of the first element
+    }
     
+    /**
+     * Get the status of a DOI like the getStatus(String) method does, but an
+     * OSTIElinkTimeoutException will be thrown if it doesn't complete in the given time. The
+     * remaining time is shared by all the requests the call sends, including the retries
+     * waiting for a new DOI to be searchable.
+     * @param doi  the doi to identify the record
+     * @param timeout  the max time the call can take
+     * @return  the status of the doi
+     * @throws OSTIElinkException
+     */
+    public String getStatus(String doi, Duration timeout) throws OSTIElinkException {
+        return Deadline.after(timeout).run(() -> getStatus(doi));
+    }
+
+    /**
+     * Wait until the record of the doi matches the given condition without blocking the
+     * calling thread, e.g. until a new doi is searchable or its status becomes R. The waits of
+     * all the callers are coalesced by the poller of the service, which searches the pending
+     * dois in batches on every tick. The returned future completes with the metadata
+     * of the matching record, or exceptionally with an OSTIElinkTimeoutException when the
+     * deadline expires. The other failures of the queries, except OSTIElinkNotFoundException,
+     * end the wait as well. Cancelling the future stops the wait.
+     * @param doi  the doi of the record
+     * @param condition  the condition the record should match, such as
+     *                   RecordCondition.SEARCHABLE or the one returned by hasStatus
+     * @param deadline  the deadline of the wait
+     * @return  a future of the metadata which matches the condition
+     */
+    public CompletableFuture<String> awaitRecord(String doi, RecordCondition condition,
+                                                 Deadline deadline) {
+        if (doi == null || doi.trim().equals("") || condition == null || deadline == null) {
+            throw new IllegalArgumentException("The doi, the condition and the deadline of "
+                                                   + "awaitRecord can't be null or blank.");
+        }
+        return getRecordPoller().await(doi, condition, deadline);
+    }
+
+    /**
+     * Wait until the doi is searchable, e.g. after it is minted, and block the calling thread.
+     * The wait is coalesced with the other waits by the poller of the service.
+     * @param doi  the doi of the record
+     * @param timeoutMillis  the max time of the wait. It is cut to the remaining time of the
+     *                       deadline of the calling thread.
+     * @return  the metadata of the record
+     * @throws OSTIElinkException  an OSTIElinkTimeoutException if the deadline of the calling
+     *                             thread expires, or an OSTIElinkNotFoundException if the doi
+     *                             isn't searchable in the given time
+     */
+    protected String awaitSearchable(String doi, long timeoutMillis) throws OSTIElinkException {
+        Deadline current = Deadline.current();
+        Deadline deadline = Deadline.after(Duration.ofMillis(Math.max(0, timeoutMillis)))
+            .min(current);
+        CompletableFuture<String> result = awaitRecord(doi, RecordCondition.SEARCHABLE, deadline);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new OSTIElinkException("The thread waiting for " + doi + " to be searchable "
+                                             + "was interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof OSTIElinkTimeoutException
+                && (current == null || !current.isExpired())) {
+                throw new OSTIElinkNotFoundException("The library waited " + timeoutMillis
+                                                         + " milliseconds for " + doi + " to be "
+                                                         + "searchable. However OSTI service "
+                                                         + "still can't find it");
+            } else if (cause instanceof OSTIElinkException) {
+                throw (OSTIElinkException) cause;
+            }
+            throw new OSTIElinkException("Failed to wait for " + doi + " to be searchable: "
+                                             + cause.getMessage());
+        }
+    }
+
+    /**
+     * Search the records of many dois without blocking the calling thread. This default
+     * implementation sends one getMetadataAsync query per doi. The child classes which can
+     * search many dois in one query should overwrite it.
+     * @param dois  the dois will be searched
+     * @return  a future of the metadata keyed by the dois. The dois which can't be found are
+     *          absent.
+     */
+    protected CompletableFuture<Map<String, String>> searchRecordsAsync(List<String> dois) {
+        Map<String, String> records = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> queries = new ArrayList<>();
+        for (String doi : dois) {
+            queries.add(getMetadataAsync(doi).handle((metadata, error) -> {
+                if (error != null) {
+                    if (error instanceof CompletionException && error.getCause() != null) {
+                        error = error.getCause();
+                    }
+                    if (!(error instanceof OSTIElinkNotFoundException)) {
+                        throw new CompletionException(error);
+                    }
+                } else {
+                    records.put(doi, metadata);
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(queries.toArray(new CompletableFuture<?>[0]))
+            .thenApply(done -> records);
+    }
+
+    /**
+     * Get the metadata of many dois. The dois are searched in batches by multi-valued queries
+     * with a bounded number of them in flight, and looked up one by one if the service can't
+     * search many dois in a query. The failure of a doi doesn't fail the others. The deadline
+     * of the calling thread, if it has one, bounds the whole lookup.
+     * @param dois  the dois. The null, blank and duplicated ones are skipped.
+     * @return  the results keyed by the dois in the given order. The result of a doi which
+     *          can't be found has an OSTIElinkNotFoundException.
+     * @throws OSTIElinkException  an OSTIElinkTimeoutException if the deadline expires
+     */
+    public Map<String, LookupResult<String>> getMetadata(Collection<String> dois)
+        throws OSTIElinkException {
+        if (dois == null) {
+            throw new IllegalArgumentException("The collection of the dois can't be null.");
+        }
+        return getBulkLookup().getMetadata(dois);
+    }
+
+    /**
+     * Get the statuses of many dois in the way of the getMetadata(Collection) method. The
+     * records this service wrote recently are answered from their write responses.
+     * @param dois  the dois. The null, blank and duplicated ones are skipped.
+     * @return  the statuses keyed by the dois in the given order
+     * @throws OSTIElinkException  an OSTIElinkTimeoutException if the deadline expires
+     */
+    public Map<String, LookupResult<String>> getStatuses(Collection<String> dois)
+        throws OSTIElinkException {
+        Map<String, LookupResult<String>> statuses = new LinkedHashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (String doi : lookUpRecentWrites(dois, statuses, unknown)) {
+            RecentWrites.Record written = getRecentWrite(doi);
+            statuses.put(doi, parse(doi, () -> parseStatus(written.getMetadata())));
+        }
+        for (Map.Entry<String, LookupResult<String>> result : getMetadata(unknown).entrySet()) {
+            String metadata = result.getValue().getValue();
+            statuses.put(result.getKey(), result.getValue().isSuccess()
+                ? parse(result.getKey(), () -> parseStatus(metadata)) : result.getValue());
+        }
+        return statuses;
+    }
+
+    /**
+     * Get the osti ids of many dois in the way of the getMetadata(Collection) method. The
+     * records this service wrote recently and the cached or indexed osti ids aren't searched.
+     * @param dois  the dois. The null, blank and duplicated ones are skipped.
+     * @return  the osti ids keyed by the dois in the given order
+     * @throws OSTIElinkException  an OSTIElinkTimeoutException if the deadline expires
+     */
+    public Map<String, LookupResult<String>> resolveOstiIds(Collection<String> dois)
+        throws OSTIElinkException {
+        Map<String, LookupResult<String>> ostiIds = new LinkedHashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (String doi : lookUpRecentWrites(dois, ostiIds, unknown)) {
+            ostiIds.put(doi, LookupResult.success(getRecentWrite(doi).getOstiId()));
+        }
+        List<String> uncached = new ArrayList<>();
+        for (String doi : unknown) {
+            String ostiId = lookUpOstiId(doi);
+            if (ostiId != null) {
+                ostiIds.put(doi, LookupResult.success(ostiId));
+            } else {
+                uncached.add(doi);
+            }
+        }
+        for (Map.Entry<String, LookupResult<String>> result : getMetadata(uncached).entrySet()) {
+            String doi = result.getKey();
+            String metadata = result.getValue().getValue();
+            ostiIds.put(doi, result.getValue().isSuccess()
+                ? parse(doi, () -> rememberOstiId(doi, parseOSTIidFromResponse(metadata, doi)))
+                : result.getValue());
+        }
+        return ostiIds;
+    }
+
+    /**
+     * Split the dois of a bulk lookup into the ones written recently, whose records have the
+     * osti id and the metadata, and the unknown ones
+     * @param dois  the dois of the lookup
+     * @param results  the results of the lookup. The keys are put in the given order.
+     * @param unknown  the list the unknown dois are added to
+     * @return  the dois written recently
+     */
+    private List<String> lookUpRecentWrites(Collection<String> dois,
+                                            Map<String, LookupResult<String>> results,
+                                            List<String> unknown) {
+        if (dois == null) {
+            throw new IllegalArgumentException("The collection of the dois can't be null.");
+        }
+        List<String> written = new ArrayList<>();
+        for (String doi : dois) {
+            if (doi == null || doi.trim().equals("") || results.containsKey(doi)) {
+                continue;
+            }
+            // Keep the place of the doi in the order of the given collection
+            results.put(doi, null);
+            RecentWrites.Record record = getRecentWrite(doi);
+            if (record != null && record.getOstiId() != null && record.getMetadata() != null) {
+                written.add(doi);
+            } else {
+                unknown.add(doi);
+            }
+        }
+        return written;
+    }
+
+    private static LookupResult<String> parse(String doi, Deadline.Task<String> parser) {
+        try {
+            return LookupResult.success(parser.call());
+        } catch (OSTIElinkException e) {
+            return LookupResult.failure(e);
+        } catch (RuntimeException e) {
+            return LookupResult.failure(new OSTIElinkException("Failed to parse the record of "
+                                                                   + doi + ": " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Get the bulk lookup of the getMetadata(Collection) method. It is created on the first
+     * call from the properties.
+     * @return the bulk lookup
+     */
+    BulkLookup getBulkLookup() {
+        if (bulkLookup == null) {
+            synchronized (this) {
+                if (bulkLookup == null) {
+                    bulkLookup = OSTIServiceFactory.getBulkLookup(this, properties);
+                }
+            }
+        }
+        return bulkLookup;
+    }
+
+    /**
+     * Get the poller coalescing the waits of the awaitRecord method. It is created on the
+     * first call from the properties.
+     * @return the poller
+     */
+    RecordPoller getRecordPoller() {
+        if (recordPoller == null) {
+            synchronized (this) {
+                if (recordPoller == null) {
+                    recordPoller = OSTIServiceFactory.getRecordPoller(this, properties);
+                }
+            }
+        }
+        return recordPoller;
+    }
+
+    /**
+     * Create the condition that the status of a record is the given one. The status is
+     * compared with the value the getStatus method returns, so Saved should be used for a
+     * saved record.
+     * @param status  the expected status, such as R
+     * @return  the condition which can be passed to the awaitRecord method
+     */
+    public RecordCondition hasStatus(String status) {
+        return metadata -> status.equals(parseStatus(metadata));
+    }
+
+    /**
+     * Wait before retrying a query. If the current thread has a deadline, the wait is cut
+     * to its remaining time and an OSTIElinkTimeoutException is thrown if it has expired.
+     * @param millis  the time to wait in milliseconds
+     * @param reason  the description of what the thread is waiting for
+     * @throws OSTIElinkTimeoutException
+     */
+    protected void waitBeforeRetry(long millis, String reason) throws OSTIElinkTimeoutException {
+        Deadline deadline = Deadline.current();
+        if (deadline != null) {
+            deadline.check("waiting for " + reason);
+            millis = Math.min(millis, deadline.getRemainingMillis());
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            log.warn("The thread waiting for " + reason + " was interrupted " + ex.getMessage());
+        }
+    }
+
     /**
      * Add the osti id element to the metadata as the first child if the metadata doesn't have one;otherwise, it will
      * replace with the new value
@@ -318,18 +749,394 @@ public abstract class OSTIElinkService {
     }
     
     /**
-     * Generate an HTTP Client for communicating with web services that is
-     * thread safe and can be used in the context of a multi-threaded application.
-     * @return DefaultHttpClient
+     * Get the transport which sends the http requests. It is created on the first call by the
+     * OSTIServiceFactory, so the properties set by the constructors of the child classes can be
+     * used to choose and configure it.
+     * @return the transport
+     * @throws OSTIElinkException
      */
-    private static CloseableHttpClient createThreadSafeClient()  {
-        PoolingHttpClientConnectionManager poolingConnManager = new PoolingHttpClientConnectionManager();
-        CloseableHttpClient client = HttpClients.custom().setConnectionManager(poolingConnManager).build();
-        poolingConnManager.setMaxTotal(5);
-        poolingConnManager.setDefaultMaxPerRoute(CONNECTIONS_PER_ROUTE);
-        return client;
+    protected OSTIElinkTransport getTransport() throws OSTIElinkException {
+        OSTIElinkTransport current = transport;
+        if (current == null) {
+            synchronized (this) {
+                current = transport;
+                if (current == null) {
+                    try {
+                        current = OSTIServiceFactory.getTransport(properties);
+                    } catch (ClassNotSupported e) {
+                        throw new OSTIElinkException(
+                            "OSTIElinkService.getTransport - can't create the transport: "
+                                + e.getMessage());
+                    }
+                    transport = current;
+                }
+            }
+        }
+        return current;
     }
-    
+
+    /**
+     * Set the transport which sends the http requests. It replaces the one configured by the
+     * properties, e.g. an in-process transport for tests and benchmarks. The old transport is
+     * not closed.
+     * @param transport  the transport will be used
+     */
+    public void setTransport(OSTIElinkTransport transport) {
+        this.transport = transport;
+        CircuitBreaker breaker = getCircuitBreaker();
+        if (breaker != null) {
+            breaker.reset();
+        }
+    }
+
+    /**
+     * Get the circuit breaker of the endpoint classes. It is created on the first call by the
+     * OSTIServiceFactory from the properties.
+     * @return the circuit breaker. Null will be returned if it is disabled.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        if (!circuitBreakerLoaded) {
+            synchronized (this) {
+                if (!circuitBreakerLoaded) {
+                    circuitBreaker = OSTIServiceFactory.getCircuitBreaker(properties);
+                    circuitBreakerLoaded = true;
+                }
+            }
+        }
+        return circuitBreaker;
+    }
+
+    /**
+     * Get the store of the records this service minted or updated recently. It is created on
+     * the first call by the OSTIServiceFactory from the properties.
+     * @return the store. Null will be returned if it is disabled.
+     */
+    public RecentWrites getRecentWrites() {
+        if (!recentWritesLoaded) {
+            synchronized (this) {
+                if (!recentWritesLoaded) {
+                    recentWrites = OSTIServiceFactory.getRecentWrites(properties);
+                    recentWritesLoaded = true;
+                }
+            }
+        }
+        return recentWrites;
+    }
+
+    /**
+     * Get the record of the doi from the store of the recent writes
+     * @param doi  the doi of the record
+     * @return the record. Null will be returned if it isn't known or the store is disabled.
+     */
+    protected RecentWrites.Record getRecentWrite(String doi) {
+        RecentWrites store = getRecentWrites();
+        return store == null ? null : store.get(doi);
+    }
+
+    /**
+     * Remember the fields of a record from the response of a write
+     * @param doi  the doi of the record
+     * @param ostiId  the osti id from the response. It can be null.
+     * @param status  the workflow status from the response. It can be null.
+     * @param metadata  the whole record from the response. It can be null.
+     */
+    protected void rememberWrite(String doi, String ostiId, String status, String metadata) {
+        endFlights(doi);
+        RecentWrites store = getRecentWrites();
+        if (store != null) {
+            store.put(doi, ostiId, status, metadata);
+        }
+        rememberOstiId(doi, ostiId);
+        RecordCache cache = getRecordCache();
+        if (cache != null) {
+            if (metadata != null) {
+                cache.put(doi, metadata);
+            } else {
+                cache.invalidate(doi);
+            }
+        }
+    }
+
+    /**
+     * Get the collapser of the concurrent identical lookups of this service, e.g. to read its
+     * collapse rate
+     * @return the single flight of the lookups
+     */
+    public SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * Build the key of a lookup for the single flight. The dois are normalized, so the lookups
+     * of the same doi written differently are collapsed as well. The key of a doi has its write
+     * generation, so the lookups after a write don't share the ones started before it.
+     * @param operation  the kind of the lookup, which determines the type of its result
+     * @param identifier  the identifier which is looked up
+     * @param type  the type of the identifier, which can be doi or OSTIId
+     * @return the key of the lookup
+     */
+    protected String flightKey(String operation, String identifier, String type) {
+        if (DOI.equals(type)) {
+            String doi = normalizeDOI(identifier);
+            return operation + " " + type + " " + doi + " "
+                + (doi == null ? 0 : writeGenerations.get(generationStripe(doi)));
+        }
+        return operation + " " + type + " " + (identifier == null ? null : identifier.trim());
+    }
+
+    /**
+     * End the lookups of the doi in flight for the new callers, since a write changed its
+     * record. The callers already waiting still get the results of the old lookups.
+     * @param doi  the written doi
+     */
+    protected void endFlights(String doi) {
+        String key = normalizeDOI(doi);
+        if (key != null) {
+            writeGenerations.incrementAndGet(generationStripe(key));
+        }
+    }
+
+    private int generationStripe(String normalizedDOI) {
+        return (normalizedDOI.hashCode() & Integer.MAX_VALUE) % writeGenerations.length();
+    }
+
+    /**
+     * Get the cache of the metadata of the records. It is created on the first call by the
+     * OSTIServiceFactory from the properties.
+     * @return the cache. Null will be returned if it is disabled.
+     */
+    public RecordCache getRecordCache() {
+        if (!recordCacheLoaded) {
+            synchronized (this) {
+                if (!recordCacheLoaded) {
+                    recordCache = OSTIServiceFactory.getRecordCache(properties);
+                    recordCacheLoaded = true;
+                }
+            }
+        }
+        return recordCache;
+    }
+
+    /**
+     * Get the metadata of the doi from the record cache. In the stale-while-revalidate mode,
+     * an expired record is returned at once and refreshed by a query in the background.
+     * @param doi  the doi of the record
+     * @return the metadata. Null will be returned if it isn't cached or the cache is disabled.
+     */
+    protected String getCachedMetadata(String doi) {
+        RecordCache cache = getRecordCache();
+        RecordCache.Entry entry = cache == null ? null : cache.get(doi);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.isFresh() && cache.startRefresh(doi)) {
+            log.debug("OSTIElinkService.getCachedMetadata - refresh the stale record of " + doi);
+            long generation = cache.getGeneration(doi);
+            getMetadataAsync(doi, DOI).whenComplete((metadata, error) -> {
+                if (error instanceof CompletionException && error.getCause() != null) {
+                    error = error.getCause();
+                }
+                if (error == null) {
+                    cache.put(doi, metadata, generation);
+                } else if (error instanceof OSTIElinkNotFoundException) {
+                    cache.invalidate(doi, generation);
+                } else {
+                    log.warn("OSTIElinkService.getCachedMetadata - can't refresh the record of "
+                                 + doi + ": " + error.getMessage());
+                }
+                cache.endRefresh(doi);
+            });
+        }
+        return entry.getMetadata();
+    }
+
+    /**
+     * Get the cache of the osti ids of the dois. It is created on the first call by the
+     * OSTIServiceFactory from the properties.
+     * @return the cache. Null will be returned if it is disabled.
+     */
+    public OstiIdCache getOstiIdCache() {
+        if (!ostiIdCacheLoaded) {
+            synchronized (this) {
+                if (!ostiIdCacheLoaded) {
+                    ostiIdCache = OSTIServiceFactory.getOstiIdCache(properties);
+                    ostiIdCacheLoaded = true;
+                }
+            }
+        }
+        return ostiIdCache;
+    }
+
+    /**
+     * Get the persistent index of the osti ids of the dois. It is opened on the first call by
+     * the OSTIServiceFactory from the properties.
+     * @return the index. Null will be returned if it isn't configured or can't be opened.
+     */
+    public OstiIdIndex getOstiIdIndex() {
+        if (!ostiIdIndexLoaded) {
+            synchronized (this) {
+                if (!ostiIdIndexLoaded) {
+                    ostiIdIndex = OSTIServiceFactory.getOstiIdIndex(properties);
+                    ostiIdIndexLoaded = true;
+                }
+            }
+        }
+        return ostiIdIndex;
+    }
+
+    /**
+     * Get the rules deriving the osti ids from the dois. They are created on the first call by
+     * the OSTIServiceFactory from the properties.
+     * @return the rules. Null will be returned if they are disabled.
+     */
+    public PrefixRules getPrefixRules() {
+        if (!prefixRulesLoaded) {
+            synchronized (this) {
+                if (!prefixRulesLoaded) {
+                    prefixRules = OSTIServiceFactory.getPrefixRules(properties);
+                    prefixRulesLoaded = true;
+                }
+            }
+        }
+        return prefixRules;
+    }
+
+    /**
+     * Load the osti ids from an export of the records into the persistent index, so the
+     * updates of the dois in the export don't search their osti ids
+     * @param records  the json array of the records, like the response of the records endpoint
+     * @return the number of the loaded osti ids
+     * @throws OSTIElinkException  if the index isn't configured or the export can't be loaded
+     */
+    public int importOstiIds(InputStream records) throws OSTIElinkException {
+        OstiIdIndex index = getOstiIdIndex();
+        if (index == null) {
+            throw new OSTIElinkException("OSTIElinkService.importOstiIds - the osti id index "
+                                             + "isn't configured by "
+                                             + OstiIdIndex.PATH_PROP_NAME);
+        }
+        try {
+            return index.importRecords(records);
+        } catch (IOException e) {
+            throw new OSTIElinkException("OSTIElinkService.importOstiIds - can't load the "
+                                             + "records: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Look up the osti id of a doi in the cache and then in the persistent index without
+     * querying the service
+     * @param doi  the doi of the record
+     * @return the osti id. Null will be returned if neither of them has it.
+     */
+    protected String lookUpOstiId(String doi) {
+        OstiIdCache cache = getOstiIdCache();
+        String ostiId = cache == null ? null : cache.get(doi);
+        if (ostiId != null) {
+            return ostiId;
+        }
+        OstiIdIndex index = getOstiIdIndex();
+        if (index != null) {
+            try {
+                long indexed = index.get(doi);
+                if (indexed > 0) {
+                    ostiId = Long.toString(indexed);
+                    if (cache != null) {
+                        cache.put(doi, ostiId);
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("OSTIElinkService.lookUpOstiId - can't read the osti id index: "
+                             + e.getMessage());
+            }
+        }
+        return ostiId;
+    }
+
+    /**
+     * Cache the osti id of a doi found in a response, e.g. of a mint or a search, and put it
+     * into the persistent index
+     * @param doi  the doi of the record
+     * @param ostiId  the osti id of the record. It can be null.
+     * @return the given osti id
+     */
+    protected String rememberOstiId(String doi, String ostiId) {
+        if (ostiId == null) {
+            return null;
+        }
+        PrefixRules rules = getPrefixRules();
+        if (rules != null) {
+            rules.observe(doi, ostiId);
+        }
+        OstiIdCache cache = getOstiIdCache();
+        if (cache != null) {
+            cache.put(doi, ostiId);
+        }
+        OstiIdIndex index = getOstiIdIndex();
+        long indexed = OstiIdIndex.toOstiId(ostiId);
+        if (index != null && indexed > 0) {
+            try {
+                index.put(doi, indexed);
+            } catch (IOException e) {
+                log.warn("OSTIElinkService.rememberOstiId - can't write the osti id index: "
+                             + e.getMessage());
+            }
+        }
+        return ostiId;
+    }
+
+    /**
+     * Acquire the permit of sending the request from the circuit of its endpoint class
+     * @param request  the request will be sent
+     * @return the permit
+     * @throws OSTIElinkCircuitOpenException  if the circuit is open
+     */
+    private CircuitBreaker.Permit acquirePermit(TransportRequest request)
+        throws OSTIElinkCircuitOpenException {
+        CircuitBreaker breaker = getCircuitBreaker();
+        if (breaker == null) {
+            return CircuitBreaker.Permit.NONE;
+        }
+        return breaker.acquire(EndpointClass.classify(request.getMethod(), request.getUri()));
+    }
+
+    /**
+     * Find the transport with the given class in the chain of the transports, e.g. to read the
+     * byte counters of the CompressionTransport.
+     * @param clazz  the class of the transport which should be found
+     * @param <T>  the type of the transport
+     * @return the transport with the given class. Null will be returned if it isn't used.
+     * @throws OSTIElinkException
+     */
+    public <T extends OSTIElinkTransport> T findTransport(Class<T> clazz)
+        throws OSTIElinkException {
+        return DelegatingTransport.find(getTransport(), clazz);
+    }
+
+    /**
+     * Get the live statistics (leased, pending, available and max connections) of the
+     * connection pool used by the blocking requests.
+     * @return the statistics of the connection pool. Null will be returned if the transport
+     * isn't an ApacheHttpTransport or doesn't delegate to one.
+     * @throws OSTIElinkException
+     */
+    public PoolStats getConnectionPoolStats() throws OSTIElinkException {
+        ApacheHttpTransport apache = findTransport(ApacheHttpTransport.class);
+        return apache == null ? null : apache.getConnectionPoolStats();
+    }
+
+    /**
+     * Get the live statistics (leased, pending, available and max connections) of the
+     * connection pool used by the non-blocking requests.
+     * @return the statistics of the connection pool. Null will be returned if no
+     * non-blocking request has been sent or the transport isn't an ApacheHttpTransport.
+     * @throws OSTIElinkException
+     */
+    public PoolStats getAsyncConnectionPoolStats() throws OSTIElinkException {
+        ApacheHttpTransport apache = findTransport(ApacheHttpTransport.class);
+        return apache == null ? null : apache.getAsyncConnectionPoolStats();
+    }
+
     /**
      * Send an HTTP request to the OSTI Elink service without a request body.
      * @param requestType the type of the service as an integer
@@ -348,6 +1155,200 @@ public abstract class OSTIElinkService {
      * @return byte[] containing the response body
      */
     protected byte[] sendRequest(int requestType, String uri, String requestBody) throws OSTIElinkException {
+        TransportRequest request = createTransportRequest(requestType, uri, requestBody);
+        CircuitBreaker.Permit permit = acquirePermit(request);
+        try {
+            TransportResponse response = getTransport().execute(request);
+            permit.complete(response.getStatusCode());
+            return checkResponse(response.getStatusCode(), response.getBody());
+        } catch (ClientProtocolException e) {
+            permit.failed(e.getMessage());
+            throw new OSTIElinkException("HTTP protocol error: " + e.getMessage());
+        } catch (InterruptedIOException e) {
+            permit.failed(e.getMessage());
+            throw new OSTIElinkTimeoutException("Timeout error: " + e.getMessage());
+        } catch (IOException e) {
+            permit.failed(e.getMessage());
+            throw new OSTIElinkException("Network error: " + e.getMessage());
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * Send an HTTP request to the OSTI Elink service and parse the body of the successful
+     * response directly from the stream of the connection by the given parser. The error
+     * responses are mapped the same way as the sendRequest method does.
+     * @param requestType the type of the service as an integer
+     * @param uri endpoint to be accessed in the request
+     * @param requestBody the String body to be encoded into the body of the request. It can be
+     *                    null.
+     * @param parser  the parser of the response body
+     * @param <T>  the type of the parsed result
+     * @return the result of the parser
+     * @throws OSTIElinkException
+     */
+    protected <T> T sendRequest(int requestType, String uri, String requestBody,
+                                ResponseParser<T> parser) throws OSTIElinkException {
+        TransportRequest request = createTransportRequest(requestType, uri, requestBody);
+        CircuitBreaker.Permit permit = acquirePermit(request);
+        try (StreamingTransportResponse response = getTransport().executeStreaming(request)) {
+            int statusCode = response.getStatusCode();
+            permit.complete(statusCode);
+            if (statusCode < 200 || statusCode >= 300) {
+                checkResponse(statusCode, IOUtils.toByteArray(response.getBody()));
+            }
+            log.debug("OSTIElinkService.sendRequest() - Response status: " + statusCode);
+            return parser.parse(response.getBody());
+        } catch (ClientProtocolException e) {
+            permit.failed(e.getMessage());
+            throw new OSTIElinkException("HTTP protocol error: " + e.getMessage());
+        } catch (InterruptedIOException e) {
+            permit.failed(e.getMessage());
+            throw new OSTIElinkTimeoutException("Timeout error: " + e.getMessage());
+        } catch (IOException e) {
+            permit.failed(e.getMessage());
+            throw new OSTIElinkException("Network error: " + e.getMessage());
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * Send an HTTP request to the OSTI Elink service without blocking the calling thread.
+     * Many requests can be in flight while only a few threads are used if the transport is
+     * non-blocking. The returned future completes with the response body
+     * or completes exceptionally with the same OSTIElinkAuthenticationException or
+     * OSTIElinkException which the blocking sendRequest method would throw. Cancelling the
+     * returned future aborts the underlying http request. The deadline of the calling thread,
+     * if it has one, also bounds the request.
+     * @param requestType the type of the service as an integer
+     * @param uri endpoint to be accessed in the request
+     * @param requestBody the String body to be encoded into the body of the request. It can be
+     *                    null.
+     * @return a future of the byte[] containing the response body
+     */
+    protected CompletableFuture<byte[]> sendRequestAsync(int requestType, String uri,
+                                                         String requestBody) {
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        final CompletableFuture<TransportResponse> response;
+        final CircuitBreaker.Permit permit;
+        try {
+            TransportRequest request = createTransportRequest(requestType, uri, requestBody);
+            permit = acquirePermit(request);
+            try {
+                response = getTransport().executeAsync(request);
+            } catch (OSTIElinkException e) {
+                permit.release();
+                throw e;
+            }
+        } catch (OSTIElinkException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        response.whenComplete((transportResponse, error) -> {
+            if (error != null) {
+                if (error instanceof CompletionException && error.getCause() != null) {
+                    error = error.getCause();
+                }
+                if (response.isCancelled()) {
+                    permit.release();
+                } else {
+                    permit.failed(error.getMessage());
+                }
+                if (error instanceof ClientProtocolException) {
+                    result.completeExceptionally(
+                        new OSTIElinkException("HTTP protocol error: " + error.getMessage()));
+                } else if (error instanceof InterruptedIOException) {
+                    result.completeExceptionally(
+                        new OSTIElinkTimeoutException("Timeout error: " + error.getMessage()));
+                } else {
+                    result.completeExceptionally(
+                        new OSTIElinkException("Network error: " + error.getMessage()));
+                }
+            } else {
+                permit.complete(transportResponse.getStatusCode());
+                try {
+                    result.complete(checkResponse(transportResponse.getStatusCode(),
+                                                  transportResponse.getBody()));
+                } catch (OSTIElinkException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        result.whenComplete((body, error) -> {
+            if (result.isCancelled()) {
+                response.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Build the transport request for the given type, uri and body. If the current thread has
+     * a deadline, the request carries it, so the transport bounds the request by the remaining
+     * time.
+     * @param requestType the type of the service as an integer
+     * @param uri endpoint to be accessed in the request
+     * @param requestBody the String body to be encoded into the body of the request. It can be
+     *                    null.
+     * @return the transport request
+     * @throws OSTIElinkException  an OSTIElinkTimeoutException if the deadline has expired
+     */
+    private TransportRequest createTransportRequest(int requestType, String uri,
+                                                    String requestBody) throws OSTIElinkException {
+        TransportRequest request = toTransportRequest(buildRequest(requestType, uri, requestBody));
+        Deadline deadline = Deadline.current();
+        if (deadline != null) {
+            deadline.check("sending the " + request.getMethod() + " request to " + uri);
+            request = request.withDeadline(deadline);
+        }
+        return request;
+    }
+
+    /**
+     * Convert the Apache http request to a transport request
+     * @param request  the request will be converted
+     * @return the transport request with the same method, uri, headers and body
+     * @throws OSTIElinkException
+     */
+    private static TransportRequest toTransportRequest(HttpUriRequest request)
+        throws OSTIElinkException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (Header header : request.getAllHeaders()) {
+            headers.put(header.getName(), header.getValue());
+        }
+        byte[] body = null;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                try {
+                    body = EntityUtils.toByteArray(entity);
+                } catch (IOException e) {
+                    throw new OSTIElinkException("OSTIElinkService.toTransportRequest - can't "
+                                                     + "read the request body: " + e.getMessage());
+                }
+                if (entity.getContentType() != null && !headers.containsKey("Content-Type")) {
+                    headers.put("Content-Type", entity.getContentType().getValue());
+                }
+            }
+        }
+        return new TransportRequest(request.getMethod(), request.getURI().toString(), headers,
+                                    body);
+    }
+
+    /**
+     * Build the http request for the given type, uri and body. The headers are set by the
+     * setGetHeaders and setHeaders methods of the child classes.
+     * @param requestType the type of the service as an integer
+     * @param uri endpoint to be accessed in the request
+     * @param requestBody the String body to be encoded into the body of the request. It can be
+     *                    null.
+     * @return the request which can be sent by the http clients
+     * @throws OSTIElinkException
+     */
+    protected HttpUriRequest buildRequest(int requestType, String uri, String requestBody)
+        throws OSTIElinkException {
         HttpUriRequest request = null;
         log.debug("OSTIElinkService.sendRequest - Trying uri: " + uri);
         switch (requestType) {
@@ -386,46 +1387,67 @@ public abstract class OSTIElinkService {
             default:
                 throw new OSTIElinkException("Unrecognized HTTP method requested.");
         }
+        return request;
+    }
 
-        byte[] body = null;
-        try {
-            HttpResponse response = httpClient.execute(request);
-            int statusCode = response.getStatusLine().getStatusCode();
-            log.debug("OSTIElinkService.sendRequest() - Response status: " + statusCode);
+    /**
+     * Map the status code of a response. A 2xx response returns the body; a 401 or 403 response
+     * throws an OSTIElinkAuthenticationException and other status codes throw an
+     * OSTIElinkException.
+     * @param statusCode  the http status code of the response
+     * @param body  the body of the response. It can be null.
+     * @return byte[] containing the response body
+     * @throws OSTIElinkException
+     */
+    private byte[] checkResponse(int statusCode, byte[] body) throws OSTIElinkException {
+        log.debug("OSTIElinkService.sendRequest() - Response status: " + statusCode);
 
-            // Get response body for error cases
-            HttpEntity entity = response.getEntity();
-            String errorBody = "";
-            if (entity != null) {
-                body = EntityUtils.toByteArray(entity);
-                errorBody = new String(body);
-            }
-
-            // Handle different status codes
-            if (statusCode >= 200 && statusCode < 300) {
-                // Success - return body
-                return body;
-            } else if (statusCode == 401 || statusCode == 403) {
-                String errorMsg = "Authentication failed (HTTP " + statusCode + "): Invalid or expired token";
-                if (!errorBody.trim().isEmpty()) {
-                    errorMsg += " - " + errorBody;
-                }
-                log.warn("OSTIElinkService.sendRequest() - " + errorMsg);
-                throw new OSTIElinkAuthenticationException(statusCode, errorMsg);
-            } else {
-                // Other HTTP errors
-                String errorMsg = "HTTP Error " + statusCode;
-                if (!errorBody.trim().isEmpty()) {
-                    errorMsg += ": " + errorBody;
-                }
-                log.warn("OSTIElinkService.sendRequest() - " + errorMsg);
-                throw new OSTIElinkException(errorMsg);
+        // Get response body for error cases
+        String errorBody = "";
+        if (body != null) {
+            errorBody = new String(body);
+        }
+
+        // Handle different status codes
+        if (statusCode >= 200 && statusCode < 300) {
+            // Success - return body
+            return body;
+        } else if (statusCode == 401 || statusCode == 403) {
+            String errorMsg = "Authentication failed (HTTP " + statusCode + "): Invalid or expired token";
+            if (!errorBody.trim().isEmpty()) {
+                errorMsg += " - " + errorBody;
+            }
+            log.warn("OSTIElinkService.sendRequest() - " + errorMsg);
+            throw new OSTIElinkAuthenticationException(statusCode, errorMsg);
+        } else {
+            // Other HTTP errors
+            String errorMsg = "HTTP Error " + statusCode;
+            if (!errorBody.trim().isEmpty()) {
+                errorMsg += ": " + errorBody;
             }
+            log.warn("OSTIElinkService.sendRequest() - " + errorMsg);
+            throw new OSTIElinkException(errorMsg);
+        }
+    }
 
-        } catch (ClientProtocolException e) {
-            throw new OSTIElinkException("HTTP protocol error: " + e.getMessage());
-        } catch (IOException e) {
-            throw new OSTIElinkException("Network error: " + e.getMessage());
+    /**
+     * Close the transport and release its connections, and close the osti id index. The next
+     * request will create or open new ones.
+     */
+    public synchronized void close() {
+        if (transport != null) {
+            transport.close();
+            transport = null;
+        }
+        if (ostiIdIndex != null) {
+            try {
+                ostiIdIndex.close();
+            } catch (IOException e) {
+                log.warn("OSTIElinkService.close - can't close the osti id index: "
+                             + e.getMessage());
+            }
+            ostiIdIndex = null;
+            ostiIdIndexLoaded = false;
         }
     }
 
@@ -535,6 +1557,97 @@ public abstract class OSTIElinkService {
         return identifier;
     }
     
+    /**
+     * Normalize a doi to compare it with the other ones. The letters are lower-cased, since
+     * the dois are case-insensitive, and the doi: prefix in any case is removed.
+     * @param doi  the doi
+     * @return the normalized doi. Null will be returned if the doi is null or blank.
+     */
+    static String normalizeDOI(String doi) {
+        if (doi == null || doi.trim().equals("")) {
+            return null;
+        }
+        return removeDOI(doi.trim().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Get the osti id the prefix rules derive for the doi, without counting it as a derivation.
+     * The writes call it before getOstiId, so they know whether they write by a derived osti
+     * id and check the doi of the written record.
+     * @param doi  the doi will be written
+     * @param prefix  the prefix given by the caller. The rules don't apply if it is given.
+     * @return the derived osti id. Null will be returned if no rule applies.
+     */
+    protected String applyPrefixRules(String doi, String prefix) {
+        PrefixRules rules = getPrefixRules();
+        if ((prefix != null && !prefix.trim().equals("")) || rules == null) {
+            return null;
+        }
+        return rules.apply(doi);
+    }
+
+    /**
+     * Run a write of the doi, and verify the osti id derived by the prefix rules if the write
+     * fails. If the service has a different osti id for the doi, the rules of its shoulder are
+     * disabled and the write runs again by the queried osti id. The timeouts, the open
+     * circuits and the authentication failures don't say anything about the osti id, so they
+     * are thrown without the verification.
+     * @param doi  the doi will be written
+     * @param derived  the osti id derived by applyPrefixRules before the write. It can be null.
+     * @param write  the write, which figures out the osti id by getOstiId
+     * @throws OSTIElinkException  the error of the write
+     */
+    protected void writeWithPrefixRules(String doi, String derived, Deadline.Task<Void> write)
+        throws OSTIElinkException {
+        try {
+            write.call();
+        } catch (OSTIElinkTimeoutException | OSTIElinkCircuitOpenException
+                 | OSTIElinkAuthenticationException e) {
+            throw e;
+        } catch (OSTIElinkException e) {
+            if (derived == null) {
+                throw e;
+            }
+            String queried = rememberOstiId(doi, queryOstiId(doi));
+            if (queried == null || queried.equals(derived)) {
+                throw e;
+            }
+            getPrefixRules().reject(doi);
+            log.error("OSTIElinkService.writeWithPrefixRules - the derived osti id " + derived
+                          + " of " + doi + " is wrong and the service has " + queried
+                          + ". Write it again by the queried one.");
+            write.call();
+        }
+    }
+
+    /**
+     * Check the doi of the record written by an osti id derived by the prefix rules, e.g. the
+     * doi echoed in the response of the write. A different doi means the derived osti id
+     * belongs to another record, so the rules of the shoulder are disabled and the write fails.
+     * Then writeWithPrefixRules writes it again by the queried osti id.
+     * @param doi  the doi asked to be written
+     * @param derived  the osti id derived by applyPrefixRules before the write. It can be null.
+     * @param ostiId  the osti id used by the write
+     * @param writtenDOI  the doi of the written record. It can be null.
+     * @throws OSTIElinkException  if the osti id was derived and the record has another doi
+     */
+    protected void verifyDerivedWrite(String doi, String derived, String ostiId,
+                                      String writtenDOI) throws OSTIElinkException {
+        if (derived == null || writtenDOI == null || !derived.equals(ostiId)
+            || normalizeDOI(writtenDOI).equals(normalizeDOI(doi))) {
+            return;
+        }
+        getPrefixRules().reject(doi);
+        // The record of the other doi may have been written
+        endFlights(writtenDOI);
+        RecordCache cache = getRecordCache();
+        if (cache != null) {
+            cache.invalidate(writtenDOI);
+        }
+        throw new OSTIElinkException("OSTIElinkService.verifyDerivedWrite - the record " + ostiId
+                                         + " is " + writtenDOI + " rather than " + doi);
+    }
+
     /**
      * Figure out the osti id for the given doi. If the doi prefix is null, we will figure it out
      * by querying the service; otherwise, we will use string comparing to get the last part of doi 
@@ -566,9 +1679,31 @@ public abstract class OSTIElinkService {
             }
         }
         if ( ostiId == null || ostiId.trim().equals("")) {
+            RecentWrites.Record written = getRecentWrite(doi);
+            if (written != null && written.getOstiId() != null) {
+                // The search index may not have the record this service just wrote
+                ostiId = written.getOstiId();
+                log.debug("OSTIElinkService.getOstiId - got the osti id " + ostiId + " of " + doi
+                              + " from the response of its recent write");
+                return ostiId;
+            }
+            ostiId = lookUpOstiId(doi);
+            if (ostiId != null) {
+                // The osti id of a doi never changes
+                log.debug("OSTIElinkService.getOstiId - got the osti id " + ostiId + " of " + doi
+                              + " from the cache or the index");
+                return ostiId;
+            }
+            PrefixRules rules = getPrefixRules();
+            ostiId = rules == null ? null : rules.derive(doi);
+            if (ostiId != null) {
+                // Not cached, since the writes by it verify it
+                log.debug("OSTIElinkService.getOstiId - derived the osti id " + ostiId + " of "
+                              + doi + " from the prefix rules");
+                return ostiId;
+            }
             //we can't get the osti id from doi itself. We have to query the service.
-           String metadata = getMetadata(doi);
-           ostiId = parseOSTIidFromResponse(metadata, doi);
+           ostiId = rememberOstiId(doi, queryOstiId(doi));
            log.debug("OSTIElinkService.getOstiId - tried to query the service to get the osti id " + ostiId +
                    " from the doi idetnifier " + doi);
         }
@@ -576,6 +1711,19 @@ public abstract class OSTIElinkService {
         return ostiId;
     }
 
+    /**
+     * Query the service to get the osti id for the given doi. This default implementation
+     * gets the metadata of the doi and parses the osti id from it. The child classes can
+     * overwrite it to only read the osti id from the response.
+     * @param doi  the doi
+     * @return the osti id for the doi
+     * @throws OSTIElinkException
+     */
+    protected String queryOstiId(String doi) throws OSTIElinkException {
+        String metadata = getMetadata(doi);
+        return rememberOstiId(doi, parseOSTIidFromResponse(metadata, doi));
+    }
+
     /**
      * Parse the query response to the osti_id for the given doi
      * @param metadata  the query response
@@ -683,4 +1831,19 @@ public abstract class OSTIElinkService {
     protected abstract void handlePublishIdentifierCommand(String ostiId, String siteUrl)
         throws OSTIElinkException;
 
+    /**
+     * Handle the publishIdentifier action of a write of the doi. The child classes reading the
+     * record before the submit check its doi by verifyDerivedWrite, so a wrong derived osti id
+     * never publishes the record of another doi. This default implementation doesn't check it.
+     * @param ostiId  the osti id of the record
+     * @param siteUrl  the site url of the published record
+     * @param doi  the doi asked to be written
+     * @param derived  the osti id derived by applyPrefixRules before the write. It can be null.
+     * @throws OSTIElinkException
+     */
+    protected void handlePublishIdentifierCommand(String ostiId, String siteUrl, String doi,
+                                                  String derived) throws OSTIElinkException {
+        handlePublishIdentifierCommand(ostiId, siteUrl);
+    }
+
 }
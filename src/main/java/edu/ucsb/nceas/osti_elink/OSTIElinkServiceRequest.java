@@ -18,6 +18,11 @@
  */
 package edu.ucsb.nceas.osti_elink;
 
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -39,6 +44,11 @@ public class OSTIElinkServiceRequest implements Runnable {
     private int method = 0;
     private String identifier = null;
     private String metadata = null;
+    private ScheduledExecutorService scheduler = null;
+    private long maxParkMillis = 0;
+    private long parkedMillis = 0;
+    private Set<OSTIElinkServiceRequest> parkedRequests = null;
+    private volatile boolean parked = false;
     
     protected static Log log = LogFactory.getLog(OSTIElinkServiceRequest.class);
     
@@ -79,12 +89,43 @@ public class OSTIElinkServiceRequest implements Runnable {
         this(service, method, identifier, errorAgent);
         this.metadata = metadata;
     }
+
+    /**
+     * Constructor of a request which will be parked when the circuit of its endpoint is open
+     * @param service  the OSTIElinkService object will run the request
+     * @param method  the method which the request will handle
+     * @param identifier  the identifier associated with the request
+     * @param errorAgent  the class used to send error message to administers. It can be null.
+     *                    If it is null, the error messages will only be logged in the error level.
+     * @param metadata  the metadata associated with the request
+     * @param scheduler  the scheduler used to run the parked request again later
+     * @param maxParkMillis  the max total time in milliseconds the request can be parked. The
+     *                       request fails if the circuit is still open after it.
+     * @param parkedRequests  the set holding the requests while they are parked, so the
+     *                        ones dropped by a shutdown can be reported
+     */
+    protected OSTIElinkServiceRequest(OSTIElinkService service, int method, String identifier,
+                                      OSTIElinkErrorAgent errorAgent, String metadata,
+                                      ScheduledExecutorService scheduler, long maxParkMillis,
+                                      Set<OSTIElinkServiceRequest> parkedRequests) {
+        this(service, method, identifier, errorAgent, metadata);
+        this.scheduler = scheduler;
+        this.maxParkMillis = maxParkMillis;
+        this.parkedRequests = parkedRequests;
+    }
     
     public void run() {
+        // A parked request which the shutdown already took from the set was dropped and reported
+        if (parked && !parkedRequests.remove(this)) {
+            return;
+        }
+        parked = false;
         log.debug("OSTIElinkServiceRequest - Service to execute: " + method + "/" + identifier + "/" + metadata);
         try {
             switch (method) {
                 case SETMETADATA:
+                    // No prefix, so the prefix rules of the service derive the osti id when
+                    // one applies and the others are queried
                     String prefix = null;
                     service.setMetadata(identifier, prefix, metadata);
                     log.debug("Completed SET METADATA request for: " + identifier);
@@ -93,14 +134,63 @@ public class OSTIElinkServiceRequest implements Runnable {
                     log.warn("OSTIElinkServiceRequest - the request doesn't support this method: " + method);
                     break;
             }
-        } catch (Exception e) {
-            String error = "OSTIElinkServiceRequest.run - the request to OSTI for " + identifier + " failed:\n" + metadata + 
-                           "\n *************************************************************\n The response from OSTI is:\n " +
-                            e.getMessage();
-            log.error(error);
-            if (errorAgent != null) {
-                errorAgent.notify(error);
+        } catch (OSTIElinkCircuitOpenException e) {
+            if (!park(e)) {
+                reportError(e);
             }
+        } catch (Exception e) {
+            reportError(e);
+        }
+    }
+
+    /**
+     * Schedule the request to run again when the open circuit allows a probe
+     * @param e  the exception thrown by the open circuit
+     * @return true if the request was parked; false if it can't be parked any more
+     */
+    private boolean park(OSTIElinkCircuitOpenException e) {
+        if (scheduler == null || parkedRequests == null || scheduler.isShutdown()) {
+            return false;
+        }
+        long delay = Math.max(1, e.getRetryAfterMillis());
+        if (parkedMillis + delay > maxParkMillis) {
+            return false;
+        }
+        // Join the set before scheduling, so the scheduled run always finds itself in it
+        parked = true;
+        parkedRequests.add(this);
+        try {
+            scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            parkedRequests.remove(this);
+            parked = false;
+            log.warn("OSTIElinkServiceRequest - can't park the request for " + identifier
+                         + " since " + ree.getMessage());
+            return false;
+        }
+        parkedMillis += delay;
+        log.info("OSTIElinkServiceRequest - the " + e.getEndpointClass()
+                     + " circuit is open, so the request for " + identifier + " is parked for "
+                     + delay + " milliseconds.");
+        return true;
+    }
+
+    /**
+     * Report the parked request as failed, since the client shut down before it could run
+     * again. It is only called by the client, after it took the request from the parked set.
+     */
+    void drop() {
+        reportError(new OSTIElinkException("the client shut down while the request was parked "
+                                               + "for an open circuit"));
+    }
+
+    private void reportError(Exception e) {
+        String error = "OSTIElinkServiceRequest.run - the request to OSTI for " + identifier + " failed:\n" + metadata + 
+                       "\n *************************************************************\n The response from OSTI is:\n " +
+                        e.getMessage();
+        log.error(error);
+        if (errorAgent != null) {
+            errorAgent.notify(error);
         }
     }
 }
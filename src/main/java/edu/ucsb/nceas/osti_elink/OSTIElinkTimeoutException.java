@@ -0,0 +1,18 @@
+package edu.ucsb.nceas.osti_elink;
+
+/**
+ * The exception will be thrown when a request to the OSTI elink service times out or the
+ * deadline of a call expires.
+ * @author Tao
+ */
+public class OSTIElinkTimeoutException extends OSTIElinkException {
+
+    /**
+     * Constructor
+     * @param message
+     */
+    public OSTIElinkTimeoutException(String message) {
+        super(message);
+    }
+
+}
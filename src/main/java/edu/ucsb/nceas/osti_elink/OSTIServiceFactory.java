@@ -2,14 +2,31 @@ package edu.ucsb.nceas.osti_elink;
 
 import edu.ucsb.nceas.osti_elink.exception.ClassNotSupported;
 import edu.ucsb.nceas.osti_elink.exception.PropertyNotFound;
+import edu.ucsb.nceas.osti_elink.transport.ApacheHttpTransport;
+import edu.ucsb.nceas.osti_elink.transport.BulkheadTransport;
+import edu.ucsb.nceas.osti_elink.transport.CachingTransport;
+import edu.ucsb.nceas.osti_elink.transport.CompressionTransport;
+import edu.ucsb.nceas.osti_elink.transport.ConcurrencyLimitTransport;
+import edu.ucsb.nceas.osti_elink.transport.HedgingTransport;
+import edu.ucsb.nceas.osti_elink.transport.Http2Transport;
+import edu.ucsb.nceas.osti_elink.transport.OSTIElinkTransport;
+import edu.ucsb.nceas.osti_elink.transport.RateLimitTransport;
+import edu.ucsb.nceas.osti_elink.transport.RetryTransport;
 import edu.ucsb.nceas.osti_elink.v1.OSTIService;
 import edu.ucsb.nceas.osti_elink.v2.json.OSTIv2JsonService;
+import edu.ucsb.nceas.osti_elink.v2.response.JsonResponseHandler;
 import edu.ucsb.nceas.osti_elink.v2.xml.OSTIv2XmlService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -19,6 +36,8 @@ import java.util.Properties;
 public class OSTIServiceFactory {
     public static final String OSTISERVICE_CLASSNAME_PROPERTY = "ostiService.className";
     public static final String OSTISERVICE_CLASSNAME_ENV_NAME = "METACAT_OSTI_SERVICE_CLASS_NAME";
+    public static final String TRANSPORT_CLASSNAME_PROPERTY = "ostiService.transport.className";
+    public static final String TRANSPORT_CLASSNAME_ENV_NAME = "METACAT_OSTI_TRANSPORT_CLASS_NAME";
     private static final Log log = LogFactory.getLog(OSTIServiceFactory.class);
 
     /**
@@ -66,6 +85,361 @@ public class OSTIServiceFactory {
         return service;
     }
 
+    /**
+     * Get the transport which sends the http requests of an OSTIElinkService. The environmental
+     * variable of METACAT_OSTI_TRANSPORT_CLASS_NAME overwrites the property
+     * ostiService.transport.className. The class must implement OSTIElinkTransport and have a
+     * public constructor with a Properties parameter or a public constructor without parameters.
+     * If neither is set, the default ApacheHttpTransport will be used and it is wrapped by the
+     * Http2Transport when HTTP/2 is enabled. The transport is wrapped by the optional
+     * interceptors, such as the gzip compression, enabled by the configuration.
+     * @param properties  the configuration determining the transport. It can be null.
+     * @return an OSTIElinkTransport instance
+     * @throws ClassNotSupported
+     */
+    public static OSTIElinkTransport getTransport(Properties properties) throws ClassNotSupported {
+        return decorateTransport(createBaseTransport(properties), properties);
+    }
+
+    /**
+     * Create the transport which actually sends the requests. It is the class set by the
+     * environment variable or the property, or the default ApacheHttpTransport which is wrapped
+     * by the Http2Transport when HTTP/2 is enabled.
+     * @param properties  the configuration determining the transport. It can be null.
+     * @return an OSTIElinkTransport instance
+     * @throws ClassNotSupported
+     */
+    private static OSTIElinkTransport createBaseTransport(Properties properties)
+        throws ClassNotSupported {
+        String className =
+            getSetting(TRANSPORT_CLASSNAME_ENV_NAME, TRANSPORT_CLASSNAME_PROPERTY, properties, null);
+        if (className == null) {
+            OSTIElinkTransport transport = new ApacheHttpTransport(properties);
+            if (getBooleanSetting(Http2Transport.HTTP2_ENABLED_ENV_NAME,
+                                  Http2Transport.HTTP2_ENABLED_PROP_NAME, properties, false)) {
+                transport = new Http2Transport(
+                    getIntSetting(Http2Transport.HTTP2_MAX_STREAMS_ENV_NAME,
+                                  Http2Transport.HTTP2_MAX_STREAMS_PROP_NAME, properties,
+                                  Http2Transport.DEFAULT_HTTP2_MAX_STREAMS), transport);
+            }
+            log.info("The OSTI transport class is the default one: "
+                         + transport.getClass().getName());
+            return transport;
+        }
+        try {
+            Class<?> clazz = Class.forName(className);
+            if (!OSTIElinkTransport.class.isAssignableFrom(clazz)) {
+                throw new ClassNotSupported("The transport class " + className
+                                                + " doesn't implement "
+                                                + OSTIElinkTransport.class.getName());
+            }
+            Object transport;
+            try {
+                Constructor<?> constructor = clazz.getConstructor(Properties.class);
+                transport = constructor.newInstance(properties);
+            } catch (NoSuchMethodException e) {
+                transport = clazz.getConstructor().newInstance();
+            }
+            log.info("The OSTI transport class is " + className);
+            return (OSTIElinkTransport) transport;
+        } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException
+                 | IllegalAccessException | InvocationTargetException e) {
+            throw new ClassNotSupported("OSTIService can't create the transport class "
+                                            + className + " since " + e.getMessage());
+        }
+    }
+
+    /**
+     * Create the circuit breaker of the OSTI endpoint classes by the configuration
+     * @param properties  the configuration of the circuit breaker. It can be null.
+     * @return the circuit breaker. Null will be returned if it is disabled.
+     */
+    public static CircuitBreaker getCircuitBreaker(Properties properties) {
+        if (!getBooleanSetting(CircuitBreaker.ENABLED_ENV_NAME, CircuitBreaker.ENABLED_PROP_NAME,
+                               properties, CircuitBreaker.DEFAULT_ENABLED)) {
+            return null;
+        }
+        return new CircuitBreaker(
+            getIntSetting(CircuitBreaker.FAILURE_THRESHOLD_ENV_NAME,
+                          CircuitBreaker.FAILURE_THRESHOLD_PROP_NAME, properties,
+                          CircuitBreaker.DEFAULT_FAILURE_THRESHOLD),
+            getLongSetting(CircuitBreaker.OPEN_DURATION_ENV_NAME,
+                           CircuitBreaker.OPEN_DURATION_PROP_NAME, properties,
+                           CircuitBreaker.DEFAULT_OPEN_DURATION_MS),
+            getIntSetting(CircuitBreaker.HALF_OPEN_PROBES_ENV_NAME,
+                          CircuitBreaker.HALF_OPEN_PROBES_PROP_NAME, properties,
+                          CircuitBreaker.DEFAULT_HALF_OPEN_PROBES));
+    }
+
+    /**
+     * Create the store of the recently written records by the configuration
+     * @param properties  the configuration of the store. It can be null.
+     * @return the store. Null will be returned if its ttl is 0.
+     */
+    public static RecentWrites getRecentWrites(Properties properties) {
+        long ttl = getLongSetting(RecentWrites.TTL_ENV_NAME, RecentWrites.TTL_PROP_NAME,
+                                  properties, RecentWrites.DEFAULT_TTL_MS);
+        if (ttl <= 0) {
+            return null;
+        }
+        return new RecentWrites(ttl, getIntSetting(RecentWrites.MAX_ENTRIES_ENV_NAME,
+                                                   RecentWrites.MAX_ENTRIES_PROP_NAME, properties,
+                                                   RecentWrites.DEFAULT_MAX_ENTRIES));
+    }
+
+    /**
+     * Create the cache of the osti ids of the dois by the configuration
+     * @param properties  the configuration of the cache. It can be null.
+     * @return the cache. Null will be returned if its max number of the entries is 0.
+     */
+    public static OstiIdCache getOstiIdCache(Properties properties) {
+        int maxEntries = getIntSetting(OstiIdCache.MAX_ENTRIES_ENV_NAME,
+                                       OstiIdCache.MAX_ENTRIES_PROP_NAME, properties,
+                                       OstiIdCache.DEFAULT_MAX_ENTRIES);
+        return maxEntries <= 0 ? null : new OstiIdCache(maxEntries);
+    }
+
+    /**
+     * Open the persistent index of the osti ids of the dois by the configuration
+     * @param properties  the configuration of the index. It can be null.
+     * @return the index. Null will be returned if its path isn't configured or it can't be
+     *         opened, since the service can still query the osti ids.
+     */
+    public static OstiIdIndex getOstiIdIndex(Properties properties) {
+        String path = getSetting(OstiIdIndex.PATH_ENV_NAME, OstiIdIndex.PATH_PROP_NAME,
+                                 properties, null);
+        if (path == null || path.trim().equals("")) {
+            return null;
+        }
+        try {
+            return new OstiIdIndex(new File(path.trim()));
+        } catch (IOException e) {
+            log.warn("Can't open the osti id index " + path + ", so the osti ids won't be "
+                         + "persisted: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Create the rules deriving the osti ids from the dois by the configuration
+     * @param properties  the configuration of the rules. It can be null.
+     * @return the rules. Null will be returned if no shoulder is configured and the learning
+     *         is off.
+     */
+    public static PrefixRules getPrefixRules(Properties properties) {
+        String shoulders = getSetting(PrefixRules.SHOULDERS_ENV_NAME,
+                                      PrefixRules.SHOULDERS_PROP_NAME, properties, null);
+        boolean learn = getBooleanSetting(PrefixRules.LEARN_ENV_NAME, PrefixRules.LEARN_PROP_NAME,
+                                          properties, PrefixRules.DEFAULT_LEARN);
+        if ((shoulders == null || shoulders.trim().equals("")) && !learn) {
+            return null;
+        }
+        return new PrefixRules(shoulders == null ? null : Arrays.asList(shoulders.split(",")),
+                               learn, getIntSetting(PrefixRules.MIN_CONFIRMATIONS_ENV_NAME,
+                                                    PrefixRules.MIN_CONFIRMATIONS_PROP_NAME,
+                                                    properties,
+                                                    PrefixRules.DEFAULT_MIN_CONFIRMATIONS));
+    }
+
+    /**
+     * Create the cache of the metadata of the records by the configuration
+     * @param properties  the configuration of the cache. It can be null.
+     * @return the cache. Null will be returned if its ttl is 0.
+     */
+    public static RecordCache getRecordCache(Properties properties) {
+        long ttl = getLongSetting(RecordCache.TTL_ENV_NAME, RecordCache.TTL_PROP_NAME,
+                                  properties, RecordCache.DEFAULT_TTL_MS);
+        if (ttl <= 0) {
+            return null;
+        }
+        String directory = getSetting(RecordCache.DIRECTORY_ENV_NAME,
+                                      RecordCache.DIRECTORY_PROP_NAME, properties, null);
+        return new RecordCache(ttl, getLongSetting(RecordCache.STALE_ENV_NAME,
+                                                   RecordCache.STALE_PROP_NAME, properties,
+                                                   RecordCache.DEFAULT_STALE_MS),
+                               getIntSetting(RecordCache.MAX_ENTRIES_ENV_NAME,
+                                             RecordCache.MAX_ENTRIES_PROP_NAME, properties,
+                                             RecordCache.DEFAULT_MAX_ENTRIES),
+                               directory == null || directory.trim().equals("") ? null
+                                   : new File(directory.trim()));
+    }
+
+    /**
+     * Create the poller coalescing the waits for the records of a service by the configuration
+     * @param service  the service which searches the records
+     * @param properties  the configuration of the poller. It can be null.
+     * @return the poller
+     */
+    static RecordPoller getRecordPoller(OSTIElinkService service, Properties properties) {
+        return new RecordPoller(service,
+                                getLongSetting(RecordPoller.INTERVAL_ENV_NAME,
+                                               RecordPoller.INTERVAL_PROP_NAME, properties,
+                                               RecordPoller.DEFAULT_INTERVAL_MS),
+                                getIntSetting(RecordPoller.BATCH_SIZE_ENV_NAME,
+                                              RecordPoller.BATCH_SIZE_PROP_NAME, properties,
+                                              RecordPoller.DEFAULT_BATCH_SIZE));
+    }
+
+    /**
+     * Create the bulk lookup of the records of a service by the configuration
+     * @param service  the service which searches the records
+     * @param properties  the configuration of the bulk lookup. It can be null.
+     * @return the bulk lookup
+     */
+    static BulkLookup getBulkLookup(OSTIElinkService service, Properties properties) {
+        return new BulkLookup(service,
+                              getIntSetting(BulkLookup.BATCH_SIZE_ENV_NAME,
+                                            BulkLookup.BATCH_SIZE_PROP_NAME, properties,
+                                            BulkLookup.DEFAULT_BATCH_SIZE),
+                              getIntSetting(BulkLookup.PARALLELISM_ENV_NAME,
+                                            BulkLookup.PARALLELISM_PROP_NAME, properties,
+                                            BulkLookup.DEFAULT_PARALLELISM));
+    }
+
+    /**
+     * Create the adaptive limiter of the in-flight requests
+     * @param transport  the transport which the limiter wraps
+     * @param maxLimit  the highest limit
+     * @param properties  the configuration of the initial and the lowest limits. It can be null.
+     * @return the limiter
+     */
+    private static ConcurrencyLimitTransport createLimiter(OSTIElinkTransport transport,
+                                                           int maxLimit, Properties properties) {
+        return new ConcurrencyLimitTransport(
+            transport, getIntSetting(ConcurrencyLimitTransport.LIMIT_INITIAL_ENV_NAME,
+                                     ConcurrencyLimitTransport.LIMIT_INITIAL_PROP_NAME,
+                                     properties, ConcurrencyLimitTransport.DEFAULT_LIMIT_INITIAL),
+            getIntSetting(ConcurrencyLimitTransport.LIMIT_MIN_ENV_NAME,
+                          ConcurrencyLimitTransport.LIMIT_MIN_PROP_NAME, properties,
+                          ConcurrencyLimitTransport.DEFAULT_LIMIT_MIN), maxLimit);
+    }
+
+    /**
+     * Wrap the given transport by the interceptors enabled by the configuration
+     * @param transport  the transport which actually sends the requests
+     * @param properties  the configuration determining the interceptors. It can be null.
+     * @return the outermost transport
+     */
+    private static OSTIElinkTransport decorateTransport(OSTIElinkTransport transport,
+                                                        Properties properties) {
+        // The limiter is the innermost, so every attempt, including the retries and the hedges,
+        // takes a slot, while the waits between the retries don't hold one
+        boolean limited = getBooleanSetting(ConcurrencyLimitTransport.LIMIT_ENABLED_ENV_NAME,
+                                            ConcurrencyLimitTransport.LIMIT_ENABLED_PROP_NAME,
+                                            properties, false);
+        int maxLimit = getIntSetting(ConcurrencyLimitTransport.LIMIT_MAX_ENV_NAME,
+                                     ConcurrencyLimitTransport.LIMIT_MAX_PROP_NAME, properties,
+                                     ConcurrencyLimitTransport.DEFAULT_LIMIT_MAX);
+        if (getBooleanSetting(BulkheadTransport.BULKHEAD_ENABLED_ENV_NAME,
+                              BulkheadTransport.BULKHEAD_ENABLED_PROP_NAME, properties, false)) {
+            Map<BulkheadTransport.Compartment, Integer> quotas =
+                new EnumMap<>(BulkheadTransport.Compartment.class);
+            quotas.put(BulkheadTransport.Compartment.READ,
+                       getIntSetting(BulkheadTransport.BULKHEAD_READS_ENV_NAME,
+                                     BulkheadTransport.BULKHEAD_READS_PROP_NAME, properties,
+                                     BulkheadTransport.DEFAULT_BULKHEAD_READS));
+            quotas.put(BulkheadTransport.Compartment.WRITE,
+                       getIntSetting(BulkheadTransport.BULKHEAD_WRITES_ENV_NAME,
+                                     BulkheadTransport.BULKHEAD_WRITES_PROP_NAME, properties,
+                                     BulkheadTransport.DEFAULT_BULKHEAD_WRITES));
+            quotas.put(BulkheadTransport.Compartment.MINT,
+                       getIntSetting(BulkheadTransport.BULKHEAD_MINTS_ENV_NAME,
+                                     BulkheadTransport.BULKHEAD_MINTS_PROP_NAME, properties,
+                                     BulkheadTransport.DEFAULT_BULKHEAD_MINTS));
+            // With the bulkheads, each compartment gets its own limiter bounded by its quota.
+            // So the writes past their quota never queue ahead of the reads in a shared FIFO,
+            // and the writes waiting for their quota don't hold the slots of a limiter.
+            Map<BulkheadTransport.Compartment, OSTIElinkTransport> delegates = null;
+            if (limited) {
+                delegates = new EnumMap<>(BulkheadTransport.Compartment.class);
+                for (Map.Entry<BulkheadTransport.Compartment, Integer> quota : quotas.entrySet()) {
+                    delegates.put(quota.getKey(),
+                                  createLimiter(transport, Math.min(maxLimit, quota.getValue()),
+                                                properties));
+                }
+            }
+            transport = new BulkheadTransport(
+                transport, delegates, quotas.get(BulkheadTransport.Compartment.READ),
+                quotas.get(BulkheadTransport.Compartment.WRITE),
+                quotas.get(BulkheadTransport.Compartment.MINT));
+        } else if (limited) {
+            transport = createLimiter(transport, maxLimit, properties);
+        }
+        // The rate limit is outside of the limiter and the bulkheads, so a request waiting for
+        // its token doesn't hold a slot, while every retry still takes a token
+        if (getBooleanSetting(RateLimitTransport.RATE_LIMIT_ENABLED_ENV_NAME,
+                              RateLimitTransport.RATE_LIMIT_ENABLED_PROP_NAME, properties,
+                              false)) {
+            transport = new RateLimitTransport(
+                transport, getIntSetting(RateLimitTransport.RATE_LIMIT_MINT_ENV_NAME,
+                                         RateLimitTransport.RATE_LIMIT_MINT_PROP_NAME, properties,
+                                         RateLimitTransport.DEFAULT_RATE_LIMIT_MINT),
+                getIntSetting(RateLimitTransport.RATE_LIMIT_UPDATE_ENV_NAME,
+                              RateLimitTransport.RATE_LIMIT_UPDATE_PROP_NAME, properties,
+                              RateLimitTransport.DEFAULT_RATE_LIMIT_UPDATE),
+                getIntSetting(RateLimitTransport.RATE_LIMIT_PUBLISH_ENV_NAME,
+                              RateLimitTransport.RATE_LIMIT_PUBLISH_PROP_NAME, properties,
+                              RateLimitTransport.DEFAULT_RATE_LIMIT_PUBLISH),
+                getIntSetting(RateLimitTransport.RATE_LIMIT_SEARCH_ENV_NAME,
+                              RateLimitTransport.RATE_LIMIT_SEARCH_PROP_NAME, properties,
+                              RateLimitTransport.DEFAULT_RATE_LIMIT_SEARCH),
+                getIntSetting(RateLimitTransport.RATE_LIMIT_BURST_ENV_NAME,
+                              RateLimitTransport.RATE_LIMIT_BURST_PROP_NAME, properties,
+                              RateLimitTransport.DEFAULT_RATE_LIMIT_BURST));
+        }
+        // The retries come next, so every attempt goes through the other interceptors
+        int maxAttempts = getIntSetting(RetryTransport.RETRY_MAX_ATTEMPTS_ENV_NAME,
+                                        RetryTransport.RETRY_MAX_ATTEMPTS_PROP_NAME, properties,
+                                        RetryTransport.DEFAULT_RETRY_MAX_ATTEMPTS);
+        if (maxAttempts > 1) {
+            transport = new RetryTransport(
+                transport, maxAttempts,
+                getLongSetting(RetryTransport.RETRY_BASE_DELAY_ENV_NAME,
+                               RetryTransport.RETRY_BASE_DELAY_PROP_NAME, properties,
+                               RetryTransport.DEFAULT_RETRY_BASE_DELAY_MS),
+                getLongSetting(RetryTransport.RETRY_MAX_DELAY_ENV_NAME,
+                               RetryTransport.RETRY_MAX_DELAY_PROP_NAME, properties,
+                               RetryTransport.DEFAULT_RETRY_MAX_DELAY_MS),
+                JsonResponseHandler::getErrorStatuses);
+        }
+        boolean gzipResponses =
+            getBooleanSetting(CompressionTransport.GZIP_RESPONSES_ENV_NAME,
+                              CompressionTransport.GZIP_RESPONSES_PROP_NAME, properties, false);
+        boolean gzipRequests =
+            getBooleanSetting(CompressionTransport.GZIP_REQUESTS_ENV_NAME,
+                              CompressionTransport.GZIP_REQUESTS_PROP_NAME, properties, false);
+        if (gzipResponses || gzipRequests) {
+            transport = new CompressionTransport(
+                transport, gzipResponses, gzipRequests,
+                getIntSetting(CompressionTransport.GZIP_MIN_REQUEST_SIZE_ENV_NAME,
+                              CompressionTransport.GZIP_MIN_REQUEST_SIZE_PROP_NAME, properties,
+                              CompressionTransport.DEFAULT_GZIP_MIN_REQUEST_SIZE));
+        }
+        if (getBooleanSetting(HedgingTransport.HEDGE_ENABLED_ENV_NAME,
+                              HedgingTransport.HEDGE_ENABLED_PROP_NAME, properties, false)) {
+            transport = new HedgingTransport(
+                transport, getIntSetting(HedgingTransport.HEDGE_PERCENTILE_ENV_NAME,
+                                         HedgingTransport.HEDGE_PERCENTILE_PROP_NAME, properties,
+                                         HedgingTransport.DEFAULT_HEDGE_PERCENTILE),
+                getLongSetting(HedgingTransport.HEDGE_MIN_DELAY_ENV_NAME,
+                               HedgingTransport.HEDGE_MIN_DELAY_PROP_NAME, properties,
+                               HedgingTransport.DEFAULT_HEDGE_MIN_DELAY_MS));
+        }
+        // The cache keeps the decompressed bodies and its hits aren't hedged
+        if (getBooleanSetting(CachingTransport.CACHE_ENABLED_ENV_NAME,
+                              CachingTransport.CACHE_ENABLED_PROP_NAME, properties, false)) {
+            String directory = getSetting(CachingTransport.CACHE_DIRECTORY_ENV_NAME,
+                                          CachingTransport.CACHE_DIRECTORY_PROP_NAME, properties,
+                                          null);
+            transport = new CachingTransport(
+                transport, getIntSetting(CachingTransport.CACHE_MAX_ENTRIES_ENV_NAME,
+                                         CachingTransport.CACHE_MAX_ENTRIES_PROP_NAME, properties,
+                                         CachingTransport.DEFAULT_CACHE_MAX_ENTRIES),
+                directory == null ? null : new File(directory));
+        }
+        return transport;
+    }
+
     /**
      * Get the value from the given properties with the given property name
      * @param propertyName  the name of property
@@ -90,4 +464,100 @@ public class OSTIServiceFactory {
         }
         return value;
     }
+
+    /**
+     * Get the value of a setting which can be configured by both an environment variable and a
+     * property. The environment variable overwrites the property. If neither of them is set,
+     * the given default value will be returned.
+     * @param envName  the name of the environment variable. It can be null.
+     * @param propertyName  the name of the property. It can be null.
+     * @param properties  the properties will be looked at. It can be null.
+     * @param defaultValue  the value returned if the setting can't be found
+     * @return the value of the setting
+     */
+    public static String getSetting(
+        String envName, String propertyName, Properties properties, String defaultValue) {
+        if (envName != null) {
+            String value = System.getenv(envName);
+            if (value != null && !value.trim().equals("")) {
+                log.info("The setting " + envName + " is set by the environmental variable: "
+                             + value);
+                return value.trim();
+            }
+        }
+        if (propertyName != null && properties != null) {
+            String value = properties.getProperty(propertyName);
+            if (value != null && !value.trim().equals("")) {
+                log.info("The setting " + propertyName + " is set by the property file: " + value);
+                return value.trim();
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Get the integer value of a setting. See getSetting for the order of the lookup. If the
+     * value is not an integer, the default value will be returned.
+     * @param envName  the name of the environment variable. It can be null.
+     * @param propertyName  the name of the property. It can be null.
+     * @param properties  the properties will be looked at. It can be null.
+     * @param defaultValue  the value returned if the setting can't be found or is invalid
+     * @return the integer value of the setting
+     */
+    public static int getIntSetting(
+        String envName, String propertyName, Properties properties, int defaultValue) {
+        String value = getSetting(envName, propertyName, properties, null);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                log.warn("The value " + value + " of the setting " + envName + "/" + propertyName
+                             + " is not an integer. So we still use the default value "
+                             + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Get the long value of a setting. See getSetting for the order of the lookup. If the
+     * value is not a long, the default value will be returned.
+     * @param envName  the name of the environment variable. It can be null.
+     * @param propertyName  the name of the property. It can be null.
+     * @param properties  the properties will be looked at. It can be null.
+     * @param defaultValue  the value returned if the setting can't be found or is invalid
+     * @return the long value of the setting
+     */
+    public static long getLongSetting(
+        String envName, String propertyName, Properties properties, long defaultValue) {
+        String value = getSetting(envName, propertyName, properties, null);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                log.warn("The value " + value + " of the setting " + envName + "/" + propertyName
+                             + " is not a long. So we still use the default value "
+                             + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Get the boolean value of a setting. See getSetting for the order of the lookup. Only
+     * "true" (ignoring case) is considered as true.
+     * @param envName  the name of the environment variable. It can be null.
+     * @param propertyName  the name of the property. It can be null.
+     * @param properties  the properties will be looked at. It can be null.
+     * @param defaultValue  the value returned if the setting can't be found
+     * @return the boolean value of the setting
+     */
+    public static boolean getBooleanSetting(
+        String envName, String propertyName, Properties properties, boolean defaultValue) {
+        String value = getSetting(envName, propertyName, properties, null);
+        if (value != null) {
+            return Boolean.parseBoolean(value);
+        }
+        return defaultValue;
+    }
 }
@@ -0,0 +1,117 @@
+package edu.ucsb.nceas.osti_elink;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of the osti ids of the dois. The osti id of a doi never changes, so the
+ * entries don't expire and only the least recently used ones are evicted when the cache is
+ * full. It is filled from the responses of the mints, the writes and the searches, so an
+ * update of a known doi doesn't query the service to figure out its osti id first.
+ * @author Tao
+ */
+public class OstiIdCache {
+    public static final String MAX_ENTRIES_PROP_NAME = "ostiService.ostiIdCache.maxEntries";
+    public static final String MAX_ENTRIES_ENV_NAME = "METACAT_OSTI_OSTI_ID_CACHE_MAX_ENTRIES";
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final Map<String, String> ostiIds;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param maxEntries  the max number of the entries
+     */
+    public OstiIdCache(int maxEntries) {
+        int capacity = Math.max(1, maxEntries);
+        this.ostiIds = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the osti id of the doi
+     * @param doi  the doi, with or without the doi: prefix. The case doesn't matter.
+     * @return the osti id. Null will be returned if it isn't cached.
+     */
+    public String get(String doi) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        String ostiId = null;
+        if (key != null) {
+            synchronized (ostiIds) {
+                ostiId = ostiIds.get(key);
+            }
+        }
+        if (ostiId == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return ostiId;
+    }
+
+    /**
+     * Cache the osti id of the doi
+     * @param doi  the doi, with or without the doi: prefix
+     * @param ostiId  the osti id of the doi. The blank ones are ignored.
+     */
+    public void put(String doi, String ostiId) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key == null || ostiId == null || ostiId.trim().equals("")) {
+            return;
+        }
+        synchronized (ostiIds) {
+            ostiIds.put(key, ostiId.trim());
+        }
+    }
+
+    /**
+     * Forget all the osti ids
+     */
+    public void clear() {
+        synchronized (ostiIds) {
+            ostiIds.clear();
+        }
+    }
+
+    /**
+     * Get the number of the cached osti ids
+     * @return the number of the entries
+     */
+    public int size() {
+        synchronized (ostiIds) {
+            return ostiIds.size();
+        }
+    }
+
+    /**
+     * Get the number of the lookups answered by the cache
+     * @return the number of the hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of the lookups the cache couldn't answer
+     * @return the number of the misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the ratio of the hits to all the lookups
+     * @return the hit ratio between 0 and 1. It is 0 if there were no lookups.
+     */
+    public double getHitRatio() {
+        long hit = hits.get();
+        long total = hit + misses.get();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+}
@@ -0,0 +1,357 @@
+package edu.ucsb.nceas.osti_elink;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A persistent index of the osti ids of the dois in a memory-mapped file, so a restarted
+ * service knows the osti ids it found before and doesn't search them again. The file is an
+ * open-addressing hash table of fixed-size slots followed by an area the keys (the normalized
+ * dois) are appended to. A slot has the 64-bit hash of its key, the osti id as a long and the
+ * place of its key. The key and the osti id are written before the hash, so a slot is either
+ * complete or empty. When the table is too full, it is rehashed into a new file of the double
+ * capacity which replaces the old one. The writes reach the file when the operating system
+ * flushes the mapped pages, or when the flush or the close method is called. The index can be
+ * loaded in bulk from an export of the records, so a new node starts as warm as an old one.
+ * @author Tao
+ */
+public class OstiIdIndex implements Closeable {
+    public static final String PATH_PROP_NAME = "ostiService.ostiIdIndex.path";
+    public static final String PATH_ENV_NAME = "METACAT_OSTI_OSTI_ID_INDEX_PATH";
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int MAGIC = 0x4f534944;
+    private static final int FILE_FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int SLOT_BYTES = 24;
+    private static final int KEY_BYTES_PER_SLOT = 48;
+    private static final double MAX_LOAD = 0.6;
+    // The places of the fields in the header
+    private static final int CAPACITY_POS = 8;
+    private static final int COUNT_POS = 12;
+    private static final int KEY_BYTES_POS = 16;
+
+    private final File file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+    private int keyBytes;
+
+    /**
+     * Open the index in the file. A new index is created if the file doesn't exist or is empty.
+     * @param file  the file of the index
+     * @throws IOException  if the file can't be mapped or isn't an index
+     */
+    public OstiIdIndex(File file) throws IOException {
+        this.file = file;
+        if (!file.exists() || file.length() == 0) {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                Files.createDirectories(parent.toPath());
+            }
+            new OstiIdIndex(file, DEFAULT_CAPACITY).close();
+        }
+        open();
+    }
+
+    private OstiIdIndex(File file, int capacity) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                                   StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.capacity = capacity;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileBytes(capacity));
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FILE_FORMAT_VERSION);
+        buffer.putInt(CAPACITY_POS, capacity);
+        writeHeader();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException("The file " + file + " isn't an osti id index");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FILE_FORMAT_VERSION) {
+                throw new IOException("The file " + file + " isn't an osti id index of the "
+                                          + "version " + FILE_FORMAT_VERSION);
+            }
+            capacity = buffer.getInt(CAPACITY_POS);
+            if (capacity <= 0 || Integer.bitCount(capacity) != 1
+                || channel.size() < fileBytes(capacity)) {
+                throw new IOException("The osti id index " + file + " is truncated");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileBytes(capacity));
+            count = buffer.getInt(COUNT_POS);
+            keyBytes = buffer.getInt(KEY_BYTES_POS);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the osti id of the doi
+     * @param doi  the doi, with or without the doi: prefix. The case doesn't matter.
+     * @return the osti id. -1 will be returned if the index doesn't have it.
+     * @throws IOException  if the index is closed
+     */
+    public synchronized long get(String doi) throws IOException {
+        byte[] key = toKey(doi);
+        if (key == null) {
+            return -1;
+        }
+        checkOpen();
+        int slot = find(key, hash(key));
+        return slot < 0 ? -1 : buffer.getLong(slotPos(slot) + 8);
+    }
+
+    /**
+     * Put the osti id of the doi into the index
+     * @param doi  the doi, with or without the doi: prefix
+     * @param ostiId  the osti id of the doi. The ones which aren't positive are ignored.
+     * @throws IOException  if the index is closed or can't grow
+     */
+    public synchronized void put(String doi, long ostiId) throws IOException {
+        byte[] key = toKey(doi);
+        if (key == null || ostiId <= 0) {
+            return;
+        }
+        checkOpen();
+        putKey(key, ostiId);
+    }
+
+    private void putKey(byte[] key, long ostiId) throws IOException {
+        long hash = hash(key);
+        int slot = find(key, hash);
+        if (slot >= 0) {
+            buffer.putLong(slotPos(slot) + 8, ostiId);
+            return;
+        }
+        if (count + 1 > capacity * MAX_LOAD || keyBytes + key.length > keyAreaBytes(capacity)) {
+            grow(key.length);
+            slot = find(key, hash);
+        }
+        int pos = slotPos(-1 - slot);
+        int keyPos = keyAreaPos(capacity) + keyBytes;
+        for (int i = 0; i < key.length; i++) {
+            buffer.put(keyPos + i, key[i]);
+        }
+        buffer.putLong(pos + 8, ostiId);
+        buffer.putInt(pos + 16, keyBytes);
+        buffer.putInt(pos + 20, key.length);
+        // The hash marks the slot as used, so it is written last
+        buffer.putLong(pos, hash);
+        keyBytes += key.length;
+        count++;
+        writeHeader();
+    }
+
+    /**
+     * Load the osti ids from an export of the records, which is a json array of the records
+     * like the response of the records endpoint of the elink2api. The records without a doi or
+     * a numeric osti_id are skipped. The array is read as a stream, so a big export doesn't
+     * have to fit in the memory.
+     * @param records  the stream of the export. It isn't closed by this method.
+     * @return the number of the loaded osti ids
+     * @throws IOException  if the export can't be read or the index can't be written
+     */
+    public int importRecords(InputStream records) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        int loaded = 0;
+        try (JsonParser parser = mapper.getFactory().createParser(records)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("The export of the records should be a json array");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                JsonNode record = mapper.readTree(parser);
+                JsonNode doi = record.get(OSTIElinkService.DOI);
+                long ostiId = toOstiId(record.get(OSTIElinkService.OSTI_ID) == null ? null
+                                           : record.get(OSTIElinkService.OSTI_ID).asText());
+                if (doi != null && ostiId > 0) {
+                    put(doi.asText(), ostiId);
+                    loaded++;
+                }
+            }
+        }
+        flush();
+        return loaded;
+    }
+
+    /**
+     * Get the number of the osti ids in the index
+     * @return the number of the entries
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Write the changes of the mapped pages to the file
+     */
+    public synchronized void flush() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Flush the index and close its file
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            flush();
+            channel.close();
+            channel = null;
+            buffer = null;
+        }
+    }
+
+    /**
+     * Parse an osti id to a long
+     * @param ostiId  the osti id
+     * @return the osti id as a long. -1 will be returned if it isn't a positive number.
+     */
+    static long toOstiId(String ostiId) {
+        if (ostiId == null) {
+            return -1;
+        }
+        try {
+            long id = Long.parseLong(ostiId.trim());
+            return id > 0 ? id : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Find the slot of the key
+     * @return the index of the slot. If the key isn't found, -1 - the index of the empty slot
+     *         where it should be put is returned.
+     */
+    private int find(byte[] key, long hash) {
+        int mask = capacity - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (true) {
+            int pos = slotPos(slot);
+            long slotHash = buffer.getLong(pos);
+            if (slotHash == 0) {
+                return -1 - slot;
+            }
+            if (slotHash == hash && keyEquals(key, buffer.getInt(pos + 16),
+                                              buffer.getInt(pos + 20))) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(byte[] key, int offset, int length) {
+        if (length != key.length) {
+            return false;
+        }
+        int keyPos = keyAreaPos(capacity) + offset;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(keyPos + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rehash the entries into a new file of a bigger capacity, then replace the file with it
+     */
+    private void grow(int newKeyLength) throws IOException {
+        int newCapacity = capacity * 2;
+        while (keyBytes + newKeyLength > keyAreaBytes(newCapacity)) {
+            newCapacity *= 2;
+        }
+        if (fileBytes(newCapacity) > Integer.MAX_VALUE) {
+            throw new IOException("The osti id index " + file + " can't grow beyond 2 GB");
+        }
+        File temp = File.createTempFile("osti-id-index", ".tmp", file.getAbsoluteFile()
+            .getParentFile());
+        Files.delete(temp.toPath());
+        try (OstiIdIndex bigger = new OstiIdIndex(temp, newCapacity)) {
+            int keyArea = keyAreaPos(capacity);
+            for (int slot = 0; slot < capacity; slot++) {
+                int pos = slotPos(slot);
+                if (buffer.getLong(pos) != 0) {
+                    byte[] key = new byte[buffer.getInt(pos + 20)];
+                    int offset = keyArea + buffer.getInt(pos + 16);
+                    for (int i = 0; i < key.length; i++) {
+                        key[i] = buffer.get(offset + i);
+                    }
+                    bigger.putKey(key, buffer.getLong(pos + 8));
+                }
+            }
+        }
+        close();
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        open();
+    }
+
+    private void writeHeader() {
+        buffer.putInt(COUNT_POS, count);
+        buffer.putInt(KEY_BYTES_POS, keyBytes);
+    }
+
+    private void checkOpen() throws IOException {
+        if (channel == null) {
+            throw new IOException("The osti id index " + file + " is closed");
+        }
+    }
+
+    private static byte[] toKey(String doi) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        return key == null ? null : key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The 64-bit FNV-1a hash of the key. 0 marks the empty slots, so it is never returned.
+     */
+    private static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static int slotPos(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private static int keyAreaPos(int capacity) {
+        return HEADER_BYTES + capacity * SLOT_BYTES;
+    }
+
+    private static int keyAreaBytes(int capacity) {
+        return capacity * KEY_BYTES_PER_SLOT;
+    }
+
+    private static long fileBytes(int capacity) {
+        return (long) keyAreaPos(capacity) + keyAreaBytes(capacity);
+    }
+}
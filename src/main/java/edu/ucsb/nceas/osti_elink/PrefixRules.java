@@ -0,0 +1,230 @@
+package edu.ucsb.nceas.osti_elink;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The rules deriving the osti ids from the dois without querying the service. A rule applies
+ * to the dois under a shoulder, e.g. 10.15485, whose suffixes are the osti ids of their
+ * records, e.g. 10.15485/1523924 has the osti id 1523924. The rules are configured, or they
+ * are learned from the responses of the service: a shoulder whose suffixes equaled the osti
+ * ids of enough records gets a rule. A rule is disabled for good as soon as a response
+ * contradicts it or a write by a derived osti id fails verification.
+ * @author Tao
+ */
+public class PrefixRules {
+    public static final String SHOULDERS_PROP_NAME = "ostiService.prefixRules.shoulders";
+    public static final String SHOULDERS_ENV_NAME = "METACAT_OSTI_PREFIX_RULES_SHOULDERS";
+    public static final String LEARN_PROP_NAME = "ostiService.prefixRules.learn";
+    public static final String LEARN_ENV_NAME = "METACAT_OSTI_PREFIX_RULES_LEARN";
+    public static final String MIN_CONFIRMATIONS_PROP_NAME =
+        "ostiService.prefixRules.minConfirmations";
+    public static final String MIN_CONFIRMATIONS_ENV_NAME =
+        "METACAT_OSTI_PREFIX_RULES_MIN_CONFIRMATIONS";
+    public static final boolean DEFAULT_LEARN = false;
+    public static final int DEFAULT_MIN_CONFIRMATIONS = 20;
+    // Bound the learned shoulders, since every observed doi can bring a new one
+    private static final int MAX_SHOULDERS = 1000;
+    private static final Log log = LogFactory.getLog(PrefixRules.class);
+
+    private static final class Rule {
+        private final boolean configured;
+        private final AtomicInteger confirmations = new AtomicInteger();
+        private volatile boolean disabled = false;
+
+        private Rule(boolean configured) {
+            this.configured = configured;
+        }
+    }
+
+    private final boolean learn;
+    private final int minConfirmations;
+    // The rules keyed by their normalized shoulders
+    private final Map<String, Rule> rules = new ConcurrentHashMap<>();
+    private final AtomicLong derivations = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param shoulders  the configured shoulders whose suffixes are the osti ids. They can
+     *                   contain "doi:" or not. It can be null.
+     * @param learn  if the rules of the other shoulders are learned from the responses
+     * @param minConfirmations  the number of the records confirming a shoulder before its
+     *                          rule is learned
+     */
+    public PrefixRules(List<String> shoulders, boolean learn, int minConfirmations) {
+        this.learn = learn;
+        this.minConfirmations = Math.max(1, minConfirmations);
+        if (shoulders != null) {
+            for (String shoulder : shoulders) {
+                String key = normalizeShoulder(shoulder);
+                if (key != null) {
+                    rules.put(key, new Rule(true));
+                }
+            }
+        }
+    }
+
+    /**
+     * Derive the osti id of the doi from an enabled rule of its shoulder
+     * @param doi  the doi, with or without the doi: prefix. The case doesn't matter.
+     * @return the osti id. Null will be returned if no enabled rule applies.
+     */
+    public String derive(String doi) {
+        String ostiId = apply(doi);
+        if (ostiId != null) {
+            derivations.incrementAndGet();
+        }
+        return ostiId;
+    }
+
+    /**
+     * Learn from the osti id of a doi found in a response of the service. A matching suffix
+     * confirms the rule of the shoulder, and a different numeric suffix disables it.
+     * @param doi  the doi of the record
+     * @param ostiId  the osti id of the record from the service
+     */
+    public void observe(String doi, String ostiId) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key == null || ostiId == null || key.indexOf('/') <= 0) {
+            return;
+        }
+        if (learn && rules.size() < MAX_SHOULDERS) {
+            rules.computeIfAbsent(key.substring(0, key.indexOf('/')), shoulder -> new Rule(false));
+        }
+        for (Map.Entry<String, Rule> entry : rules.entrySet()) {
+            String suffix = getSuffix(key, entry.getKey());
+            Rule rule = entry.getValue();
+            if (suffix == null || rule.disabled) {
+                continue;
+            }
+            if (suffix.equals(ostiId.trim())) {
+                if (rule.confirmations.incrementAndGet() == minConfirmations && !rule.configured) {
+                    log.info("PrefixRules.observe - learned that the suffixes of the dois under "
+                                 + entry.getKey() + " are their osti ids");
+                }
+            } else if (isNumeric(suffix)) {
+                disable(entry.getKey(), rule, "the osti id of " + key + " is " + ostiId);
+            }
+        }
+    }
+
+    /**
+     * Disable the rules applying to the doi, since a write by its derived osti id failed
+     * verification
+     * @param doi  the doi whose derived osti id was wrong
+     */
+    public void reject(String doi) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key == null) {
+            return;
+        }
+        for (Map.Entry<String, Rule> entry : rules.entrySet()) {
+            if (getSuffix(key, entry.getKey()) != null && !entry.getValue().disabled) {
+                disable(entry.getKey(), entry.getValue(), "the derived osti id of " + key
+                    + " failed verification");
+            }
+        }
+    }
+
+    /**
+     * Get the shoulders of the enabled rules, both configured and learned
+     * @return the sorted shoulders
+     */
+    public List<String> getRules() {
+        List<String> shoulders = new ArrayList<>();
+        for (Map.Entry<String, Rule> entry : rules.entrySet()) {
+            if (isEnabled(entry.getValue())) {
+                shoulders.add(entry.getKey());
+            }
+        }
+        Collections.sort(shoulders);
+        return shoulders;
+    }
+
+    /**
+     * Get the number of the osti ids derived instead of queried
+     * @return the number of the derivations
+     */
+    public long getDerivations() {
+        return derivations.get();
+    }
+
+    /**
+     * Get the number of the rules disabled by the contradicting responses or the failed
+     * verifications
+     * @return the number of the rejections
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * Derive the osti id of the doi like the derive method, without counting it as a
+     * derivation
+     * @param doi  the doi of the record
+     * @return the osti id. Null will be returned if no enabled rule applies.
+     */
+    String apply(String doi) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key == null) {
+            return null;
+        }
+        for (Map.Entry<String, Rule> entry : rules.entrySet()) {
+            String suffix = getSuffix(key, entry.getKey());
+            if (suffix != null && isNumeric(suffix) && isEnabled(entry.getValue())) {
+                return suffix;
+            }
+        }
+        return null;
+    }
+
+    private boolean isEnabled(Rule rule) {
+        return !rule.disabled
+            && (rule.configured || rule.confirmations.get() >= minConfirmations);
+    }
+
+    private void disable(String shoulder, Rule rule, String reason) {
+        rule.disabled = true;
+        rejections.incrementAndGet();
+        log.warn("PrefixRules - disabled the rule of the shoulder " + shoulder
+                     + " since " + reason);
+    }
+
+    /**
+     * Get the suffix of the normalized doi under the shoulder
+     * @return the suffix. Null will be returned if the doi isn't under the shoulder.
+     */
+    private static String getSuffix(String doi, String shoulder) {
+        if (doi.length() > shoulder.length() + 1 && doi.startsWith(shoulder)
+            && doi.charAt(shoulder.length()) == '/') {
+            return doi.substring(shoulder.length() + 1);
+        }
+        return null;
+    }
+
+    private static boolean isNumeric(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return !value.isEmpty() && value.charAt(0) != '0';
+    }
+
+    private static String normalizeShoulder(String shoulder) {
+        String key = OSTIElinkService.normalizeDOI(shoulder);
+        while (key != null && key.endsWith("/")) {
+            key = key.substring(0, key.length() - 1);
+        }
+        return key == null || key.isEmpty() ? null : key;
+    }
+}
@@ -0,0 +1,210 @@
+package edu.ucsb.nceas.osti_elink;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A short-lived store of the records the service minted or updated. The search index of OSTI
+ * lags behind the writes, so a doi is often not searchable for a while after it is minted.
+ * The responses of the writes already contain the osti id and the workflow status, so the
+ * getStatus and getOstiId lookups and the publication of a record are answered from them until
+ * the entries expire, instead of polling the search. The least recently used entries are
+ * evicted when the store is full.
+ * @author Tao
+ */
+public class RecentWrites {
+    public static final String TTL_PROP_NAME = "ostiService.recentWrites.ttlMs";
+    public static final String TTL_ENV_NAME = "METACAT_OSTI_RECENT_WRITES_TTL_MS";
+    public static final String MAX_ENTRIES_PROP_NAME = "ostiService.recentWrites.maxEntries";
+    public static final String MAX_ENTRIES_ENV_NAME = "METACAT_OSTI_RECENT_WRITES_MAX_ENTRIES";
+    public static final long DEFAULT_TTL_MS = 300000;
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    /**
+     * The fields of a record known from the response of its last write
+     */
+    public static final class Record {
+        private final String ostiId;
+        private final String status;
+        private final String metadata;
+        private final long expiresAtNanos;
+
+        private Record(String ostiId, String status, String metadata, long expiresAtNanos) {
+            this.ostiId = ostiId;
+            this.status = status;
+            this.metadata = metadata;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        /**
+         * Get the osti id of the record
+         * @return the osti id. It can be null if the response didn't have it.
+         */
+        public String getOstiId() {
+            return ostiId;
+        }
+
+        /**
+         * Get the workflow status of the record as the response returned it, e.g. SA or R
+         * @return the status. It can be null if the response didn't have it.
+         */
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * Get the metadata of the record returned by the write
+         * @return the metadata. It can be null if the response didn't have the whole record.
+         */
+        public String getMetadata() {
+            return metadata;
+        }
+    }
+
+    private final long ttlNanos;
+    private final Map<String, Record> records;
+    private final Map<String, String> doisByOstiId = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param ttlMillis  how long an entry answers the lookups after the write
+     * @param maxEntries  the max number of the entries
+     */
+    public RecentWrites(long ttlMillis, int maxEntries) {
+        this.ttlNanos = Math.max(0, ttlMillis) * 1_000_000L;
+        int capacity = Math.max(1, maxEntries);
+        this.records = new LinkedHashMap<String, Record>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Record> eldest) {
+                if (size() > capacity) {
+                    unindex(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Remember the fields of a record from the response of a write. The null fields keep the
+     * values of the previous write of the same doi.
+     * @param doi  the doi of the record, with or without the doi: prefix
+     * @param ostiId  the osti id from the response. It can be null.
+     * @param status  the workflow status from the response. It can be null.
+     * @param metadata  the whole record from the response. It can be null.
+     */
+    public void put(String doi, String ostiId, String status, String metadata) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key == null || (ostiId == null && status == null && metadata == null)) {
+            return;
+        }
+        synchronized (records) {
+            Record previous = lookup(key);
+            if (previous != null) {
+                ostiId = ostiId == null ? previous.ostiId : ostiId;
+                status = status == null ? previous.status : status;
+                metadata = metadata == null ? previous.metadata : metadata;
+                unindex(key, previous);
+            }
+            records.put(key, new Record(ostiId, status, metadata, System.nanoTime() + ttlNanos));
+            if (ostiId != null) {
+                doisByOstiId.put(ostiId, key);
+            }
+        }
+    }
+
+    /**
+     * Get the record written recently
+     * @param doi  the doi of the record, with or without the doi: prefix
+     * @return the record. Null will be returned if it isn't known or its entry expired.
+     */
+    public Record get(String doi) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key == null) {
+            return null;
+        }
+        Record record;
+        synchronized (records) {
+            record = lookup(key);
+        }
+        if (record != null) {
+            hits.incrementAndGet();
+        }
+        return record;
+    }
+
+    /**
+     * Get the record written recently by its osti id
+     * @param ostiId  the osti id of the record
+     * @return the record. Null will be returned if it isn't known or its entry expired.
+     */
+    public Record getByOstiId(String ostiId) {
+        if (ostiId == null) {
+            return null;
+        }
+        Record record = null;
+        synchronized (records) {
+            String key = doisByOstiId.get(ostiId);
+            if (key != null) {
+                record = lookup(key);
+            }
+        }
+        if (record != null) {
+            hits.incrementAndGet();
+        }
+        return record;
+    }
+
+    /**
+     * Forget the record of the doi, e.g. when a write failed and its state is unknown
+     * @param doi  the doi of the record
+     */
+    public void remove(String doi) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key != null) {
+            synchronized (records) {
+                Record record = records.remove(key);
+                if (record != null) {
+                    unindex(key, record);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget all the records
+     */
+    public void clear() {
+        synchronized (records) {
+            records.clear();
+            doisByOstiId.clear();
+        }
+    }
+
+    /**
+     * Get the number of the lookups answered by the store
+     * @return the number of the hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    private Record lookup(String key) {
+        Record record = records.get(key);
+        if (record != null && record.expiresAtNanos - System.nanoTime() <= 0) {
+            records.remove(key);
+            unindex(key, record);
+            return null;
+        }
+        return record;
+    }
+
+    private void unindex(String key, Record record) {
+        if (record.ostiId != null) {
+            doisByOstiId.remove(record.ostiId, key);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package edu.ucsb.nceas.osti_elink;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A cache of the metadata of the records keyed by their dois. The first tier is a bounded LRU
+ * map in memory. The optional second tier stores the gzip-compressed records in a directory,
+ * so they survive restarts and more records can be kept than the memory allows. An entry is
+ * fresh for the ttl after it was stored. In the stale-while-revalidate mode, an expired entry
+ * is still served for the stale time while the service refreshes it in the background. The
+ * writes of the service update or remove the entries of the records they change. Every write
+ * bumps the generation of its doi, and the result of a lookup is only stored if no write
+ * happened since the lookup started, so a lookup racing a write can't put the old record back.
+ * @author Tao
+ */
+public class RecordCache {
+    public static final String TTL_PROP_NAME = "ostiService.recordCache.ttlMs";
+    public static final String TTL_ENV_NAME = "METACAT_OSTI_RECORD_CACHE_TTL_MS";
+    public static final String STALE_PROP_NAME = "ostiService.recordCache.staleMs";
+    public static final String STALE_ENV_NAME = "METACAT_OSTI_RECORD_CACHE_STALE_MS";
+    public static final String MAX_ENTRIES_PROP_NAME = "ostiService.recordCache.maxEntries";
+    public static final String MAX_ENTRIES_ENV_NAME = "METACAT_OSTI_RECORD_CACHE_MAX_ENTRIES";
+    public static final String DIRECTORY_PROP_NAME = "ostiService.recordCache.directory";
+    public static final String DIRECTORY_ENV_NAME = "METACAT_OSTI_RECORD_CACHE_DIRECTORY";
+    public static final long DEFAULT_TTL_MS = 0;
+    public static final long DEFAULT_STALE_MS = 0;
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    private static final int FILE_FORMAT_VERSION = 1;
+    // The dois share the generation counters by their hashes, so the counters are bounded. A
+    // collision only makes a lookup result be dropped for nothing.
+    private static final int GENERATION_STRIPES = 1024;
+    private static final Log log = LogFactory.getLog(RecordCache.class);
+
+    /**
+     * The cached metadata of a record
+     */
+    public static final class Entry {
+        private final String metadata;
+        private final long storedAt;
+        private final boolean fresh;
+
+        private Entry(String metadata, long storedAt, boolean fresh) {
+            this.metadata = metadata;
+            this.storedAt = storedAt;
+            this.fresh = fresh;
+        }
+
+        /**
+         * Get the metadata of the record
+         * @return the metadata
+         */
+        public String getMetadata() {
+            return metadata;
+        }
+
+        /**
+         * Determine if the entry is within its ttl
+         * @return true if it is fresh; false if it is stale and should be refreshed.
+         */
+        public boolean isFresh() {
+            return fresh;
+        }
+    }
+
+    private final long ttlMillis;
+    private final long staleMillis;
+    private final File directory;
+    // The metadata and the times they were stored, keyed by the normalized dois
+    // It also guards the generations and the files
+    private final Map<String, Entry> entries;
+    private final long[] generations = new long[GENERATION_STRIPES];
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param ttlMillis  how long an entry is fresh after it was stored
+     * @param staleMillis  how long an expired entry is still served while it is refreshed.
+     *                     0 turns the stale-while-revalidate mode off.
+     * @param maxEntries  the max number of the entries kept in memory
+     * @param directory  the directory storing the compressed entries. It can be null, then
+     *                   the entries are only kept in memory.
+     */
+    public RecordCache(long ttlMillis, long staleMillis, final int maxEntries, File directory) {
+        this.ttlMillis = Math.max(0, ttlMillis);
+        this.staleMillis = Math.max(0, staleMillis);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > Math.max(1, maxEntries);
+            }
+        };
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("RecordCache - can't create the cache directory " + directory
+                         + ", so the records are only kept in memory");
+            directory = null;
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Get the cached metadata of the doi
+     * @param doi  the doi, with or without the doi: prefix. The case doesn't matter.
+     * @return the entry. Null will be returned if it isn't cached or it is too old to serve.
+     */
+    public Entry get(String doi) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key == null) {
+            return null;
+        }
+        Entry entry;
+        long generation;
+        synchronized (entries) {
+            entry = entries.get(key);
+            generation = generations[stripe(key)];
+        }
+        if (entry == null) {
+            entry = readFile(key);
+            if (entry != null) {
+                synchronized (entries) {
+                    // A record invalidated while it was read isn't served
+                    if (generations[stripe(key)] != generation) {
+                        entry = null;
+                    } else {
+                        entries.putIfAbsent(key, entry);
+                    }
+                }
+            }
+        }
+        long age = entry == null ? 0 : System.currentTimeMillis() - entry.storedAt;
+        if (entry == null || age >= ttlMillis + staleMillis) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (age < ttlMillis) {
+            hits.incrementAndGet();
+            return entry;
+        }
+        staleHits.incrementAndGet();
+        return new Entry(entry.metadata, entry.storedAt, false);
+    }
+
+    /**
+     * Store the metadata of the doi from a write response. It supersedes the lookups of the
+     * doi in flight.
+     * @param doi  the doi, with or without the doi: prefix
+     * @param metadata  the metadata of the record
+     */
+    public void put(String doi, String metadata) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key == null || metadata == null) {
+            return;
+        }
+        Entry entry = new Entry(metadata, System.currentTimeMillis(), true);
+        synchronized (entries) {
+            generations[stripe(key)]++;
+            entries.put(key, entry);
+            writeFile(key, entry);
+        }
+    }
+
+    /**
+     * Store the metadata of the doi from a lookup, unless a write of the doi happened since the
+     * lookup started
+     * @param doi  the doi, with or without the doi: prefix
+     * @param metadata  the metadata of the record
+     * @param generation  the generation of the doi read by the getGeneration method before the
+     *                    lookup started
+     * @return true if it was stored; false if a write made it outdated.
+     */
+    public boolean put(String doi, String metadata, long generation) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key == null || metadata == null) {
+            return false;
+        }
+        Entry entry = new Entry(metadata, System.currentTimeMillis(), true);
+        synchronized (entries) {
+            if (generations[stripe(key)] != generation) {
+                log.debug("RecordCache.put - drop the outdated lookup result of " + key);
+                return false;
+            }
+            entries.put(key, entry);
+            writeFile(key, entry);
+        }
+        return true;
+    }
+
+    /**
+     * Get the generation of the doi, which every write of it bumps. It is read before a lookup
+     * whose result will be stored.
+     * @param doi  the doi, with or without the doi: prefix
+     * @return the generation
+     */
+    public long getGeneration(String doi) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key == null) {
+            return 0;
+        }
+        synchronized (entries) {
+            return generations[stripe(key)];
+        }
+    }
+
+    /**
+     * Remove the metadata of the doi, e.g. when a write changed the record and its response
+     * doesn't have the whole record. It supersedes the lookups of the doi in flight.
+     * @param doi  the doi, with or without the doi: prefix
+     */
+    public void invalidate(String doi) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key == null) {
+            return;
+        }
+        synchronized (entries) {
+            generations[stripe(key)]++;
+            remove(key);
+        }
+    }
+
+    /**
+     * Remove the metadata of the doi after a lookup didn't find the record, unless a write of
+     * the doi happened since the lookup started
+     * @param doi  the doi, with or without the doi: prefix
+     * @param generation  the generation of the doi read before the lookup started
+     */
+    public void invalidate(String doi, long generation) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key == null) {
+            return;
+        }
+        synchronized (entries) {
+            if (generations[stripe(key)] == generation) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * Mark the doi as being refreshed in the background, so a stale entry is refreshed by one
+     * query however many callers read it
+     * @param doi  the doi
+     * @return true if the caller should refresh it; false if it is being refreshed.
+     */
+    boolean startRefresh(String doi) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        return key != null && refreshing.add(key);
+    }
+
+    /**
+     * Mark the refresh of the doi as done
+     * @param doi  the doi
+     */
+    void endRefresh(String doi) {
+        String key = OSTIElinkService.normalizeDOI(doi);
+        if (key != null) {
+            refreshing.remove(key);
+        }
+    }
+
+    /**
+     * Determine if the expired entries are served while they are refreshed
+     * @return true if the stale-while-revalidate mode is on
+     */
+    public boolean isStaleWhileRevalidate() {
+        return staleMillis > 0;
+    }
+
+    /**
+     * Get the number of the lookups answered by the fresh entries
+     * @return the number of the hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of the lookups answered by the stale entries
+     * @return the number of the stale hits
+     */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /**
+     * Get the number of the lookups the cache couldn't answer
+     * @return the number of the misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Remove the entry and its file. The caller holds the lock of the entries.
+     * @param key  the normalized doi
+     */
+    private void remove(String key) {
+        entries.remove(key);
+        if (directory != null) {
+            File file = getFile(key);
+            if (file.exists() && !file.delete()) {
+                log.warn("RecordCache.invalidate - can't delete the cache file " + file);
+            }
+        }
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    private File getFile(String key) {
+        return new File(directory, DigestUtils.sha256Hex(key) + ".record.gz");
+    }
+
+    private Entry readFile(String key) {
+        if (directory == null) {
+            return null;
+        }
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(Files.newInputStream(file.toPath()))))) {
+            if (input.readInt() != FILE_FORMAT_VERSION || !key.equals(input.readUTF())) {
+                return null;
+            }
+            long storedAt = input.readLong();
+            byte[] metadata = new byte[input.readInt()];
+            input.readFully(metadata);
+            return new Entry(new String(metadata, StandardCharsets.UTF_8), storedAt, true);
+        } catch (IOException e) {
+            log.warn("RecordCache.readFile - can't read the cache file " + file + ": "
+                         + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeFile(String key, Entry entry) {
+        if (directory == null) {
+            return;
+        }
+        File file = getFile(key);
+        try {
+            File temp = File.createTempFile("osti", ".tmp", directory);
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(temp.toPath()))))) {
+                byte[] metadata = entry.metadata.getBytes(StandardCharsets.UTF_8);
+                output.writeInt(FILE_FORMAT_VERSION);
+                output.writeUTF(key);
+                output.writeLong(entry.storedAt);
+                output.writeInt(metadata.length);
+                output.write(metadata);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("RecordCache.writeFile - can't write the cache file " + file + ": "
+                         + e.getMessage());
+        }
+    }
+}
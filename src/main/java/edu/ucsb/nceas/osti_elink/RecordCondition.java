@@ -0,0 +1,22 @@
+package edu.ucsb.nceas.osti_elink;
+
+/**
+ * A condition on the metadata of a record which the OSTIElinkService.awaitRecord method waits
+ * for. The service creates the conditions on the status of a record by its hasStatus method,
+ * since the format of the metadata depends on the api version.
+ * @author Tao
+ */
+public interface RecordCondition {
+    /**
+     * The record can be found by the search of the OSTI service
+     */
+    RecordCondition SEARCHABLE = metadata -> true;
+
+    /**
+     * Test the metadata of the record
+     * @param metadata  the metadata returned by the search of the record
+     * @return true if the record matches the condition; otherwise false.
+     * @throws OSTIElinkException  if the metadata can't be read. The wait fails with it.
+     */
+    boolean test(String metadata) throws OSTIElinkException;
+}
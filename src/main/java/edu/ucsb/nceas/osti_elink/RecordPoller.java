@@ -0,0 +1,244 @@
+package edu.ucsb.nceas.osti_elink;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The poller of a service which waits for the records to match the conditions. All the dois
+ * being waited on are collected, and each tick sends a single search for a batch of them
+ * instead of one query per waiter, then the results are fanned out to the waiters. So a burst
+ * of mints only costs a few searches per tick, no matter how many threads wait. The first
+ * tick starts at once and the poller stops ticking when nobody waits. The ticks run on a timer
+ * thread shared by all the pollers and the searches are non-blocking, so no thread is held
+ * while the OSTI service indexes the records. If the service rejects a search of many dois,
+ * the poller falls back to one search per doi.
+ * @author Tao
+ */
+final class RecordPoller {
+    public static final String INTERVAL_PROP_NAME = "ostiService.poll.intervalMs";
+    public static final String INTERVAL_ENV_NAME = "METACAT_OSTI_POLL_INTERVAL_MS";
+    public static final String BATCH_SIZE_PROP_NAME = "ostiService.poll.batchSize";
+    public static final String BATCH_SIZE_ENV_NAME = "METACAT_OSTI_POLL_BATCH_SIZE";
+    public static final long DEFAULT_INTERVAL_MS = 500;
+    public static final int DEFAULT_BATCH_SIZE = 10;
+    private static final ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "osti-record-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+    private static final Log log = LogFactory.getLog(RecordPoller.class);
+
+    private final OSTIElinkService service;
+    private final long intervalMillis;
+    private volatile int batchSize;
+    // The waiters keyed by the normalized dois. Guarded by this.
+    private final Map<String, List<Waiter>> waiters = new LinkedHashMap<>();
+    private ScheduledFuture<?> nextTick = null;
+    private boolean ticking = false;
+    private final AtomicLong searches = new AtomicLong();
+
+    /**
+     * A caller waiting for a record to match its condition
+     */
+    private static final class Waiter {
+        private final String doi;
+        private final RecordCondition condition;
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+
+        private Waiter(String doi, RecordCondition condition) {
+            this.doi = doi;
+            this.condition = condition;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param service  the service which searches the records
+     * @param intervalMillis  the time between the ticks
+     * @param batchSize  the max number of the dois in a search
+     */
+    RecordPoller(OSTIElinkService service, long intervalMillis, int batchSize) {
+        this.service = service;
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Wait for the record of the doi to match the condition
+     * @param doi  the doi of the record
+     * @param condition  the condition the record should match
+     * @param deadline  the deadline of the wait
+     * @return the future of the metadata which matches the condition. It completes
+     *         exceptionally with an OSTIElinkTimeoutException when the deadline expires.
+     *         Cancelling it stops the wait.
+     */
+    CompletableFuture<String> await(String doi, RecordCondition condition, Deadline deadline) {
+        Waiter waiter = new Waiter(doi, condition);
+        String key = OSTIElinkService.normalizeDOI(doi);
+        ScheduledFuture<?> timeout = timer.schedule(
+            () -> waiter.result.completeExceptionally(new OSTIElinkTimeoutException(
+                "The deadline expired before the record of " + doi + " matched the condition")),
+            deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+        waiter.result.whenComplete((metadata, error) -> {
+            timeout.cancel(false);
+            synchronized (this) {
+                List<Waiter> list = waiters.get(key);
+                if (list != null) {
+                    list.remove(waiter);
+                    if (list.isEmpty()) {
+                        waiters.remove(key);
+                    }
+                }
+            }
+        });
+        synchronized (this) {
+            if (!waiter.result.isDone()) {
+                waiters.computeIfAbsent(key, k -> new ArrayList<>()).add(waiter);
+                if (!ticking && nextTick == null) {
+                    // Nobody was waiting, so the first search is sent at once
+                    nextTick = timer.schedule(this::tick, 0, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        return waiter.result;
+    }
+
+    /**
+     * Get the number of the searches the poller sent
+     * @return the number of the searches
+     */
+    long getSearches() {
+        return searches.get();
+    }
+
+    /**
+     * Get the number of the dois being waited on
+     * @return the number of the dois
+     */
+    synchronized int getPendingDOIs() {
+        return waiters.size();
+    }
+
+    private void tick() {
+        List<String> dois = new ArrayList<>();
+        synchronized (this) {
+            nextTick = null;
+            if (waiters.isEmpty()) {
+                return;
+            }
+            ticking = true;
+            for (List<Waiter> list : waiters.values()) {
+                dois.add(list.get(0).doi);
+            }
+        }
+        int size = batchSize;
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (int i = 0; i < dois.size(); i += size) {
+            batches.add(search(dois.subList(i, Math.min(i + size, dois.size()))));
+        }
+        CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0]))
+            .whenComplete((done, error) -> {
+                synchronized (this) {
+                    ticking = false;
+                    if (!waiters.isEmpty() && nextTick == null) {
+                        nextTick = timer.schedule(this::tick, intervalMillis,
+                                                  TimeUnit.MILLISECONDS);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Search a batch of the dois and fan the results out to their waiters
+     * @param dois  the dois in the batch
+     * @return the future completed when the results are dispatched. It never completes
+     *         exceptionally.
+     */
+    private CompletableFuture<Void> search(List<String> dois) {
+        searches.incrementAndGet();
+        if (dois.size() == 1) {
+            String doi = dois.get(0);
+            String key = OSTIElinkService.normalizeDOI(doi);
+            return service.getMetadataAsync(doi).handle((metadata, error) -> {
+                error = unwrap(error);
+                if (error == null) {
+                    dispatch(key, metadata);
+                } else if (!(error instanceof OSTIElinkNotFoundException)) {
+                    fail(key, error);
+                }
+                return null;
+            });
+        }
+        List<String> batch = new ArrayList<>(dois);
+        return service.searchRecordsAsync(batch).handle((records, error) -> {
+            error = unwrap(error);
+            if (error != null) {
+                // The next ticks search the dois one by one, which fails the waiters if the
+                // error isn't caused by the search of many dois
+                log.warn("RecordPoller - the search of " + batch.size() + " dois failed, so the "
+                             + "poller falls back to one search per doi: " + error.getMessage());
+                batchSize = 1;
+                return null;
+            }
+            for (Map.Entry<String, String> record : records.entrySet()) {
+                String key = OSTIElinkService.normalizeDOI(record.getKey());
+                dispatch(key, record.getValue());
+            }
+            return null;
+        });
+    }
+
+    private void dispatch(String key, String metadata) {
+        for (Waiter waiter : getWaiters(key)) {
+            try {
+                if (waiter.condition.test(metadata)) {
+                    waiter.result.complete(metadata);
+                }
+            } catch (OSTIElinkException | RuntimeException e) {
+                waiter.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void fail(String key, Throwable error) {
+        for (Waiter waiter : getWaiters(key)) {
+            waiter.result.completeExceptionally(error);
+        }
+    }
+
+    private synchronized List<Waiter> getWaiters(String key) {
+        List<Waiter> list = waiters.get(key);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        List<Waiter> copy = new ArrayList<>(list);
+        for (Iterator<Waiter> iterator = copy.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().result.isDone()) {
+                iterator.remove();
+            }
+        }
+        return copy;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            return error.getCause();
+        }
+        return error;
+    }
+}
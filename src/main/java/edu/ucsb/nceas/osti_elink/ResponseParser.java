@@ -0,0 +1,22 @@
+package edu.ucsb.nceas.osti_elink;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This interface parses the body of a successful response while it is read from the
+ * connection, so the body doesn't need to be copied into a byte array and a string first.
+ * @param <T>  the type of the parsed result
+ * @author Tao
+ */
+public interface ResponseParser<T> {
+
+    /**
+     * Parse the body of a successful (2xx) response
+     * @param body  the stream of the body. It is empty if the response doesn't have a body.
+     * @return the parsed result
+     * @throws IOException if the body can't be read
+     * @throws OSTIElinkException if the body doesn't have the expected content
+     */
+    T parse(InputStream body) throws IOException, OSTIElinkException;
+}
@@ -0,0 +1,167 @@
+package edu.ucsb.nceas.osti_elink;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Collapse the concurrent identical lookups into one. The first caller of a key runs the
+ * lookup, and the callers asking for the same key while it is in flight wait for it and share
+ * its result or its error, instead of sending an identical request each. A lookup is only
+ * shared while it is in flight, so nothing is cached after it completes. The keys should
+ * identify both the kind of the lookup and the identifier, since the results of the different
+ * kinds have different types.
+ * @author Tao
+ */
+public class SingleFlight {
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> flights =
+        new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Run the lookup of the key, or wait for the one in flight, and block the calling thread.
+     * The wait is bounded by the deadline of the calling thread. If the lookup in flight fails
+     * because the deadline of its caller expired, the waiting caller runs the lookup itself.
+     * @param key  the key of the lookup
+     * @param task  the lookup
+     * @param <T>  the type of the result
+     * @return the result of the lookup
+     * @throws OSTIElinkException  the error of the lookup, or an OSTIElinkTimeoutException if
+     *                             the deadline of the calling thread expires
+     */
+    public <T> T run(String key, Deadline.Task<T> task) throws OSTIElinkException {
+        calls.incrementAndGet();
+        while (true) {
+            CompletableFuture<Object> mine = new CompletableFuture<>();
+            CompletableFuture<Object> flight = flights.putIfAbsent(key, mine);
+            if (flight == null) {
+                // The flight ends however the lookup ends, even by an Error, so the key
+                // doesn't stay taken and the waiting callers don't hang
+                Throwable error = null;
+                T result = null;
+                try {
+                    result = task.call();
+                    return result;
+                } catch (Throwable e) {
+                    error = e;
+                    throw e;
+                } finally {
+                    flights.remove(key, mine);
+                    if (error == null) {
+                        mine.complete(result);
+                    } else {
+                        mine.completeExceptionally(error);
+                    }
+                }
+            }
+            shared.incrementAndGet();
+            Deadline deadline = Deadline.current();
+            try {
+                return cast(deadline == null ? flight.get()
+                                : flight.get(deadline.getRemainingMillis(),
+                                             TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                throw new OSTIElinkTimeoutException("The deadline expired while waiting for "
+                                                        + "the lookup of " + key);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OSTIElinkException("The thread waiting for the lookup of " + key
+                                                 + " was interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof OSTIElinkTimeoutException
+                    && (deadline == null || !deadline.isExpired())) {
+                    // The caller running the lookup had a shorter deadline
+                    shared.decrementAndGet();
+                    continue;
+                } else if (cause instanceof OSTIElinkException) {
+                    throw (OSTIElinkException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new OSTIElinkException("The lookup of " + key + " failed: "
+                                                 + cause.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Start the non-blocking lookup of the key, or join the one in flight
+     * @param key  the key of the lookup
+     * @param task  the supplier starting the lookup
+     * @param <T>  the type of the result
+     * @return a future of the result. Cancelling it doesn't cancel the lookup shared with the
+     *         other callers.
+     */
+    public <T> CompletableFuture<T> runAsync(String key, Supplier<CompletableFuture<T>> task) {
+        calls.incrementAndGet();
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> flight = flights.putIfAbsent(key, mine);
+        if (flight != null) {
+            shared.incrementAndGet();
+            return flight.thenApply(SingleFlight::cast);
+        }
+        CompletableFuture<T> started;
+        try {
+            started = task.get();
+        } catch (RuntimeException e) {
+            flights.remove(key, mine);
+            mine.completeExceptionally(e);
+            return mine.thenApply(SingleFlight::cast);
+        } catch (Error e) {
+            flights.remove(key, mine);
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        started.whenComplete((result, error) -> {
+            flights.remove(key, mine);
+            if (error instanceof CompletionException && error.getCause() != null) {
+                error = error.getCause();
+            }
+            if (error != null) {
+                mine.completeExceptionally(error);
+            } else {
+                mine.complete(result);
+            }
+        });
+        return mine.thenApply(SingleFlight::cast);
+    }
+
+    /**
+     * Get the number of the lookups asked for
+     * @return the number of the calls
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Get the number of the lookups which shared a lookup in flight instead of sending one
+     * @return the number of the collapsed calls
+     */
+    public long getCollapsedCalls() {
+        return shared.get();
+    }
+
+    /**
+     * Get the ratio of the collapsed calls to all the calls
+     * @return the collapse rate between 0 and 1. It is 0 if there were no calls.
+     */
+    public double getCollapseRate() {
+        long total = calls.get();
+        return total == 0 ? 0 : (double) shared.get() / total;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object result) {
+        return (T) result;
+    }
+}
@@ -0,0 +1,722 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import edu.ucsb.nceas.osti_elink.Deadline;
+import edu.ucsb.nceas.osti_elink.OSTIServiceFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.DefaultHttpResponseParserFactory;
+import org.apache.http.impl.conn.DefaultManagedHttpClientConnection;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.impl.entity.LaxContentLengthStrategy;
+import org.apache.http.impl.entity.StrictContentLengthStrategy;
+import org.apache.http.impl.io.DefaultHttpRequestWriterFactory;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The default transport. It sends the blocking requests by the pooled Apache HttpClient 4.5
+ * and the non-blocking requests by the pooled Apache HttpAsyncClient. Both clients are created
+ * on their first use and their connection pools are configured by the properties and
+ * environment variables of the max total connections, the max connections per route, the
+ * validation after inactivity and the time to live of the connections.
+ * A connection is kept alive for the time the server announces in the Keep-Alive header or the
+ * configured keep-alive duration. A background evictor closes the expired connections and the
+ * connections idle longer than the configured time, so the requests after a quiet period don't
+ * run into the sockets the server has already closed. The counters of the created, stale,
+ * evicted connections and the retried requests show how the pools behave.
+ * Every request is bounded by the configured connect, socket and pool-lease timeouts. A request
+ * with a deadline uses the shorter of them and the remaining time of the deadline, and it is
+ * aborted when the deadline expires.
+ * @author Tao
+ */
+public class ApacheHttpTransport implements OSTIElinkTransport {
+    private static final int CONNECTIONS_PER_ROUTE = 8;
+    // The settings of the connection pools. The environment variables overwrite the properties.
+    public static final String HTTP_MAX_TOTAL_PROP_NAME = "ostiService.http.maxTotal";
+    public static final String HTTP_MAX_TOTAL_ENV_NAME = "METACAT_OSTI_HTTP_MAX_TOTAL";
+    public static final String HTTP_MAX_PER_ROUTE_PROP_NAME = "ostiService.http.maxPerRoute";
+    public static final String HTTP_MAX_PER_ROUTE_ENV_NAME = "METACAT_OSTI_HTTP_MAX_PER_ROUTE";
+    public static final String HTTP_VALIDATE_AFTER_INACTIVITY_PROP_NAME =
+        "ostiService.http.validateAfterInactivityMs";
+    public static final String HTTP_VALIDATE_AFTER_INACTIVITY_ENV_NAME =
+        "METACAT_OSTI_HTTP_VALIDATE_AFTER_INACTIVITY_MS";
+    public static final String HTTP_CONNECTION_TTL_PROP_NAME = "ostiService.http.connectionTtlMs";
+    public static final String HTTP_CONNECTION_TTL_ENV_NAME = "METACAT_OSTI_HTTP_CONNECTION_TTL_MS";
+    private static final int DEFAULT_VALIDATE_AFTER_INACTIVITY_MS = 2000;
+    public static final String HTTP_KEEP_ALIVE_PROP_NAME = "ostiService.http.keepAliveMs";
+    public static final String HTTP_KEEP_ALIVE_ENV_NAME = "METACAT_OSTI_HTTP_KEEP_ALIVE_MS";
+    public static final String HTTP_IDLE_EVICTION_PROP_NAME = "ostiService.http.idleEvictionMs";
+    public static final String HTTP_IDLE_EVICTION_ENV_NAME = "METACAT_OSTI_HTTP_IDLE_EVICTION_MS";
+    private static final long DEFAULT_KEEP_ALIVE_MS = 30000;
+    private static final long DEFAULT_IDLE_EVICTION_MS = 30000;
+    private static final long MIN_EVICTION_INTERVAL_MS = 100;
+    private static final long MAX_EVICTION_INTERVAL_MS = 5000;
+    public static final String HTTP_CONNECT_TIMEOUT_PROP_NAME = "ostiService.http.connectTimeoutMs";
+    public static final String HTTP_CONNECT_TIMEOUT_ENV_NAME = "METACAT_OSTI_HTTP_CONNECT_TIMEOUT_MS";
+    public static final String HTTP_SOCKET_TIMEOUT_PROP_NAME = "ostiService.http.socketTimeoutMs";
+    public static final String HTTP_SOCKET_TIMEOUT_ENV_NAME = "METACAT_OSTI_HTTP_SOCKET_TIMEOUT_MS";
+    public static final String HTTP_LEASE_TIMEOUT_PROP_NAME = "ostiService.http.leaseTimeoutMs";
+    public static final String HTTP_LEASE_TIMEOUT_ENV_NAME = "METACAT_OSTI_HTTP_LEASE_TIMEOUT_MS";
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+    private static final int DEFAULT_SOCKET_TIMEOUT_MS = 60000;
+    private static final int DEFAULT_LEASE_TIMEOUT_MS = 10000;
+
+    private static final Log log = LogFactory.getLog(ApacheHttpTransport.class);
+    private final Properties properties;
+    private final RequestConfig requestConfig;
+    private volatile CloseableHttpClient httpClient = null;
+    private PoolingHttpClientConnectionManager connectionManager = null;
+    private CloseableHttpAsyncClient asyncHttpClient = null;
+    private PoolingNHttpClientConnectionManager asyncConnectionManager = null;
+    private ScheduledExecutorService evictor = null;
+    private final AtomicLong createdConnections = new AtomicLong();
+    private final AtomicLong staleChecks = new AtomicLong();
+    private final AtomicLong staleConnections = new AtomicLong();
+    private final AtomicLong evictedConnections = new AtomicLong();
+    private final AtomicLong retriedRequests = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param properties  the properties configuring the connection pools. It can be null.
+     */
+    public ApacheHttpTransport(Properties properties) {
+        this.properties = properties;
+        this.requestConfig = RequestConfig.custom()
+            .setConnectTimeout(getTimeout(HTTP_CONNECT_TIMEOUT_ENV_NAME,
+                                          HTTP_CONNECT_TIMEOUT_PROP_NAME,
+                                          DEFAULT_CONNECT_TIMEOUT_MS))
+            .setSocketTimeout(getTimeout(HTTP_SOCKET_TIMEOUT_ENV_NAME,
+                                         HTTP_SOCKET_TIMEOUT_PROP_NAME,
+                                         DEFAULT_SOCKET_TIMEOUT_MS))
+            .setConnectionRequestTimeout(getTimeout(HTTP_LEASE_TIMEOUT_ENV_NAME,
+                                                    HTTP_LEASE_TIMEOUT_PROP_NAME,
+                                                    DEFAULT_LEASE_TIMEOUT_MS))
+            .build();
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        HttpUriRequest httpRequest = toHttpRequest(request);
+        AtomicBoolean aborted = new AtomicBoolean(false);
+        ScheduledFuture<?> timeout = scheduleAbort(request, httpRequest, aborted);
+        try (CloseableHttpResponse response = getHttpClient().execute(httpRequest)) {
+            return toTransportResponse(response);
+        } catch (IOException e) {
+            throw aborted.get() ? TransportTimeouts.timeoutException(request) : e;
+        } finally {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Send the request and return the response whose body is read directly from the stream of
+     * the http entity. Closing the response consumes the rest of the body, so the connection
+     * goes back to the pool.
+     * @param request  the request will be sent
+     * @return the response of the request
+     * @throws IOException
+     */
+    @Override
+    public StreamingTransportResponse executeStreaming(TransportRequest request)
+        throws IOException {
+        HttpUriRequest httpRequest = toHttpRequest(request);
+        AtomicBoolean aborted = new AtomicBoolean(false);
+        // The deadline also bounds the reading of the body
+        final ScheduledFuture<?> timeout = scheduleAbort(request, httpRequest, aborted);
+        final CloseableHttpResponse response;
+        try {
+            response = getHttpClient().execute(httpRequest);
+        } catch (IOException e) {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            throw aborted.get() ? TransportTimeouts.timeoutException(request) : e;
+        }
+        try {
+            final HttpEntity entity = response.getEntity();
+            return new StreamingTransportResponse(
+                response.getStatusLine().getStatusCode(), getHeaders(response),
+                entity == null ? null : entity.getContent(), () -> {
+                    if (timeout != null) {
+                        timeout.cancel(false);
+                    }
+                    try {
+                        EntityUtils.consumeQuietly(entity);
+                    } finally {
+                        response.close();
+                    }
+                });
+        } catch (IOException | RuntimeException e) {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            response.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+        final CompletableFuture<TransportResponse> result =
+            TransportTimeouts.within(request, new CompletableFuture<>());
+        CloseableHttpAsyncClient client;
+        HttpUriRequest httpRequest;
+        try {
+            client = getAsyncHttpClient();
+            httpRequest = toHttpRequest(request);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        final Future<HttpResponse> httpFuture =
+            client.execute(httpRequest, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    try {
+                        result.complete(toTransportResponse(response));
+                    } catch (IOException e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    if (e instanceof IOException) {
+                        result.completeExceptionally(e);
+                    } else {
+                        result.completeExceptionally(new IOException(e.getMessage(), e));
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    result.cancel(false);
+                }
+            });
+        result.whenComplete((response, error) -> {
+            // It was cancelled or its deadline expired
+            if (error != null) {
+                httpFuture.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Close both http clients. The next request will create new ones.
+     */
+    @Override
+    public synchronized void close() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+            evictor = null;
+        }
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.warn("ApacheHttpTransport.close - can't close the client: " + e.getMessage());
+            }
+            httpClient = null;
+            connectionManager = null;
+        }
+        if (asyncHttpClient != null) {
+            try {
+                asyncHttpClient.close();
+            } catch (IOException e) {
+                log.warn("ApacheHttpTransport.close - can't close the non-blocking client: "
+                             + e.getMessage());
+            }
+            asyncHttpClient = null;
+            asyncConnectionManager = null;
+        }
+    }
+
+    /**
+     * Get the live statistics (leased, pending, available and max connections) of the
+     * connection pool used by the blocking requests.
+     * @return the statistics of the connection pool
+     */
+    public synchronized PoolStats getConnectionPoolStats() {
+        getHttpClient();
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * Get the live statistics (leased, pending, available and max connections) of the
+     * connection pool used by the non-blocking requests.
+     * @return the statistics of the connection pool. Null will be returned if no
+     * non-blocking request has been sent.
+     */
+    public synchronized PoolStats getAsyncConnectionPoolStats() {
+        if (asyncConnectionManager == null) {
+            return null;
+        }
+        return asyncConnectionManager.getTotalStats();
+    }
+
+    /**
+     * Get the number of the connections the blocking client opened
+     * @return the number of the created connections
+     */
+    public long getCreatedConnections() {
+        return createdConnections.get();
+    }
+
+    /**
+     * Get the number of the times a pooled connection was validated before being reused
+     * (after the validateAfterInactivity period)
+     * @return the number of the stale checks
+     */
+    public long getStaleChecks() {
+        return staleChecks.get();
+    }
+
+    /**
+     * Get the number of the pooled connections which were found stale (closed by the server)
+     * by the validation and replaced by new ones
+     * @return the number of the stale connections
+     */
+    public long getStaleConnections() {
+        return staleConnections.get();
+    }
+
+    /**
+     * Get the number of the idle or expired connections closed by the background evictor. It
+     * is computed from the pool statistics, so it is approximate under heavy load.
+     * @return the number of the evicted connections
+     */
+    public long getEvictedConnections() {
+        return evictedConnections.get();
+    }
+
+    /**
+     * Get the number of the blocking requests which were retried after an I/O error, such as
+     * a write to a socket closed by the server. The client only retries them if the
+     * RetryTransport isn't enabled, otherwise it is always 0.
+     * @return the number of the retried requests
+     */
+    public long getRetriedRequests() {
+        return retriedRequests.get();
+    }
+
+    /**
+     * Get the blocking http client. It is created on the first call.
+     * @return the blocking http client
+     */
+    private CloseableHttpClient getHttpClient() {
+        CloseableHttpClient client = httpClient;
+        if (client == null) {
+            synchronized (this) {
+                client = httpClient;
+                if (client == null) {
+                    client = createThreadSafeClient();
+                    httpClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Generate an HTTP Client for communicating with web services that is
+     * thread safe and can be used in the context of a multi-threaded application.
+     * @return DefaultHttpClient
+     */
+    private CloseableHttpClient createThreadSafeClient()  {
+        Registry<ConnectionSocketFactory> registry =
+            RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                .build();
+        PoolingHttpClientConnectionManager poolingConnManager =
+            new PoolingHttpClientConnectionManager(
+                registry, new CountingConnectionFactory(), DefaultSchemePortResolver.INSTANCE,
+                SystemDefaultDnsResolver.INSTANCE, getConnectionTimeToLive(),
+                TimeUnit.MILLISECONDS);
+        // The content encoding is handled by the CompressionTransport, so the bodies pass
+        // through this transport unchanged.
+        HttpClientBuilder builder = HttpClients.custom().setConnectionManager(poolingConnManager)
+            .setKeepAliveStrategy(getKeepAliveStrategy())
+            .setDefaultRequestConfig(requestConfig)
+            .disableContentCompression();
+        if (OSTIServiceFactory.getIntSetting(RetryTransport.RETRY_MAX_ATTEMPTS_ENV_NAME,
+                                             RetryTransport.RETRY_MAX_ATTEMPTS_PROP_NAME,
+                                             properties,
+                                             RetryTransport.DEFAULT_RETRY_MAX_ATTEMPTS) > 1) {
+            // The RetryTransport owns the retries with its backoff and deadline checks, so the
+            // requests aren't retried by both of them
+            builder.disableAutomaticRetries();
+        } else {
+            builder.setRetryHandler(new DefaultHttpRequestRetryHandler() {
+                @Override
+                public boolean retryRequest(IOException exception, int executionCount,
+                                            HttpContext context) {
+                    boolean retry = super.retryRequest(exception, executionCount, context);
+                    if (retry) {
+                        retriedRequests.incrementAndGet();
+                    }
+                    return retry;
+                }
+            });
+        }
+        CloseableHttpClient client = builder.build();
+        poolingConnManager.setMaxTotal(getMaxTotalConnections());
+        poolingConnManager.setDefaultMaxPerRoute(getMaxConnectionsPerRoute());
+        poolingConnManager.setValidateAfterInactivity(
+            OSTIServiceFactory.getIntSetting(HTTP_VALIDATE_AFTER_INACTIVITY_ENV_NAME,
+                                             HTTP_VALIDATE_AFTER_INACTIVITY_PROP_NAME, properties,
+                                             DEFAULT_VALIDATE_AFTER_INACTIVITY_MS));
+        connectionManager = poolingConnManager;
+        startEvictor();
+        log.info("ApacheHttpTransport.createThreadSafeClient - the connection pool has max total "
+                     + poolingConnManager.getMaxTotal() + " and max per route "
+                     + poolingConnManager.getDefaultMaxPerRoute() + " connections");
+        return client;
+    }
+
+    /**
+     * Get the non-blocking http client. It is created and started on the first call.
+     * @return the started non-blocking http client
+     * @throws IOException
+     */
+    private synchronized CloseableHttpAsyncClient getAsyncHttpClient() throws IOException {
+        if (asyncHttpClient == null) {
+            try {
+                Registry<SchemeIOSessionStrategy> registry =
+                    RegistryBuilder.<SchemeIOSessionStrategy>create()
+                        .register("http", NoopIOSessionStrategy.INSTANCE)
+                        .register("https", SSLIOSessionStrategy.getDefaultStrategy())
+                        .build();
+                PoolingNHttpClientConnectionManager poolingConnManager =
+                    new PoolingNHttpClientConnectionManager(
+                        new DefaultConnectingIOReactor(), ManagedNHttpClientConnectionFactory.INSTANCE,
+                        registry, DefaultSchemePortResolver.INSTANCE,
+                        SystemDefaultDnsResolver.INSTANCE, getConnectionTimeToLive(),
+                        TimeUnit.MILLISECONDS);
+                poolingConnManager.setMaxTotal(getMaxTotalConnections());
+                poolingConnManager.setDefaultMaxPerRoute(getMaxConnectionsPerRoute());
+                asyncHttpClient = HttpAsyncClients.custom().setConnectionManager(poolingConnManager)
+                    .setKeepAliveStrategy(getKeepAliveStrategy())
+                    .setDefaultRequestConfig(requestConfig).build();
+                asyncConnectionManager = poolingConnManager;
+                startEvictor();
+            } catch (IOReactorException e) {
+                throw new IOException(
+                    "ApacheHttpTransport.getAsyncHttpClient - can't create the non-blocking http "
+                        + "client: " + e.getMessage(), e);
+            }
+            asyncHttpClient.start();
+        }
+        return asyncHttpClient;
+    }
+
+    /**
+     * Get the keep-alive strategy. It uses the timeout announced by the server in the
+     * Keep-Alive header or the configured keep-alive duration when the server doesn't announce
+     * one.
+     * @return the keep-alive strategy
+     */
+    private ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+        final long keepAlive =
+            OSTIServiceFactory.getLongSetting(HTTP_KEEP_ALIVE_ENV_NAME, HTTP_KEEP_ALIVE_PROP_NAME,
+                                              properties, DEFAULT_KEEP_ALIVE_MS);
+        return (response, context) -> {
+            long duration =
+                DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : keepAlive;
+        };
+    }
+
+    /**
+     * Start the background evictor if it isn't running and the idle eviction is enabled. It
+     * closes the expired connections and the connections idle longer than the configured time
+     * in both pools.
+     */
+    private synchronized void startEvictor() {
+        final long idleTime =
+            OSTIServiceFactory.getLongSetting(HTTP_IDLE_EVICTION_ENV_NAME,
+                                              HTTP_IDLE_EVICTION_PROP_NAME, properties,
+                                              DEFAULT_IDLE_EVICTION_MS);
+        if (evictor != null || idleTime <= 0) {
+            return;
+        }
+        long interval =
+            Math.max(MIN_EVICTION_INTERVAL_MS, Math.min(MAX_EVICTION_INTERVAL_MS, idleTime / 2));
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "osti-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(() -> evict(idleTime), interval, interval,
+                                       TimeUnit.MILLISECONDS);
+        log.info("ApacheHttpTransport.startEvictor - the connections idle longer than "
+                     + idleTime + " ms are closed every " + interval + " ms");
+    }
+
+    /**
+     * Close the expired connections and the connections idle longer than the given time
+     * @param idleTime  the max idle time in milliseconds
+     */
+    private void evict(long idleTime) {
+        PoolingHttpClientConnectionManager manager;
+        PoolingNHttpClientConnectionManager asyncManager;
+        synchronized (this) {
+            manager = connectionManager;
+            asyncManager = asyncConnectionManager;
+        }
+        try {
+            if (manager != null) {
+                int before = manager.getTotalStats().getAvailable();
+                manager.closeExpiredConnections();
+                manager.closeIdleConnections(idleTime, TimeUnit.MILLISECONDS);
+                evictedConnections.addAndGet(
+                    Math.max(0, before - manager.getTotalStats().getAvailable()));
+            }
+            if (asyncManager != null) {
+                int before = asyncManager.getTotalStats().getAvailable();
+                asyncManager.closeExpiredConnections();
+                asyncManager.closeIdleConnections(idleTime, TimeUnit.MILLISECONDS);
+                evictedConnections.addAndGet(
+                    Math.max(0, before - asyncManager.getTotalStats().getAvailable()));
+            }
+        } catch (RuntimeException e) {
+            log.warn("ApacheHttpTransport.evict - can't evict the connections: "
+                         + e.getMessage());
+        }
+    }
+
+    private int getMaxTotalConnections() {
+        return OSTIServiceFactory.getIntSetting(HTTP_MAX_TOTAL_ENV_NAME, HTTP_MAX_TOTAL_PROP_NAME,
+                                                properties, CONNECTIONS_PER_ROUTE);
+    }
+
+    private int getMaxConnectionsPerRoute() {
+        return OSTIServiceFactory.getIntSetting(HTTP_MAX_PER_ROUTE_ENV_NAME,
+                                                HTTP_MAX_PER_ROUTE_PROP_NAME, properties,
+                                                CONNECTIONS_PER_ROUTE);
+    }
+
+    private long getConnectionTimeToLive() {
+        return OSTIServiceFactory.getLongSetting(HTTP_CONNECTION_TTL_ENV_NAME,
+                                                 HTTP_CONNECTION_TTL_PROP_NAME, properties, -1);
+    }
+
+    /**
+     * Convert the transport request to an Apache http request
+     * @param request  the transport request
+     * @return the Apache http request with the same method, uri, headers and body
+     */
+    private HttpUriRequest toHttpRequest(TransportRequest request) throws IOException {
+        RequestBuilder builder = RequestBuilder.create(request.getMethod())
+            .setUri(request.getUri());
+        String contentType = null;
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            if (header.getKey().equalsIgnoreCase("Content-Type")) {
+                contentType = header.getValue();
+            }
+            builder.addHeader(header.getKey(), header.getValue());
+        }
+        if (request.getBody() != null) {
+            builder.setEntity(new ByteArrayEntity(request.getBody(), contentType == null
+                ? ContentType.TEXT_PLAIN.withCharset("UTF-8") : ContentType.parse(contentType)));
+        }
+        Deadline deadline = request.getDeadline();
+        if (deadline != null) {
+            long remaining = deadline.getRemainingMillis();
+            if (remaining <= 0) {
+                throw TransportTimeouts.timeoutException(request);
+            }
+            builder.setConfig(RequestConfig.copy(requestConfig)
+                .setConnectTimeout(cap(requestConfig.getConnectTimeout(), remaining))
+                .setSocketTimeout(cap(requestConfig.getSocketTimeout(), remaining))
+                .setConnectionRequestTimeout(
+                    cap(requestConfig.getConnectionRequestTimeout(), remaining))
+                .build());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Schedule the abort of the request when its deadline expires
+     * @param request  the transport request which may have a deadline
+     * @param httpRequest  the Apache http request will be aborted
+     * @param aborted  it is set to true when the request is aborted
+     * @return the scheduled abort. Null will be returned if the request doesn't have a deadline.
+     */
+    private static ScheduledFuture<?> scheduleAbort(TransportRequest request,
+                                                    HttpUriRequest httpRequest,
+                                                    AtomicBoolean aborted) {
+        return TransportTimeouts.schedule(request, () -> {
+            aborted.set(true);
+            httpRequest.abort();
+        });
+    }
+
+    /**
+     * Cap the configured timeout by the remaining time of a deadline
+     * @param timeout  the configured timeout in milliseconds. 0 or less means infinite.
+     * @param remaining  the remaining time in milliseconds
+     * @return the capped timeout
+     */
+    private static int cap(int timeout, long remaining) {
+        int limit = (int) Math.min(Integer.MAX_VALUE, remaining);
+        return timeout <= 0 ? limit : Math.min(timeout, limit);
+    }
+
+    /**
+     * Get the timeout setting
+     * @param envName  the name of the environment variable
+     * @param propName  the name of the property
+     * @param defaultValue  the default value
+     * @return the timeout in milliseconds. 0 means infinite.
+     */
+    private int getTimeout(String envName, String propName, int defaultValue) {
+        return Math.max(0, OSTIServiceFactory.getIntSetting(envName, propName, properties,
+                                                            defaultValue));
+    }
+
+    /**
+     * Read the status code, headers and body of the Apache http response
+     * @param response  the Apache http response
+     * @return the transport response
+     * @throws IOException
+     */
+    private static TransportResponse toTransportResponse(HttpResponse response)
+        throws IOException {
+        byte[] body = null;
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            body = EntityUtils.toByteArray(entity);
+        }
+        return new TransportResponse(response.getStatusLine().getStatusCode(),
+                                     getHeaders(response), body);
+    }
+
+    /**
+     * Get the headers of the Apache http response
+     * @param response  the Apache http response
+     * @return the map of the headers
+     */
+    private static Map<String, String> getHeaders(HttpResponse response) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (Header header : response.getAllHeaders()) {
+            headers.put(header.getName(), header.getValue());
+        }
+        return headers;
+    }
+
+    /**
+     * The factory of the blocking connections which counts the created connections and the
+     * results of their stale checks. The pool calls the isStale method of a connection when
+     * it validates the connection before reusing it. The connections are created like the
+     * ManagedHttpClientConnectionFactory does, without its wire logging.
+     */
+    private class CountingConnectionFactory
+        implements HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> {
+        private final AtomicLong ids = new AtomicLong();
+
+        @Override
+        public ManagedHttpClientConnection create(HttpRoute route, ConnectionConfig config) {
+            ConnectionConfig connectionConfig = config != null ? config : ConnectionConfig.DEFAULT;
+            CharsetDecoder decoder = null;
+            CharsetEncoder encoder = null;
+            Charset charset = connectionConfig.getCharset();
+            if (charset != null) {
+                CodingErrorAction malformed = connectionConfig.getMalformedInputAction() != null
+                    ? connectionConfig.getMalformedInputAction() : CodingErrorAction.REPORT;
+                CodingErrorAction unmappable =
+                    connectionConfig.getUnmappableInputAction() != null
+                        ? connectionConfig.getUnmappableInputAction() : CodingErrorAction.REPORT;
+                decoder = charset.newDecoder().onMalformedInput(malformed)
+                    .onUnmappableCharacter(unmappable);
+                encoder = charset.newEncoder().onMalformedInput(malformed)
+                    .onUnmappableCharacter(unmappable);
+            }
+            createdConnections.incrementAndGet();
+            return new CountingConnection("osti-http-outgoing-" + ids.getAndIncrement(),
+                                          connectionConfig, decoder, encoder);
+        }
+    }
+
+    /**
+     * The blocking connection counting the results of its stale checks
+     */
+    private class CountingConnection extends DefaultManagedHttpClientConnection {
+
+        private CountingConnection(String id, ConnectionConfig config, CharsetDecoder decoder,
+                                   CharsetEncoder encoder) {
+            super(id, config.getBufferSize(), config.getFragmentSizeHint(), decoder, encoder,
+                  config.getMessageConstraints(), LaxContentLengthStrategy.INSTANCE,
+                  StrictContentLengthStrategy.INSTANCE, DefaultHttpRequestWriterFactory.INSTANCE,
+                  DefaultHttpResponseParserFactory.INSTANCE);
+        }
+
+        @Override
+        public boolean isStale() {
+            boolean stale = super.isStale();
+            staleChecks.incrementAndGet();
+            if (stale) {
+                staleConnections.incrementAndGet();
+            }
+            return stale;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A transport which isolates the reads, the writes and the mints of the delegate transport
+ * from each other. Each compartment has its own quota of the in-flight requests, so a storm of
+ * background metadata updates can only fill the write quota and the interactive mints and
+ * status lookups still get connections. The requests over the quota of their compartment
+ * wait in a FIFO queue until a slot is released or their deadlines expire. The sum of the
+ * quotas should not be larger than the max connections per route of the connection pool,
+ * otherwise the compartments share the waits for the pool again. Each compartment can send its
+ * requests by its own delegate, e.g. its own adaptive limiter, so the requests of a compartment
+ * never queue behind the ones of another.
+ * @author Tao
+ */
+public class BulkheadTransport extends DelegatingTransport {
+    public static final String BULKHEAD_ENABLED_PROP_NAME = "ostiService.bulkhead.enabled";
+    public static final String BULKHEAD_ENABLED_ENV_NAME = "METACAT_OSTI_BULKHEAD_ENABLED";
+    public static final String BULKHEAD_READS_PROP_NAME = "ostiService.bulkhead.reads";
+    public static final String BULKHEAD_READS_ENV_NAME = "METACAT_OSTI_BULKHEAD_READS";
+    public static final String BULKHEAD_WRITES_PROP_NAME = "ostiService.bulkhead.writes";
+    public static final String BULKHEAD_WRITES_ENV_NAME = "METACAT_OSTI_BULKHEAD_WRITES";
+    public static final String BULKHEAD_MINTS_PROP_NAME = "ostiService.bulkhead.mints";
+    public static final String BULKHEAD_MINTS_ENV_NAME = "METACAT_OSTI_BULKHEAD_MINTS";
+    public static final int DEFAULT_BULKHEAD_READS = 3;
+    public static final int DEFAULT_BULKHEAD_WRITES = 3;
+    public static final int DEFAULT_BULKHEAD_MINTS = 2;
+
+    /**
+     * The compartments of the OSTI traffic
+     */
+    public enum Compartment {
+        /**
+         * The searches and the status lookups
+         */
+        READ,
+        /**
+         * The metadata updates, the publications and the xml uploads
+         */
+        WRITE,
+        /**
+         * The DOI mints
+         */
+        MINT;
+
+        /**
+         * Classify the request by its method and url
+         * @param method  the http method of the request
+         * @param uri  the url of the request
+         * @return the compartment of the request
+         */
+        public static Compartment classify(String method, String uri) {
+            switch (RateLimitTransport.Operation.classify(method, uri)) {
+                case SEARCH:
+                    return READ;
+                case MINT:
+                    return MINT;
+                default:
+                    return WRITE;
+            }
+        }
+    }
+
+    private static final Log log = LogFactory.getLog(BulkheadTransport.class);
+    private final Map<Compartment, RequestSlots> compartments = new EnumMap<>(Compartment.class);
+    private final Map<Compartment, OSTIElinkTransport> delegates =
+        new EnumMap<>(Compartment.class);
+
+    /**
+     * Constructor
+     * @param delegate  the transport which sends the requests
+     * @param reads  the max number of the in-flight reads
+     * @param writes  the max number of the in-flight writes
+     * @param mints  the max number of the in-flight mints
+     */
+    public BulkheadTransport(OSTIElinkTransport delegate, int reads, int writes, int mints) {
+        this(delegate, null, reads, writes, mints);
+    }
+
+    /**
+     * Constructor of the bulkheads whose compartments send their requests by their own
+     * delegates. The compartment delegates must wrap the given delegate, which is closed by
+     * this transport.
+     * @param delegate  the transport which sends the requests of the compartments without
+     *                  their own delegates
+     * @param compartmentDelegates  the transports which send the requests of the compartments.
+     *                              It can be null.
+     * @param reads  the max number of the in-flight reads
+     * @param writes  the max number of the in-flight writes
+     * @param mints  the max number of the in-flight mints
+     */
+    public BulkheadTransport(OSTIElinkTransport delegate,
+                             Map<Compartment, OSTIElinkTransport> compartmentDelegates,
+                             int reads, int writes, int mints) {
+        super(delegate);
+        for (Compartment compartment : Compartment.values()) {
+            OSTIElinkTransport transport =
+                compartmentDelegates == null ? null : compartmentDelegates.get(compartment);
+            delegates.put(compartment, transport == null ? delegate : transport);
+        }
+        compartments.put(Compartment.READ, new RequestSlots(reads));
+        compartments.put(Compartment.WRITE, new RequestSlots(writes));
+        compartments.put(Compartment.MINT, new RequestSlots(mints));
+        log.info("BulkheadTransport - the quotas of reads: " + getLimit(Compartment.READ)
+                     + ", writes: " + getLimit(Compartment.WRITE) + ", mints: "
+                     + getLimit(Compartment.MINT));
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        RequestSlots slots = getSlots(request);
+        slots.acquire(request);
+        try {
+            return getDelegate(request).execute(request);
+        } finally {
+            slots.release();
+        }
+    }
+
+    /**
+     * The slot is held until the response is closed, since the connection is busy while the
+     * body is read.
+     * @param request  the request will be sent
+     * @return the response of the request
+     * @throws IOException
+     */
+    @Override
+    public StreamingTransportResponse executeStreaming(TransportRequest request)
+        throws IOException {
+        RequestSlots slots = getSlots(request);
+        slots.acquire(request);
+        StreamingTransportResponse response;
+        try {
+            response = getDelegate(request).executeStreaming(request);
+        } catch (IOException | RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        return new StreamingTransportResponse(response.getStatusCode(), response.getHeaders(),
+                                              response.getBody(), () -> {
+            try {
+                response.close();
+            } finally {
+                if (released.compareAndSet(false, true)) {
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+        OSTIElinkTransport transport = getDelegate(request);
+        return getSlots(request).executeAsync(request, () -> transport.executeAsync(request),
+                                              null);
+    }
+
+    /**
+     * Get the quota of the given compartment
+     * @param compartment  the compartment
+     * @return the max number of its in-flight requests
+     */
+    public int getLimit(Compartment compartment) {
+        return compartments.get(compartment).getLimit();
+    }
+
+    /**
+     * Get the number of the in-flight requests of the given compartment
+     * @param compartment  the compartment
+     * @return the number of the in-flight requests
+     */
+    public int getInFlight(Compartment compartment) {
+        return compartments.get(compartment).getInUse();
+    }
+
+    /**
+     * Get the number of the requests waiting for a slot of the given compartment
+     * @param compartment  the compartment
+     * @return the number of the waiting requests
+     */
+    public int getWaitingRequests(Compartment compartment) {
+        return compartments.get(compartment).getWaiting();
+    }
+
+    /**
+     * Get the transport which sends the requests of the given compartment
+     * @param compartment  the compartment
+     * @return the delegate of the compartment
+     */
+    public OSTIElinkTransport getDelegate(Compartment compartment) {
+        return delegates.get(compartment);
+    }
+
+    private OSTIElinkTransport getDelegate(TransportRequest request) {
+        return delegates.get(Compartment.classify(request.getMethod(), request.getUri()));
+    }
+
+    private RequestSlots getSlots(TransportRequest request) {
+        return compartments.get(Compartment.classify(request.getMethod(), request.getUri()));
+    }
+}
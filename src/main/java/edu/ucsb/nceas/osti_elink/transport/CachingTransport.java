@@ -0,0 +1,572 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.utils.DateUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A transport which caches the responses of the GET requests following the HTTP caching
+ * headers. A response with the Cache-Control max-age (or Expires) header is served from the
+ * cache without a request until it expires. A stale response or a response with only the
+ * ETag or Last-Modified validator is revalidated by the If-None-Match or If-Modified-Since
+ * header, so an unchanged record costs a 304 response rather than a full body. The responses
+ * with Cache-Control no-store are never cached. A successful PUT, POST, PATCH or DELETE request
+ * invalidates the cached responses of the same resource and of its parent collections, e.g. a
+ * PATCH to /records/123/save invalidates the queries on /records.
+ * The entries are kept in a bounded LRU map in memory. They also can be stored in a directory,
+ * so they survive restarts. The paths of the stored entries are indexed, so the invalidation
+ * deletes the stored entries as well, including the ones no longer kept in memory.
+ * @author Tao
+ */
+public class CachingTransport extends DelegatingTransport {
+    public static final String CACHE_ENABLED_PROP_NAME = "ostiService.http.cache.enabled";
+    public static final String CACHE_ENABLED_ENV_NAME = "METACAT_OSTI_HTTP_CACHE_ENABLED";
+    public static final String CACHE_MAX_ENTRIES_PROP_NAME = "ostiService.http.cache.maxEntries";
+    public static final String CACHE_MAX_ENTRIES_ENV_NAME = "METACAT_OSTI_HTTP_CACHE_MAX_ENTRIES";
+    public static final String CACHE_DIRECTORY_PROP_NAME = "ostiService.http.cache.directory";
+    public static final String CACHE_DIRECTORY_ENV_NAME = "METACAT_OSTI_HTTP_CACHE_DIRECTORY";
+    public static final int DEFAULT_CACHE_MAX_ENTRIES = 1000;
+    private static final int NOT_MODIFIED = 304;
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    private static final Log log = LogFactory.getLog(CachingTransport.class);
+    private final Map<String, CacheEntry> entries;
+    // The paths of the uris of the entries stored in the directory, keyed by their keys. It is
+    // guarded by the lock of the entries.
+    private final Map<String, String> storedPaths = new HashMap<>();
+    private final File directory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param delegate  the transport which sends the requests
+     * @param maxEntries  the max number of the entries kept in memory
+     * @param directory  the directory storing the entries. It can be null, then the entries
+     *                   are only kept in memory.
+     */
+    public CachingTransport(OSTIElinkTransport delegate, final int maxEntries, File directory) {
+        super(delegate);
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("CachingTransport - can't create the cache directory " + directory
+                         + ", so the entries are only kept in memory");
+            directory = null;
+        }
+        this.directory = directory;
+        loadStoredPaths();
+        log.info("CachingTransport - the cache keeps " + maxEntries + " entries in memory"
+                     + (directory == null ? "" : " and stores them in " + directory));
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        if (!isGet(request)) {
+            TransportResponse response = delegate.execute(request);
+            invalidate(request, response.getStatusCode());
+            return response;
+        }
+        String key = getKey(request);
+        CacheEntry entry = lookup(key);
+        if (entry != null && entry.isFresh()) {
+            hits.incrementAndGet();
+            return entry.toResponse();
+        }
+        TransportResponse response = delegate.execute(addValidators(request, entry));
+        return handleResponse(request, key, entry, response);
+    }
+
+    @Override
+    public StreamingTransportResponse executeStreaming(TransportRequest request)
+        throws IOException {
+        if (!isGet(request)) {
+            StreamingTransportResponse response = delegate.executeStreaming(request);
+            invalidate(request, response.getStatusCode());
+            return response;
+        }
+        // The body of a cacheable response has to be kept, so it is read as a whole
+        return StreamingTransportResponse.of(execute(request));
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+        if (!isGet(request)) {
+            return delegate.executeAsync(request).thenApply(response -> {
+                invalidate(request, response.getStatusCode());
+                return response;
+            });
+        }
+        final String key = getKey(request);
+        final CacheEntry entry = lookup(key);
+        if (entry != null && entry.isFresh()) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(entry.toResponse());
+        }
+        final CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        final CompletableFuture<TransportResponse> future =
+            delegate.executeAsync(addValidators(request, entry));
+        future.whenComplete((response, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(handleResponse(request, key, entry, response));
+            }
+        });
+        result.whenComplete((response, error) -> {
+            if (result.isCancelled()) {
+                future.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Get the number of the requests served from the cache without contacting the server
+     * @return the number of the hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of the requests served from the cache after the server answered 304
+     * @return the number of the revalidations
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * Get the number of the GET requests whose bodies were downloaded from the server
+     * @return the number of the misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Remove all entries from the memory and the directory
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            storedPaths.clear();
+        }
+        if (directory != null) {
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(".entry"));
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.delete()) {
+                        log.warn("CachingTransport.clear - can't delete " + file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Store, refresh or drop the cache entry based on the response of the server
+     * @param request  the original request
+     * @param key  the key of the request
+     * @param entry  the entry which was revalidated. It can be null.
+     * @param response  the response from the server
+     * @return the response for the caller
+     */
+    private TransportResponse handleResponse(TransportRequest request, String key,
+                                             CacheEntry entry, TransportResponse response) {
+        if (response.getStatusCode() == NOT_MODIFIED && entry != null) {
+            revalidations.incrementAndGet();
+            CacheEntry refreshed = entry.refresh(response.getHeaders());
+            store(key, refreshed);
+            return refreshed.toResponse();
+        }
+        misses.incrementAndGet();
+        if (response.getStatusCode() == 200 && response.getBody() != null) {
+            CacheEntry newEntry = CacheEntry.create(request.getUri(), response);
+            if (newEntry != null) {
+                store(key, newEntry);
+                return response;
+            }
+        }
+        if (entry != null) {
+            remove(key);
+        }
+        return response;
+    }
+
+    /**
+     * Add the If-None-Match and If-Modified-Since headers from the stale entry
+     * @param request  the original request
+     * @param entry  the stale entry. It can be null.
+     * @return the conditional request
+     */
+    private static TransportRequest addValidators(TransportRequest request, CacheEntry entry) {
+        if (entry == null) {
+            return request;
+        }
+        Map<String, String> headers = new LinkedHashMap<>(request.getHeaders());
+        String etag = entry.getHeader("ETag");
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+        String lastModified = entry.getHeader("Last-Modified");
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        return new TransportRequest(request.getMethod(), request.getUri(), headers,
+                                    request.getBody(), request.getDeadline());
+    }
+
+    /**
+     * Invalidate the entries of the resource and its parent collections after a successful
+     * unsafe request. The entries are removed from the memory and the directory.
+     * @param request  the unsafe request
+     * @param statusCode  the status code of its response
+     */
+    private void invalidate(TransportRequest request, int statusCode) {
+        if (statusCode >= 400) {
+            return;
+        }
+        String path = URI.create(request.getUri()).getPath();
+        Set<String> keys = new LinkedHashSet<>();
+        synchronized (entries) {
+            for (Map.Entry<String, CacheEntry> cached : entries.entrySet()) {
+                if (isUnder(path, getPath(cached.getValue().uri))) {
+                    keys.add(cached.getKey());
+                }
+            }
+            for (Map.Entry<String, String> stored : storedPaths.entrySet()) {
+                if (isUnder(path, stored.getValue())) {
+                    keys.add(stored.getKey());
+                }
+            }
+            for (String key : keys) {
+                entries.remove(key);
+                storedPaths.remove(key);
+                deleteFile(key);
+            }
+        }
+    }
+
+    private CacheEntry lookup(String key) {
+        CacheEntry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null && directory != null) {
+            entry = readFile(key);
+            if (entry != null) {
+                synchronized (entries) {
+                    // An entry invalidated while it was read is dropped
+                    if (!storedPaths.containsKey(key)) {
+                        return null;
+                    }
+                    entries.put(key, entry);
+                }
+            }
+        }
+        return entry;
+    }
+
+    private void store(String key, CacheEntry entry) {
+        synchronized (entries) {
+            entries.put(key, entry);
+            if (directory != null) {
+                storedPaths.put(key, getPath(entry.uri));
+            }
+        }
+        writeFile(key, entry);
+    }
+
+    private void remove(String key) {
+        synchronized (entries) {
+            entries.remove(key);
+            storedPaths.remove(key);
+        }
+        deleteFile(key);
+    }
+
+    /**
+     * Index the paths of the entries stored in the directory by a previous run. Only the
+     * headers of the files, the key and the uri, are read.
+     */
+    private void loadStoredPaths() {
+        if (directory == null) {
+            return;
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".entry"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+                if (input.readInt() == FILE_FORMAT_VERSION) {
+                    String key = input.readUTF();
+                    String uri = input.readUTF();
+                    synchronized (entries) {
+                        storedPaths.put(key, getPath(uri));
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("CachingTransport.loadStoredPaths - can't read the cache file " + file
+                             + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Check if a cached resource is the written resource or one of its parent collections
+     * @param writtenPath  the path of the written resource
+     * @param cachedPath  the path of the cached resource
+     * @return true if the cached resource is affected by the write
+     */
+    private static boolean isUnder(String writtenPath, String cachedPath) {
+        return writtenPath.equals(cachedPath) || writtenPath.startsWith(cachedPath + "/");
+    }
+
+    private static String getPath(String uri) {
+        return URI.create(uri).getPath();
+    }
+
+    private File getFile(String key) {
+        return new File(directory, DigestUtils.sha256Hex(key) + ".entry");
+    }
+
+    private CacheEntry readFile(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (input.readInt() != FILE_FORMAT_VERSION || !key.equals(input.readUTF())) {
+                return null;
+            }
+            return CacheEntry.read(input);
+        } catch (IOException e) {
+            log.warn("CachingTransport.readFile - can't read the cache file " + file + ": "
+                         + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeFile(String key, CacheEntry entry) {
+        if (directory == null) {
+            return;
+        }
+        File file = getFile(key);
+        try {
+            File temp = File.createTempFile("osti", ".tmp", directory);
+            try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+                output.writeInt(FILE_FORMAT_VERSION);
+                output.writeUTF(key);
+                entry.write(output);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("CachingTransport.writeFile - can't write the cache file " + file + ": "
+                         + e.getMessage());
+        }
+    }
+
+    private void deleteFile(String key) {
+        if (directory != null) {
+            File file = getFile(key);
+            if (file.exists() && !file.delete()) {
+                log.warn("CachingTransport.deleteFile - can't delete the cache file " + file);
+            }
+        }
+    }
+
+    /**
+     * The key of a GET request. The requests with different credentials have different keys.
+     * The credentials are hashed, so they aren't stored in the directory.
+     * @param request  the GET request
+     * @return the key of the request
+     */
+    private static String getKey(TransportRequest request) {
+        String authorization = request.getHeader("Authorization");
+        return request.getUri() + " "
+            + (authorization == null ? "" : DigestUtils.sha256Hex(authorization));
+    }
+
+    private static boolean isGet(TransportRequest request) {
+        return "GET".equalsIgnoreCase(request.getMethod());
+    }
+
+    /**
+     * A cached response
+     */
+    static class CacheEntry {
+        private final String uri;
+        private final Map<String, String> headers;
+        private final byte[] body;
+        // The time until which the entry is fresh. 0 means it always needs revalidation.
+        private final long expiresAt;
+
+        private CacheEntry(String uri, Map<String, String> headers, byte[] body,
+                           long expiresAt) {
+            this.uri = uri;
+            this.headers = headers;
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Create an entry from a 200 response
+         * @param uri  the uri of the request
+         * @param response  the response
+         * @return the entry. Null will be returned if the response can't be cached.
+         */
+        static CacheEntry create(String uri, TransportResponse response) {
+            return create(uri, response.getHeaders(), response.getBody());
+        }
+
+        private static CacheEntry create(String uri, Map<String, String> headers, byte[] body) {
+            String cacheControl = getHeader(headers, "Cache-Control");
+            if (hasDirective(cacheControl, "no-store")) {
+                return null;
+            }
+            long expiresAt = 0;
+            long maxAge = getMaxAge(cacheControl);
+            if (hasDirective(cacheControl, "no-cache")) {
+                expiresAt = 0;
+            } else if (maxAge >= 0) {
+                expiresAt = System.currentTimeMillis() + maxAge * 1000;
+            } else if (getHeader(headers, "Expires") != null) {
+                try {
+                    expiresAt = DateUtils.parseDate(getHeader(headers, "Expires")).getTime();
+                } catch (RuntimeException e) {
+                    expiresAt = 0;
+                }
+            }
+            if (expiresAt <= System.currentTimeMillis() && getHeader(headers, "ETag") == null
+                && getHeader(headers, "Last-Modified") == null) {
+                // It can't be served fresh and can't be revalidated
+                return null;
+            }
+            return new CacheEntry(uri, headers, body, expiresAt);
+        }
+
+        /**
+         * Create an entry with the updated headers from a 304 response
+         * @param notModifiedHeaders  the headers of the 304 response
+         * @return the refreshed entry
+         */
+        CacheEntry refresh(Map<String, String> notModifiedHeaders) {
+            Map<String, String> merged = new LinkedHashMap<>(headers);
+            for (String name : new String[] {"ETag", "Last-Modified", "Cache-Control",
+                "Expires", "Date"}) {
+                String value = getHeader(notModifiedHeaders, name);
+                if (value != null) {
+                    merged.remove(name);
+                    merged.put(name, value);
+                }
+            }
+            CacheEntry entry = create(uri, merged, body);
+            return entry == null ? new CacheEntry(uri, merged, body, 0) : entry;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        String getHeader(String name) {
+            return getHeader(headers, name);
+        }
+
+        TransportResponse toResponse() {
+            return new TransportResponse(200, headers, body);
+        }
+
+        void write(DataOutputStream output) throws IOException {
+            output.writeUTF(uri);
+            output.writeLong(expiresAt);
+            output.writeInt(headers.size());
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                output.writeUTF(header.getKey());
+                output.writeUTF(header.getValue());
+            }
+            output.writeInt(body.length);
+            output.write(body);
+        }
+
+        static CacheEntry read(DataInputStream input) throws IOException {
+            String uri = input.readUTF();
+            long expiresAt = input.readLong();
+            int size = input.readInt();
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (int i = 0; i < size; i++) {
+                headers.put(input.readUTF(), input.readUTF());
+            }
+            byte[] body = new byte[input.readInt()];
+            input.readFully(body);
+            return new CacheEntry(uri, headers, body, expiresAt);
+        }
+
+        private static String getHeader(Map<String, String> headers, String name) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (header.getKey().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        private static boolean hasDirective(String cacheControl, String directive) {
+            if (cacheControl == null) {
+                return false;
+            }
+            for (String part : cacheControl.split(",")) {
+                if (part.trim().toLowerCase().startsWith(directive)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static long getMaxAge(String cacheControl) {
+            if (cacheControl == null) {
+                return -1;
+            }
+            for (String part : cacheControl.split(",")) {
+                String directive = part.trim().toLowerCase();
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return Long.parseLong(directive.substring("max-age=".length()).trim());
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A transport which adds the gzip compression to the requests and responses of the delegate
+ * transport. It asks the server for gzip responses by the Accept-Encoding header and
+ * decompresses them transparently. It also can compress the request bodies which are larger
+ * than the given size. If a host rejects a compressed body with 415 (Unsupported Media Type),
+ * the request is resent uncompressed and the bodies to that host won't be compressed again.
+ * The byte counters show how many bytes the compression saves.
+ * @author Tao
+ */
+public class CompressionTransport extends DelegatingTransport {
+    public static final String GZIP_RESPONSES_PROP_NAME = "ostiService.http.gzip.responses";
+    public static final String GZIP_RESPONSES_ENV_NAME = "METACAT_OSTI_HTTP_GZIP_RESPONSES";
+    public static final String GZIP_REQUESTS_PROP_NAME = "ostiService.http.gzip.requests";
+    public static final String GZIP_REQUESTS_ENV_NAME = "METACAT_OSTI_HTTP_GZIP_REQUESTS";
+    public static final String GZIP_MIN_REQUEST_SIZE_PROP_NAME =
+        "ostiService.http.gzip.minRequestSize";
+    public static final String GZIP_MIN_REQUEST_SIZE_ENV_NAME =
+        "METACAT_OSTI_HTTP_GZIP_MIN_REQUEST_SIZE";
+    public static final int DEFAULT_GZIP_MIN_REQUEST_SIZE = 1024;
+    private static final String GZIP = "gzip";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final int UNSUPPORTED_MEDIA_TYPE = 415;
+
+    private static final Log log = LogFactory.getLog(CompressionTransport.class);
+    private final boolean gzipResponses;
+    private final boolean gzipRequests;
+    private final int minRequestSize;
+    // The hosts which rejected the compressed request bodies
+    private final Set<String> uncompressedHosts = ConcurrentHashMap.newKeySet();
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong compressedRequestBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final AtomicLong compressedResponseBytes = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param delegate  the transport which sends the requests
+     * @param gzipResponses  if it asks the server for the gzip responses
+     * @param gzipRequests  if it compresses the request bodies
+     * @param minRequestSize  the request bodies smaller than this size aren't compressed
+     */
+    public CompressionTransport(OSTIElinkTransport delegate, boolean gzipResponses,
+                                boolean gzipRequests, int minRequestSize) {
+        super(delegate);
+        this.gzipResponses = gzipResponses;
+        this.gzipRequests = gzipRequests;
+        this.minRequestSize = minRequestSize;
+        log.info("CompressionTransport - gzip responses: " + gzipResponses + ", gzip requests: "
+                     + gzipRequests + " (min size " + minRequestSize + " bytes)");
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        TransportRequest encoded = encode(request);
+        TransportResponse response = decode(delegate.execute(encoded));
+        if (isRejected(request, encoded, response.getStatusCode())) {
+            response = decode(delegate.execute(request));
+        }
+        return response;
+    }
+
+    @Override
+    public StreamingTransportResponse executeStreaming(TransportRequest request)
+        throws IOException {
+        TransportRequest encoded = encode(request);
+        StreamingTransportResponse response = delegate.executeStreaming(encoded);
+        if (isRejected(request, encoded, response.getStatusCode())) {
+            response.close();
+            response = delegate.executeStreaming(request);
+        }
+        return decode(response);
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+        final TransportRequest encoded;
+        try {
+            encoded = encode(request);
+        } catch (IOException e) {
+            CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
+        }
+        final CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        final CompletableFuture<TransportResponse> first = delegate.executeAsync(encoded);
+        first.whenComplete((response, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else if (isRejected(request, encoded, response.getStatusCode())) {
+                CompletableFuture<TransportResponse> second = delegate.executeAsync(request);
+                result.whenComplete((response1, error1) -> {
+                    if (result.isCancelled()) {
+                        second.cancel(true);
+                    }
+                });
+                second.whenComplete((response1, error1) -> complete(result, response1, error1));
+            } else {
+                complete(result, response, null);
+            }
+        });
+        result.whenComplete((response, error) -> {
+            if (result.isCancelled()) {
+                first.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Get the total size of the request bodies before the compression
+     * @return the number of bytes
+     */
+    public long getRequestBytes() {
+        return requestBytes.get();
+    }
+
+    /**
+     * Get the total size of the request bodies which were sent. The compressed bodies are
+     * counted by their compressed size.
+     * @return the number of bytes
+     */
+    public long getCompressedRequestBytes() {
+        return compressedRequestBytes.get();
+    }
+
+    /**
+     * Get the total size of the response bodies after the decompression
+     * @return the number of bytes
+     */
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    /**
+     * Get the total size of the response bodies which were received. The compressed bodies
+     * are counted by their compressed size.
+     * @return the number of bytes
+     */
+    public long getCompressedResponseBytes() {
+        return compressedResponseBytes.get();
+    }
+
+    /**
+     * Add the Accept-Encoding header and compress the body of the given request if it is
+     * configured to do so
+     * @param request  the original request
+     * @return the encoded request
+     * @throws IOException
+     */
+    private TransportRequest encode(TransportRequest request) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>(request.getHeaders());
+        if (gzipResponses && request.getHeader(ACCEPT_ENCODING) == null) {
+            headers.put(ACCEPT_ENCODING, GZIP);
+        }
+        byte[] body = request.getBody();
+        if (body != null) {
+            requestBytes.addAndGet(body.length);
+            if (gzipRequests && body.length >= minRequestSize
+                && request.getHeader(CONTENT_ENCODING) == null
+                && !uncompressedHosts.contains(getHost(request))) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream(body.length / 4 + 64);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+                    gzip.write(body);
+                }
+                body = output.toByteArray();
+                headers.put(CONTENT_ENCODING, GZIP);
+            }
+            compressedRequestBytes.addAndGet(body.length);
+        }
+        return new TransportRequest(request.getMethod(), request.getUri(), headers, body,
+                                    request.getDeadline());
+    }
+
+    /**
+     * Determine if the server rejected the compressed body of the request. The host will be
+     * remembered, so its requests won't be compressed again.
+     * @param request  the original request which will be resent
+     * @param encoded  the encoded request which was sent
+     * @param statusCode  the status code of the response
+     * @return true if the compressed body was rejected; otherwise false.
+     */
+    private boolean isRejected(TransportRequest request, TransportRequest encoded,
+                               int statusCode) {
+        if (statusCode == UNSUPPORTED_MEDIA_TYPE
+            && GZIP.equalsIgnoreCase(encoded.getHeader(CONTENT_ENCODING))) {
+            String host = getHost(encoded);
+            log.info("CompressionTransport - the host " + host + " doesn't accept the gzip "
+                         + "request bodies, so they will be sent uncompressed");
+            uncompressedHosts.add(host);
+            // The uncompressed body will be sent as well
+            compressedRequestBytes.addAndGet(request.getBody().length);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Decompress the body of the given response if it is gzip encoded
+     * @param response  the response from the delegate
+     * @return the response with the decompressed body
+     * @throws IOException
+     */
+    private TransportResponse decode(TransportResponse response) throws IOException {
+        byte[] body = response.getBody();
+        if (body == null) {
+            return response;
+        }
+        compressedResponseBytes.addAndGet(body.length);
+        if (!isGzip(response.getHeader(CONTENT_ENCODING))) {
+            responseBytes.addAndGet(body.length);
+            return response;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream(body.length * 4);
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = input.read(buffer)) != -1) {
+                output.write(buffer, 0, length);
+            }
+        }
+        responseBytes.addAndGet(output.size());
+        return new TransportResponse(response.getStatusCode(),
+                                     removeContentEncoding(response.getHeaders()),
+                                     output.toByteArray());
+    }
+
+    /**
+     * Decompress the body stream of the given response if it is gzip encoded
+     * @param response  the response from the delegate
+     * @return the response whose body stream is decompressed while it is read
+     * @throws IOException
+     */
+    private StreamingTransportResponse decode(StreamingTransportResponse response)
+        throws IOException {
+        InputStream body = new CountingInputStream(response.getBody(), compressedResponseBytes);
+        Map<String, String> headers = response.getHeaders();
+        if (isGzip(response.getHeader(CONTENT_ENCODING))) {
+            try {
+                body = new GZIPInputStream(body);
+            } catch (IOException e) {
+                response.close();
+                throw e;
+            }
+            headers = removeContentEncoding(headers);
+        }
+        return new StreamingTransportResponse(response.getStatusCode(), headers,
+                                              new CountingInputStream(body, responseBytes),
+                                              response);
+    }
+
+    /**
+     * Put the decompressed response to the future
+     * @param result  the future will be completed
+     * @param response  the response from the delegate. It is null if it failed.
+     * @param error  the failure of the request. It is null if it succeeded.
+     */
+    private void complete(CompletableFuture<TransportResponse> result,
+                          TransportResponse response, Throwable error) {
+        if (error != null) {
+            result.completeExceptionally(error);
+            return;
+        }
+        try {
+            result.complete(decode(response));
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private static boolean isGzip(String contentEncoding) {
+        return contentEncoding != null && (contentEncoding.trim().equalsIgnoreCase(GZIP)
+            || contentEncoding.trim().equalsIgnoreCase("x-gzip"));
+    }
+
+    private static Map<String, String> removeContentEncoding(Map<String, String> headers) {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (!header.getKey().equalsIgnoreCase(CONTENT_ENCODING)
+                && !header.getKey().equalsIgnoreCase("Content-Length")) {
+                result.put(header.getKey(), header.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static String getHost(TransportRequest request) {
+        return URI.create(request.getUri()).getHost();
+    }
+
+    /**
+     * An input stream which adds the number of the read bytes to a counter
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong counter;
+
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                counter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                counter.addAndGet(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            counter.addAndGet(skipped);
+            return skipped;
+        }
+    }
+}
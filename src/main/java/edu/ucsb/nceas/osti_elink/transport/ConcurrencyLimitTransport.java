@@ -0,0 +1,243 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A transport which limits the number of the in-flight requests sent by the delegate transport
+ * and adapts the limit to what the OSTI service can absorb. It uses the additive increase and
+ * multiplicative decrease (AIMD) of TCP congestion control:
+ * 1. A request which completes quickly, while at least half of the limit is used, raises the
+ *    limit by 1/limit, so the limit grows by about one for every round of requests.
+ * 2. A request failing with 429, 5xx, an I/O error or a timeout, or whose latency is longer
+ *    than twice the lowest latency recently seen for its operation class, shrinks the limit by
+ *    10 percent. The classes have their own baselines, since e.g. a metadata update is
+ *    normally slower than a search. Like TCP, the limit shrinks at most once per round trip:
+ *    the requests sent before the last decrease don't shrink it again.
+ * The limit stays between the configured min and max values. The requests over the limit wait
+ * in a FIFO queue until a slot is released or their deadlines expire. The current limit, the
+ * in-flight and the waiting requests are published by the getters.
+ * @author Tao
+ */
+public class ConcurrencyLimitTransport extends DelegatingTransport {
+    public static final String LIMIT_ENABLED_PROP_NAME = "ostiService.http.limit.enabled";
+    public static final String LIMIT_ENABLED_ENV_NAME = "METACAT_OSTI_HTTP_LIMIT_ENABLED";
+    public static final String LIMIT_INITIAL_PROP_NAME = "ostiService.http.limit.initial";
+    public static final String LIMIT_INITIAL_ENV_NAME = "METACAT_OSTI_HTTP_LIMIT_INITIAL";
+    public static final String LIMIT_MIN_PROP_NAME = "ostiService.http.limit.min";
+    public static final String LIMIT_MIN_ENV_NAME = "METACAT_OSTI_HTTP_LIMIT_MIN";
+    public static final String LIMIT_MAX_PROP_NAME = "ostiService.http.limit.max";
+    public static final String LIMIT_MAX_ENV_NAME = "METACAT_OSTI_HTTP_LIMIT_MAX";
+    public static final int DEFAULT_LIMIT_INITIAL = 5;
+    public static final int DEFAULT_LIMIT_MIN = 1;
+    public static final int DEFAULT_LIMIT_MAX = 50;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final int MIN_LATENCY_WINDOW = 100;
+
+    private static final Log log = LogFactory.getLog(ConcurrencyLimitTransport.class);
+    private final int minLimit;
+    private final int maxLimit;
+    private final RequestSlots slots;
+    private final Map<RateLimitTransport.Operation, Baseline> baselines =
+        new EnumMap<>(RateLimitTransport.Operation.class);
+    private double limit;
+    private long lastDecreaseNanos;
+    private boolean decreased = false;
+    private long decreases = 0;
+
+    /**
+     * The lowest latency recently seen for an operation class
+     */
+    private static final class Baseline {
+        private long minLatency = 0;
+        private long windowMinLatency = Long.MAX_VALUE;
+        private int windowSamples = 0;
+
+        /**
+         * Add the latency of a request to the baseline
+         * @param latencyNanos  the latency in nanoseconds
+         */
+        private void add(long latencyNanos) {
+            if (minLatency == 0 || latencyNanos < minLatency) {
+                minLatency = latencyNanos;
+            }
+            // The lowest latency is forgotten after a window, so it follows the service if its
+            // baseline gets slower
+            windowMinLatency = Math.min(windowMinLatency, latencyNanos);
+            if (++windowSamples >= MIN_LATENCY_WINDOW) {
+                minLatency = windowMinLatency;
+                windowMinLatency = Long.MAX_VALUE;
+                windowSamples = 0;
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     * @param delegate  the transport which sends the requests
+     * @param initialLimit  the limit of the in-flight requests at the start
+     * @param minLimit  the lowest limit
+     * @param maxLimit  the highest limit
+     */
+    public ConcurrencyLimitTransport(OSTIElinkTransport delegate, int initialLimit,
+                                     int minLimit, int maxLimit) {
+        super(delegate);
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.slots = new RequestSlots((int) limit);
+        log.info("ConcurrencyLimitTransport - initial limit: " + (int) limit + ", min limit: "
+                     + this.minLimit + ", max limit: " + this.maxLimit);
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        slots.acquire(request);
+        long start = System.nanoTime();
+        try {
+            TransportResponse response = delegate.execute(request);
+            onSample(request, start, isOverloaded(response.getStatusCode()));
+            return response;
+        } catch (IOException e) {
+            onSample(request, start, true);
+            throw e;
+        } finally {
+            slots.release();
+        }
+    }
+
+    /**
+     * The slot is held until the response is closed, since the connection is busy while the
+     * body is read. The latency is measured until the headers arrive.
+     * @param request  the request will be sent
+     * @return the response of the request
+     * @throws IOException
+     */
+    @Override
+    public StreamingTransportResponse executeStreaming(TransportRequest request)
+        throws IOException {
+        slots.acquire(request);
+        long start = System.nanoTime();
+        StreamingTransportResponse response;
+        try {
+            response = delegate.executeStreaming(request);
+        } catch (IOException e) {
+            onSample(request, start, true);
+            slots.release();
+            throw e;
+        } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+        onSample(request, start, isOverloaded(response.getStatusCode()));
+        AtomicBoolean released = new AtomicBoolean();
+        return new StreamingTransportResponse(response.getStatusCode(), response.getHeaders(),
+                                              response.getBody(), () -> {
+            try {
+                response.close();
+            } finally {
+                if (released.compareAndSet(false, true)) {
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+        return slots.executeAsync(request, () -> delegate.executeAsync(request),
+                                  (response, error, elapsedNanos) -> {
+            // A cancelled request, e.g. the loser of a hedged pair, isn't a sample
+            if (!(error instanceof CancellationException)) {
+                onSample(request, System.nanoTime() - elapsedNanos,
+                         error != null || isOverloaded(response.getStatusCode()));
+            }
+        });
+    }
+
+    /**
+     * Get the current limit of the in-flight requests
+     * @return the limit
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Get the highest limit the in-flight requests can grow to
+     * @return the max limit
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Get the number of the requests being sent
+     * @return the number of the in-flight requests
+     */
+    public int getInFlight() {
+        return slots.getInUse();
+    }
+
+    /**
+     * Get the number of the requests waiting for a slot
+     * @return the number of the waiting requests
+     */
+    public int getWaitingRequests() {
+        return slots.getWaiting();
+    }
+
+    /**
+     * Get the number of the times the limit was shrunk by the failures or the high latencies
+     * @return the number of the decreases
+     */
+    public synchronized long getDecreases() {
+        return decreases;
+    }
+
+    /**
+     * Adjust the limit by the outcome of a request
+     * @param request  the request
+     * @param startNanos  the time when the request was sent, from System.nanoTime
+     * @param overloaded  true if the request failed in a way showing the service is overloaded
+     */
+    private synchronized void onSample(TransportRequest request, long startNanos,
+                                       boolean overloaded) {
+        long now = System.nanoTime();
+        long latencyNanos = now - startNanos;
+        Baseline baseline = baselines.computeIfAbsent(
+            RateLimitTransport.Operation.classify(request.getMethod(), request.getUri()),
+            operation -> new Baseline());
+        baseline.add(latencyNanos);
+        int oldLimit = (int) limit;
+        if (overloaded || latencyNanos > baseline.minLatency * LATENCY_TOLERANCE) {
+            // The requests already in flight at the last decrease saw the old limit, so they
+            // don't shrink it again
+            if (!decreased || startNanos - lastDecreaseNanos >= 0) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                lastDecreaseNanos = now;
+                decreased = true;
+                decreases++;
+            }
+        } else if (slots.getInUse() * 2 >= limit) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        if ((int) limit != oldLimit) {
+            slots.setLimit((int) limit);
+            log.debug("ConcurrencyLimitTransport - the limit of the in-flight requests changed "
+                          + "from " + oldLimit + " to " + (int) limit);
+        }
+    }
+
+    private static boolean isOverloaded(int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+}
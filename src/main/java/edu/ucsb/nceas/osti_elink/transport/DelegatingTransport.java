@@ -0,0 +1,75 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A transport which forwards all calls to another transport. The interceptors, such as
+ * logging or metrics, extend this class and overwrite the methods they need.
+ * @author Tao
+ */
+public abstract class DelegatingTransport implements OSTIElinkTransport {
+    protected final OSTIElinkTransport delegate;
+
+    /**
+     * Constructor
+     * @param delegate  the transport which the calls are forwarded to
+     */
+    protected DelegatingTransport(OSTIElinkTransport delegate) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("The delegate transport can't be null.");
+        }
+        this.delegate = delegate;
+    }
+
+    /**
+     * Get the transport which the calls are forwarded to
+     * @return the delegate transport
+     */
+    public OSTIElinkTransport getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        return delegate.execute(request);
+    }
+
+    @Override
+    public StreamingTransportResponse executeStreaming(TransportRequest request)
+        throws IOException {
+        return delegate.executeStreaming(request);
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+        return delegate.executeAsync(request);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    /**
+     * Find the transport with the given class in the chain starting from the given transport
+     * @param transport  the first transport of the chain
+     * @param clazz  the class of the transport which should be found
+     * @param <T>  the type of the transport
+     * @return the transport with the given class. Null will be returned if it isn't in the chain.
+     */
+    public static <T extends OSTIElinkTransport> T find(OSTIElinkTransport transport,
+                                                        Class<T> clazz) {
+        while (transport != null) {
+            if (clazz.isInstance(transport)) {
+                return clazz.cast(transport);
+            }
+            if (transport instanceof DelegatingTransport) {
+                transport = ((DelegatingTransport) transport).getDelegate();
+            } else {
+                transport = null;
+            }
+        }
+        return null;
+    }
+}
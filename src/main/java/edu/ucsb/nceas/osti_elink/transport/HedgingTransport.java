@@ -0,0 +1,255 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A transport which hedges the idempotent GET requests of the delegate transport. If the first
+ * attempt of a request doesn't answer within the hedge delay, a second identical attempt is
+ * sent. The response which arrives first is used and the other attempt is cancelled. The
+ * hedge delay is the given percentile of the latencies of the recent requests, so only the
+ * requests in the slow tail are hedged. A latency is measured from the start of the request to
+ * its first response, even if the hedge answered, so the slow first attempts still count.
+ * Until enough latencies are recorded, and as a lower bound, the min delay is used. The hedged
+ * requests are sent by the non-blocking method of the delegate, so the streaming requests get
+ * the buffered response. The other methods are passed to the delegate unchanged. The counters
+ * show how often the hedges fire and win.
+ * @author Tao
+ */
+public class HedgingTransport extends DelegatingTransport {
+    public static final String HEDGE_ENABLED_PROP_NAME = "ostiService.http.hedge.enabled";
+    public static final String HEDGE_ENABLED_ENV_NAME = "METACAT_OSTI_HTTP_HEDGE_ENABLED";
+    public static final String HEDGE_PERCENTILE_PROP_NAME = "ostiService.http.hedge.percentile";
+    public static final String HEDGE_PERCENTILE_ENV_NAME = "METACAT_OSTI_HTTP_HEDGE_PERCENTILE";
+    public static final String HEDGE_MIN_DELAY_PROP_NAME = "ostiService.http.hedge.minDelayMs";
+    public static final String HEDGE_MIN_DELAY_ENV_NAME = "METACAT_OSTI_HTTP_HEDGE_MIN_DELAY_MS";
+    public static final int DEFAULT_HEDGE_PERCENTILE = 95;
+    public static final long DEFAULT_HEDGE_MIN_DELAY_MS = 100;
+    private static final int LATENCY_WINDOW = 200;
+    private static final int MIN_SAMPLES = 20;
+
+    private static final Log log = LogFactory.getLog(HedgingTransport.class);
+    private final int percentile;
+    private final long minDelayMillis;
+    // The ring buffer of the latencies of the recent successful requests
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private int latencyCount = 0;
+    private int latencyIndex = 0;
+    private final AtomicLong hedgedRequests = new AtomicLong();
+    private final AtomicLong hedgesFired = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param delegate  the transport which sends the requests
+     * @param percentile  the percentile (1-99) of the recent latencies used as the hedge delay
+     * @param minDelayMillis  the min hedge delay in milliseconds
+     */
+    public HedgingTransport(OSTIElinkTransport delegate, int percentile, long minDelayMillis) {
+        super(delegate);
+        if (percentile < 1 || percentile > 99) {
+            throw new IllegalArgumentException("The hedge percentile should be between 1 and 99"
+                                                   + " rather than " + percentile);
+        }
+        this.percentile = percentile;
+        this.minDelayMillis = Math.max(0, minDelayMillis);
+        log.info("HedgingTransport - the GET requests are hedged after the p" + percentile
+                     + " latency (min " + this.minDelayMillis + " ms)");
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        if (!isHedgeable(request)) {
+            return delegate.execute(request);
+        }
+        CompletableFuture<TransportResponse> future = executeAsync(request);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("The request was interrupted: " + e.getMessage(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    @Override
+    public StreamingTransportResponse executeStreaming(TransportRequest request)
+        throws IOException {
+        if (!isHedgeable(request)) {
+            return delegate.executeStreaming(request);
+        }
+        return StreamingTransportResponse.of(execute(request));
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+        if (!isHedgeable(request)) {
+            return delegate.executeAsync(request);
+        }
+        hedgedRequests.incrementAndGet();
+        return new HedgedCall(request).start(getHedgeDelay());
+    }
+
+    /**
+     * Get the current hedge delay. It is the configured percentile of the recent latencies, but
+     * not less than the min delay.
+     * @return the hedge delay in milliseconds
+     */
+    public long getHedgeDelay() {
+        long[] samples;
+        synchronized (latencies) {
+            if (latencyCount < MIN_SAMPLES) {
+                return minDelayMillis;
+            }
+            samples = Arrays.copyOf(latencies, latencyCount);
+        }
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(percentile / 100.0 * samples.length) - 1;
+        return Math.max(minDelayMillis, samples[Math.max(0, index)]);
+    }
+
+    /**
+     * Get the number of the GET requests handled by the hedging
+     * @return the number of the requests
+     */
+    public long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    /**
+     * Get the number of the second attempts sent since the first ones were slower than the
+     * hedge delay
+     * @return the number of the fired hedges
+     */
+    public long getHedgesFired() {
+        return hedgesFired.get();
+    }
+
+    /**
+     * Get the number of the requests which were answered by the second attempt
+     * @return the number of the winning hedges
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Only the idempotent requests without a body are hedged
+     * @param request  the request will be sent
+     * @return true if the request can be hedged; otherwise false.
+     */
+    private static boolean isHedgeable(TransportRequest request) {
+        return (request.getMethod().equalsIgnoreCase("GET")
+            || request.getMethod().equalsIgnoreCase("HEAD")) && request.getBody() == null;
+    }
+
+    /**
+     * Record the latency of a successful request
+     * @param millis  the latency in milliseconds
+     */
+    private void recordLatency(long millis) {
+        synchronized (latencies) {
+            latencies[latencyIndex] = millis;
+            latencyIndex = (latencyIndex + 1) % LATENCY_WINDOW;
+            latencyCount = Math.min(LATENCY_WINDOW, latencyCount + 1);
+        }
+    }
+
+    /**
+     * The attempts of a hedged request. The first successful response completes the call and
+     * the other attempt is cancelled. A failure only completes the call if no other attempt is
+     * in flight or pending.
+     */
+    private class HedgedCall {
+        private final TransportRequest request;
+        private final CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        private final List<CompletableFuture<TransportResponse>> attempts = new ArrayList<>(2);
+        private ScheduledFuture<?> hedge = null;
+        private int inFlight = 0;
+        private long startNanos;
+
+        HedgedCall(TransportRequest request) {
+            this.request = request;
+        }
+
+        /**
+         * Send the first attempt and schedule the hedge
+         * @param delayMillis  the hedge delay
+         * @return the future of the response
+         */
+        synchronized CompletableFuture<TransportResponse> start(long delayMillis) {
+            startNanos = System.nanoTime();
+            send(false);
+            if (!result.isDone()) {
+                hedge = TransportTimeouts.schedule(delayMillis, this::sendHedge);
+            }
+            result.whenComplete((response, error) -> cancelAttempts());
+            return result;
+        }
+
+        private synchronized void sendHedge() {
+            if (result.isDone() || inFlight == 0) {
+                return;
+            }
+            hedgesFired.incrementAndGet();
+            log.debug("HedgingTransport - sending the hedge of " + request.getUri());
+            send(true);
+        }
+
+        private synchronized void send(boolean isHedge) {
+            inFlight++;
+            CompletableFuture<TransportResponse> attempt = delegate.executeAsync(request);
+            attempts.add(attempt);
+            attempt.whenComplete((response, error) -> complete(isHedge, response, error));
+        }
+
+        private synchronized void complete(boolean isHedge, TransportResponse response,
+                                           Throwable error) {
+            inFlight--;
+            if (result.isDone()) {
+                return;
+            }
+            if (error == null) {
+                // From the start of the call rather than of the winning attempt. Otherwise a
+                // winning hedge hides how slow the first attempt was and the delay drifts down.
+                recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                if (isHedge) {
+                    hedgeWins.incrementAndGet();
+                }
+                result.complete(response);
+            } else if (inFlight == 0 && (hedge == null || hedge.isDone() || isHedge
+                || hedge.cancel(false))) {
+                // No other attempt is in flight and the hedge won't be sent
+                if (error instanceof CompletionException && error.getCause() != null) {
+                    error = error.getCause();
+                }
+                result.completeExceptionally(error);
+            }
+        }
+
+        private synchronized void cancelAttempts() {
+            if (hedge != null) {
+                hedge.cancel(false);
+            }
+            for (CompletableFuture<TransportResponse> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+    }
+}
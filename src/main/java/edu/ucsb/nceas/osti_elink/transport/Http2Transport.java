@@ -0,0 +1,257 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.http2.impl.nio.ProtocolNegotiationException;
+import org.apache.hc.core5.io.CloseMode;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A transport which sends the requests over HTTP/2. All requests to the same host are
+ * multiplexed as streams over a single TLS connection, so a burst of requests doesn't need a
+ * connection per request. The protocol is negotiated by TLS ALPN. If the server doesn't accept
+ * h2, the request fails with an Http2NotSupportedException before it is sent, so it is safely
+ * resent by the fallback HTTP/1.1 transport and the host is remembered as an HTTP/1.1 only host.
+ * The plain http requests always go to the fallback transport.
+ * @author Tao
+ */
+public class Http2Transport extends DelegatingTransport {
+    // The optional HTTP/2 transport for the https requests. It is disabled by default.
+    public static final String HTTP2_ENABLED_PROP_NAME = "ostiService.http2.enabled";
+    public static final String HTTP2_ENABLED_ENV_NAME = "METACAT_OSTI_HTTP2_ENABLED";
+    public static final String HTTP2_MAX_STREAMS_PROP_NAME = "ostiService.http2.maxConcurrentStreams";
+    public static final String HTTP2_MAX_STREAMS_ENV_NAME = "METACAT_OSTI_HTTP2_MAX_CONCURRENT_STREAMS";
+    public static final int DEFAULT_HTTP2_MAX_STREAMS = 100;
+
+    private static final Log log = LogFactory.getLog(Http2Transport.class);
+    private final CloseableHttpAsyncClient client;
+    // The hosts which refused to negotiate HTTP/2. Their requests go to the fallback transport.
+    private final Set<String> http1OnlyHosts = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructor. It creates and starts the HTTP/2 client.
+     * @param maxConcurrentStreams  the max number of concurrent streams per connection
+     * @param fallback  the HTTP/1.1 transport for the plain http requests and the hosts which
+     *                  don't support HTTP/2
+     */
+    public Http2Transport(int maxConcurrentStreams, OSTIElinkTransport fallback) {
+        super(fallback);
+        H2Config h2Config = H2Config.custom()
+            .setPushEnabled(false)
+            .setMaxConcurrentStreams(maxConcurrentStreams)
+            .build();
+        client = H2AsyncClientBuilder.create()
+            .setH2Config(h2Config)
+            .setTlsStrategy(ClientTlsStrategyBuilder.create().useSystemProperties().build())
+            .build();
+        client.start();
+        log.info("Http2Transport - started the HTTP/2 client with max " + maxConcurrentStreams
+                     + " concurrent streams per connection");
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        if (!useHttp2(request)) {
+            return delegate.execute(request);
+        }
+        CompletableFuture<TransportResponse> future = executeAsync(request);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("The request was interrupted: " + e.getMessage(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * The HTTP/2 client reads the whole body, so the https requests return the buffered body.
+     * The other requests are streamed by the fallback transport.
+     * @param request  the request will be sent
+     * @return the response of the request
+     * @throws IOException
+     */
+    @Override
+    public StreamingTransportResponse executeStreaming(TransportRequest request)
+        throws IOException {
+        if (!useHttp2(request)) {
+            return delegate.executeStreaming(request);
+        }
+        return StreamingTransportResponse.of(execute(request));
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+        if (!useHttp2(request)) {
+            return delegate.executeAsync(request);
+        }
+        final CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        CompletableFuture<TransportResponse> h2Future = sendHttp2Request(request);
+        h2Future.whenComplete((response, error) -> {
+            if (error instanceof Http2NotSupportedException) {
+                String host = URI.create(request.getUri()).getHost();
+                log.info("Http2Transport.executeAsync - the host " + host + " doesn't support "
+                             + "HTTP/2, so its requests will go over HTTP/1.1: "
+                             + error.getMessage());
+                http1OnlyHosts.add(host);
+                CompletableFuture<TransportResponse> fallbackFuture = delegate.executeAsync(request);
+                result.whenComplete((response1, error1) -> {
+                    if (result.isCancelled()) {
+                        fallbackFuture.cancel(true);
+                    }
+                });
+                fallbackFuture.whenComplete((response1, error1) -> {
+                    if (error1 != null) {
+                        result.completeExceptionally(error1);
+                    } else {
+                        result.complete(response1);
+                    }
+                });
+            } else if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(response);
+            }
+        });
+        result.whenComplete((response, error) -> {
+            if (result.isCancelled()) {
+                h2Future.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Determine if the request should be sent over HTTP/2. Only the https requests to the hosts
+     * which haven't refused HTTP/2 are sent over it.
+     * @param request  the request will be sent
+     * @return true if the request should be sent over HTTP/2; otherwise false.
+     */
+    private boolean useHttp2(TransportRequest request) {
+        URI uri = URI.create(request.getUri());
+        return "https".equalsIgnoreCase(uri.getScheme()) && !http1OnlyHosts.contains(uri.getHost());
+    }
+
+    /**
+     * Send the request over HTTP/2. The returned future completes with the response (whatever
+     * its status code is), or completes exceptionally with an IOException. It fails with an
+     * Http2NotSupportedException if the server doesn't negotiate h2. Cancelling the returned
+     * future or the expiry of the deadline of the request aborts the stream.
+     * @param request  the request will be sent
+     * @return the future of the response
+     */
+    private CompletableFuture<TransportResponse> sendHttp2Request(TransportRequest request) {
+        final CompletableFuture<TransportResponse> result =
+            TransportTimeouts.within(request, new CompletableFuture<>());
+        SimpleRequestBuilder builder = SimpleRequestBuilder.create(request.getMethod())
+            .setUri(request.getUri());
+        String contentType = null;
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            if (header.getKey().equalsIgnoreCase("Content-Type")) {
+                // The content type goes with the body
+                contentType = header.getValue();
+            } else {
+                builder.addHeader(header.getKey(), header.getValue());
+            }
+        }
+        if (request.getBody() != null) {
+            builder.setBody(request.getBody(), contentType == null
+                ? ContentType.TEXT_PLAIN.withCharset("UTF-8") : ContentType.parse(contentType));
+        }
+        SimpleHttpRequest h2Request = builder.build();
+        final Future<SimpleHttpResponse> future =
+            client.execute(h2Request, new FutureCallback<SimpleHttpResponse>() {
+                @Override
+                public void completed(SimpleHttpResponse response) {
+                    Map<String, String> headers = new LinkedHashMap<>();
+                    for (Header header : response.getHeaders()) {
+                        headers.put(header.getName(), header.getValue());
+                    }
+                    result.complete(
+                        new TransportResponse(response.getCode(), headers, response.getBodyBytes()));
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    if (isProtocolNegotiationFailure(e)) {
+                        result.completeExceptionally(new Http2NotSupportedException(
+                            "The server of " + request.getUri() + " doesn't support HTTP/2: "
+                                + e.getMessage()));
+                    } else if (e instanceof IOException) {
+                        result.completeExceptionally(e);
+                    } else {
+                        result.completeExceptionally(new IOException(e.getMessage(), e));
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    result.cancel(false);
+                }
+            });
+        result.whenComplete((response, error) -> {
+            // It was cancelled or its deadline expired
+            if (error != null) {
+                future.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Close the HTTP/2 client and the fallback transport
+     */
+    @Override
+    public void close() {
+        client.close(CloseMode.GRACEFUL);
+        super.close();
+    }
+
+    /**
+     * Determine if the failure happened because the server didn't negotiate HTTP/2
+     * @param e  the failure
+     * @return true if the protocol negotiation failed; otherwise false.
+     */
+    static boolean isProtocolNegotiationFailure(Throwable e) {
+        while (e != null) {
+            if (e instanceof ProtocolNegotiationException) {
+                return true;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * The exception indicates the server doesn't accept HTTP/2. The request was not sent.
+     */
+    public static class Http2NotSupportedException extends IOException {
+        public Http2NotSupportedException(String message) {
+            super(message);
+        }
+    }
+}
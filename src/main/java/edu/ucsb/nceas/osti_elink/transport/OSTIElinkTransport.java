@@ -0,0 +1,54 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The transport which sends the http requests of an OSTIElinkService to the OSTI service.
+ * An implementation gets the method, uri, headers and body bytes of a request and returns the
+ * status code, headers and body bytes of the response. It doesn't interpret the status code;
+ * the service maps it to the OSTIElinkException.
+ * The default implementation is ApacheHttpTransport. Another implementation can be plugged in
+ * by the property ostiService.transport.className or the environment variable
+ * METACAT_OSTI_TRANSPORT_CLASS_NAME. It must have a public constructor with a Properties
+ * parameter or a public constructor without parameters.
+ * @author Tao
+ */
+public interface OSTIElinkTransport {
+
+    /**
+     * Send the request and block until the response arrives
+     * @param request  the request will be sent
+     * @return the response of the request
+     * @throws IOException if the request can't be sent or the response can't be read
+     */
+    TransportResponse execute(TransportRequest request) throws IOException;
+
+    /**
+     * Send the request and return the response as soon as its head arrives. The body is read
+     * from the returned response while it arrives. This default implementation reads the whole
+     * body by the execute method; the implementations which can stream the body should
+     * overwrite it.
+     * @param request  the request will be sent
+     * @return the response of the request. The caller must close it.
+     * @throws IOException if the request can't be sent
+     */
+    default StreamingTransportResponse executeStreaming(TransportRequest request)
+        throws IOException {
+        return StreamingTransportResponse.of(execute(request));
+    }
+
+    /**
+     * Send the request without blocking the calling thread. The returned future completes
+     * exceptionally with an IOException if the request can't be sent or the response can't be
+     * read. Cancelling the future should abort the request.
+     * @param request  the request will be sent
+     * @return the future of the response
+     */
+    CompletableFuture<TransportResponse> executeAsync(TransportRequest request);
+
+    /**
+     * Release the resources, such as the connections, held by the transport
+     */
+    void close();
+}
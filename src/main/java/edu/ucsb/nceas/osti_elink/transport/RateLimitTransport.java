@@ -0,0 +1,371 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import edu.ucsb.nceas.osti_elink.Deadline;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A transport which keeps the requests of the delegate transport within the quotas of the OSTI
+ * service. Each operation class (mint, update, publish and search) has its own token bucket, so
+ * a burst of updates, e.g. from a reindex, is smoothed out rather than throttled by the server
+ * and it doesn't hold back the searches. The blocking requests sleep until a token is
+ * available; the non-blocking requests are scheduled for that time instead of holding a
+ * thread. A request whose deadline would expire before its token is available fails at once.
+ * The buckets follow the rate-limit headers of the responses: the remaining quota caps the
+ * tokens, and a 429 response or an exhausted quota pauses the bucket until the reset time or
+ * the Retry-After header.
+ * @author Tao
+ */
+public class RateLimitTransport extends DelegatingTransport {
+    public static final String RATE_LIMIT_ENABLED_PROP_NAME = "ostiService.http.rateLimit.enabled";
+    public static final String RATE_LIMIT_ENABLED_ENV_NAME = "METACAT_OSTI_HTTP_RATE_LIMIT_ENABLED";
+    public static final String RATE_LIMIT_MINT_PROP_NAME =
+        "ostiService.http.rateLimit.mintPerMinute";
+    public static final String RATE_LIMIT_MINT_ENV_NAME =
+        "METACAT_OSTI_HTTP_RATE_LIMIT_MINT_PER_MINUTE";
+    public static final String RATE_LIMIT_UPDATE_PROP_NAME =
+        "ostiService.http.rateLimit.updatePerMinute";
+    public static final String RATE_LIMIT_UPDATE_ENV_NAME =
+        "METACAT_OSTI_HTTP_RATE_LIMIT_UPDATE_PER_MINUTE";
+    public static final String RATE_LIMIT_PUBLISH_PROP_NAME =
+        "ostiService.http.rateLimit.publishPerMinute";
+    public static final String RATE_LIMIT_PUBLISH_ENV_NAME =
+        "METACAT_OSTI_HTTP_RATE_LIMIT_PUBLISH_PER_MINUTE";
+    public static final String RATE_LIMIT_SEARCH_PROP_NAME =
+        "ostiService.http.rateLimit.searchPerMinute";
+    public static final String RATE_LIMIT_SEARCH_ENV_NAME =
+        "METACAT_OSTI_HTTP_RATE_LIMIT_SEARCH_PER_MINUTE";
+    public static final String RATE_LIMIT_BURST_PROP_NAME = "ostiService.http.rateLimit.burst";
+    public static final String RATE_LIMIT_BURST_ENV_NAME = "METACAT_OSTI_HTTP_RATE_LIMIT_BURST";
+    public static final int DEFAULT_RATE_LIMIT_MINT = 60;
+    public static final int DEFAULT_RATE_LIMIT_UPDATE = 120;
+    public static final int DEFAULT_RATE_LIMIT_PUBLISH = 60;
+    public static final int DEFAULT_RATE_LIMIT_SEARCH = 600;
+    public static final int DEFAULT_RATE_LIMIT_BURST = 5;
+    private static final String[] REMAINING_HEADERS = {"RateLimit-Remaining",
+        "X-RateLimit-Remaining"};
+    private static final String[] RESET_HEADERS = {"RateLimit-Reset", "X-RateLimit-Reset"};
+    // A reset value larger than this is an epoch time in seconds rather than a delay
+    private static final long EPOCH_SECONDS_THRESHOLD = 1000000000L;
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The operation classes of the OSTI requests which have their own quotas
+     */
+    public enum Operation {
+        /**
+         * Minting a DOI by POST records/save
+         */
+        MINT,
+        /**
+         * Updating a record by PATCH records/{id}/save
+         */
+        UPDATE,
+        /**
+         * Publishing a record by records/{id}/submit
+         */
+        PUBLISH,
+        /**
+         * Looking up records by GET
+         */
+        SEARCH,
+        /**
+         * The other requests, which aren't limited
+         */
+        OTHER;
+
+        /**
+         * Classify the request by its method and url
+         * @param method  the http method of the request
+         * @param uri  the url of the request
+         * @return the operation class of the request
+         */
+        public static Operation classify(String method, String uri) {
+            String path = uri;
+            try {
+                path = new URI(uri).getPath();
+            } catch (URISyntaxException e) {
+                int index = uri.indexOf('?');
+                if (index >= 0) {
+                    path = uri.substring(0, index);
+                }
+            }
+            if (path == null) {
+                path = "";
+            }
+            if (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            if (path.endsWith("/submit")) {
+                return PUBLISH;
+            } else if (method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("HEAD")) {
+                return SEARCH;
+            } else if (path.endsWith("/records/save") && method.equalsIgnoreCase("POST")) {
+                return MINT;
+            } else if (path.endsWith("/save")) {
+                return UPDATE;
+            }
+            return OTHER;
+        }
+    }
+
+    private static final Log log = LogFactory.getLog(RateLimitTransport.class);
+    private final Map<Operation, TokenBucket> buckets = new EnumMap<>(Operation.class);
+    private final AtomicLong delayedRequests = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param delegate  the transport which sends the requests
+     * @param mintPerMinute  the max number of the mint requests per minute. 0 means no limit.
+     * @param updatePerMinute  the max number of the update requests per minute. 0 means no
+     *                         limit.
+     * @param publishPerMinute  the max number of the publish requests per minute. 0 means no
+     *                          limit.
+     * @param searchPerMinute  the max number of the search requests per minute. 0 means no
+     *                         limit.
+     * @param burst  the max number of the requests of an operation class sent at once
+     */
+    public RateLimitTransport(OSTIElinkTransport delegate, int mintPerMinute,
+                              int updatePerMinute, int publishPerMinute, int searchPerMinute,
+                              int burst) {
+        super(delegate);
+        addBucket(Operation.MINT, mintPerMinute, burst);
+        addBucket(Operation.UPDATE, updatePerMinute, burst);
+        addBucket(Operation.PUBLISH, publishPerMinute, burst);
+        addBucket(Operation.SEARCH, searchPerMinute, burst);
+        log.info("RateLimitTransport - requests per minute of mint: " + mintPerMinute
+                     + ", update: " + updatePerMinute + ", publish: " + publishPerMinute
+                     + ", search: " + searchPerMinute + ", burst: " + burst);
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        TokenBucket bucket = acquire(request);
+        TransportResponse response = delegate.execute(request);
+        adjust(bucket, response.getStatusCode(), response::getHeader);
+        return response;
+    }
+
+    @Override
+    public StreamingTransportResponse executeStreaming(TransportRequest request)
+        throws IOException {
+        TokenBucket bucket = acquire(request);
+        StreamingTransportResponse response = delegate.executeStreaming(request);
+        adjust(bucket, response.getStatusCode(), response::getHeader);
+        return response;
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+        TokenBucket bucket = getBucket(request);
+        if (bucket == null) {
+            return delegate.executeAsync(request);
+        }
+        long wait = bucket.reserve(getMaxWait(request));
+        if (wait < 0) {
+            rejectedRequests.incrementAndGet();
+            CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+            result.completeExceptionally(TransportTimeouts.timeoutException(request));
+            return result;
+        }
+        if (wait == 0) {
+            return send(bucket, request);
+        }
+        delayedRequests.incrementAndGet();
+        CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        AtomicBoolean started = new AtomicBoolean();
+        ScheduledFuture<?> scheduled = TransportTimeouts.schedule(wait, () -> {
+            if (result.isDone() || !started.compareAndSet(false, true)) {
+                return;
+            }
+            CompletableFuture<TransportResponse> response;
+            try {
+                response = send(bucket, request);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            response.whenComplete((transportResponse, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(transportResponse);
+                }
+            });
+            result.whenComplete((transportResponse, error) -> {
+                if (error != null) {
+                    response.cancel(true);
+                }
+            });
+        });
+        result.whenComplete((transportResponse, error) -> {
+            // The token of a request cancelled before it was sent goes back to the bucket
+            if (started.compareAndSet(false, true)) {
+                scheduled.cancel(false);
+                bucket.refund();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Get the token bucket of the given operation class
+     * @param operation  the operation class
+     * @return the token bucket. Null will be returned if the operation class isn't limited.
+     */
+    public TokenBucket getBucket(Operation operation) {
+        return buckets.get(operation);
+    }
+
+    /**
+     * Get the number of the requests which waited for a token
+     * @return the number of the delayed requests
+     */
+    public long getDelayedRequests() {
+        return delayedRequests.get();
+    }
+
+    /**
+     * Get the number of the requests which failed since their deadlines would expire before
+     * their tokens were available
+     * @return the number of the rejected requests
+     */
+    public long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    private void addBucket(Operation operation, int requestsPerMinute, int burst) {
+        if (requestsPerMinute > 0) {
+            buckets.put(operation, new TokenBucket(requestsPerMinute, burst));
+        }
+    }
+
+    private TokenBucket getBucket(TransportRequest request) {
+        return buckets.get(Operation.classify(request.getMethod(), request.getUri()));
+    }
+
+    /**
+     * Wait for a token of the request
+     * @param request  the request will be sent
+     * @return the bucket the token was taken from. Null will be returned if the request isn't
+     *         limited.
+     * @throws InterruptedIOException  if the deadline would expire first or the thread is
+     *                                 interrupted
+     */
+    private TokenBucket acquire(TransportRequest request) throws InterruptedIOException {
+        TokenBucket bucket = getBucket(request);
+        if (bucket == null) {
+            return null;
+        }
+        if (!bucket.tryAcquire()) {
+            delayedRequests.incrementAndGet();
+            try {
+                if (!bucket.acquire(getMaxWait(request))) {
+                    rejectedRequests.incrementAndGet();
+                    throw TransportTimeouts.timeoutException(request);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the rate limit "
+                                                     + "of the " + request.getMethod()
+                                                     + " request to " + request.getUri());
+            }
+        }
+        return bucket;
+    }
+
+    private CompletableFuture<TransportResponse> send(TokenBucket bucket,
+                                                      TransportRequest request) {
+        return delegate.executeAsync(request).whenComplete((response, error) -> {
+            if (response != null) {
+                adjust(bucket, response.getStatusCode(), response::getHeader);
+            }
+        });
+    }
+
+    private static long getMaxWait(TransportRequest request) {
+        Deadline deadline = request.getDeadline();
+        return deadline == null ? -1 : deadline.getRemainingMillis();
+    }
+
+    /**
+     * Adjust the bucket by the rate-limit headers of a response
+     * @param bucket  the bucket of the request. It can be null.
+     * @param statusCode  the status code of the response
+     * @param headers  the function looking up a header of the response by its name
+     */
+    private static void adjust(TokenBucket bucket, int statusCode,
+                               Function<String, String> headers) {
+        if (bucket == null) {
+            return;
+        }
+        long remaining = parseLong(getHeader(headers, REMAINING_HEADERS));
+        long resetMillis = parseReset(getHeader(headers, RESET_HEADERS));
+        long pauseMillis = 0;
+        if (statusCode == TOO_MANY_REQUESTS) {
+            remaining = 0;
+            pauseMillis = Math.max(RetryTransport.parseRetryAfter(headers.apply("Retry-After")),
+                                   resetMillis);
+        } else if (remaining == 0) {
+            pauseMillis = resetMillis;
+        }
+        if (pauseMillis > 0) {
+            log.info("RateLimitTransport - the OSTI service asked to pause for " + pauseMillis
+                         + " ms");
+        }
+        if (remaining >= 0 || pauseMillis > 0) {
+            bucket.adjust(remaining, pauseMillis);
+        }
+    }
+
+    private static String getHeader(Function<String, String> headers, String[] names) {
+        for (String name : names) {
+            String value = headers.apply(name);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse the reset header, which is the seconds until the quota resets or the epoch time in
+     * seconds when it resets
+     * @param reset  the value of the header. It can be null.
+     * @return the milliseconds until the reset. 0 will be returned if it is null or invalid.
+     */
+    static long parseReset(String reset) {
+        long seconds = parseLong(reset);
+        if (seconds <= 0) {
+            return 0;
+        }
+        if (seconds > EPOCH_SECONDS_THRESHOLD) {
+            return Math.max(0, seconds * 1000 - System.currentTimeMillis());
+        }
+        return seconds * 1000;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
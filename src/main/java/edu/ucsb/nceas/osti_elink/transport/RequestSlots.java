@@ -0,0 +1,244 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import edu.ucsb.nceas.osti_elink.Deadline;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * A limited number of the slots of the in-flight requests with a FIFO queue of the requests
+ * waiting for one. The blocking requests wait for a slot until their deadlines expire; the
+ * non-blocking requests are sent when a slot is granted without holding a thread. The limit
+ * can be changed while the slots are used.
+ * @author Tao
+ */
+final class RequestSlots {
+    private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private int limit;
+    private int inUse = 0;
+
+    /**
+     * The listener of the outcome of a request sent in a slot
+     */
+    interface Listener {
+        /**
+         * Called when the request completes and before its slot is released
+         * @param response  the response. It is null if the request failed.
+         * @param error  the error, which isn't wrapped by a CompletionException. It is null if
+         *               the request succeeded.
+         * @param elapsedNanos  the time from sending the request to its completion
+         */
+        void onComplete(TransportResponse response, Throwable error, long elapsedNanos);
+    }
+
+    /**
+     * Constructor
+     * @param limit  the number of the slots
+     */
+    RequestSlots(int limit) {
+        this.limit = Math.max(1, limit);
+    }
+
+    /**
+     * Wait for a slot until the deadline of the request expires. The slot must be released
+     * after the request completes.
+     * @param request  the request will be sent
+     * @throws InterruptedIOException  if the deadline expires or the thread is interrupted
+     */
+    void acquire(TransportRequest request) throws InterruptedIOException {
+        CompletableFuture<Void> slot = acquireAsync();
+        if (slot.isDone()) {
+            return;
+        }
+        Deadline deadline = request.getDeadline();
+        try {
+            if (deadline == null) {
+                slot.get();
+            } else {
+                slot.get(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException e) {
+            abandon(slot);
+            throw TransportTimeouts.timeoutException(request);
+        } catch (InterruptedException e) {
+            abandon(slot);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a slot to send the "
+                                                 + request.getMethod() + " request to "
+                                                 + request.getUri());
+        } catch (ExecutionException e) {
+            // The slots are never completed exceptionally
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Send a non-blocking request when a slot is granted and release the slot when it
+     * completes. The request stops waiting when its deadline expires or the returned future is
+     * cancelled; a request already sent is cancelled as well.
+     * @param request  the request will be sent
+     * @param send  the sender of the request
+     * @param listener  the listener of the outcome. It can be null.
+     * @return the future of the response
+     */
+    CompletableFuture<TransportResponse> executeAsync(
+        TransportRequest request, Supplier<CompletableFuture<TransportResponse>> send,
+        Listener listener) {
+        CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        CompletableFuture<Void> slot = acquireAsync();
+        slot.whenComplete((granted, slotError) -> {
+            if (slotError != null) {
+                return;
+            }
+            if (result.isDone()) {
+                // The caller gave up or the deadline expired while the request was waiting
+                release();
+                return;
+            }
+            long start = System.nanoTime();
+            CompletableFuture<TransportResponse> response;
+            try {
+                response = send.get();
+            } catch (RuntimeException e) {
+                release();
+                result.completeExceptionally(e);
+                return;
+            }
+            response.whenComplete((transportResponse, error) -> {
+                if (error instanceof CompletionException && error.getCause() != null) {
+                    error = error.getCause();
+                }
+                try {
+                    if (listener != null) {
+                        listener.onComplete(transportResponse, error, System.nanoTime() - start);
+                    }
+                } finally {
+                    release();
+                }
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(transportResponse);
+                }
+            });
+            result.whenComplete((transportResponse, error) -> {
+                if (error != null) {
+                    response.cancel(true);
+                }
+            });
+        });
+        result.whenComplete((transportResponse, error) -> {
+            if (!slot.isDone()) {
+                abandon(slot);
+            }
+        });
+        return TransportTimeouts.within(request, result);
+    }
+
+    /**
+     * Release a slot and grant the free slots to the waiting requests. The slots are completed
+     * outside of the lock since the non-blocking requests are sent by the completion.
+     */
+    void release() {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        synchronized (this) {
+            inUse--;
+            grant(granted);
+        }
+        complete(granted);
+    }
+
+    /**
+     * Change the number of the slots. The waiting requests get the new slots at once.
+     * @param newLimit  the new number of the slots
+     */
+    void setLimit(int newLimit) {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        synchronized (this) {
+            limit = Math.max(1, newLimit);
+            grant(granted);
+        }
+        complete(granted);
+    }
+
+    /**
+     * Get the number of the slots
+     * @return the limit
+     */
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Get the number of the slots in use
+     * @return the number of the in-flight requests
+     */
+    synchronized int getInUse() {
+        return inUse;
+    }
+
+    /**
+     * Get the number of the requests waiting for a slot
+     * @return the number of the waiting requests
+     */
+    synchronized int getWaiting() {
+        return waiters.size();
+    }
+
+    /**
+     * Take a slot if the limit isn't reached and nobody waits. Otherwise, join the queue.
+     * @return the future completed when the slot is granted
+     */
+    private synchronized CompletableFuture<Void> acquireAsync() {
+        CompletableFuture<Void> slot = new CompletableFuture<>();
+        if (waiters.isEmpty() && inUse < limit) {
+            inUse++;
+            slot.complete(null);
+        } else {
+            waiters.add(slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Give up a slot which is being waited for. If it was granted in the meantime, it is
+     * released.
+     * @param slot  the slot
+     */
+    private void abandon(CompletableFuture<Void> slot) {
+        if (slot.cancel(false)) {
+            synchronized (this) {
+                waiters.remove(slot);
+            }
+        } else {
+            release();
+        }
+    }
+
+    private void grant(List<CompletableFuture<Void>> granted) {
+        while (inUse < limit && !waiters.isEmpty()) {
+            CompletableFuture<Void> slot = waiters.poll();
+            if (!slot.isDone()) {
+                inUse++;
+                granted.add(slot);
+            }
+        }
+    }
+
+    private void complete(List<CompletableFuture<Void>> granted) {
+        for (CompletableFuture<Void> slot : granted) {
+            if (!slot.complete(null)) {
+                release();
+            }
+        }
+    }
+}
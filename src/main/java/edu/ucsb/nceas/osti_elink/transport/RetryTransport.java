@@ -0,0 +1,414 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.utils.DateUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A transport which retries the requests of the delegate transport after the transient
+ * failures of the OSTI service. The responses and errors are classified as:
+ * 1. The 5xx responses, the timeouts and the I/O errors are retried for the idempotent
+ *    requests: GET, HEAD, OPTIONS, PUT and DELETE, and the PATCH of records/{id}/save, which
+ *    replaces the fields it is given. A submit to records/{id}/submit is a workflow transition
+ *    rather than a replacement, so it isn't idempotent whatever its method is.
+ * 2. 429 (Too Many Requests) and 503 (Service Unavailable) are retried like the other 5xx
+ *    responses. They are retried for the non-idempotent requests as well only if they have
+ *    the Retry-After header, since a 503 from a gateway doesn't prove the backend skipped the
+ *    request. A mint (POST records/save) is never retried after a response, so a lost response
+ *    can't mint a duplicate DOI.
+ * 3. A request which can't connect to the server is retried whatever it is, since it was
+ *    never sent.
+ * 4. The 4xx responses, including the authentication failures, are fatal. A 5xx response whose
+ *    body only has 4xx errors is fatal too. The statuses of the errors in a body are read by a
+ *    parser given by the caller, e.g. of the JSON errors array of OSTI, so the transport
+ *    doesn't depend on the format of the service.
+ * The wait before a retry grows exponentially from the base delay with a random jitter, and it
+ * is never shorter than the Retry-After header of the response. A request isn't retried if the
+ * wait would be longer than the max delay or the remaining time of its deadline. When the
+ * retries are exhausted, the last response or error is returned to the caller. The counters
+ * show how many retries were sent and how many requests recovered or gave up.
+ * @author Tao
+ */
+public class RetryTransport extends DelegatingTransport {
+    public static final String RETRY_MAX_ATTEMPTS_PROP_NAME = "ostiService.http.retry.maxAttempts";
+    public static final String RETRY_MAX_ATTEMPTS_ENV_NAME = "METACAT_OSTI_HTTP_RETRY_MAX_ATTEMPTS";
+    public static final String RETRY_BASE_DELAY_PROP_NAME = "ostiService.http.retry.baseDelayMs";
+    public static final String RETRY_BASE_DELAY_ENV_NAME = "METACAT_OSTI_HTTP_RETRY_BASE_DELAY_MS";
+    public static final String RETRY_MAX_DELAY_PROP_NAME = "ostiService.http.retry.maxDelayMs";
+    public static final String RETRY_MAX_DELAY_ENV_NAME = "METACAT_OSTI_HTTP_RETRY_MAX_DELAY_MS";
+    public static final int DEFAULT_RETRY_MAX_ATTEMPTS = 1;
+    public static final long DEFAULT_RETRY_BASE_DELAY_MS = 200;
+    public static final long DEFAULT_RETRY_MAX_DELAY_MS = 10000;
+    private static final Set<String> IDEMPOTENT_METHODS =
+        new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "PUT", "DELETE"));
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int SERVICE_UNAVAILABLE = 503;
+
+    private static final Log log = LogFactory.getLog(RetryTransport.class);
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Function<byte[], List<Integer>> errorStatusParser;
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong recoveredRequests = new AtomicLong();
+    private final AtomicLong exhaustedRequests = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param delegate  the transport which sends the requests
+     * @param maxAttempts  the max number of the attempts of a request, including the first one
+     * @param baseDelayMillis  the wait before the first retry in milliseconds
+     * @param maxDelayMillis  the max wait before a retry in milliseconds
+     */
+    public RetryTransport(OSTIElinkTransport delegate, int maxAttempts, long baseDelayMillis,
+                          long maxDelayMillis) {
+        this(delegate, maxAttempts, baseDelayMillis, maxDelayMillis, null);
+    }
+
+    /**
+     * Constructor
+     * @param delegate  the transport which sends the requests
+     * @param maxAttempts  the max number of the attempts of a request, including the first one
+     * @param baseDelayMillis  the wait before the first retry in milliseconds
+     * @param maxDelayMillis  the max wait before a retry in milliseconds
+     * @param errorStatusParser  the parser of the statuses of the errors in a response body.
+     *                           It can be null, which means the bodies aren't read.
+     */
+    public RetryTransport(OSTIElinkTransport delegate, int maxAttempts, long baseDelayMillis,
+                          long maxDelayMillis,
+                          Function<byte[], List<Integer>> errorStatusParser) {
+        super(delegate);
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("The max attempts of the retries should be at "
+                                                   + "least 1 rather than " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = Math.max(0, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+        this.errorStatusParser = errorStatusParser;
+        log.info("RetryTransport - max attempts: " + maxAttempts + ", base delay: "
+                     + this.baseDelayMillis + " ms, max delay: " + this.maxDelayMillis + " ms");
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            long delay;
+            try {
+                TransportResponse response = delegate.execute(request);
+                delay = getRetryDelay(request, attempt, response.getStatusCode(),
+                                      response.getHeader("Retry-After"), response.getBody());
+                if (delay < 0) {
+                    return recordResult(request, attempt, response.getStatusCode(), response);
+                }
+            } catch (IOException e) {
+                delay = getRetryDelay(request, attempt, e);
+                if (delay < 0) {
+                    recordFailure(request, attempt, e);
+                    throw e;
+                }
+            }
+            pause(delay);
+        }
+    }
+
+    /**
+     * The successful responses are streamed. The error responses are buffered, so their
+     * bodies can be classified before they are retried or returned.
+     * @param request  the request will be sent
+     * @return the response of the request
+     * @throws IOException
+     */
+    @Override
+    public StreamingTransportResponse executeStreaming(TransportRequest request)
+        throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            long delay;
+            try {
+                StreamingTransportResponse response = delegate.executeStreaming(request);
+                int statusCode = response.getStatusCode();
+                if (statusCode < 400) {
+                    return recordResult(request, attempt, statusCode, response);
+                }
+                TransportResponse buffered;
+                try {
+                    buffered = new TransportResponse(statusCode, response.getHeaders(),
+                                                     IOUtils.toByteArray(response.getBody()));
+                } finally {
+                    response.close();
+                }
+                delay = getRetryDelay(request, attempt, statusCode,
+                                      buffered.getHeader("Retry-After"), buffered.getBody());
+                if (delay < 0) {
+                    return recordResult(request, attempt, statusCode,
+                                        StreamingTransportResponse.of(buffered));
+                }
+            } catch (IOException e) {
+                delay = getRetryDelay(request, attempt, e);
+                if (delay < 0) {
+                    recordFailure(request, attempt, e);
+                    throw e;
+                }
+            }
+            pause(delay);
+        }
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+        CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        sendAsync(request, 1, result);
+        return result;
+    }
+
+    /**
+     * Get the number of the retries sent
+     * @return the number of the retries
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Get the number of the requests which succeeded after at least one retry
+     * @return the number of the recovered requests
+     */
+    public long getRecoveredRequests() {
+        return recoveredRequests.get();
+    }
+
+    /**
+     * Get the number of the requests which still failed with a retryable error when they ran
+     * out of the attempts or time
+     * @return the number of the exhausted requests
+     */
+    public long getExhaustedRequests() {
+        return exhaustedRequests.get();
+    }
+
+    /**
+     * Send an attempt of the non-blocking request and schedule the next one if it fails with a
+     * retryable error. Cancelling the result cancels the attempt in flight or the scheduled one.
+     * @param request  the request will be sent
+     * @param attempt  the number of the attempt, starting from 1
+     * @param result  the future of the final response
+     */
+    private void sendAsync(TransportRequest request, int attempt,
+                           CompletableFuture<TransportResponse> result) {
+        if (result.isDone()) {
+            return;
+        }
+        CompletableFuture<TransportResponse> future = delegate.executeAsync(request);
+        result.whenComplete((response, error) -> {
+            if (result.isCancelled()) {
+                future.cancel(true);
+            }
+        });
+        future.whenComplete((response, error) -> {
+            long delay;
+            if (error != null) {
+                if (error instanceof CompletionException && error.getCause() != null) {
+                    error = error.getCause();
+                }
+                delay = error instanceof IOException
+                    ? getRetryDelay(request, attempt, (IOException) error) : -1;
+                if (delay < 0) {
+                    if (error instanceof IOException) {
+                        recordFailure(request, attempt, (IOException) error);
+                    }
+                    result.completeExceptionally(error);
+                    return;
+                }
+            } else {
+                delay = getRetryDelay(request, attempt, response.getStatusCode(),
+                                      response.getHeader("Retry-After"), response.getBody());
+                if (delay < 0) {
+                    result.complete(
+                        recordResult(request, attempt, response.getStatusCode(), response));
+                    return;
+                }
+            }
+            ScheduledFuture<?> next =
+                TransportTimeouts.schedule(delay, () -> sendAsync(request, attempt + 1, result));
+            result.whenComplete((response1, error1) -> next.cancel(false));
+        });
+    }
+
+    /**
+     * Get the wait before retrying a request which got the given response
+     * @param request  the request
+     * @param attempt  the number of the attempt which got the response
+     * @param statusCode  the status code of the response
+     * @param retryAfter  the Retry-After header of the response. It can be null.
+     * @param body  the body of the response. It can be null.
+     * @return the wait in milliseconds. -1 will be returned if the request shouldn't be retried.
+     */
+    private long getRetryDelay(TransportRequest request, int attempt, int statusCode,
+                               String retryAfter, byte[] body) {
+        if (!isRetryable(request, statusCode, retryAfter, body)) {
+            return -1;
+        }
+        return getRetryDelay(request, attempt, parseRetryAfter(retryAfter),
+                             "HTTP " + statusCode);
+    }
+
+    /**
+     * Get the wait before retrying a request which failed with the given error
+     * @param request  the request
+     * @param attempt  the number of the attempt which failed
+     * @param error  the error
+     * @return the wait in milliseconds. -1 will be returned if the request shouldn't be retried.
+     */
+    private long getRetryDelay(TransportRequest request, int attempt, IOException error) {
+        if (!isRetryable(request, error)) {
+            return -1;
+        }
+        return getRetryDelay(request, attempt, 0, error.getClass().getSimpleName() + ": "
+            + error.getMessage());
+    }
+
+    private long getRetryDelay(TransportRequest request, int attempt, long retryAfterMillis,
+                               String reason) {
+        if (attempt >= maxAttempts) {
+            exhaustedRequests.incrementAndGet();
+            log.warn("RetryTransport - gave up the " + request.getMethod() + " request to "
+                         + request.getUri() + " after " + attempt + " attempts: " + reason);
+            return -1;
+        }
+        long backoff = Math.min(maxDelayMillis, baseDelayMillis << Math.min(30, attempt - 1));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        delay = Math.max(delay, retryAfterMillis);
+        if (delay > maxDelayMillis || delay >= request.getRemainingMillis()) {
+            exhaustedRequests.incrementAndGet();
+            log.warn("RetryTransport - gave up the " + request.getMethod() + " request to "
+                         + request.getUri() + " since the retry would wait " + delay + " ms: "
+                         + reason);
+            return -1;
+        }
+        retries.incrementAndGet();
+        log.info("RetryTransport - retrying the " + request.getMethod() + " request to "
+                     + request.getUri() + " in " + delay + " ms after attempt " + attempt + ": "
+                     + reason);
+        return delay;
+    }
+
+    /**
+     * Determine if a request which got the response with the given status should be retried
+     * @param request  the request
+     * @param statusCode  the status code of the response
+     * @param retryAfter  the Retry-After header of the response. It can be null.
+     * @param body  the body of the response. It can be null.
+     * @return true if it should be retried; otherwise false.
+     */
+    protected boolean isRetryable(TransportRequest request, int statusCode, String retryAfter,
+                                  byte[] body) {
+        if (statusCode < 500 && statusCode != TOO_MANY_REQUESTS) {
+            return false;
+        }
+        List<Integer> errorStatuses = errorStatusParser == null
+            ? Collections.<Integer>emptyList() : errorStatusParser.apply(body);
+        if (!errorStatuses.isEmpty()) {
+            boolean allClientErrors = true;
+            for (int errorStatus : errorStatuses) {
+                if (errorStatus < 400 || errorStatus >= 500 || errorStatus == TOO_MANY_REQUESTS) {
+                    allClientErrors = false;
+                }
+            }
+            if (allClientErrors) {
+                return false;
+            }
+        }
+        if (isIdempotent(request)) {
+            return true;
+        } else if (RateLimitTransport.Operation.classify(request.getMethod(), request.getUri())
+            == RateLimitTransport.Operation.MINT) {
+            return false;
+        }
+        return (statusCode == TOO_MANY_REQUESTS || statusCode == SERVICE_UNAVAILABLE)
+            && retryAfter != null && !retryAfter.trim().equals("");
+    }
+
+    /**
+     * Determine if a request which failed with the given error should be retried
+     * @param request  the request
+     * @param error  the error
+     * @return true if it should be retried; otherwise false.
+     */
+    protected boolean isRetryable(TransportRequest request, IOException error) {
+        if (request.isExpired()) {
+            return false;
+        }
+        return isIdempotent(request) || error instanceof ConnectException;
+    }
+
+    private static boolean isIdempotent(TransportRequest request) {
+        String method = request.getMethod().toUpperCase();
+        RateLimitTransport.Operation operation =
+            RateLimitTransport.Operation.classify(method, request.getUri());
+        if (operation == RateLimitTransport.Operation.PUBLISH) {
+            return false;
+        } else if (method.equals("PATCH")) {
+            return operation == RateLimitTransport.Operation.UPDATE;
+        }
+        return IDEMPOTENT_METHODS.contains(method);
+    }
+
+    /**
+     * Parse the Retry-After header, which is either the seconds to wait or an http date
+     * @param retryAfter  the value of the header. It can be null.
+     * @return the wait in milliseconds. 0 will be returned if it is null or invalid.
+     */
+    static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.trim().equals("")) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(retryAfter.trim());
+            return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    private <T> T recordResult(TransportRequest request, int attempt, int statusCode,
+                               T response) {
+        if (attempt > 1 && statusCode < 400) {
+            recoveredRequests.incrementAndGet();
+            log.info("RetryTransport - the " + request.getMethod() + " request to "
+                         + request.getUri() + " succeeded after " + attempt + " attempts");
+        }
+        return response;
+    }
+
+    private void recordFailure(TransportRequest request, int attempt, IOException error) {
+        log.debug("RetryTransport - the " + request.getMethod() + " request to "
+                      + request.getUri() + " failed after " + attempt + " attempts: "
+                      + error.getMessage());
+    }
+
+    private static void pause(long delay) throws IOException {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The retry was interrupted: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An http response whose body is read as a stream rather than a byte array, so the caller can
+ * parse the body while it arrives and doesn't need to hold a copy of it. The response must be
+ * closed to release the connection.
+ * @author Tao
+ */
+public class StreamingTransportResponse implements Closeable {
+    private static final byte[] EMPTY_BODY = new byte[0];
+    private final int statusCode;
+    private final Map<String, String> headers;
+    private final InputStream body;
+    private final Closeable resource;
+
+    /**
+     * Constructor
+     * @param statusCode  the http status code
+     * @param headers  the headers of the response. It can be null.
+     * @param body  the stream of the body. It can be null if the response doesn't have a body.
+     * @param resource  the resource, such as the connection, closed with the response. It can be
+     *                  null.
+     */
+    public StreamingTransportResponse(int statusCode, Map<String, String> headers,
+                                      InputStream body, Closeable resource) {
+        this.statusCode = statusCode;
+        this.headers = headers == null ? Collections.<String, String>emptyMap()
+            : Collections.unmodifiableMap(new LinkedHashMap<>(headers));
+        this.body = body == null ? new ByteArrayInputStream(EMPTY_BODY) : body;
+        this.resource = resource;
+    }
+
+    /**
+     * Create a streaming response from a response whose body is already read
+     * @param response  the response with the body bytes
+     * @return the streaming response reading the body bytes
+     */
+    public static StreamingTransportResponse of(TransportResponse response) {
+        InputStream body = null;
+        if (response.getBody() != null) {
+            body = new ByteArrayInputStream(response.getBody());
+        }
+        return new StreamingTransportResponse(response.getStatusCode(), response.getHeaders(),
+                                              body, null);
+    }
+
+    /**
+     * Get the http status code of the response
+     * @return the status code
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Get the headers of the response
+     * @return the unmodifiable map of the headers
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Get the value of the given header. The name is case-insensitive.
+     * @param name  the name of the header
+     * @return the value of the header. Null will be returned if the response doesn't have it.
+     */
+    public String getHeader(String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the stream of the body. It is empty if the response doesn't have a body.
+     * @return the stream of the body
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
+    /**
+     * Close the body and release the resource held by the response
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            body.close();
+        } finally {
+            if (resource != null) {
+                resource.close();
+            }
+        }
+    }
+}
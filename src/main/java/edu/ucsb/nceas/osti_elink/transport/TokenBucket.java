@@ -0,0 +1,128 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket which limits the rate of the requests. The tokens are refilled at a fixed rate
+ * up to the capacity, which is the largest burst let through at once. A token can be taken
+ * without waiting (tryAcquire), by waiting for it (acquire) or by reserving it and waiting
+ * outside of the bucket (reserve), which the non-blocking requests use. The bucket can also be
+ * slowed down by the rate-limit information the server returns.
+ * @author Tao
+ */
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+    private long blockedUntil;
+
+    /**
+     * Constructor. The bucket starts full.
+     * @param requestsPerMinute  the rate of the tokens refilled
+     * @param capacity  the max number of the tokens the bucket holds
+     */
+    public TokenBucket(double requestsPerMinute, int capacity) {
+        if (requestsPerMinute <= 0) {
+            throw new IllegalArgumentException("The rate of a token bucket should be positive "
+                                                   + "rather than " + requestsPerMinute);
+        }
+        this.tokensPerNano = requestsPerMinute / TimeUnit.MINUTES.toNanos(1);
+        this.capacity = Math.max(1, capacity);
+        this.tokens = this.capacity;
+        this.lastRefill = System.nanoTime();
+        this.blockedUntil = lastRefill;
+    }
+
+    /**
+     * Take a token if one is available now
+     * @return true if a token was taken; false otherwise.
+     */
+    public synchronized boolean tryAcquire() {
+        return reserve(0) == 0;
+    }
+
+    /**
+     * Take a token, waiting for it if necessary
+     * @param maxWaitMillis  the longest wait in milliseconds. A negative value means no limit.
+     * @return true if a token was taken; false if it wasn't available within the max wait.
+     * @throws InterruptedException  if the thread is interrupted while waiting. The token is
+     *                               returned to the bucket.
+     */
+    public boolean acquire(long maxWaitMillis) throws InterruptedException {
+        long wait = reserve(maxWaitMillis);
+        if (wait < 0) {
+            return false;
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                refund();
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reserve a token. The caller must wait for the returned time before it uses the token.
+     * @param maxWaitMillis  the longest wait in milliseconds. A negative value means no limit.
+     * @return the wait in milliseconds. -1 will be returned and no token is reserved if the
+     *         wait would be longer than the max wait.
+     */
+    public synchronized long reserve(long maxWaitMillis) {
+        long now = refill();
+        long waitNanos = Math.max(0, blockedUntil - now);
+        if (tokens < 1) {
+            waitNanos = Math.max(waitNanos, (long) Math.ceil((1 - tokens) / tokensPerNano));
+        }
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos + 999999);
+        if (maxWaitMillis >= 0 && waitMillis > maxWaitMillis) {
+            return -1;
+        }
+        tokens -= 1;
+        return waitMillis;
+    }
+
+    /**
+     * Return a reserved token which wasn't used, e.g. the request was cancelled while waiting
+     */
+    public synchronized void refund() {
+        refill();
+        tokens = Math.min(capacity, tokens + 1);
+    }
+
+    /**
+     * Adjust the bucket by the rate-limit information of the server
+     * @param remaining  the number of the requests the server still accepts. Negative values
+     *                   mean it is unknown.
+     * @param pauseMillis  how long the server accepts no more requests. 0 means no pause.
+     */
+    public synchronized void adjust(long remaining, long pauseMillis) {
+        long now = refill();
+        if (remaining >= 0) {
+            tokens = Math.min(tokens, remaining);
+        }
+        if (pauseMillis > 0) {
+            blockedUntil = Math.max(blockedUntil, now + TimeUnit.MILLISECONDS.toNanos(pauseMillis));
+        }
+    }
+
+    /**
+     * Get the number of the tokens available now. It is negative if the tokens are reserved
+     * ahead of the refills.
+     * @return the number of the tokens
+     */
+    public synchronized double getAvailableTokens() {
+        refill();
+        return tokens;
+    }
+
+    private long refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        return now;
+    }
+}
@@ -0,0 +1,137 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import edu.ucsb.nceas.osti_elink.Deadline;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An http request which is independent of the http client library sending it. It has the
+ * method, the uri, the headers and the body bytes of the request. It may also have a deadline
+ * by which the transport must complete or abort it.
+ * @author Tao
+ */
+public class TransportRequest {
+    private final String method;
+    private final String uri;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    private final Deadline deadline;
+
+    /**
+     * Constructor
+     * @param method  the http method, such as GET or PATCH
+     * @param uri  the uri of the request
+     * @param headers  the headers of the request. It can be null.
+     * @param body  the body of the request. It can be null.
+     */
+    public TransportRequest(String method, String uri, Map<String, String> headers, byte[] body) {
+        this(method, uri, headers, body, null);
+    }
+
+    /**
+     * Constructor
+     * @param method  the http method, such as GET or PATCH
+     * @param uri  the uri of the request
+     * @param headers  the headers of the request. It can be null.
+     * @param body  the body of the request. It can be null.
+     * @param deadline  the deadline of the request. It can be null, which means the request is
+     *                  only bounded by the timeouts of the transport.
+     */
+    public TransportRequest(String method, String uri, Map<String, String> headers, byte[] body,
+                            Deadline deadline) {
+        if (method == null || method.trim().equals("")) {
+            throw new IllegalArgumentException("The method of a request can't be null or blank.");
+        }
+        if (uri == null || uri.trim().equals("")) {
+            throw new IllegalArgumentException("The uri of a request can't be null or blank.");
+        }
+        this.method = method;
+        this.uri = uri;
+        this.headers = headers == null ? Collections.<String, String>emptyMap()
+            : Collections.unmodifiableMap(new LinkedHashMap<>(headers));
+        this.body = body;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Get the http method of the request
+     * @return the method
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Get the uri of the request
+     * @return the uri
+     */
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * Get the headers of the request
+     * @return the unmodifiable map of the headers
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Get the value of the given header. The name is case-insensitive.
+     * @param name  the name of the header
+     * @return the value of the header. Null will be returned if the request doesn't have it.
+     */
+    public String getHeader(String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the body of the request
+     * @return the body. It can be null.
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Get the deadline of the request
+     * @return the deadline. It can be null.
+     */
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Get the remaining time before the deadline of the request
+     * @return the remaining time in milliseconds. Long.MAX_VALUE will be returned if the
+     *         request doesn't have a deadline.
+     */
+    public long getRemainingMillis() {
+        return deadline == null ? Long.MAX_VALUE : deadline.getRemainingMillis();
+    }
+
+    /**
+     * Determine if the deadline of the request has passed
+     * @return true if it has passed; false if it hasn't or the request doesn't have a deadline
+     */
+    public boolean isExpired() {
+        return deadline != null && deadline.isExpired();
+    }
+
+    /**
+     * Create a copy of this request with the given deadline
+     * @param deadline  the deadline of the new request. It can be null.
+     * @return the new request
+     */
+    public TransportRequest withDeadline(Deadline deadline) {
+        return new TransportRequest(method, uri, headers, body, deadline);
+    }
+}
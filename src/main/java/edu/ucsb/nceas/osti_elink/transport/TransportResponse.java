@@ -0,0 +1,67 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An http response which is independent of the http client library receiving it. It has the
+ * status code, the headers and the body bytes of the response.
+ * @author Tao
+ */
+public class TransportResponse {
+    private final int statusCode;
+    private final Map<String, String> headers;
+    private final byte[] body;
+
+    /**
+     * Constructor
+     * @param statusCode  the http status code
+     * @param headers  the headers of the response. It can be null.
+     * @param body  the body of the response. It can be null.
+     */
+    public TransportResponse(int statusCode, Map<String, String> headers, byte[] body) {
+        this.statusCode = statusCode;
+        this.headers = headers == null ? Collections.<String, String>emptyMap()
+            : Collections.unmodifiableMap(new LinkedHashMap<>(headers));
+        this.body = body;
+    }
+
+    /**
+     * Get the http status code of the response
+     * @return the status code
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Get the headers of the response
+     * @return the unmodifiable map of the headers
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Get the value of the given header. The name is case-insensitive.
+     * @param name  the name of the header
+     * @return the value of the header. Null will be returned if the response doesn't have it.
+     */
+    public String getHeader(String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the body of the response
+     * @return the body. It can be null.
+     */
+    public byte[] getBody() {
+        return body;
+    }
+}
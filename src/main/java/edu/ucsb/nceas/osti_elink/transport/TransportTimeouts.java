@@ -0,0 +1,85 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import edu.ucsb.nceas.osti_elink.Deadline;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The shared timer which enforces the deadlines of the transport requests. The socket timeouts
+ * only bound a single read, so a slow trickling response or a request waiting for a busy
+ * connection is stopped by this timer when its deadline expires. The transports also use it
+ * to run their other delayed actions, such as sending the hedged requests.
+ * @author Tao
+ */
+final class TransportTimeouts {
+    private static final ScheduledThreadPoolExecutor timer = createTimer();
+
+    private TransportTimeouts() {
+    }
+
+    /**
+     * Schedule the action to run when the deadline of the request expires
+     * @param request  the request whose deadline is used
+     * @param action  the action will be run
+     * @return the scheduled action which should be cancelled when the request completes. Null
+     *         will be returned if the request doesn't have a deadline.
+     */
+    static ScheduledFuture<?> schedule(TransportRequest request, Runnable action) {
+        Deadline deadline = request.getDeadline();
+        if (deadline == null) {
+            return null;
+        }
+        return timer.schedule(action, deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedule the action to run after the given delay
+     * @param delayMillis  the delay in milliseconds
+     * @param action  the action will be run
+     * @return the scheduled action
+     */
+    static ScheduledFuture<?> schedule(long delayMillis, Runnable action) {
+        return timer.schedule(action, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Complete the future exceptionally with a SocketTimeoutException when the deadline of the
+     * request expires before the future completes
+     * @param request  the request whose deadline is used
+     * @param future  the future of the response
+     * @return the same future
+     */
+    static CompletableFuture<TransportResponse> within(TransportRequest request,
+                                                       CompletableFuture<TransportResponse> future) {
+        ScheduledFuture<?> timeout = schedule(request, () -> future.completeExceptionally(
+            timeoutException(request)));
+        if (timeout != null) {
+            future.whenComplete((response, error) -> timeout.cancel(false));
+        }
+        return future;
+    }
+
+    /**
+     * Create the exception reporting the request exceeded its deadline
+     * @param request  the request timed out
+     * @return the exception
+     */
+    static SocketTimeoutException timeoutException(TransportRequest request) {
+        return new SocketTimeoutException("The " + request.getMethod() + " request to "
+                                              + request.getUri() + " exceeded its deadline");
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "osti-request-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+}
@@ -4,15 +4,19 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import edu.ucsb.nceas.osti_elink.OSTIElinkException;
 import edu.ucsb.nceas.osti_elink.OSTIElinkAuthenticationException;
 import edu.ucsb.nceas.osti_elink.OSTIElinkNotFoundException;
 import edu.ucsb.nceas.osti_elink.OSTIElinkService;
 import edu.ucsb.nceas.osti_elink.OSTIServiceFactory;
+import edu.ucsb.nceas.osti_elink.RecentWrites;
 import edu.ucsb.nceas.osti_elink.exception.PropertyNotFound;
+import edu.ucsb.nceas.osti_elink.v2.json.model.Identifier;
+import edu.ucsb.nceas.osti_elink.v2.json.model.Organization;
+import edu.ucsb.nceas.osti_elink.v2.json.model.OstiJson;
+import edu.ucsb.nceas.osti_elink.v2.json.model.OstiRecord;
+import edu.ucsb.nceas.osti_elink.v2.json.model.WorkflowStatus;
 import edu.ucsb.nceas.osti_elink.v2.response.JsonResponseHandler;
 import org.apache.commons.io.FileUtils;
 import org.apache.http.HttpHeaders;
@@ -21,7 +25,11 @@ import org.apache.http.client.methods.HttpUriRequest;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.io.UnsupportedEncodingException;
@@ -74,7 +82,7 @@ public class OSTIv2JsonService extends OSTIElinkService {
 
     public static final String WORKFLOW_STATUS = "workflow_status";
     public static final String SITE_URL = "site_url";
-    private JsonNode minimalMetadataNode = null;
+    private OstiRecord minimalMetadataRecord = null;
     private String originalDefaultSiteCode = null;
     private String currentDefaultSiteCode = null;
 //    protected static final String minimalMetadataFileJson = "minimal-osti.json";
@@ -139,49 +147,80 @@ public class OSTIv2JsonService extends OSTIElinkService {
     @Override
     public String getStatus(String doi) throws OSTIElinkException {
         String status;
-        String metadata = null;
+        JsonNode metadata = null;
+
+        RecentWrites.Record written = getRecentWrite(doi);
+        if (written != null && written.getStatus() != null) {
+            // Answer from the response of the recent write, since the search index lags behind
+            status = written.getStatus();
+            if (status.equals("SA")) {
+                status = OSTIElinkService.SAVED;
+            }
+            log.debug("The status of " + doi + " is " + status + " from its recent write");
+            return status;
+        }
+        String cached = getCachedMetadata(doi);
+        if (cached != null) {
+            status = parseStatus(cached);
+            log.debug("The status of " + doi + " is " + status + " from the record cache");
+            return status;
+        }
 
         // fetch metadata for given doi
-        long start = System.currentTimeMillis();
-        for (int i = 0; i <= maxAttempts; i++ ) {
-            try {
-                metadata = getMetadata(doi);
-                break;
-            } catch (OSTIElinkNotFoundException e) {
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException ex) {
-                    log.warn("The thread waiting for the DOI searchable in the getStatus method "
-                            + "was interrupted " + ex.getMessage());
-                }
-            }
-            if (i >= maxAttempts) {
-                throw new OSTIElinkNotFoundException("The library tried " + maxAttempts + " times"
-                        + " to query the status of " + doi + " "
-                        + "from the OSTI service. However OSTI "
-                        + "service still can't find it");
-            }
+        try {
+            // Only the workflow status is read from the response
+            metadata = queryRecordFields(doi, DOI, WORKFLOW_STATUS);
+        } catch (OSTIElinkNotFoundException e) {
+            // The doi isn't searchable yet. The wait is coalesced with the ones of the other
+            // threads, so they don't send a query each every 200 ms.
+            long start = System.currentTimeMillis();
+            status = parseStatus(awaitSearchable(doi, maxAttempts * 200L));
+            long end = System.currentTimeMillis();
+            log.warn("It waited " + (end - start)/1000 + " seconds for doi " + doi + " to be "
+                    + "searchable after minting it.");
+            log.debug("The status of " + doi + " is " + status);
+            return status;
         }
-        long end = System.currentTimeMillis();
-        log.warn("It waited " + (end - start)/1000 + " seconds for doi " + doi + " to be "
-                + "searchable after minting it.");
 
         // process response to check status
+        status = JsonResponseHandler.getPathValue(metadata, WORKFLOW_STATUS);
+        if (status == null) {
+            throw new OSTIElinkException("There is no workflow_status for " + doi +" in the query"
+                    + " result:\n" + metadata);
+        }
+        // Our metacat checks the status of Saved. However, from v1 to v2, the status of Saved
+        // changed to SA. In order not to change Metacat's code, we need to map SA to Saved
+        if (status.equals("SA")) {
+            status = OSTIElinkService.SAVED;
+        }
+        log.debug("The status of " + doi + " is " + status);
+        return status;
+    }
+
+    /**
+     * Parse the workflow status from the metadata of a record. The status of SA is mapped to
+     * Saved as the getStatus method does.
+     * @param metadata  the json metadata returned by the search of a doi
+     * @return  the status of the record
+     * @throws OSTIElinkException  if the metadata has no workflow_status
+     */
+    @Override
+    protected String parseStatus(String metadata) throws OSTIElinkException {
+        String status;
         try {
             status = JsonResponseHandler.getPathValue(metadata, WORKFLOW_STATUS);
         } catch (JsonProcessingException e) {
             throw new OSTIElinkException(e.getMessage());
         }
         if (status == null) {
-            throw new OSTIElinkException("There is no workflow_status for " + doi +" in the query"
-                    + " result:\n" + metadata);
+            throw new OSTIElinkException("There is no workflow_status in the query result:\n"
+                                             + metadata);
         }
         // Our metacat checks the status of Saved. However, from v1 to v2, the status of Saved
         // changed to SA. In order not to change Metacat's code, we need to map SA to Saved
         if (status.equals("SA")) {
             status = OSTIElinkService.SAVED;
         }
-        log.debug("The status of " + doi + " is " + status);
         return status;
     }
 
@@ -199,8 +238,141 @@ public class OSTIv2JsonService extends OSTIElinkService {
         String metadata = null;
 
         // url for GET metadata request
-        String getMetadataUrl = null;
+        String getMetadataUrl = buildGetMetadataUrl(identifier, type);
+
+        // execute the query with authentication error handling
+        try {
+            byte[] response = sendRequest(GET, getMetadataUrl);
+            metadata = new String(response);
+            log.info("OSTIv2JsonService.getMetadata: Successfully retrieved metadata for "
+                         + removeDOI(identifier) + "\n metadata: " + metadata);
 
+        } catch (OSTIElinkAuthenticationException e) {
+            throw getMetadataAuthenticationException(identifier, type, e);
+        }
+
+        // no errors found; return response
+        return checkMetadataResponse(identifier, type, metadata);
+    }
+
+    /**
+     * Get the metadata associated with the given identifier without blocking the calling thread.
+     * The query is sent by the non-blocking http client and the response is checked the same
+     * way as the getMetadata method does.
+     * @param identifier  the identifier for which the metadata should be returned
+     * @param  type  the type of the identifier, which can be doi or OSTIId
+     * @return  a future of the metadata
+     */
+    @Override
+    protected CompletableFuture<String> getMetadataAsync(String identifier, String type) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        String getMetadataUrl;
+        try {
+            getMetadataUrl = buildGetMetadataUrl(identifier, type);
+        } catch (OSTIElinkException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        CompletableFuture<byte[]> response = sendRequestAsync(GET, getMetadataUrl, null);
+        response.whenComplete((body, error) -> {
+            try {
+                if (error != null) {
+                    if (error instanceof OSTIElinkAuthenticationException) {
+                        throw getMetadataAuthenticationException(
+                            identifier, type, (OSTIElinkAuthenticationException) error);
+                    }
+                    result.completeExceptionally(error);
+                } else {
+                    // A response without an entity is handled as the blank one
+                    result.complete(checkMetadataResponse(identifier, type,
+                                                          body == null ? null : new String(body)));
+                }
+            } catch (OSTIElinkException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        result.whenComplete((metadata, error) -> {
+            if (result.isCancelled()) {
+                response.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Search the records of many dois in one query without blocking the calling thread. The
+     * quoted dois are joined by OR in the doi field and the records in the response are
+     * grouped by their dois.
+     * @param dois  the dois will be searched
+     * @return  a future of the metadata (json arrays) keyed by the dois. The dois which can't
+     *          be found are absent.
+     */
+    @Override
+    protected CompletableFuture<Map<String, String>> searchRecordsAsync(List<String> dois) {
+        CompletableFuture<Map<String, String>> result = new CompletableFuture<>();
+        StringBuilder query = new StringBuilder();
+        for (String doi : dois) {
+            if (query.length() > 0) {
+                query.append(" OR ");
+            }
+            query.append("\"").append(removeDOI(doi)).append("\"");
+        }
+        String url;
+        try {
+            // The spaces around OR are encoded as %20 rather than the form encoding +
+            url = FULL_RECORDS_ENDPOINT_URL + "?" + DOI + "="
+                + URLEncoder.encode(query.toString(), StandardCharsets.UTF_8.toString())
+                    .replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            result.completeExceptionally(new OSTIElinkException(
+                "OSTIv2JsonService.searchRecordsAsync - couldn't encode the url: "
+                    + e.getMessage()));
+            return result;
+        }
+        CompletableFuture<byte[]> response = sendRequestAsync(GET, url, null);
+        response.whenComplete((body, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            try {
+                JsonNode node = JsonResponseHandler.isResponseWithError(
+                    body == null ? null : new String(body));
+                if (!node.isArray()) {
+                    throw new OSTIElinkException("OSTIv2JsonService.searchRecordsAsync - the "
+                                                     + "response isn't an array: " + node);
+                }
+                rememberOstiIds(node);
+                Map<String, ArrayNode> groups = new HashMap<>();
+                for (JsonNode record : node) {
+                    JsonNode doi = record.get(DOI);
+                    if (doi != null) {
+                        groups.computeIfAbsent(doi.asText(),
+                                               key -> JsonNodeFactory.instance.arrayNode())
+                            .add(record);
+                    }
+                }
+                Map<String, String> records = new HashMap<>();
+                for (Map.Entry<String, ArrayNode> group : groups.entrySet()) {
+                    records.put(group.getKey(), group.getValue().toString());
+                }
+                result.complete(records);
+            } catch (OSTIElinkException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Build the encoded url to query the metadata of the given identifier
+     * @param identifier  the identifier for which the metadata should be returned
+     * @param  type  the type of the identifier, which can be doi or OSTIId
+     * @return the url of the query
+     * @throws OSTIElinkException
+     */
+    private String buildGetMetadataUrl(String identifier, String type) throws OSTIElinkException {
+        String getMetadataUrl = null;
         // check identifier for errors
         if (identifier != null && !identifier.trim().equals("")) {
 
@@ -217,51 +389,130 @@ public class OSTIv2JsonService extends OSTIElinkService {
                                 + e.getMessage());
             }
             log.info("The query sent to get metadata is " + getMetadataUrl);
+        } else {
+            throw new OSTIElinkException(
+                    "OSTIv2JsonService.getMetadata - the given identifier can't be null or blank.");
+        }
+        return getMetadataUrl;
+    }
 
-            // execute the query with authentication error handling
+    /**
+     * Add the context of the query to the authentication exception of the getMetadata method
+     * @param identifier  the identifier which was queried
+     * @param type  the type of the identifier
+     * @param e  the original authentication exception
+     * @return the new authentication exception with the context
+     */
+    private OSTIElinkAuthenticationException getMetadataAuthenticationException(
+        String identifier, String type, OSTIElinkAuthenticationException e) {
+        // Handle authentication errors with more context
+        String contextMsg = "OSTIv2JsonService.getMetadata - Failed to retrieve metadata for identifier '"
+                + identifier + "' (" + type + "): " + e.getMessage()
+                + ". Please check your OSTI token configuration.";
+        log.error(contextMsg);
+        return new OSTIElinkAuthenticationException(e.getStatusCode(), contextMsg);
+    }
+
+    /**
+     * Check the response of a metadata query. An OSTIElinkNotFoundException will be thrown if
+     * the response is an empty array.
+     * @param identifier  the identifier which was queried
+     * @param type  the type of the identifier
+     * @param metadata  the response of the query
+     * @return the metadata if it doesn't have any errors
+     * @throws OSTIElinkException
+     */
+    private String checkMetadataResponse(String identifier, String type, String metadata)
+        throws OSTIElinkException {
+        // process query response
+        // check for errors; return response if none found
+        if (metadata == null || metadata.trim().equals("")) {
+            throw new OSTIElinkException("OSTIv2JsonService.getMetadata - the response is blank"
+                    + ". It means the token is invalid for looking "
+                    + removeDOI(identifier) + ", which type is " + type);
+        } else {
+            JsonNode node;
             try {
-                byte[] response = sendRequest(GET, getMetadataUrl);
-                metadata = new String(response);
-                log.info("OSTIv2JsonService.getMetadata: Successfully retrieved metadata for " + extractedIdentifier + "\n metadata: " + metadata);
-
-            } catch (OSTIElinkAuthenticationException e) {
-                // Handle authentication errors with more context
-                String contextMsg = "OSTIv2JsonService.getMetadata - Failed to retrieve metadata for identifier '"
-                        + identifier + "' (" + type + "): " + e.getMessage()
-                        + ". Please check your OSTI token configuration.";
-                log.error(contextMsg);
-                throw new OSTIElinkAuthenticationException(e.getStatusCode(), contextMsg);
+                // Check if it is an error response
+                node = JsonResponseHandler.isResponseWithError(metadata);
+            } catch (OSTIElinkException ee) {
+                throw new OSTIElinkException(
+                        "OSTIv2JsonService.getMetadata - can't get the metadata for id " + identifier
+                                + " since\n " + metadata);
             }
-            // process query response
-            // check for errors; return response if none found
-            if (metadata == null || metadata.trim().equals("")) {
-                throw new OSTIElinkException("OSTIv2JsonService.getMetadata - the response is blank"
-                        + ". It means the token is invalid for looking "
-                        + extractedIdentifier + ", which type is " + type);
-            } else {
-                JsonNode node;
+            // Am empty array return means not-found
+            if (JsonResponseHandler.isEmptyArray(node)) {
+                throw new OSTIElinkNotFoundException(
+                        "OSTIv2JsonService.getMetadata - OSTI can't find the identifier "
+                                + identifier + ", which type is " + type + " since\n " + metadata);
+            }
+            rememberOstiIds(node);
+        }
+        return metadata;
+    }
+
+    /**
+     * Query the records of the given identifier and only read the given fields of them from
+     * the response stream. The response is checked the same way as the getMetadata method does.
+     * @param identifier  the identifier which will be queried
+     * @param type  the type of the identifier, which can be doi or OSTIId
+     * @param fields  the names of the fields which will be read
+     * @return the array of the records which only have the given fields
+     * @throws OSTIElinkException
+     */
+    protected JsonNode queryRecordFields(String identifier, String type, String... fields)
+        throws OSTIElinkException {
+        // The concurrent identical queries share one request and its parsed records, which
+        // the callers only read
+        return singleFlight.run(flightKey("fields " + String.join(",", fields), identifier,
+                                          type),
+                                () -> sendRecordFieldsQuery(identifier, type, fields));
+    }
+
+    private JsonNode sendRecordFieldsQuery(String identifier, String type, String... fields)
+        throws OSTIElinkException {
+        String getMetadataUrl = buildGetMetadataUrl(identifier, type);
+        JsonNode node;
+        try {
+            node = sendRequest(GET, getMetadataUrl, null, body -> {
                 try {
-                    // Check if it is an error response
-                    node = JsonResponseHandler.isResponseWithError(metadata);
-                } catch (OSTIElinkException ee) {
+                    return JsonResponseHandler.readRecords(body, fields);
+                } catch (JsonProcessingException e) {
                     throw new OSTIElinkException(
-                            "OSTIv2JsonService.getMetadata - can't get the metadata for id " + identifier
-                                    + " since\n " + metadata);
-                }
-                // Am empty array return means not-found
-                if (JsonResponseHandler.isEmptyArray(node)) {
-                    throw new OSTIElinkNotFoundException(
-                            "OSTIv2JsonService.getMetadata - OSTI can't find the identifier "
-                                    + identifier + ", which type is " + type + " since\n " + metadata);
+                        "OSTIv2JsonService.getMetadata - can't get the metadata for id "
+                            + identifier + " since the response is not a valid json: "
+                            + e.getMessage());
                 }
-            }
-        } else {
+            });
+        } catch (OSTIElinkAuthenticationException e) {
+            throw getMetadataAuthenticationException(identifier, type, e);
+        }
+        if (node == null) {
+            throw new OSTIElinkException("OSTIv2JsonService.getMetadata - the response is blank"
+                    + ". It means the token is invalid for looking "
+                    + removeDOI(identifier) + ", which type is " + type);
+        } else if (node.get("errors") != null) {
             throw new OSTIElinkException(
-                    "OSTIv2JsonService.getMetadata - the given identifier can't be null or blank.");
+                "OSTIv2JsonService.getMetadata - can't get the metadata for id " + identifier
+                    + " since\n " + node);
+        } else if (JsonResponseHandler.isEmptyArray(node)) {
+            throw new OSTIElinkNotFoundException(
+                "OSTIv2JsonService.getMetadata - OSTI can't find the identifier "
+                    + identifier + ", which type is " + type + " since\n " + node);
         }
+        return node;
+    }
 
-        // no errors found; return response
-        return metadata;
+    /**
+     * Query the service to get the osti id for the given doi. Only the osti id field is read
+     * from the response.
+     * @param doi  the doi
+     * @return the osti id for the doi
+     * @throws OSTIElinkException
+     */
+    @Override
+    protected String queryOstiId(String doi) throws OSTIElinkException {
+        return JsonResponseHandler.getPathValue(queryRecordFields(doi, DOI, OSTI_ID), OSTI_ID);
     }
 
     /**
@@ -273,6 +524,18 @@ public class OSTIv2JsonService extends OSTIElinkService {
      */
     @Override
     public void setMetadata(String doi, String doiPrefix, String metadataJson) throws OSTIElinkException {
+        String derived = applyPrefixRules(doi, doiPrefix);
+        writeWithPrefixRules(doi, derived, () -> {
+            setJsonMetadata(doi, doiPrefix, derived, metadataJson);
+            return null;
+        });
+    }
+
+    /**
+     * Set the json metadata to the given doi as the setMetadata method describes
+     */
+    private void setJsonMetadata(String doi, String doiPrefix, String derived,
+                                 String metadataJson) throws OSTIElinkException {
         // Get the OSTI ID associated with this DOI
         String ostiId = getOstiId(doi, doiPrefix);
 
@@ -285,11 +548,17 @@ public class OSTIv2JsonService extends OSTIElinkService {
             log.info("Detected publish identifier command for " + doi
                          + ". Will handle via specialized route.");
             // Use the specialized publication handler which handles the workflow status to site_url conversion
-            handlePublishIdentifierCommand(ostiId, command.getUrl());
+            handlePublishIdentifierCommand(ostiId, command.getUrl(), doi, derived);
         } else if (command.hasSiteURL()) {
             log.info("Detected the site url field for " + doi
                          + ". Will handle via the submit route.");
-            handleSubmit(ostiId, command.getUrl(), (ObjectNode)command.getRecordNode());
+            try {
+                handleSubmit(ostiId, command.getUrl(),
+                             OstiJson.readRecord(command.getRecordNode()), doi, derived);
+            } catch (IOException e) {
+                throw new OSTIElinkException("OSTIv2JsonService.setMetadata - the metadata isn't "
+                                                 + "a valid record: " + e.getMessage());
+            }
         } else {
             log.info("Standard metadata update (no site url)");
 
@@ -315,6 +584,10 @@ public class OSTIv2JsonService extends OSTIElinkService {
                 log.info("OSTIv2JsonService.setMetadata - Successfully updated metadata for DOI " +
                         doi + " (OSTI ID: " + ostiId + "). New status: " +
                         responseNode.get(WORKFLOW_STATUS).asText());
+                JsonNode written = responseNode.get(DOI);
+                verifyDerivedWrite(doi, derived, ostiId,
+                                   written == null || written.isNull() ? null : written.asText());
+                rememberWrite(doi, ostiId, responseNode);
 
             } catch (OSTIElinkException e) {
                 log.error("OSTIv2JsonService.setMetadata - Error updating metadata: " + e.getMessage());
@@ -337,15 +610,17 @@ public class OSTIv2JsonService extends OSTIElinkService {
                 + new String(response));
 
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            JsonNode rootNode = mapper.readTree(response);
+            OstiRecord record = OstiJson.readRecord(response);
 
             // Check that doi record has "status = SA" (saved) and access the "doi" field
-            if (rootNode.has(WORKFLOW_STATUS)) {
-                String status = rootNode.get(WORKFLOW_STATUS).asText();
-                String doi = rootNode.get(DOI).asText();
-                if (status != null && status.equalsIgnoreCase(SAVED_STATUS) && doi != null && !doi.trim().equals("")) {
+            if (record.getWorkflowStatus() != null) {
+                String doi = record.getDoi();
+                if (doi == null) {
+                    throw new OSTIElinkException("The minted record doesn't have a doi");
+                }
+                if (record.getStatus() == WorkflowStatus.SAVED && !doi.trim().equals("")) {
                     DoiIdentifier = DOI + ":" + doi;
+                    rememberWrite(doi, record);
                 }
             } else {
                 System.out.println("OSTIv2JsonService.mintIdentifier - ERROR: Status field not found");
@@ -364,10 +639,9 @@ public class OSTIv2JsonService extends OSTIElinkService {
     @Override
     protected String buildMinimalMetadata(String siteCode) throws OSTIElinkException {
         String metadataStr = null;
-        ObjectMapper mapper = new ObjectMapper();
 
         // Load minimal metadata if not already loaded
-        if (minimalMetadataNode == null) {
+        if (minimalMetadataRecord == null) {
             // Check environment variable first, then fall back to default
             String metadataFileName = System.getenv(MINIMAL_METADATA_FILE_ENV_NAME);
             if (metadataFileName == null || metadataFileName.trim().isEmpty()) {
@@ -378,12 +652,12 @@ public class OSTIv2JsonService extends OSTIElinkService {
                     throw new IOException("Resource not found: " + metadataFileName);
                 }
 
-                // Read JSON from input stream into JsonNode
-                minimalMetadataNode = mapper.readTree(is);
+                // Read JSON from input stream into the record
+                minimalMetadataRecord = OstiJson.readRecord(is);
 
                 // Store the original site code
-                if (minimalMetadataNode.has("site_ownership_code")) {
-                    originalDefaultSiteCode = minimalMetadataNode.get("site_ownership_code").asText();
+                if (minimalMetadataRecord.getSiteOwnershipCode() != null) {
+                    originalDefaultSiteCode = minimalMetadataRecord.getSiteOwnershipCode();
                     currentDefaultSiteCode = originalDefaultSiteCode;
                     log.debug("OSTIElink.buildMinimalMetadata - Original site code: " + originalDefaultSiteCode);
                 }
@@ -402,9 +676,9 @@ public class OSTIv2JsonService extends OSTIElinkService {
             modifySiteCode(originalDefaultSiteCode);
         }
 
-        // Convert JsonNode to string
+        // Convert the record to string
         try {
-            metadataStr = mapper.writeValueAsString(minimalMetadataNode);
+            metadataStr = OstiJson.writeRecord(minimalMetadataRecord);
             log.debug("OSTIElink.buildMinimalMetadata - Final metadata: " + metadataStr);
         } catch (JsonProcessingException e) {
             throw new OSTIElinkException("OSTIElink.buildMinimalMetadata - Error serializing JSON: " + e.getMessage());
@@ -419,7 +693,7 @@ public class OSTIv2JsonService extends OSTIElinkService {
      * @throws OSTIElinkException if the modification fails
      */
     private void modifySiteCode(String siteCode) throws OSTIElinkException {
-        if (minimalMetadataNode == null) {
+        if (minimalMetadataRecord == null) {
             throw new OSTIElinkException("OSTIElink.modifySiteCode - Minimal metadata not loaded");
         }
 
@@ -428,9 +702,7 @@ public class OSTIv2JsonService extends OSTIElinkService {
         }
 
         try {
-            // Convert to ObjectNode to allow modifications
-            ObjectNode objectNode = (ObjectNode) minimalMetadataNode;
-            objectNode.put("site_ownership_code", siteCode);
+            minimalMetadataRecord.setSiteOwnershipCode(siteCode);
             currentDefaultSiteCode = siteCode;
             log.debug("OSTIElink.modifySiteCode - Updated site_ownership_code to: " + siteCode);
         } catch (Exception e) {
@@ -494,32 +766,77 @@ public class OSTIv2JsonService extends OSTIElinkService {
      */
     protected void handlePublishIdentifierCommand(String ostiId, String siteUrl)
             throws OSTIElinkException {
+        handlePublishIdentifierCommand(ostiId, siteUrl, null, null);
+    }
 
-        // 1. Get the metadata for the given osti id
-        String jsonMetadata = getMetadataFromOstiId(ostiId);
+    /**
+     * Handle publication of a DOI by sending to the submit endpoint. The doi of the record is
+     * checked before the submit if the osti id was derived by the prefix rules.
+     *
+     * @param ostiId The OSTI ID to publish
+     * @param siteUrl The site URL for the published record
+     * @param doi The DOI asked to be written. It can be null.
+     * @param derived The OSTI ID derived by the prefix rules before the write. It can be null.
+     * @throws OSTIElinkException
+     */
+    @Override
+    protected void handlePublishIdentifierCommand(String ostiId, String siteUrl, String doi,
+                                                  String derived) throws OSTIElinkException {
+
+        // 1. Get the metadata for the given osti id. A record written recently by this service
+        // may not be searchable yet, so the response of its last write is used.
+        String jsonMetadata;
+        RecentWrites store = getRecentWrites();
+        RecentWrites.Record written = store == null ? null : store.getByOstiId(ostiId);
+        if (written != null && written.getMetadata() != null) {
+            jsonMetadata = written.getMetadata();
+        } else {
+            jsonMetadata = getMetadataFromOstiId(ostiId);
+        }
         log.debug("OSTIv2JsonService.handlePublishIdentifierCommand(): The metadata for osti_id " + ostiId + " is\n" + jsonMetadata);
 
         try {
             // 2. Parse the metadata to get the record
-            ObjectNode record = JsonResponseHandler.getFirstNodeInArray(jsonMetadata);
-            handleSubmit(ostiId, siteUrl, record);
-        } catch (JsonProcessingException e) {
+            OstiRecord record = JsonResponseHandler.readFirstRecord(jsonMetadata);
+            if (record == null) {
+                throw new OSTIElinkException("There is no record for OSTI ID " + ostiId);
+            }
+            verifyDerivedWrite(doi, derived, ostiId, record.getDoi());
+            handleSubmit(ostiId, siteUrl, record, doi, derived);
+        } catch (IOException e) {
             throw new OSTIElinkException("Error processing metadata for OSTI ID " + ostiId + ": " + e.getMessage());
         }
     }
 
-    protected void handleSubmit(String ostiId, String siteUrl, ObjectNode record)
-        throws OSTIElinkException {
+    /**
+     * Submit the record to the given osti id with the site url. The doi echoed in the
+     * response is checked if the osti id was derived by the prefix rules.
+     *
+     * @param ostiId The OSTI ID of the record
+     * @param siteUrl The site URL for the published record
+     * @param record The record to submit
+     * @param doi The DOI asked to be written. It can be null.
+     * @param derived The OSTI ID derived by the prefix rules before the write. It can be null.
+     * @throws OSTIElinkException
+     */
+    protected void handleSubmit(String ostiId, String siteUrl, OstiRecord record, String doi,
+                                String derived) throws OSTIElinkException {
         // Prepare metadata for publishing - by replacing workflow_status with site_url
-        record.remove(WORKFLOW_STATUS);
-        record.put(SITE_URL, siteUrl);
+        record.setWorkflowStatus(null);
+        record.setSiteUrl(siteUrl);
 
         // If the record doesn't have a contractor number, add the default one
         ensureRequiredFieldsInPublish(record);
         //Call the publish endpoint directly
         String publishUrl =
             PUBLISH_DOI_ENDPOINT_URL + "/" + ostiId + "/" + DOI_RECORDS_ENDPONT_SUBMIT_PARAMETER;
-        String newMetadata = record.toString();
+        String newMetadata;
+        try {
+            newMetadata = OstiJson.writeRecord(record);
+        } catch (JsonProcessingException e) {
+            throw new OSTIElinkException("Can't write the record of OSTI ID " + ostiId + ": "
+                                             + e.getMessage());
+        }
         log.debug("Sending to publish " + "endpoint: " + publishUrl
                       + "\nThe modified metadata (removing workflow_status and adding site_url) "
                       + "is:\n"
@@ -531,12 +848,62 @@ public class OSTIv2JsonService extends OSTIElinkService {
         log.debug("Response from OSTI service: " + responseStr);
 
         // Verify the response
-        JsonResponseHandler.isResponseWithError(responseStr);
+        JsonNode responseNode = JsonResponseHandler.isResponseWithError(responseStr);
+        JsonNode written = responseNode.get(DOI);
+        String writtenDOI = written == null || written.isNull() ? null : written.asText();
+        verifyDerivedWrite(doi, derived, ostiId, writtenDOI);
+        String recordDOI = writtenDOI != null ? writtenDOI : record.getDoi();
+        if (recordDOI != null) {
+            rememberWrite(recordDOI, ostiId, responseNode);
+        }
 
         log.info("Successfully published OSTI ID " + ostiId);
 
     }
 
+    /**
+     * Remember the osti id and the workflow status from the response of a write, so the
+     * following lookups of the doi don't wait for the search index
+     * @param doi  the doi of the record
+     * @param ostiId  the osti id of the record if the caller knows it. It can be null.
+     * @param response  the json response of the write
+     */
+    private void rememberWrite(String doi, String ostiId, JsonNode response) {
+        JsonNode ostiIdNode = response.get(OSTI_ID);
+        JsonNode statusNode = response.get(WORKFLOW_STATUS);
+        rememberWrite(doi, ostiIdNode != null ? ostiIdNode.asText() : ostiId,
+                      statusNode != null ? statusNode.asText() : null,
+                      response.isObject() ? "[" + response + "]" : null);
+    }
+
+    /**
+     * Remember the fields of a record from the response of a write, e.g. of a mint
+     * @param doi  the doi of the record
+     * @param record  the record in the response of the write
+     * @throws JsonProcessingException  if the record can't be written as json
+     */
+    private void rememberWrite(String doi, OstiRecord record) throws JsonProcessingException {
+        rememberWrite(doi, record.getOstiId() == null ? null : record.getOstiId().toString(),
+                      record.getWorkflowStatus(), "[" + OstiJson.writeRecord(record) + "]");
+    }
+
+    /**
+     * Cache the osti ids of the records in a search response
+     * @param records  the json array of the records
+     */
+    private void rememberOstiIds(JsonNode records) {
+        if (records == null || !records.isArray()) {
+            return;
+        }
+        for (JsonNode record : records) {
+            JsonNode doi = record.get(DOI);
+            JsonNode ostiId = record.get(OSTI_ID);
+            if (doi != null && ostiId != null && !ostiId.isNull()) {
+                rememberOstiId(doi.asText(), ostiId.asText());
+            }
+        }
+    }
+
     protected void constructURLs() throws OSTIElinkException {
         // get the base URL from the property file
         log.info("OSTIv2JsonService.constructURLs(): The base URL from the property file is " + baseURL);
@@ -602,62 +969,21 @@ public class OSTIv2JsonService extends OSTIElinkService {
      *         }
      * @param root
      */
-    protected static void ensureRequiredFieldsInPublish(ObjectNode root) {
+    protected static void ensureRequiredFieldsInPublish(OstiRecord root) {
         if (root == null) return;
-        // Helper for creating identifiers
-        java.util.function.Function<String, ObjectNode> makeIdentifier = (value) -> {
-            ObjectNode obj = JsonNodeFactory.instance.objectNode();
-            obj.put("type", CONTRACT_NUMBER_FIELD);
-            obj.put("value", value);
-            return obj;
-        };
-
-        // Get or create top-level identifiers array
-        ArrayNode topIds;
-        JsonNode idsNode = root.get("identifiers");
-        if (idsNode != null && idsNode.isArray()) {
-            topIds = (ArrayNode) idsNode;
-        } else {
-            topIds = JsonNodeFactory.instance.arrayNode();
-            root.set("identifiers", topIds);
-        }
 
         // Locate sponsor organization (create if needed)
-        ArrayNode orgs;
-        JsonNode orgsNode = root.get("organizations");
-        if (orgsNode != null && orgsNode.isArray()) {
-            orgs = (ArrayNode) orgsNode;
-        } else {
-            orgs = JsonNodeFactory.instance.arrayNode();
-            root.set("organizations", orgs);
-        }
-
-        ObjectNode sponsor = null;
-        for (JsonNode org : orgs) {
-            if (org.hasNonNull("type") && "SPONSOR".equals(org.get("type").asText())) {
-                sponsor = (ObjectNode) org;
-                break;
-            }
-        }
+        Organization sponsor = root.findOrganization(Organization.SPONSOR);
         if (sponsor == null) {
-            sponsor = JsonNodeFactory.instance.objectNode();
-            sponsor.put("type", "SPONSOR");
-            sponsor.put("name", "Unknown Sponsor");
-            orgs.add(sponsor);
-        }
-
-        ArrayNode sponsorIds;
-        JsonNode sIdsNode = sponsor.get("identifiers");
-        if (sIdsNode != null && sIdsNode.isArray()) {
-            sponsorIds = (ArrayNode) sIdsNode;
-        } else {
-            sponsorIds = JsonNodeFactory.instance.arrayNode();
-            sponsor.set("identifiers", sponsorIds);
+            sponsor = new Organization(Organization.SPONSOR, "Unknown Sponsor");
+            root.organizations().add(sponsor);
         }
 
         // Extract current CN_DOE values
-        String topValue = findDOEContractValue(topIds, CONTRACT_NUMBER_FIELD);
-        String sponsorValue = findDOEContractValue(sponsorIds, CONTRACT_NUMBER_FIELD);
+        String topValue =
+            OstiRecord.findIdentifierValue(root.getIdentifiers(), CONTRACT_NUMBER_FIELD);
+        String sponsorValue =
+            OstiRecord.findIdentifierValue(sponsor.getIdentifiers(), CONTRACT_NUMBER_FIELD);
 
         // --- Step 4. Apply logic ---
         if (topValue != null && sponsorValue != null) {
@@ -665,26 +991,16 @@ public class OSTIv2JsonService extends OSTIElinkService {
             return;
         } else if (topValue == null && sponsorValue != null) {
             // copy sponsor → top-level
-            topIds.add(makeIdentifier.apply(sponsorValue));
+            root.identifiers().add(new Identifier(CONTRACT_NUMBER_FIELD, sponsorValue));
         } else if (topValue != null && sponsorValue == null) {
             // copy top-level → sponsor
-            sponsorIds.add(makeIdentifier.apply(topValue));
+            sponsor.identifiers().add(new Identifier(CONTRACT_NUMBER_FIELD, topValue));
         } else {
             // both missing → create both with default
-            topIds.add(makeIdentifier.apply(DEFAULT_CONTRACT_NUMBER));
-            sponsorIds.add(makeIdentifier.apply(DEFAULT_CONTRACT_NUMBER));
-        }
-    }
-
-    // Method to find the CN_DOE (DOE contract number) values
-    private static String findDOEContractValue(ArrayNode arr, String type) {
-        for (JsonNode id : arr) {
-            if (id.hasNonNull("type") && type.equals(id.get("type").asText())
-                && id.hasNonNull("value") && !id.get("value").asText().isEmpty()) {
-                return id.get("value").asText();
-            }
+            root.identifiers().add(new Identifier(CONTRACT_NUMBER_FIELD, DEFAULT_CONTRACT_NUMBER));
+            sponsor.identifiers()
+                .add(new Identifier(CONTRACT_NUMBER_FIELD, DEFAULT_CONTRACT_NUMBER));
         }
-        return null;
     }
 
     // methods to access the endpoints
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.ucsb.nceas.osti_elink.OSTIElinkException;
+import edu.ucsb.nceas.osti_elink.v2.json.model.OstiJson;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -16,7 +17,7 @@ import org.apache.commons.logging.LogFactory;
  */
 public class PublishIdentifierCommand extends edu.ucsb.nceas.osti_elink.PublishIdentifierCommand {
     private static final Log log = LogFactory.getLog(PublishIdentifierCommand.class);
-    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final ObjectMapper mapper = OstiJson.getMapper();
     public static final String WORKFLOW_STATUS = "workflow_status";
     public static final String SITE_URL = "site_url";
     private static final String OSTI_ID = "osti_id";
@@ -0,0 +1,37 @@
+package edu.ucsb.nceas.osti_elink.v2.json.model;
+
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonAnySetter;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A json object of the OSTI api bound to a class. The fields the class doesn't declare are
+ * kept as they are, so a record read from the service can be written back without losing
+ * them.
+ * @author Tao
+ */
+public abstract class ExtensibleObject {
+    private final Map<String, JsonNode> otherFields = new LinkedHashMap<>();
+
+    /**
+     * Get the fields which the class doesn't declare
+     * @return the map of the field names and their values
+     */
+    @JsonAnyGetter
+    public Map<String, JsonNode> getOtherFields() {
+        return otherFields;
+    }
+
+    /**
+     * Set a field which the class doesn't declare
+     * @param name  the name of the field
+     * @param value  the value of the field
+     */
+    @JsonAnySetter
+    public void setOtherField(String name, JsonNode value) {
+        otherFields.put(name, value);
+    }
+}
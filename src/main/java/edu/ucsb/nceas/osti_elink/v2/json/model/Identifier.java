@@ -0,0 +1,45 @@
+package edu.ucsb.nceas.osti_elink.v2.json.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * An identifier of a record or an organization, e.g. a DOE contract number
+ * @author Tao
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class Identifier extends ExtensibleObject {
+    private String type;
+    private String value;
+
+    /**
+     * Default constructor for the json binding
+     */
+    public Identifier() {
+    }
+
+    /**
+     * Constructor
+     * @param type  the type of the identifier, e.g. CN_DOE
+     * @param value  the value of the identifier
+     */
+    public Identifier(String type, String value) {
+        this.type = type;
+        this.value = value;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public void setValue(String value) {
+        this.value = value;
+    }
+}
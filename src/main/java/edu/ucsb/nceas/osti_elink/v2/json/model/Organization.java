@@ -0,0 +1,69 @@
+package edu.ucsb.nceas.osti_elink.v2.json.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An organization of a record, e.g. the sponsor or the researching one
+ * @author Tao
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class Organization extends ExtensibleObject {
+    public static final String SPONSOR = "SPONSOR";
+    private String type;
+    private String name;
+    private List<Identifier> identifiers;
+
+    /**
+     * Default constructor for the json binding
+     */
+    public Organization() {
+    }
+
+    /**
+     * Constructor
+     * @param type  the type of the organization, e.g. SPONSOR
+     * @param name  the name of the organization
+     */
+    public Organization(String type, String name) {
+        this.type = type;
+        this.name = name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public List<Identifier> getIdentifiers() {
+        return identifiers;
+    }
+
+    public void setIdentifiers(List<Identifier> identifiers) {
+        this.identifiers = identifiers;
+    }
+
+    /**
+     * Get the identifiers of the organization, creating the list if it doesn't have one
+     * @return the modifiable list of the identifiers
+     */
+    public List<Identifier> identifiers() {
+        if (identifiers == null) {
+            identifiers = new ArrayList<>();
+        }
+        return identifiers;
+    }
+}
@@ -0,0 +1,139 @@
+package edu.ucsb.nceas.osti_elink.v2.json.model;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * The json binding shared by the v2 classes. The mapper, readers and writers are configured
+ * once and are thread safe, so the calls don't create them again and Jackson reuses the
+ * serializers and deserializers it built for the record classes. If the Blackbird or the
+ * Afterburner module is on the classpath, it is registered to replace the reflection in the
+ * binding by generated code.
+ * @author Tao
+ */
+public class OstiJson {
+    private static final String[] ACCELERATION_MODULES = {
+        "com.fasterxml.jackson.module.blackbird.BlackbirdModule",
+        "com.fasterxml.jackson.module.afterburner.AfterburnerModule"};
+    private static final Log log = LogFactory.getLog(OstiJson.class);
+    private static final ObjectMapper mapper = createMapper();
+    private static final ObjectReader recordReader = mapper.readerFor(OstiRecord.class);
+    private static final ObjectReader recordsReader =
+        mapper.readerFor(new TypeReference<List<OstiRecord>>() {});
+    private static final ObjectWriter recordWriter = mapper.writerFor(OstiRecord.class);
+
+    private OstiJson() {
+    }
+
+    /**
+     * Get the shared mapper, e.g. to read the json trees
+     * @return the mapper. It shouldn't be configured again.
+     */
+    public static ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * Read a record
+     * @param json  the json object of the record
+     * @return the record
+     * @throws IOException  if the json isn't a valid record
+     */
+    public static OstiRecord readRecord(byte[] json) throws IOException {
+        return recordReader.readValue(json);
+    }
+
+    /**
+     * Read a record
+     * @param json  the json object of the record
+     * @return the record
+     * @throws JsonProcessingException  if the json isn't a valid record
+     */
+    public static OstiRecord readRecord(String json) throws JsonProcessingException {
+        return recordReader.readValue(json);
+    }
+
+    /**
+     * Bind a json tree, e.g. one already parsed to check it, to a record
+     * @param node  the json object of the record
+     * @return the record
+     * @throws IOException  if the json isn't a valid record
+     */
+    public static OstiRecord readRecord(JsonNode node) throws IOException {
+        return recordReader.readValue(node);
+    }
+
+    /**
+     * Read a record
+     * @param json  the stream of the json object of the record
+     * @return the record
+     * @throws IOException  if the stream can't be read or the json isn't a valid record
+     */
+    public static OstiRecord readRecord(InputStream json) throws IOException {
+        return recordReader.readValue(json);
+    }
+
+    /**
+     * Read the record at the current token of a parser, e.g. an element of an array which is
+     * streamed
+     * @param parser  the parser at the start of the json object of the record
+     * @return the record
+     * @throws IOException  if the json isn't a valid record
+     */
+    public static OstiRecord readRecord(JsonParser parser) throws IOException {
+        return recordReader.readValue(parser);
+    }
+
+    /**
+     * Read the records, e.g. the response of a search
+     * @param json  the json array of the records
+     * @return the records
+     * @throws JsonProcessingException  if the json isn't an array of valid records
+     */
+    public static List<OstiRecord> readRecords(String json) throws JsonProcessingException {
+        return recordsReader.readValue(json);
+    }
+
+    /**
+     * Write a record
+     * @param record  the record
+     * @return the json object of the record
+     * @throws JsonProcessingException  if the record can't be written
+     */
+    public static String writeRecord(OstiRecord record) throws JsonProcessingException {
+        return recordWriter.writeValueAsString(record);
+    }
+
+    private static ObjectMapper createMapper() {
+        ObjectMapper mapper = new ObjectMapper();
+        // The unknown fields are kept by the records, and the other classes shouldn't fail
+        mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        for (String name : ACCELERATION_MODULES) {
+            try {
+                mapper.registerModule((Module) Class.forName(name).getDeclaredConstructor()
+                    .newInstance());
+                log.info("OstiJson - registered the json binding module " + name);
+                break;
+            } catch (ClassNotFoundException e) {
+                log.debug("OstiJson - the json binding module " + name + " isn't available");
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                log.warn("OstiJson - can't register the json binding module " + name + ": "
+                             + e.getMessage());
+            }
+        }
+        return mapper;
+    }
+}
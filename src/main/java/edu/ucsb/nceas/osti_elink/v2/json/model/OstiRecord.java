@@ -0,0 +1,173 @@
+package edu.ucsb.nceas.osti_elink.v2.json.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A record of the OSTI v2 api. Only the fields this library reads or changes are declared;
+ * the others, e.g. the authors and the descriptions, are kept as json, so a record read from
+ * the service is written back as it was.
+ * @author Tao
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({"osti_id", "doi", "workflow_status", "title", "product_type",
+    "site_ownership_code", "site_url", "identifiers", "organizations"})
+public class OstiRecord extends ExtensibleObject {
+    @JsonProperty("osti_id")
+    private Long ostiId;
+    private String doi;
+    @JsonProperty("workflow_status")
+    private String workflowStatus;
+    private String title;
+    @JsonProperty("product_type")
+    private String productType;
+    @JsonProperty("site_ownership_code")
+    private String siteOwnershipCode;
+    @JsonProperty("site_url")
+    private String siteUrl;
+    private List<Identifier> identifiers;
+    private List<Organization> organizations;
+
+    public Long getOstiId() {
+        return ostiId;
+    }
+
+    public void setOstiId(Long ostiId) {
+        this.ostiId = ostiId;
+    }
+
+    public String getDoi() {
+        return doi;
+    }
+
+    public void setDoi(String doi) {
+        this.doi = doi;
+    }
+
+    public String getWorkflowStatus() {
+        return workflowStatus;
+    }
+
+    public void setWorkflowStatus(String workflowStatus) {
+        this.workflowStatus = workflowStatus;
+    }
+
+    /**
+     * Get the workflow status as the enum
+     * @return the status. Null will be returned if the record doesn't have one or it is a
+     *         status this library doesn't handle.
+     */
+    @JsonIgnore
+    public WorkflowStatus getStatus() {
+        return WorkflowStatus.fromCode(workflowStatus);
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public String getProductType() {
+        return productType;
+    }
+
+    public void setProductType(String productType) {
+        this.productType = productType;
+    }
+
+    public String getSiteOwnershipCode() {
+        return siteOwnershipCode;
+    }
+
+    public void setSiteOwnershipCode(String siteOwnershipCode) {
+        this.siteOwnershipCode = siteOwnershipCode;
+    }
+
+    public String getSiteUrl() {
+        return siteUrl;
+    }
+
+    public void setSiteUrl(String siteUrl) {
+        this.siteUrl = siteUrl;
+    }
+
+    public List<Identifier> getIdentifiers() {
+        return identifiers;
+    }
+
+    public void setIdentifiers(List<Identifier> identifiers) {
+        this.identifiers = identifiers;
+    }
+
+    public List<Organization> getOrganizations() {
+        return organizations;
+    }
+
+    public void setOrganizations(List<Organization> organizations) {
+        this.organizations = organizations;
+    }
+
+    /**
+     * Get the identifiers of the record, creating the list if it doesn't have one
+     * @return the modifiable list of the identifiers
+     */
+    public List<Identifier> identifiers() {
+        if (identifiers == null) {
+            identifiers = new ArrayList<>();
+        }
+        return identifiers;
+    }
+
+    /**
+     * Get the organizations of the record, creating the list if it doesn't have one
+     * @return the modifiable list of the organizations
+     */
+    public List<Organization> organizations() {
+        if (organizations == null) {
+            organizations = new ArrayList<>();
+        }
+        return organizations;
+    }
+
+    /**
+     * Find the first organization of the type
+     * @param type  the type of the organization, e.g. SPONSOR
+     * @return the organization. Null will be returned if the record doesn't have one.
+     */
+    public Organization findOrganization(String type) {
+        if (organizations != null) {
+            for (Organization organization : organizations) {
+                if (organization != null && type.equals(organization.getType())) {
+                    return organization;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the first non-empty value of the identifiers of the type
+     * @param identifiers  the identifiers. It can be null.
+     * @param type  the type of the identifier, e.g. CN_DOE
+     * @return the value. Null will be returned if there isn't one.
+     */
+    public static String findIdentifierValue(List<Identifier> identifiers, String type) {
+        if (identifiers != null) {
+            for (Identifier identifier : identifiers) {
+                if (identifier != null && type.equals(identifier.getType())
+                    && identifier.getValue() != null && !identifier.getValue().isEmpty()) {
+                    return identifier.getValue();
+                }
+            }
+        }
+        return null;
+    }
+}
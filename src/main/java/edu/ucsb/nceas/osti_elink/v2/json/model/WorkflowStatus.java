@@ -0,0 +1,40 @@
+package edu.ucsb.nceas.osti_elink.v2.json.model;
+
+/**
+ * The workflow statuses of the records which this library handles. The records keep the codes
+ * as they are, so the other statuses are still read and written.
+ * @author Tao
+ */
+public enum WorkflowStatus {
+    SAVED("SA"),
+    SUBMITTED_TO_OSTI("SO"),
+    RELEASED("R");
+
+    private final String code;
+
+    WorkflowStatus(String code) {
+        this.code = code;
+    }
+
+    /**
+     * Get the code of the status in the OSTI api
+     * @return the code, e.g. SA
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * Get the status of a code
+     * @param code  the code of the status. The case doesn't matter.
+     * @return the status. Null will be returned if the code is null or unknown.
+     */
+    public static WorkflowStatus fromCode(String code) {
+        for (WorkflowStatus status : values()) {
+            if (status.code.equalsIgnoreCase(code)) {
+                return status;
+            }
+        }
+        return null;
+    }
+}
@@ -1,16 +1,33 @@
 package edu.ucsb.nceas.osti_elink.v2.response;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import edu.ucsb.nceas.osti_elink.OSTIElinkException;
+import edu.ucsb.nceas.osti_elink.v2.json.model.OstiJson;
+import edu.ucsb.nceas.osti_elink.v2.json.model.OstiRecord;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * @author Tao
  * This class parse the json response from a query against the v2 api
  */
 public class JsonResponseHandler {
+    // The ObjectMapper is thread safe after it is configured, so the one of the json binding
+    // is shared by all calls.
+    private static final ObjectMapper mapper = OstiJson.getMapper();
 
     /**
      * Get the first non-null value of a json string with the given path (first level in the
@@ -24,20 +41,7 @@ public class JsonResponseHandler {
      * @throws JsonProcessingException
      */
     public static String getPathValue(String json, String path) throws JsonProcessingException {
-        ObjectMapper mapper = new ObjectMapper();
-        JsonNode arrayNode = mapper.readTree(json);
-        if (arrayNode != null) {
-            if (arrayNode.isArray()) {
-                for (JsonNode node : arrayNode) {
-                    JsonNode element = node.get(path);
-                    if (element != null && element.asText() != null) {
-                        //find the first non-null value
-                        return element.asText();
-                    }
-                }
-            }
-        }
-        return null;
+        return getPathValue(mapper.readTree(json), path);
     }
 
     /**
@@ -49,7 +53,6 @@ public class JsonResponseHandler {
      * @return the first json array node. It may return null if it can't find it.
      */
     public static ObjectNode getFirstNodeInArray(String json) throws JsonProcessingException {
-        ObjectMapper mapper = new ObjectMapper();
         JsonNode arrayNode = mapper.readTree(json);
         if (arrayNode != null) {
             if (arrayNode.isArray()) {
@@ -59,6 +62,23 @@ public class JsonResponseHandler {
         return null;
     }
 
+    /**
+     * Read the first record from the given json string (it is an array) into the typed model
+     * @param json  the json string
+     * @return the first record. It may return null if it can't find it.
+     * @throws IOException if the json isn't valid or its first element isn't a record
+     */
+    public static OstiRecord readFirstRecord(String json) throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY
+                || parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            // The following records are not read
+            return OstiJson.readRecord(parser);
+        }
+    }
+
     /**
      * Parse the response json string to see if it is an error message. If the response is an
      * error message, it throws an exception. Note: The null or blank responses are considered
@@ -70,7 +90,6 @@ public class JsonResponseHandler {
         if (response == null || response.trim().equals("")) {
             throw new OSTIElinkException("The response for the request is blank");
         }
-        ObjectMapper mapper = new ObjectMapper();
         JsonNode node;
         try {
             node = mapper.readTree(response);
@@ -84,6 +103,87 @@ public class JsonResponseHandler {
         return node;
     }
 
+    /**
+     * Read the array of records from the given stream and only keep the given fields (first
+     * level) of each record. The other fields are skipped by the parser without being
+     * materialized. If the json isn't an array, for example an error message, the whole json
+     * node is returned.
+     * For example: if the stream is
+     * "[{"name": "John", "age": 30}, {"name": "Mary", "age": 25}]" and the field is "name", the
+     * method will return [{"name": "John"}, {"name": "Mary"}].
+     * @param body  the stream of the json
+     * @param fields  the names of the fields which will be kept
+     * @return the json node of the records. Null will be returned if the stream is empty.
+     * @throws IOException if the stream can't be read or it isn't a valid json
+     */
+    public static JsonNode readRecords(InputStream body, String... fields) throws IOException {
+        Set<String> wanted = new HashSet<>(Arrays.asList(fields));
+        try (JsonParser parser = mapper.getFactory().createParser(body)) {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                return null;
+            }
+            if (token != JsonToken.START_ARRAY) {
+                return mapper.readTree(parser);
+            }
+            ArrayNode records = mapper.createArrayNode();
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null) {
+                    throw new JsonParseException(parser, "The json array is not closed");
+                }
+                if (token != JsonToken.START_OBJECT) {
+                    records.add((JsonNode) mapper.readTree(parser));
+                    continue;
+                }
+                ObjectNode record = records.addObject();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.currentName();
+                    parser.nextToken();
+                    if (wanted.contains(name)) {
+                        record.set(name, (JsonNode) mapper.readTree(parser));
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            return records;
+        }
+    }
+
+    /**
+     * Get the first non-null value of the given path (first level in the array element) from
+     * the json stream. Only the value of the path is materialized.
+     * @param body  the stream of the json
+     * @param path  the path will be looked
+     * @return  the value of element. Null will be returned if it cannot be found
+     * @throws IOException if the stream can't be read or it isn't a valid json
+     */
+    public static String getPathValue(InputStream body, String path) throws IOException {
+        return getPathValue(readRecords(body, path), path);
+    }
+
+    /**
+     * Get the first non-null value of the given path (first level in the array element) from
+     * the json node
+     * @param arrayNode  the json node will be looked up
+     * @param path  the path will be looked
+     * @return  the value of element. Null will be returned if it cannot be found
+     */
+    public static String getPathValue(JsonNode arrayNode, String path) {
+        if (arrayNode != null) {
+            if (arrayNode.isArray()) {
+                for (JsonNode node : arrayNode) {
+                    JsonNode element = node.get(path);
+                    if (element != null && element.asText() != null) {
+                        //find the first non-null value
+                        return element.asText();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Determine if the given JsonNode is empty or not
      * @param node  the node will be checked
@@ -96,4 +196,35 @@ public class JsonResponseHandler {
         return false;
     }
 
+    /**
+     * Get the status codes of the entries in the errors array of an error response.
+     * For example: if the body is
+     * "{"errors":[{"status":"400","detail":"Invalid or unknown field reference"}]}", the method
+     * will return [400].
+     * @param body  the body of the response. It can be null.
+     * @return the list of the status codes. An empty list will be returned if the body isn't an
+     *         error response or the entries don't have a numeric status.
+     */
+    public static List<Integer> getErrorStatuses(byte[] body) {
+        List<Integer> statuses = new ArrayList<>();
+        if (body == null || body.length == 0) {
+            return statuses;
+        }
+        JsonNode errors;
+        try {
+            errors = mapper.readTree(body).get("errors");
+        } catch (IOException | RuntimeException e) {
+            return statuses;
+        }
+        if (errors != null && errors.isArray()) {
+            for (JsonNode error : errors) {
+                JsonNode status = error.get("status");
+                if (status != null && status.asInt(0) > 0) {
+                    statuses.add(status.asInt());
+                }
+            }
+        }
+        return statuses;
+    }
+
 }
@@ -2,12 +2,14 @@ package edu.ucsb.nceas.osti_elink.v2.xml;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.ucsb.nceas.osti_elink.OSTIElinkCircuitOpenException;
 import edu.ucsb.nceas.osti_elink.OSTIElinkException;
 import edu.ucsb.nceas.osti_elink.OSTIElinkNotFoundException;
 import edu.ucsb.nceas.osti_elink.OSTIElinkService;
 import edu.ucsb.nceas.osti_elink.OSTIServiceFactory;
 import edu.ucsb.nceas.osti_elink.exception.PropertyNotFound;
+import edu.ucsb.nceas.osti_elink.v2.json.model.OstiJson;
+import edu.ucsb.nceas.osti_elink.v2.json.model.OstiRecord;
 import edu.ucsb.nceas.osti_elink.v2.response.JsonResponseHandler;
 import org.apache.commons.io.FileUtils;
 import org.apache.http.HttpHeaders;
@@ -100,43 +102,45 @@ public class OSTIv2XmlService extends OSTIElinkService {
         String status;
         String metadata = null;
         long start = System.currentTimeMillis();
-        for (int i = 0; i <= maxAttempts; i++ ) {
-            try {
-                metadata = getMetadata(doi);
-                break;
-            } catch (OSTIElinkNotFoundException e) {
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException ex) {
-                    log.warn("The thread waiting for the DOI searchable in the getStatus method "
-                                 + "was interrupted " + ex.getMessage());
-                }
-            }
-            if (i >= maxAttempts) {
-                throw new OSTIElinkNotFoundException("The library tried " + maxAttempts + " times"
-                                                         + " to query the status of " + doi + " "
-                                                         + "from the OSTI service. However OSTI "
-                                                         + "service still can't find it");
-            }
+        try {
+            metadata = getMetadata(doi);
+        } catch (OSTIElinkNotFoundException e) {
+            // The doi isn't searchable yet. The wait is coalesced with the ones of the other
+            // threads.
+            metadata = awaitSearchable(doi, maxAttempts * 200L);
+            long end = System.currentTimeMillis();
+            log.warn("It waited " + (end - start)/1000 + " seconds for doi " + doi + " to be "
+                         + "searchable after minting it.");
         }
-        long end = System.currentTimeMillis();
-        log.warn("It waited " + (end - start)/1000 + " seconds for doi " + doi + " to be "
-                     + "searchable after minting it.");
+        status = parseStatus(metadata);
+        log.debug("The status of " + doi + " is " + status);
+        return status;
+    }
+
+    /**
+     * Parse the workflow status from the metadata of a record. The status of SA is mapped to
+     * Saved as the getStatus method does.
+     * @param metadata  the json metadata returned by the search of a doi
+     * @return  the status of the record
+     * @throws OSTIElinkException  if the metadata has no workflow_status
+     */
+    @Override
+    protected String parseStatus(String metadata) throws OSTIElinkException {
+        String status;
         try {
             status = JsonResponseHandler.getPathValue(metadata, WORKFLOW_STATUS);
         } catch (JsonProcessingException e) {
             throw new OSTIElinkException(e.getMessage());
         }
         if (status == null) {
-            throw new OSTIElinkException("There is no workflow_status for " + doi +" in the query"
-                                             + " result:\n" + metadata);
+            throw new OSTIElinkException("There is no workflow_status in the query result:\n"
+                                             + metadata);
         }
         // Our metacat checks the status of Saved. However, from v1 to v2, the status of Saved
         // changed to SA. In order not to change Metacat's code, we need to map SA to Saved
         if (status.equals("SA")) {
             status = OSTIElinkService.SAVED;
         }
-        log.debug("The status of " + doi + " is " + status);
         return status;
     }
 
@@ -314,21 +318,32 @@ public class OSTIv2XmlService extends OSTIElinkService {
     @Override
     protected void handlePublishIdentifierCommand(String ostiId, String siteUrl)
         throws OSTIElinkException {
+        handlePublishIdentifierCommand(ostiId, siteUrl, null, null);
+    }
+
+    @Override
+    protected void handlePublishIdentifierCommand(String ostiId, String siteUrl, String doi,
+                                                  String derived) throws OSTIElinkException {
         //First, query the ostiId from the service
         String jsonMetadata = getMetadataFromOstiId(ostiId);
         log.debug("The metadata for osti_id " + ostiId + " is\n" + jsonMetadata);
         // Extract the record from the metadata (it is a json array)
         try {
-            ObjectNode record = JsonResponseHandler.getFirstNodeInArray(jsonMetadata);
+            OstiRecord record = JsonResponseHandler.readFirstRecord(jsonMetadata);
+            if (record == null) {
+                throw new OSTIElinkException("There is no record for osti_id " + ostiId);
+            }
+            // A wrong derived osti id must not publish the record of another doi
+            verifyDerivedWrite(doi, derived, ostiId, record.getDoi());
             //Manipulate the record - removing the workflow_status and adding the site url
-            record.remove(WORKFLOW_STATUS);
-            record.put(SITE_URL, siteUrl);
+            record.setWorkflowStatus(null);
+            record.setSiteUrl(siteUrl);
             // Send the modified record back
-            String newMetadata = record.toString();
+            String newMetadata = OstiJson.writeRecord(record);
             log.debug("The modified metadata (removing workflow_status and adding site_url is\n"
                           + newMetadata);
             setJsonMetadata(ostiId, newMetadata);
-        } catch (JsonProcessingException e) {
+        } catch (IOException e) {
             throw new OSTIElinkException(e.getMessage());
         }
     }
@@ -349,6 +364,9 @@ public class OSTIv2XmlService extends OSTIElinkService {
             // Parse the response to determine if the request succeeded or failed. If it failed, an
             // exception will be thrown.
             JsonResponseHandler.isResponseWithError(responseStr);
+        } catch (OSTIElinkCircuitOpenException e) {
+            // Keep the type so the caller can park the request
+            throw e;
         } catch (OSTIElinkException e) {
             throw new OSTIElinkException("Can't set the json metadata for osti_id " + osti_id +
                                              " since " + e.getMessage());
@@ -0,0 +1,115 @@
+package edu.ucsb.nceas.osti_elink;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the CircuitBreaker and EndpointClass classes
+ * @author Tao
+ */
+public class CircuitBreakerTest {
+
+    /**
+     * Test the requests are classified to the endpoint classes
+     */
+    @Test
+    public void testClassify() {
+        String records = "https://www.osti.gov/elink2api/records";
+        assertEquals(EndpointClass.SEARCH, EndpointClass.classify("GET", records + "?doi=10.1"));
+        assertEquals(EndpointClass.SEARCH, EndpointClass.classify("HEAD", records + "/1"));
+        assertEquals(EndpointClass.SAVE, EndpointClass.classify("POST", records + "/save"));
+        assertEquals(EndpointClass.SAVE, EndpointClass.classify("PATCH", records + "/1/save"));
+        assertEquals(EndpointClass.SUBMIT, EndpointClass.classify("PUT", records + "/1/submit"));
+        assertEquals(EndpointClass.UPLOAD,
+                     EndpointClass.classify("POST", "https://www.osti.gov/elink/2416api"));
+    }
+
+    /**
+     * Test a circuit opens after the consecutive failures and the other circuits stay closed
+     * @throws Exception
+     */
+    @Test
+    public void testTripOnThreshold() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60000, 1);
+        breaker.acquire(EndpointClass.SAVE).complete(503);
+        breaker.acquire(EndpointClass.SAVE).complete(500);
+        // A success resets the count of the consecutive failures
+        breaker.acquire(EndpointClass.SAVE).complete(200);
+        breaker.acquire(EndpointClass.SAVE).failed("connection reset");
+        breaker.acquire(EndpointClass.SAVE).complete(429);
+        // The 4xx errors of the callers count as successes
+        breaker.acquire(EndpointClass.SAVE).complete(404);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(EndpointClass.SAVE));
+        for (int i = 0; i < 3; i++) {
+            breaker.acquire(EndpointClass.SAVE).complete(502);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(EndpointClass.SAVE));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(EndpointClass.SEARCH));
+        assertEquals(1, breaker.getTrips());
+        try {
+            breaker.acquire(EndpointClass.SAVE);
+            fail("The open circuit should reject the request");
+        } catch (OSTIElinkCircuitOpenException e) {
+            assertEquals(EndpointClass.SAVE, e.getEndpointClass());
+            assertTrue(e.getRetryAfterMillis() > 0 && e.getRetryAfterMillis() <= 60000);
+        }
+        assertEquals(1, breaker.getRejectedRequests());
+        breaker.acquire(EndpointClass.SEARCH).complete(200);
+        breaker.reset();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(EndpointClass.SAVE));
+        breaker.acquire(EndpointClass.SAVE).complete(200);
+    }
+
+    /**
+     * Test a 401 or 403 response opens all the circuits at once
+     * @throws Exception
+     */
+    @Test
+    public void testAuthenticationTripsAll() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(5, 60000, 1);
+        breaker.acquire(EndpointClass.SEARCH).complete(401);
+        for (EndpointClass endpointClass : EndpointClass.values()) {
+            assertEquals(CircuitBreaker.State.OPEN, breaker.getState(endpointClass));
+        }
+        breaker.reset();
+        breaker.acquire(EndpointClass.SUBMIT).complete(403);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(EndpointClass.UPLOAD));
+    }
+
+    /**
+     * Test a half-open circuit lets a trickle of probes through and closes or opens again by
+     * their outcomes
+     * @throws Exception
+     */
+    @Test
+    public void testHalfOpenProbes() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50, 1);
+        breaker.acquire(EndpointClass.SUBMIT).complete(500);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(EndpointClass.SUBMIT));
+        Thread.sleep(100);
+        CircuitBreaker.Permit probe = breaker.acquire(EndpointClass.SUBMIT);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(EndpointClass.SUBMIT));
+        try {
+            breaker.acquire(EndpointClass.SUBMIT);
+            fail("Only one probe should be let through");
+        } catch (OSTIElinkCircuitOpenException e) {
+            assertTrue(e.getRetryAfterMillis() <= 50);
+        }
+        // A failed probe opens the circuit again
+        probe.failed("timeout");
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(EndpointClass.SUBMIT));
+        assertEquals(2, breaker.getTrips());
+        Thread.sleep(100);
+        // A released probe frees the slot without changing the state
+        breaker.acquire(EndpointClass.SUBMIT).release();
+        probe = breaker.acquire(EndpointClass.SUBMIT);
+        probe.complete(200);
+        // The later outcomes of a permit are ignored
+        probe.failed("ignored");
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(EndpointClass.SUBMIT));
+        CircuitBreaker.Permit.NONE.complete(500);
+    }
+}
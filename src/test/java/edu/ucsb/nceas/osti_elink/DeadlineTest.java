@@ -0,0 +1,81 @@
+package edu.ucsb.nceas.osti_elink;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the Deadline class
+ * @author Tao
+ */
+public class DeadlineTest {
+
+    /**
+     * Test a nested deadline never extends the one of its caller
+     * @throws Exception
+     */
+    @Test
+    public void testNestedDeadlines() throws Exception {
+        assertNull(Deadline.current());
+        Deadline outer = Deadline.after(Duration.ofSeconds(10));
+        Deadline inner = Deadline.after(Duration.ofSeconds(60));
+        Deadline shorter = Deadline.after(Duration.ofSeconds(1));
+        outer.run(() -> {
+            assertSame(outer, Deadline.current());
+            inner.run(() -> {
+                assertSame(outer, Deadline.current());
+                return null;
+            });
+            shorter.run(() -> {
+                assertSame(shorter, Deadline.current());
+                return null;
+            });
+            assertSame(outer, Deadline.current());
+            return null;
+        });
+        assertNull(Deadline.current());
+        assertTrue(outer.getRemainingMillis() > 0);
+        assertTrue(outer.getRemainingMillis() <= 10000);
+        assertFalse(outer.isExpired());
+    }
+
+    /**
+     * Test an expired deadline
+     * @throws Exception
+     */
+    @Test
+    public void testExpiredDeadline() throws Exception {
+        Deadline deadline = Deadline.after(Duration.ZERO);
+        assertTrue(deadline.isExpired());
+        assertEquals(0, deadline.getRemainingMillis());
+        try {
+            deadline.check("sending the request");
+            fail("The test shouldn't get here since the deadline expired");
+        } catch (OSTIElinkTimeoutException e) {
+            assertTrue(e.getMessage().contains("sending the request"));
+        }
+        // The deadline is removed from the thread even if the task fails
+        try {
+            deadline.run(() -> {
+                throw new OSTIElinkException("failed");
+            });
+            fail("The test shouldn't get here since the task failed");
+        } catch (OSTIElinkException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertNull(Deadline.current());
+        try {
+            Deadline.after(Duration.ofMillis(-1));
+            fail("The test shouldn't get here since the timeout is negative");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("negative"));
+        }
+    }
+}
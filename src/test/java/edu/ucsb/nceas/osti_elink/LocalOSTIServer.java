@@ -0,0 +1,140 @@
+package edu.ucsb.nceas.osti_elink;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.ucsb.nceas.osti_elink.v2.json.OSTIv2JsonService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+
+/**
+ * A tiny http server running in the test jvm which imitates the OSTI service. The tests
+ * register a responder which decides the status code and body of every request, so the
+ * services can be tested without the network and the OSTI token.
+ * @author Tao
+ */
+public class LocalOSTIServer {
+    private HttpServer server;
+    private volatile Responder responder;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * The interface to decide the response of a request
+     */
+    public interface Responder {
+        /**
+         * Decide the response of the given exchange
+         * @param exchange  the request from the service
+         * @return the response
+         * @throws IOException
+         */
+        Response respond(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * A response of the local server
+     */
+    public static class Response {
+        final int status;
+        final byte[] body;
+        final Map<String, String> headers;
+
+        public Response(int status, String body) {
+            this(status, body == null ? null : body.getBytes(StandardCharsets.UTF_8), null);
+        }
+
+        public Response(int status, byte[] body, Map<String, String> headers) {
+            this.status = status;
+            this.body = body;
+            this.headers = headers;
+        }
+    }
+
+    /**
+     * Start the server on a random port
+     * @param responder  the responder of the requests
+     * @throws IOException
+     */
+    public LocalOSTIServer(Responder responder) throws IOException {
+        this.responder = responder;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI());
+            Response response = this.responder.respond(exchange);
+            byte[] body = response.body == null ? new byte[0] : response.body;
+            if (response.headers != null) {
+                for (Map.Entry<String, String> header : response.headers.entrySet()) {
+                    exchange.getResponseHeaders().add(header.getKey(), header.getValue());
+                }
+            }
+            exchange.sendResponseHeaders(response.status, body.length == 0 ? -1 : body.length);
+            if (body.length > 0) {
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    /**
+     * Replace the responder of the server
+     * @param responder  the new responder
+     */
+    public void setResponder(Responder responder) {
+        this.responder = responder;
+    }
+
+    /**
+     * Get the base url of the server, such as http://localhost:1234/
+     * @return the base url
+     */
+    public String getBaseURL() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Get the requests (method and uri) the server received
+     * @return the list of the requests
+     */
+    public List<String> getRequests() {
+        return requests;
+    }
+
+    /**
+     * Stop the server
+     */
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * Create a v2json service pointing to this server. The token is read from a temporary file.
+     * @param properties  the extra properties of the service. It can be null.
+     * @return the v2json service
+     * @throws Exception
+     */
+    public OSTIv2JsonService createJsonService(Properties properties) throws Exception {
+        Properties props = new Properties();
+        if (properties != null) {
+            props.putAll(properties);
+        }
+        File token = File.createTempFile("osti-token", ".txt");
+        token.deleteOnExit();
+        Files.write(token.toPath(), "local-token".getBytes(StandardCharsets.UTF_8));
+        props.setProperty(OSTIv2JsonService.TOKEN_PATH_PROP_NAME, token.getAbsolutePath());
+        return new OSTIv2JsonService(null, null, getBaseURL(), props);
+    }
+}
@@ -0,0 +1,594 @@
+package edu.ucsb.nceas.osti_elink;
+
+import edu.ucsb.nceas.osti_elink.transport.ApacheHttpTransport;
+import edu.ucsb.nceas.osti_elink.transport.Http2Transport;
+import edu.ucsb.nceas.osti_elink.transport.StubTransport;
+import edu.ucsb.nceas.osti_elink.transport.TransportRequest;
+import edu.ucsb.nceas.osti_elink.v2.json.OSTIv2JsonService;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the http layer of OSTIElinkService against a local server
+ * @author Tao
+ */
+public class OSTIElinkServiceTest {
+    private LocalOSTIServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalOSTIServer(exchange -> new LocalOSTIServer.Response(200, "[]"));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * Test the configuration and statistics of the connection pools
+     * @throws Exception
+     */
+    @Test
+    public void testConnectionPool() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(ApacheHttpTransport.HTTP_MAX_TOTAL_PROP_NAME, "3");
+        properties.setProperty(ApacheHttpTransport.HTTP_MAX_PER_ROUTE_PROP_NAME, "2");
+        properties.setProperty(ApacheHttpTransport.HTTP_CONNECTION_TTL_PROP_NAME, "60000");
+        OSTIv2JsonService service = server.createJsonService(properties);
+        PoolStats stats = service.getConnectionPoolStats();
+        assertEquals(3, stats.getMax());
+        assertEquals(0, stats.getLeased());
+        assertEquals(0, stats.getAvailable());
+        service.sendRequest(OSTIElinkService.GET, server.getBaseURL() + "elink2api/records");
+        stats = service.getConnectionPoolStats();
+        assertEquals(0, stats.getLeased());
+        assertEquals(0, stats.getPending());
+        assertEquals(1, stats.getAvailable());
+        assertNull(service.getAsyncConnectionPoolStats());
+        service.sendRequestAsync(OSTIElinkService.GET, server.getBaseURL() + "elink2api/records",
+                                 null).get();
+        stats = service.getAsyncConnectionPoolStats();
+        assertNotNull(stats);
+        assertEquals(3, stats.getMax());
+        service.close();
+    }
+
+    /**
+     * Test the plain http requests still go over HTTP/1.1 when the HTTP/2 transport is enabled
+     * @throws Exception
+     */
+    @Test
+    public void testHttp2EnabledWithPlainHttp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(Http2Transport.HTTP2_ENABLED_PROP_NAME, "true");
+        OSTIv2JsonService service = server.createJsonService(properties);
+        String url = server.getBaseURL() + "elink2api/records";
+        assertEquals("[]", new String(service.sendRequest(OSTIElinkService.GET, url)));
+        assertEquals("[]", new String(
+            service.sendRequestAsync(OSTIElinkService.GET, url, null).get()));
+        service.close();
+    }
+
+    /**
+     * Test the service sends its requests by a plugged in transport
+     * @throws Exception
+     */
+    @Test
+    public void testPluggableTransport() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(OSTIServiceFactory.TRANSPORT_CLASSNAME_PROPERTY,
+                               StubTransport.class.getName());
+        OSTIv2JsonService service = server.createJsonService(properties);
+        StubTransport transport = service.findTransport(StubTransport.class);
+        String url = "https://example.org/elink2api/records";
+        assertEquals("[]", new String(service.sendRequest(OSTIElinkService.GET, url)));
+        transport.setResponse(201, "created");
+        assertEquals("created", new String(
+            service.sendRequestAsync(OSTIElinkService.POST, url, "{\"title\":\"foo\"}").get()));
+        assertEquals(2, transport.getRequests().size());
+        TransportRequest request = transport.getRequests().get(1);
+        assertEquals("POST", request.getMethod());
+        assertEquals(url, request.getUri());
+        assertEquals("{\"title\":\"foo\"}", new String(request.getBody(), "UTF-8"));
+        assertTrue(request.getHeader("Authorization").startsWith("Bearer "));
+        // The status code is still mapped by the service
+        transport.setResponse(401, "bad token");
+        try {
+            service.sendRequest(OSTIElinkService.GET, url);
+            fail("The test shouldn't get here since the token is bad");
+        } catch (OSTIElinkAuthenticationException e) {
+            assertEquals(401, e.getStatusCode());
+        }
+        // There is no Apache connection pool
+        assertNull(service.getConnectionPoolStats());
+        service.close();
+        assertTrue(transport.isClosed());
+        // A transport can be set directly
+        StubTransport transport2 = new StubTransport();
+        service.setTransport(transport2);
+        service.sendRequest(OSTIElinkService.GET, url);
+        assertEquals(1, transport2.getRequests().size());
+        assertEquals(0, server.getRequests().size());
+    }
+
+    /**
+     * Test the circuit breaker fails fast after the consecutive failures of an endpoint class
+     * @throws Exception
+     */
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(CircuitBreaker.ENABLED_PROP_NAME, "true");
+        properties.setProperty(CircuitBreaker.FAILURE_THRESHOLD_PROP_NAME, "2");
+        properties.setProperty(CircuitBreaker.OPEN_DURATION_PROP_NAME, "60000");
+        OSTIv2JsonService service = server.createJsonService(properties);
+        StubTransport transport = new StubTransport();
+        service.setTransport(transport);
+        String url = "https://example.org/elink2api/records";
+        transport.setResponse(503, "unavailable");
+        for (int i = 0; i < 2; i++) {
+            try {
+                service.sendRequest(OSTIElinkService.POST, url, "{}");
+                fail("The test shouldn't get here since the service is unavailable");
+            } catch (OSTIElinkException e) {
+                assertFalse(e instanceof OSTIElinkCircuitOpenException);
+            }
+        }
+        CircuitBreaker breaker = service.getCircuitBreaker();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(EndpointClass.SAVE));
+        try {
+            service.sendRequest(OSTIElinkService.POST, url, "{}");
+            fail("The test shouldn't get here since the circuit is open");
+        } catch (OSTIElinkCircuitOpenException e) {
+            assertEquals(EndpointClass.SAVE, e.getEndpointClass());
+        }
+        try {
+            service.sendRequestAsync(OSTIElinkService.POST, url, "{}").get();
+            fail("The test shouldn't get here since the circuit is open");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OSTIElinkCircuitOpenException);
+        }
+        // The rejected requests never reach the transport and the searches still go through
+        assertEquals(2, transport.getRequests().size());
+        transport.setResponse(200, "[]");
+        assertEquals("[]", new String(service.sendRequest(OSTIElinkService.GET, url)));
+        service.close();
+        // The breaker is off by default
+        properties.remove(CircuitBreaker.ENABLED_PROP_NAME);
+        service = server.createJsonService(properties);
+        assertNull(service.getCircuitBreaker());
+        service.close();
+    }
+
+    /**
+     * Test a request hitting an open circuit is parked, and a shutdown drops and reports it
+     * once instead of running it again
+     * @throws Exception
+     */
+    @Test
+    public void testParkedRequestDroppedOnShutdown() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(CircuitBreaker.ENABLED_PROP_NAME, "true");
+        properties.setProperty(CircuitBreaker.FAILURE_THRESHOLD_PROP_NAME, "1");
+        properties.setProperty(CircuitBreaker.OPEN_DURATION_PROP_NAME, "60000");
+        OSTIv2JsonService service = server.createJsonService(properties);
+        StubTransport transport = new StubTransport();
+        service.setTransport(transport);
+        transport.setResponse(503, "unavailable");
+        try {
+            service.sendRequest(OSTIElinkService.GET, "https://example.org/elink2api/records");
+            fail("The test shouldn't get here since the service is unavailable");
+        } catch (OSTIElinkException e) {
+            assertFalse(e instanceof OSTIElinkCircuitOpenException);
+        }
+        List<String> errors = new ArrayList<>();
+        Set<OSTIElinkServiceRequest> parked = ConcurrentHashMap.newKeySet();
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        OSTIElinkServiceRequest request =
+            new OSTIElinkServiceRequest(service, OSTIElinkServiceRequest.SETMETADATA,
+                                        "doi:10.5072/FK2/1", errors::add, "{}", scheduler,
+                                        120000, parked);
+        request.run();
+        assertTrue(parked.contains(request));
+        assertEquals(1, scheduler.getQueue().size());
+        assertTrue(errors.isEmpty());
+        // The shutdown cancels the delayed run right away
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(parked.remove(request));
+        request.drop();
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).contains("parked"));
+        // A late run of the dropped request does nothing
+        request.run();
+        assertEquals(1, errors.size());
+        assertEquals(1, transport.getRequests().size());
+        service.close();
+    }
+
+    /**
+     * Test the response bodies are parsed from the stream
+     * @throws Exception
+     */
+    @Test
+    public void testSendRequestWithParser() throws Exception {
+        String searchResponse;
+        try (InputStream is = getClass().getClassLoader()
+            .getResourceAsStream("test-files/search-doi-response.json")) {
+            searchResponse = IOUtils.toString(is, StandardCharsets.UTF_8);
+        }
+        server.setResponder(exchange -> {
+            if (exchange.getRequestURI().getQuery().contains("unauthorized")) {
+                return new LocalOSTIServer.Response(403, "forbidden");
+            }
+            return new LocalOSTIServer.Response(200, searchResponse);
+        });
+        OSTIv2JsonService service = server.createJsonService(null);
+        String url = server.getBaseURL() + "elink2api/records?doi=foo";
+        assertEquals(searchResponse, service.sendRequest(OSTIElinkService.GET, url, null,
+                                        body -> IOUtils.toString(body, StandardCharsets.UTF_8)));
+        assertEquals("R", service.getStatus("doi:10.15485/2304391"));
+        assertEquals("2304391", service.getOstiId("doi:10.15485/2304391", null));
+        try {
+            service.sendRequest(OSTIElinkService.GET, url + "unauthorized", null,
+                                body -> IOUtils.toString(body, StandardCharsets.UTF_8));
+            fail("The test shouldn't get here since the request is forbidden");
+        } catch (OSTIElinkAuthenticationException e) {
+            assertEquals(403, e.getStatusCode());
+            assertTrue(e.getMessage().contains("forbidden"));
+        }
+        // The connection goes back to the pool after the body is parsed
+        assertEquals(0, service.getConnectionPoolStats().getLeased());
+        service.close();
+    }
+
+    /**
+     * Test the lookups after the writes are answered from the responses of the writes while
+     * the search index doesn't have the new record
+     * @throws Exception
+     */
+    @Test
+    public void testRecentWrites() throws Exception {
+        String record = "\"osti_id\":\"3001\",\"doi\":\"10.15485/3001\",\"title\":\"t\"";
+        server.setResponder(exchange -> {
+            String uri = exchange.getRequestURI().toString();
+            if (uri.endsWith("/records/save")) {
+                return new LocalOSTIServer.Response(200, "{" + record
+                    + ",\"workflow_status\":\"SA\"}");
+            } else if (uri.endsWith("/records/3001/save")) {
+                return new LocalOSTIServer.Response(200, "{" + record
+                    + ",\"workflow_status\":\"SA\"}");
+            } else if (uri.endsWith("/records/3001/submit")) {
+                return new LocalOSTIServer.Response(200, "{" + record
+                    + ",\"workflow_status\":\"SO\"}");
+            }
+            // The search index lags behind
+            return new LocalOSTIServer.Response(200, "[]");
+        });
+        OSTIv2JsonService service = server.createJsonService(null);
+        String doi = service.mintIdentifier(null);
+        assertEquals("doi:10.15485/3001", doi);
+        assertEquals(OSTIElinkService.SAVED, service.getStatus(doi));
+        assertEquals("3001", service.getOstiId("10.15485/3001", null));
+        service.setMetadata(doi, null, "{\"title\":\"new\"}");
+        // The publication reads the record from the response of the last write
+        service.setMetadata(doi, null, "{\"site_url\":\"https://example.com/3001\"}");
+        assertEquals("SO", service.getStatus(doi));
+        assertEquals(6, service.getRecentWrites().getHits());
+        for (String request : server.getRequests()) {
+            assertFalse(request, request.startsWith("GET"));
+        }
+        service.close();
+        // The store can be turned off
+        Properties properties = new Properties();
+        properties.setProperty(RecentWrites.TTL_PROP_NAME, "0");
+        service = server.createJsonService(properties);
+        assertNull(service.getRecentWrites());
+        service.close();
+        RecentWrites store = new RecentWrites(60000, 1);
+        store.put("doi:10.15485/1", "1", "SA", null);
+        store.put("10.15485/1", null, "R", null);
+        assertEquals("1", store.get("10.15485/1").getOstiId());
+        assertEquals("R", store.getByOstiId("1").getStatus());
+        // The oldest entry is evicted when the store is full
+        store.put("10.15485/2", "2", "SA", null);
+        assertNull(store.get("10.15485/1"));
+        assertNull(store.getByOstiId("1"));
+        assertNull(new RecentWrites(1, 10).get("10.15485/1"));
+    }
+
+    /**
+     * Test the updates of the known dois don't search their osti ids again
+     * @throws Exception
+     */
+    @Test
+    public void testOstiIdCache() throws Exception {
+        server.setResponder(exchange -> {
+            String uri = exchange.getRequestURI().toString();
+            if (uri.endsWith("/records/save")) {
+                return new LocalOSTIServer.Response(200, "{\"osti_id\":4002,\"doi\":"
+                    + "\"10.15485/4002\",\"workflow_status\":\"SA\"}");
+            } else if (uri.endsWith("/save")) {
+                String ostiId = uri.contains("/4001/") ? "4001" : "4002";
+                return new LocalOSTIServer.Response(200, "{\"osti_id\":" + ostiId + ","
+                    + "\"doi\":\"10.15485/" + ostiId + "\",\"workflow_status\":\"SA\"}");
+            }
+            return new LocalOSTIServer.Response(200, "[{\"osti_id\":4001,\"doi\":"
+                + "\"10.15485/4001\",\"workflow_status\":\"R\"}]");
+        });
+        // Turn off the store of the recent writes, so the osti ids come from the cache
+        Properties properties = new Properties();
+        properties.setProperty(RecentWrites.TTL_PROP_NAME, "0");
+        OSTIv2JsonService service = server.createJsonService(properties);
+        service.setMetadata("doi:10.15485/4001", null, "{\"title\":\"1\"}");
+        service.setMetadata("10.15485/4001", null, "{\"title\":\"2\"}");
+        service.setMetadata("DOI:10.15485/4001", null, "{\"title\":\"3\"}");
+        // The osti id of a minted doi comes from the response of the mint
+        String doi = service.mintIdentifier(null);
+        service.setMetadata(doi, null, "{\"title\":\"4\"}");
+        int searches = 0;
+        for (String request : server.getRequests()) {
+            searches += request.startsWith("GET") ? 1 : 0;
+        }
+        assertEquals(1, searches);
+        OstiIdCache cache = service.getOstiIdCache();
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.75, cache.getHitRatio(), 0.001);
+        assertEquals("4001", cache.get("doi:10.15485/4001"));
+        service.close();
+        // The cache can be turned off
+        properties.setProperty(OstiIdCache.MAX_ENTRIES_PROP_NAME, "0");
+        service = server.createJsonService(properties);
+        assertNull(service.getOstiIdCache());
+        service.close();
+        // The least recently used entry is evicted when the cache is full
+        cache = new OstiIdCache(2);
+        cache.put("10.15485/1", "1");
+        cache.put("10.15485/2", "2");
+        cache.get("10.15485/1");
+        cache.put("10.15485/3", "3");
+        assertNull(cache.get("10.15485/2"));
+        assertEquals("1", cache.get("doi:10.15485/1"));
+        assertEquals(2, cache.size());
+    }
+
+    /**
+     * Test the prefix rules derive the osti ids without searching them, learn from the
+     * responses and are disabled by the failed verifications of the written records
+     * @throws Exception
+     */
+    @Test
+    public void testPrefixRules() throws Exception {
+        AtomicInteger minted = new AtomicInteger(8000);
+        server.setResponder(exchange -> {
+            String uri = exchange.getRequestURI().toString();
+            if (uri.endsWith("/records/save")) {
+                int ostiId = minted.incrementAndGet();
+                return new LocalOSTIServer.Response(200, "{\"osti_id\":" + ostiId + ",\"doi\":"
+                    + "\"10.5555/" + ostiId + "\",\"workflow_status\":\"SA\"}");
+            } else if (uri.endsWith("/save") || uri.endsWith("/submit")) {
+                String ostiId = uri.replaceAll(".*/records/([0-9]+)/.*", "$1");
+                // The record 6100 belongs to another doi
+                String doi = "6100".equals(ostiId) ? "10.15485/other" : "10.15485/" + ostiId;
+                return new LocalOSTIServer.Response(200, "{\"osti_id\":" + ostiId + ",\"doi\":"
+                    + "\"" + doi + "\",\"workflow_status\":\"SA\"}");
+            } else if (uri.contains("osti_id=%226100%22")) {
+                return new LocalOSTIServer.Response(200, "[{\"osti_id\":6100,\"doi\":"
+                    + "\"10.15485/other\",\"workflow_status\":\"SA\"}]");
+            }
+            return new LocalOSTIServer.Response(200, "[{\"osti_id\":6101,\"doi\":"
+                + "\"10.15485/6100\",\"workflow_status\":\"SA\"}]");
+        });
+        Properties properties = new Properties();
+        properties.setProperty(PrefixRules.SHOULDERS_PROP_NAME, "doi:10.15485/");
+        OSTIv2JsonService service = server.createJsonService(properties);
+        service.setMetadata("doi:10.15485/6001", null, "{\"title\":\"1\"}");
+        assertEquals(0, countSearches());
+        PrefixRules rules = service.getPrefixRules();
+        assertEquals(1, rules.getDerivations());
+        // The write by the wrong derived osti id is verified and written again
+        service.setMetadata("doi:10.15485/6100", null, "{\"title\":\"2\"}");
+        assertEquals(1, countSearches());
+        assertTrue(server.getRequests().contains("PATCH /elink2api/records/6101/save"));
+        assertEquals(1, rules.getRejections());
+        assertTrue(rules.getRules().isEmpty());
+        service.setMetadata("doi:10.15485/6002", null, "{\"title\":\"3\"}");
+        assertEquals(2, countSearches());
+        service.close();
+        // The rules are learned from the responses
+        properties = new Properties();
+        properties.setProperty(PrefixRules.LEARN_PROP_NAME, "true");
+        properties.setProperty(PrefixRules.MIN_CONFIRMATIONS_PROP_NAME, "2");
+        service = server.createJsonService(properties);
+        rules = service.getPrefixRules();
+        service.mintIdentifier(null);
+        assertTrue(rules.getRules().isEmpty());
+        service.mintIdentifier(null);
+        assertEquals("[10.5555]", rules.getRules().toString());
+        assertEquals("7777", service.getOstiId("doi:10.5555/7777", null));
+        assertEquals(2, countSearches());
+        // A contradicting response disables the learned rule
+        rules.observe("10.5555/7778", "7779");
+        assertTrue(rules.getRules().isEmpty());
+        service.close();
+        // The publish command checks the doi of the record before submitting it
+        properties = new Properties();
+        properties.setProperty(PrefixRules.SHOULDERS_PROP_NAME, "10.15485");
+        service = server.createJsonService(properties);
+        service.setMetadata("doi:10.15485/6100", null, "{\"site_url\":\"https://example.com\"}");
+        assertFalse(server.getRequests().contains("PATCH /elink2api/records/6100/submit"));
+        assertTrue(server.getRequests().contains("PATCH /elink2api/records/6101/submit"));
+        assertEquals(1, service.getPrefixRules().getRejections());
+        service.close();
+        // The submit checks the doi in its response and submits it again by the queried id
+        server.getRequests().clear();
+        service = server.createJsonService(properties);
+        service.setMetadata("doi:10.15485/6100", null,
+                            "{\"site_url\":\"https://example.com\",\"title\":\"4\"}");
+        assertTrue(server.getRequests().contains("PATCH /elink2api/records/6101/submit"));
+        assertEquals(1, service.getPrefixRules().getRejections());
+        service.close();
+        assertNull(server.createJsonService(null).getPrefixRules());
+    }
+
+    private int countSearches() {
+        int searches = 0;
+        for (String request : server.getRequests()) {
+            searches += request.startsWith("GET") ? 1 : 0;
+        }
+        return searches;
+    }
+
+    /**
+     * Test the concurrent lookups of the same doi share one request
+     * @throws Exception
+     */
+    @Test
+    public void testSingleFlight() throws Exception {
+        server.setResponder(exchange -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new LocalOSTIServer.Response(200, "[{\"osti_id\":8001,\"doi\":"
+                + "\"10.15485/8001\",\"workflow_status\":\"R\"}]");
+        });
+        OSTIv2JsonService service = server.createJsonService(null);
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        List<CompletableFuture<String>> lookups = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String doi = i % 2 == 0 ? "doi:10.15485/8001" : "10.15485/8001";
+            lookups.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return service.getMetadata(doi);
+                } catch (OSTIElinkException e) {
+                    throw new CompletionException(e);
+                }
+            }, callers));
+        }
+        lookups.add(service.getMetadataAsync("doi:10.15485/8001"));
+        for (CompletableFuture<String> lookup : lookups) {
+            assertTrue(lookup.get(10, TimeUnit.SECONDS).contains("8001"));
+        }
+        // The statuses are queried by a different request, which is shared as well
+        List<CompletableFuture<String>> statuses = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            statuses.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return service.getStatus("doi:10.15485/8001");
+                } catch (OSTIElinkException e) {
+                    throw new CompletionException(e);
+                }
+            }, callers));
+        }
+        for (CompletableFuture<String> status : statuses) {
+            assertEquals("R", status.get(10, TimeUnit.SECONDS));
+        }
+        int searches = 0;
+        for (String request : server.getRequests()) {
+            searches += request.startsWith("GET") ? 1 : 0;
+        }
+        SingleFlight flights = service.getSingleFlight();
+        assertEquals(13, flights.getCalls());
+        assertEquals(searches, flights.getCalls() - flights.getCollapsedCalls());
+        assertTrue("There were " + searches + " searches", searches <= 4);
+        assertTrue(flights.getCollapseRate() > 0.6);
+        // A lookup after a write doesn't join the one started before the write
+        int requests = server.getRequests().size();
+        CompletableFuture<String> beforeWrite = service.getMetadataAsync("doi:10.15485/8001");
+        Thread.sleep(100);
+        service.endFlights("10.15485/8001");
+        CompletableFuture<String> afterWrite = service.getMetadataAsync("doi:10.15485/8001");
+        beforeWrite.get(10, TimeUnit.SECONDS);
+        afterWrite.get(10, TimeUnit.SECONDS);
+        assertEquals(requests + 2, server.getRequests().size());
+        // A lookup ending by an Error doesn't leave its flight behind
+        try {
+            flights.run("error", () -> {
+                throw new LinkageError("broken");
+            });
+            fail("The error should be thrown");
+        } catch (LinkageError e) {
+            assertEquals("broken", e.getMessage());
+        }
+        assertEquals("done", flights.run("error", () -> "done"));
+        callers.shutdown();
+        service.close();
+    }
+
+    /**
+     * Test the deadlines of the calls bound the requests and the retries
+     * @throws Exception
+     */
+    @Test
+    public void testDeadlines() throws Exception {
+        OSTIv2JsonService service = server.createJsonService(null);
+        // The doi is never found, so getStatus keeps retrying until the deadline expires
+        long start = System.currentTimeMillis();
+        try {
+            service.getStatus("doi:10.15485/2304391", Duration.ofMillis(500));
+            fail("The test shouldn't get here since the deadline expired");
+        } catch (OSTIElinkTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start < 3000);
+        }
+        assertNull(Deadline.current());
+        // A slow response is aborted when the deadline expires
+        server.setResponder(exchange -> {
+            try {
+                Thread.sleep(3000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new LocalOSTIServer.Response(200, "[]");
+        });
+        start = System.currentTimeMillis();
+        try {
+            service.getMetadata("doi:10.15485/2304391", Duration.ofMillis(300));
+            fail("The test shouldn't get here since the deadline expired");
+        } catch (OSTIElinkTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        }
+        // The deadline of the calling thread bounds the non-blocking requests as well
+        start = System.currentTimeMillis();
+        try {
+            Deadline.after(Duration.ofMillis(300))
+                .run(() -> service.getMetadataAsync("doi:10.15485/2304391")).get();
+            fail("The test shouldn't get here since the deadline expired");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OSTIElinkTimeoutException);
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        }
+        service.close();
+    }
+}
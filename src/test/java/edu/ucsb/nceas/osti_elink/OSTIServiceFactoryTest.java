@@ -2,6 +2,11 @@ package edu.ucsb.nceas.osti_elink;
 
 import edu.ucsb.nceas.osti_elink.exception.ClassNotSupported;
 import edu.ucsb.nceas.osti_elink.exception.PropertyNotFound;
+import edu.ucsb.nceas.osti_elink.transport.ApacheHttpTransport;
+import edu.ucsb.nceas.osti_elink.transport.Http2Transport;
+import edu.ucsb.nceas.osti_elink.transport.OSTIElinkTransport;
+import edu.ucsb.nceas.osti_elink.transport.RetryTransport;
+import edu.ucsb.nceas.osti_elink.transport.StubTransport;
 import edu.ucsb.nceas.osti_elink.v1.OSTIService;
 import edu.ucsb.nceas.osti_elink.v2.json.OSTIv2JsonService;
 import edu.ucsb.nceas.osti_elink.v2.xml.OSTIv2XmlService;
@@ -25,6 +30,9 @@ public class OSTIServiceFactoryTest {
     @Rule
     public EnvironmentVariablesRule environmentVariablesRule =
         new EnvironmentVariablesRule("METACAT_OSTI_SERVICE_CLASS_NAME", null);
+    @Rule
+    public EnvironmentVariablesRule environmentVariablesMaxTotalRule =
+        new EnvironmentVariablesRule(ApacheHttpTransport.HTTP_MAX_TOTAL_ENV_NAME, null);
 
     /**
      * Test the getProperty method
@@ -58,6 +66,33 @@ public class OSTIServiceFactoryTest {
         }
     }
 
+    /**
+     * Test the getSetting, getIntSetting, getLongSetting and getBooleanSetting methods
+     * @throws Exception
+     */
+    @Test
+    public void testGetSetting() throws Exception {
+        String envName = ApacheHttpTransport.HTTP_MAX_TOTAL_ENV_NAME;
+        String propName = ApacheHttpTransport.HTTP_MAX_TOTAL_PROP_NAME;
+        Properties properties = new Properties();
+        assertEquals("default", OSTIServiceFactory.getSetting(envName, propName, null, "default"));
+        assertEquals(5, OSTIServiceFactory.getIntSetting(envName, propName, properties, 5));
+        properties.setProperty(propName, "10");
+        assertEquals(10, OSTIServiceFactory.getIntSetting(envName, propName, properties, 5));
+        assertEquals(10L, OSTIServiceFactory.getLongSetting(envName, propName, properties, 5L));
+        // The env variable overwrites the property
+        environmentVariablesMaxTotalRule.set(envName, "20");
+        assertEquals(20, OSTIServiceFactory.getIntSetting(envName, propName, properties, 5));
+        // An invalid value falls back to the default one
+        environmentVariablesMaxTotalRule.set(envName, "foo");
+        assertEquals(5, OSTIServiceFactory.getIntSetting(envName, propName, properties, 5));
+        assertEquals(false, OSTIServiceFactory.getBooleanSetting(envName, propName, properties,
+                                                                 true));
+        environmentVariablesMaxTotalRule.set(envName, "TRUE");
+        assertEquals(true, OSTIServiceFactory.getBooleanSetting(envName, propName, properties,
+                                                                false));
+    }
+
     /**
      * Test to get a V2Json OSTIService
      * @throws Exception
@@ -187,4 +222,47 @@ public class OSTIServiceFactoryTest {
         OSTIElinkService service = OSTIServiceFactory.getOSTIElinkService(properties);
         assertTrue(service instanceof OSTIv2JsonService);
     }
+
+    /**
+     * Test the getTransport method
+     * @throws Exception
+     */
+    @Test
+    public void testGetTransport() throws Exception {
+        Properties properties = new Properties();
+        OSTIElinkTransport transport = OSTIServiceFactory.getTransport(properties);
+        assertTrue(transport instanceof ApacheHttpTransport);
+        transport.close();
+        properties.setProperty(RetryTransport.RETRY_MAX_ATTEMPTS_PROP_NAME, "3");
+        transport = OSTIServiceFactory.getTransport(properties);
+        assertTrue(transport instanceof RetryTransport);
+        assertTrue(((RetryTransport) transport).getDelegate() instanceof ApacheHttpTransport);
+        transport.close();
+        properties.setProperty(RetryTransport.RETRY_MAX_ATTEMPTS_PROP_NAME, "1");
+        properties.setProperty(Http2Transport.HTTP2_ENABLED_PROP_NAME, "true");
+        transport = OSTIServiceFactory.getTransport(properties);
+        assertTrue(transport instanceof Http2Transport);
+        assertTrue(((Http2Transport) transport).getDelegate() instanceof ApacheHttpTransport);
+        transport.close();
+        properties.setProperty(OSTIServiceFactory.TRANSPORT_CLASSNAME_PROPERTY,
+                               StubTransport.class.getName());
+        transport = OSTIServiceFactory.getTransport(properties);
+        assertTrue(transport instanceof StubTransport);
+        properties.setProperty(OSTIServiceFactory.TRANSPORT_CLASSNAME_PROPERTY,
+                               "edu.ucsb.nceas.osti_elink.transport.foo");
+        try {
+            OSTIServiceFactory.getTransport(properties);
+            fail("Test can't get there since the class doesn't exist.");
+        } catch (Exception e) {
+            assertTrue(e instanceof ClassNotSupported);
+        }
+        properties.setProperty(OSTIServiceFactory.TRANSPORT_CLASSNAME_PROPERTY,
+                               "java.lang.String");
+        try {
+            OSTIServiceFactory.getTransport(properties);
+            fail("Test can't get there since the class isn't a transport.");
+        } catch (Exception e) {
+            assertTrue(e instanceof ClassNotSupported);
+        }
+    }
 }
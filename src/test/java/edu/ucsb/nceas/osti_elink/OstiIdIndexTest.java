@@ -0,0 +1,139 @@
+package edu.ucsb.nceas.osti_elink;
+
+import edu.ucsb.nceas.osti_elink.v2.json.OSTIv2JsonService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the persistent index of the osti ids
+ * @author Tao
+ */
+public class OstiIdIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private LocalOSTIServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalOSTIServer(exchange -> {
+            if (exchange.getRequestURI().getPath().endsWith("/save")) {
+                return new LocalOSTIServer.Response(200, "{\"osti_id\":5001,\"doi\":"
+                    + "\"10.15485/5001\",\"workflow_status\":\"SA\"}");
+            }
+            return new LocalOSTIServer.Response(200, "[{\"osti_id\":5001,\"doi\":"
+                + "\"10.15485/5001\",\"workflow_status\":\"SA\"}]");
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * Test the entries survive reopening the index and growing it
+     * @throws Exception
+     */
+    @Test
+    public void testPutAndGet() throws Exception {
+        File file = new File(folder.getRoot(), "index/osti-ids.idx");
+        try (OstiIdIndex index = new OstiIdIndex(file)) {
+            assertEquals(-1, index.get("doi:10.15485/1"));
+            index.put("doi:10.15485/1", 1);
+            index.put("10.15485/ABC", 2);
+            index.put("10.15485/abc", 3);
+            index.put("10.15485/ignored", 0);
+            assertEquals(1, index.get("10.15485/1"));
+            assertEquals(3, index.get("DOI:10.15485/Abc"));
+            assertEquals(2, index.size());
+            // More entries than the default capacity can hold make it grow
+            for (int i = 0; i < 50000; i++) {
+                index.put("10.15485/grow-" + i, 100000L + i);
+            }
+            assertEquals(50002, index.size());
+        }
+        try (OstiIdIndex index = new OstiIdIndex(file)) {
+            assertEquals(50002, index.size());
+            assertEquals(1, index.get("10.15485/1"));
+            assertEquals(149999, index.get("10.15485/grow-49999"));
+            assertEquals(100000, index.get("10.15485/grow-0"));
+            assertEquals(-1, index.get("10.15485/grow-50000"));
+        }
+        File other = folder.newFile("other.idx");
+        Files.write(other.toPath(), "not an index".getBytes(StandardCharsets.UTF_8));
+        try {
+            new OstiIdIndex(other);
+            fail("The test shouldn't get here since the file isn't an index");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test the index is loaded from an export of the records
+     * @throws Exception
+     */
+    @Test
+    public void testImportRecords() throws Exception {
+        String export = "[{\"osti_id\":7001,\"doi\":\"10.15485/7001\",\"title\":\"a\","
+            + "\"authors\":[{\"name\":\"b\"}]},{\"osti_id\":\"7002\",\"doi\":\"10.15485/7002\"},"
+            + "{\"doi\":\"10.15485/none\"},{\"osti_id\":\"x\",\"doi\":\"10.15485/bad\"}]";
+        try (OstiIdIndex index = new OstiIdIndex(new File(folder.getRoot(), "osti-ids.idx"))) {
+            assertEquals(2, index.importRecords(
+                new ByteArrayInputStream(export.getBytes(StandardCharsets.UTF_8))));
+            assertEquals(7001, index.get("10.15485/7001"));
+            assertEquals(7002, index.get("doi:10.15485/7002"));
+            assertEquals(-1, index.get("10.15485/none"));
+        }
+    }
+
+    /**
+     * Test a restarted service finds the osti ids in the index instead of querying them
+     * @throws Exception
+     */
+    @Test
+    public void testWarmRestart() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(OstiIdIndex.PATH_PROP_NAME,
+                               new File(folder.getRoot(), "osti-ids.idx").getAbsolutePath());
+        properties.setProperty(RecentWrites.TTL_PROP_NAME, "0");
+        OSTIv2JsonService service = server.createJsonService(properties);
+        service.setMetadata("doi:10.15485/5001", null, "{\"title\":\"1\"}");
+        assertEquals(1, countSearches());
+        service.close();
+        // A new service has an empty cache, but the index has the osti id
+        service = server.createJsonService(properties);
+        service.setMetadata("doi:10.15485/5001", null, "{\"title\":\"2\"}");
+        assertEquals(1, countSearches());
+        assertEquals(5001, service.getOstiIdIndex().get("10.15485/5001"));
+        // A cold node is warmed up by an export
+        service.importOstiIds(new ByteArrayInputStream(
+            "[{\"osti_id\":5002,\"doi\":\"10.15485/5002\"}]".getBytes(StandardCharsets.UTF_8)));
+        service.setMetadata("doi:10.15485/5002", null, "{\"title\":\"3\"}");
+        assertEquals(1, countSearches());
+        service.close();
+        assertNull(server.createJsonService(null).getOstiIdIndex());
+    }
+
+    private int countSearches() {
+        int searches = 0;
+        for (String request : server.getRequests()) {
+            searches += request.startsWith("GET") ? 1 : 0;
+        }
+        return searches;
+    }
+}
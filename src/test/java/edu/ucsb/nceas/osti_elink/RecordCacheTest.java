@@ -0,0 +1,144 @@
+package edu.ucsb.nceas.osti_elink;
+
+import edu.ucsb.nceas.osti_elink.v2.json.OSTIv2JsonService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the cache of the metadata of the records
+ * @author Tao
+ */
+public class RecordCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private LocalOSTIServer server;
+    private final AtomicInteger searches = new AtomicInteger();
+    private final AtomicInteger version = new AtomicInteger(1);
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalOSTIServer(exchange -> {
+            if (exchange.getRequestURI().getPath().endsWith("/save")) {
+                return new LocalOSTIServer.Response(200, "{\"osti_id\":6001,\"doi\":"
+                    + "\"10.15485/6001\",\"title\":\"saved\",\"workflow_status\":\"R\"}");
+            }
+            searches.incrementAndGet();
+            return new LocalOSTIServer.Response(200, "[{\"osti_id\":6001,\"doi\":"
+                + "\"10.15485/6001\",\"title\":\"v" + version.get() + "\","
+                + "\"workflow_status\":\"SA\"}]");
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * Test the lookups are answered from the cache and the writes update it
+     * @throws Exception
+     */
+    @Test
+    public void testCachedLookups() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(RecordCache.TTL_PROP_NAME, "60000");
+        properties.setProperty(RecentWrites.TTL_PROP_NAME, "0");
+        OSTIv2JsonService service = server.createJsonService(properties);
+        assertTrue(service.getMetadata("doi:10.15485/6001").contains("\"v1\""));
+        version.set(2);
+        assertTrue(service.getMetadata("10.15485/6001").contains("\"v1\""));
+        assertEquals(OSTIElinkService.SAVED, service.getStatus("doi:10.15485/6001"));
+        assertEquals(1, searches.get());
+        // The response of the write replaces the cached record
+        service.setMetadata("doi:10.15485/6001", null, "{\"title\":\"saved\"}");
+        assertEquals("R", service.getStatus("doi:10.15485/6001"));
+        assertTrue(service.getMetadata("doi:10.15485/6001").contains("\"saved\""));
+        assertEquals(1, searches.get());
+        assertEquals(4, service.getRecordCache().getHits());
+        service.close();
+        // The cache is off by default
+        assertNull(server.createJsonService(null).getRecordCache());
+    }
+
+    /**
+     * Test the stale records are served while they are refreshed in the background
+     * @throws Exception
+     */
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(RecordCache.TTL_PROP_NAME, "1");
+        properties.setProperty(RecordCache.STALE_PROP_NAME, "60000");
+        OSTIv2JsonService service = server.createJsonService(properties);
+        assertTrue(service.getMetadata("doi:10.15485/6001").contains("\"v1\""));
+        version.set(2);
+        Thread.sleep(10);
+        // The stale record is returned at once and one refresh is sent
+        assertTrue(service.getMetadata("doi:10.15485/6001").contains("\"v1\""));
+        long end = System.currentTimeMillis() + 5000;
+        while (!service.getMetadata("doi:10.15485/6001").contains("\"v2\"")
+            && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+        }
+        assertTrue(service.getMetadata("doi:10.15485/6001").contains("\"v2\""));
+        assertTrue(service.getRecordCache().getStaleHits() >= 1);
+        service.close();
+    }
+
+    /**
+     * Test the records stored in the directory survive a new cache
+     * @throws Exception
+     */
+    @Test
+    public void testDiskTier() throws Exception {
+        File directory = new File(folder.getRoot(), "records");
+        RecordCache cache = new RecordCache(60000, 0, 1, directory);
+        cache.put("doi:10.15485/1", "[{\"doi\":\"10.15485/1\"}]");
+        cache.put("doi:10.15485/2", "[{\"doi\":\"10.15485/2\"}]");
+        // The first record is evicted from the memory, but read from the directory
+        assertEquals("[{\"doi\":\"10.15485/1\"}]", cache.get("10.15485/1").getMetadata());
+        cache = new RecordCache(60000, 0, 10, directory);
+        assertTrue(cache.get("DOI:10.15485/2").isFresh());
+        cache.invalidate("10.15485/2");
+        RecordCache reopened = new RecordCache(60000, 0, 10, directory);
+        assertNull(reopened.get("10.15485/2"));
+        assertEquals(1, reopened.getMisses());
+        assertFalse(reopened.isStaleWhileRevalidate());
+    }
+
+    /**
+     * Test the result of a lookup started before a write isn't stored over the write
+     * @throws Exception
+     */
+    @Test
+    public void testLookupRacingWrite() throws Exception {
+        RecordCache cache = new RecordCache(60000, 0, 10, null);
+        long generation = cache.getGeneration("doi:10.15485/1");
+        // The write response has the whole record
+        cache.put("10.15485/1", "new");
+        assertFalse(cache.put("doi:10.15485/1", "old", generation));
+        assertEquals("new", cache.get("10.15485/1").getMetadata());
+        // The write response doesn't have the whole record
+        generation = cache.getGeneration("10.15485/1");
+        cache.invalidate("10.15485/1");
+        assertFalse(cache.put("10.15485/1", "old", generation));
+        cache.invalidate("10.15485/1", generation);
+        assertNull(cache.get("10.15485/1"));
+        // A lookup without a write in the meantime is stored
+        generation = cache.getGeneration("10.15485/1");
+        assertTrue(cache.put("10.15485/1", "current", generation));
+        assertEquals("current", cache.get("10.15485/1").getMetadata());
+    }
+}
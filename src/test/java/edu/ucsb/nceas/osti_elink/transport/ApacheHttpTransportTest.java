@@ -0,0 +1,88 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import edu.ucsb.nceas.osti_elink.LocalOSTIServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the keep-alive, idle eviction and connection counters of the ApacheHttpTransport
+ * @author Tao
+ */
+public class ApacheHttpTransportTest {
+    private LocalOSTIServer server;
+    private ApacheHttpTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalOSTIServer(exchange -> new LocalOSTIServer.Response(200, "ok"));
+    }
+
+    @After
+    public void tearDown() {
+        if (transport != null) {
+            transport.close();
+        }
+        server.stop();
+    }
+
+    /**
+     * Test the idle connections are closed by the background evictor
+     * @throws Exception
+     */
+    @Test
+    public void testIdleEviction() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(ApacheHttpTransport.HTTP_IDLE_EVICTION_PROP_NAME, "200");
+        transport = new ApacheHttpTransport(properties);
+        TransportRequest request =
+            new TransportRequest("GET", server.getBaseURL() + "elink2api/records", null, null);
+        assertEquals(200, transport.execute(request).getStatusCode());
+        assertEquals(1, transport.getConnectionPoolStats().getAvailable());
+        assertEquals(1, transport.getCreatedConnections());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (transport.getEvictedConnections() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, transport.getEvictedConnections());
+        assertEquals(0, transport.getConnectionPoolStats().getAvailable());
+        // A new connection is opened for the next request
+        assertEquals(200, transport.execute(request).getStatusCode());
+        assertEquals(2, transport.getCreatedConnections());
+    }
+
+    /**
+     * Test a pooled connection closed by the server is detected by the stale check
+     * @throws Exception
+     */
+    @Test
+    public void testStaleConnections() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(ApacheHttpTransport.HTTP_VALIDATE_AFTER_INACTIVITY_PROP_NAME, "1");
+        properties.setProperty(ApacheHttpTransport.HTTP_IDLE_EVICTION_PROP_NAME, "0");
+        transport = new ApacheHttpTransport(properties);
+        TransportRequest request =
+            new TransportRequest("GET", server.getBaseURL() + "elink2api/records", null, null);
+        assertEquals(200, transport.execute(request).getStatusCode());
+        Thread.sleep(50);
+        assertEquals(200, transport.execute(request).getStatusCode());
+        assertTrue(transport.getStaleChecks() >= 1);
+        assertEquals(0, transport.getStaleConnections());
+        assertEquals(1, transport.getCreatedConnections());
+        server.stop();
+        Thread.sleep(50);
+        try {
+            transport.execute(request);
+            fail("The request to a stopped server should fail");
+        } catch (IOException e) {
+            assertTrue(transport.getStaleConnections() >= 1);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import edu.ucsb.nceas.osti_elink.Deadline;
+import edu.ucsb.nceas.osti_elink.OSTIServiceFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the BulkheadTransport class
+ * @author Tao
+ */
+public class BulkheadTransportTest {
+    private static final String RECORDS = "https://www.osti.gov/elink2api/records";
+
+    /**
+     * Test the requests are classified to the compartments
+     */
+    @Test
+    public void testClassify() {
+        assertEquals(BulkheadTransport.Compartment.READ,
+                     BulkheadTransport.Compartment.classify("GET", RECORDS + "?doi=10.1"));
+        assertEquals(BulkheadTransport.Compartment.MINT,
+                     BulkheadTransport.Compartment.classify("POST", RECORDS + "/save"));
+        assertEquals(BulkheadTransport.Compartment.WRITE,
+                     BulkheadTransport.Compartment.classify("PATCH", RECORDS + "/1/save"));
+        assertEquals(BulkheadTransport.Compartment.WRITE,
+                     BulkheadTransport.Compartment.classify("PATCH", RECORDS + "/1/submit"));
+    }
+
+    /**
+     * Test a storm of writes only fills the write quota and the mints and reads still go
+     * through
+     * @throws Exception
+     */
+    @Test
+    public void testWritesDoNotStarveMintsAndReads() throws Exception {
+        ControlledTransport delegate = new ControlledTransport();
+        BulkheadTransport transport = new BulkheadTransport(delegate, 1, 2, 1);
+        for (int i = 0; i < 5; i++) {
+            transport.executeAsync(request("PATCH", RECORDS + "/" + i + "/save", null));
+        }
+        CompletableFuture<TransportResponse> write1 = delegate.nextAttempt();
+        delegate.nextAttempt();
+        assertNull(delegate.attempts.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(2, transport.getInFlight(BulkheadTransport.Compartment.WRITE));
+        assertEquals(3, transport.getWaitingRequests(BulkheadTransport.Compartment.WRITE));
+        // The mint and the read are sent at once
+        CompletableFuture<TransportResponse> mint =
+            transport.executeAsync(request("POST", RECORDS + "/save", null));
+        delegate.nextAttempt().complete(response("minted"));
+        assertEquals("minted", new String(mint.get(5, TimeUnit.SECONDS).getBody(),
+                                          StandardCharsets.UTF_8));
+        CompletableFuture<TransportResponse> read =
+            transport.executeAsync(request("GET", RECORDS, null));
+        CompletableFuture<TransportResponse> readAttempt = delegate.nextAttempt();
+        assertEquals(1, transport.getInFlight(BulkheadTransport.Compartment.READ));
+        // The read quota is full, so a blocking read stops at its deadline
+        try {
+            transport.execute(request("GET", RECORDS, Deadline.after(Duration.ofMillis(100))));
+            fail("The read should time out since the read quota is full");
+        } catch (SocketTimeoutException e) {
+            assertTrue(e.getMessage().contains("deadline"));
+        }
+        readAttempt.complete(response("[]"));
+        read.get(5, TimeUnit.SECONDS);
+        assertEquals(0, transport.getInFlight(BulkheadTransport.Compartment.READ));
+        // A finished write lets the next one through
+        write1.complete(response("saved"));
+        assertFalse(delegate.nextAttempt().isDone());
+        assertEquals(2, transport.getInFlight(BulkheadTransport.Compartment.WRITE));
+        assertEquals(2, transport.getWaitingRequests(BulkheadTransport.Compartment.WRITE));
+    }
+
+    /**
+     * Test the compartments with their own limiters: the writes past the write limiter wait in
+     * its queue and the reads don't queue behind them
+     * @throws Exception
+     */
+    @Test
+    public void testCompartmentLimiters() throws Exception {
+        ControlledTransport delegate = new ControlledTransport();
+        ConcurrencyLimitTransport reads = new ConcurrencyLimitTransport(delegate, 1, 1, 1);
+        ConcurrencyLimitTransport writes = new ConcurrencyLimitTransport(delegate, 1, 1, 1);
+        Map<BulkheadTransport.Compartment, OSTIElinkTransport> delegates =
+            new EnumMap<>(BulkheadTransport.Compartment.class);
+        delegates.put(BulkheadTransport.Compartment.READ, reads);
+        delegates.put(BulkheadTransport.Compartment.WRITE, writes);
+        BulkheadTransport transport = new BulkheadTransport(delegate, delegates, 1, 3, 1);
+        assertTrue(transport.getDelegate(BulkheadTransport.Compartment.MINT) == delegate);
+        for (int i = 0; i < 3; i++) {
+            transport.executeAsync(request("PATCH", RECORDS + "/" + i + "/save", null));
+        }
+        CompletableFuture<TransportResponse> write = delegate.nextAttempt();
+        assertNull(delegate.attempts.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(3, transport.getInFlight(BulkheadTransport.Compartment.WRITE));
+        assertEquals(2, writes.getWaitingRequests());
+        // The read is sent at once by its own limiter
+        CompletableFuture<TransportResponse> read =
+            transport.executeAsync(request("GET", RECORDS, null));
+        delegate.nextAttempt().complete(response("[]"));
+        read.get(5, TimeUnit.SECONDS);
+        assertEquals(0, reads.getWaitingRequests());
+        write.complete(response("saved"));
+        assertFalse(delegate.nextAttempt().isDone());
+        assertEquals(1, writes.getWaitingRequests());
+        // The factory bounds the limiter of each compartment by its quota
+        Properties properties = new Properties();
+        properties.setProperty(BulkheadTransport.BULKHEAD_ENABLED_PROP_NAME, "true");
+        properties.setProperty(ConcurrencyLimitTransport.LIMIT_ENABLED_PROP_NAME, "true");
+        OSTIElinkTransport chain = OSTIServiceFactory.getTransport(properties);
+        try {
+            BulkheadTransport bulkhead = DelegatingTransport.find(chain, BulkheadTransport.class);
+            ConcurrencyLimitTransport limiter = DelegatingTransport.find(
+                bulkhead.getDelegate(BulkheadTransport.Compartment.WRITE),
+                ConcurrencyLimitTransport.class);
+            assertEquals(BulkheadTransport.DEFAULT_BULKHEAD_WRITES, limiter.getMaxLimit());
+        } finally {
+            chain.close();
+        }
+    }
+
+    private static TransportRequest request(String method, String url, Deadline deadline) {
+        byte[] body = method.equals("GET") ? null : "{}".getBytes(StandardCharsets.UTF_8);
+        return new TransportRequest(method, url, null, body, deadline);
+    }
+
+    private static TransportResponse response(String body) {
+        return new TransportResponse(200, null, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A transport whose non-blocking requests are completed by the test
+     */
+    private static class ControlledTransport implements OSTIElinkTransport {
+        private final BlockingQueue<CompletableFuture<TransportResponse>> attempts =
+            new LinkedBlockingQueue<>();
+
+        @Override
+        public TransportResponse execute(TransportRequest request) throws IOException {
+            throw new IOException("Only the non-blocking requests are expected");
+        }
+
+        @Override
+        public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+            CompletableFuture<TransportResponse> attempt = new CompletableFuture<>();
+            attempts.add(attempt);
+            return attempt;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        CompletableFuture<TransportResponse> nextAttempt() throws InterruptedException {
+            return attempts.poll(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import edu.ucsb.nceas.osti_elink.LocalOSTIServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the CachingTransport against a local server
+ * @author Tao
+ */
+public class CachingTransportTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private LocalOSTIServer server;
+    private ApacheHttpTransport apache;
+    private final AtomicInteger version = new AtomicInteger(1);
+    private final AtomicInteger fullResponses = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalOSTIServer(exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            if (!exchange.getRequestMethod().equals("GET")) {
+                version.incrementAndGet();
+                return new LocalOSTIServer.Response(200, "{}");
+            }
+            Map<String, String> headers = new HashMap<>();
+            String etag = "\"v" + version.get() + "\"";
+            headers.put("ETag", etag);
+            if (path.endsWith("fresh")) {
+                headers.put("Cache-Control", "max-age=60");
+            } else if (path.endsWith("nostore")) {
+                headers.put("Cache-Control", "no-store");
+            }
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                return new LocalOSTIServer.Response(304, null, headers);
+            }
+            fullResponses.incrementAndGet();
+            return new LocalOSTIServer.Response(
+                200, ("[{\"version\":" + version.get() + "}]").getBytes(StandardCharsets.UTF_8),
+                headers);
+        });
+        apache = new ApacheHttpTransport(null);
+    }
+
+    @After
+    public void tearDown() {
+        apache.close();
+        server.stop();
+    }
+
+    /**
+     * Test the responses are revalidated by the ETag and invalidated by the writes
+     * @throws Exception
+     */
+    @Test
+    public void testRevalidation() throws Exception {
+        CachingTransport transport = new CachingTransport(apache, 10, null);
+        TransportRequest get = get("elink2api/records");
+        assertEquals("[{\"version\":1}]", body(transport.execute(get)));
+        assertEquals("[{\"version\":1}]", body(transport.execute(get)));
+        assertEquals("[{\"version\":1}]", body(transport.executeAsync(get).get()));
+        assertEquals(1, fullResponses.get());
+        assertEquals(1, transport.getMisses());
+        assertEquals(2, transport.getRevalidations());
+        // The record changed on the server
+        version.incrementAndGet();
+        assertEquals("[{\"version\":2}]", body(transport.execute(get)));
+        assertEquals(2, fullResponses.get());
+        // A write to a record of the collection invalidates the query on the collection
+        TransportRequest patch = new TransportRequest(
+            "PATCH", server.getBaseURL() + "elink2api/records/1/save", null,
+            "{}".getBytes(StandardCharsets.UTF_8));
+        transport.execute(patch);
+        int requests = server.getRequests().size();
+        assertEquals("[{\"version\":3}]", body(transport.execute(get)));
+        assertEquals(requests + 1, server.getRequests().size());
+        assertEquals(3, fullResponses.get());
+    }
+
+    /**
+     * Test the Cache-Control max-age and no-store directives
+     * @throws Exception
+     */
+    @Test
+    public void testCacheControl() throws Exception {
+        CachingTransport transport = new CachingTransport(apache, 10, null);
+        TransportRequest fresh = get("elink2api/fresh");
+        transport.execute(fresh);
+        int requests = server.getRequests().size();
+        assertEquals("[{\"version\":1}]", body(transport.execute(fresh)));
+        assertEquals("[{\"version\":1}]", body(transport.executeStreaming(fresh)));
+        assertEquals(requests, server.getRequests().size());
+        assertEquals(2, transport.getHits());
+        TransportRequest noStore = get("elink2api/nostore");
+        transport.execute(noStore);
+        transport.execute(noStore);
+        assertEquals(0, transport.getRevalidations());
+        assertEquals(3, fullResponses.get());
+        // A different token doesn't share the entries
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Authorization", "Bearer another");
+        transport.execute(new TransportRequest("GET", fresh.getUri(), headers, null));
+        assertEquals(4, fullResponses.get());
+    }
+
+    /**
+     * Test the entries stored in the directory are used by a new transport
+     * @throws Exception
+     */
+    @Test
+    public void testDiskStorage() throws Exception {
+        TransportRequest get = get("elink2api/records");
+        CachingTransport transport = new CachingTransport(apache, 10, folder.getRoot());
+        transport.execute(get);
+        CachingTransport another = new CachingTransport(apache, 10, folder.getRoot());
+        assertEquals("[{\"version\":1}]", body(another.execute(get)));
+        assertEquals(1, another.getRevalidations());
+        assertEquals(1, fullResponses.get());
+        another.clear();
+        CachingTransport third = new CachingTransport(apache, 10, folder.getRoot());
+        third.execute(get);
+        assertEquals(1, third.getMisses());
+        assertEquals(2, fullResponses.get());
+    }
+
+    /**
+     * Test a write invalidates the stored entries which are no longer kept in memory, and the
+     * ones stored by a previous transport
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidateStoredEntries() throws Exception {
+        TransportRequest fresh = get("elink2api/records/fresh");
+        TransportRequest page = get("elink2api/records/fresh?page=2");
+        CachingTransport previous = new CachingTransport(apache, 1, folder.getRoot());
+        previous.execute(fresh);
+        CachingTransport transport = new CachingTransport(apache, 1, folder.getRoot());
+        transport.execute(page);
+        // The other entry pushes the page out of the memory
+        transport.execute(get("elink2api/other"));
+        transport.execute(new TransportRequest("PATCH",
+                                               server.getBaseURL() + "elink2api/records/fresh",
+                                               null, "{}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("[{\"version\":2}]", body(transport.execute(page)));
+        assertEquals("[{\"version\":2}]", body(transport.execute(fresh)));
+        assertEquals(0, transport.getHits());
+        assertEquals(4, transport.getMisses());
+    }
+
+    private TransportRequest get(String path) {
+        return new TransportRequest("GET", server.getBaseURL() + path, null, null);
+    }
+
+    private static String body(TransportResponse response) {
+        return new String(response.getBody(), StandardCharsets.UTF_8);
+    }
+
+    private static String body(StreamingTransportResponse response) throws Exception {
+        try {
+            return IOUtils.toString(response.getBody(), StandardCharsets.UTF_8);
+        } finally {
+            response.close();
+        }
+    }
+}
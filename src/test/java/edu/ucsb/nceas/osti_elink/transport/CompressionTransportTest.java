@@ -0,0 +1,143 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import edu.ucsb.nceas.osti_elink.LocalOSTIServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the CompressionTransport against a local server
+ * @author Tao
+ */
+public class CompressionTransportTest {
+    private static final String RECORDS = buildRecords();
+    private LocalOSTIServer server;
+    private ApacheHttpTransport apache;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalOSTIServer(exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            if (exchange.getRequestMethod().equals("PATCH")) {
+                if ("gzip".equals(contentEncoding) && path.contains("plain")) {
+                    return new LocalOSTIServer.Response(415, "gzip is not supported");
+                }
+                InputStream body = exchange.getRequestBody();
+                if ("gzip".equals(contentEncoding)) {
+                    body = new GZIPInputStream(body);
+                }
+                return new LocalOSTIServer.Response(
+                    200, (contentEncoding == null ? "plain:" : "gzip:")
+                    + IOUtils.toString(body, StandardCharsets.UTF_8));
+            }
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                return new LocalOSTIServer.Response(
+                    200, gzip(RECORDS.getBytes(StandardCharsets.UTF_8)),
+                    Collections.singletonMap("Content-Encoding", "gzip"));
+            }
+            return new LocalOSTIServer.Response(200, RECORDS);
+        });
+        apache = new ApacheHttpTransport(null);
+    }
+
+    @After
+    public void tearDown() {
+        apache.close();
+        server.stop();
+    }
+
+    /**
+     * Test the gzip responses are decompressed by all the execute methods
+     * @throws Exception
+     */
+    @Test
+    public void testGzipResponses() throws Exception {
+        CompressionTransport transport = new CompressionTransport(apache, true, false, 1024);
+        TransportRequest request =
+            new TransportRequest("GET", server.getBaseURL() + "elink2api/records", null, null);
+        TransportResponse response = transport.execute(request);
+        assertEquals(RECORDS, new String(response.getBody(), StandardCharsets.UTF_8));
+        assertNull(response.getHeader("Content-Encoding"));
+        response = transport.executeAsync(request).get();
+        assertEquals(RECORDS, new String(response.getBody(), StandardCharsets.UTF_8));
+        try (StreamingTransportResponse streaming = transport.executeStreaming(request)) {
+            assertEquals(RECORDS, IOUtils.toString(streaming.getBody(), StandardCharsets.UTF_8));
+        }
+        assertEquals(3L * RECORDS.length(), transport.getResponseBytes());
+        assertTrue(transport.getCompressedResponseBytes() < transport.getResponseBytes() / 10);
+        // Without the compression, the server sends the plain body
+        CompressionTransport plain = new CompressionTransport(apache, false, false, 1024);
+        response = plain.execute(request);
+        assertEquals(RECORDS, new String(response.getBody(), StandardCharsets.UTF_8));
+        assertEquals(plain.getResponseBytes(), plain.getCompressedResponseBytes());
+    }
+
+    /**
+     * Test the request bodies are compressed and the fallback when the host rejects them
+     * @throws Exception
+     */
+    @Test
+    public void testGzipRequests() throws Exception {
+        CompressionTransport transport = new CompressionTransport(apache, false, true, 1024);
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/json");
+        byte[] body = RECORDS.getBytes(StandardCharsets.UTF_8);
+        String url = server.getBaseURL() + "elink2api/records/1/submit";
+        TransportResponse response =
+            transport.execute(new TransportRequest("PATCH", url, headers, body));
+        assertEquals("gzip:" + RECORDS, new String(response.getBody(), StandardCharsets.UTF_8));
+        assertEquals(body.length, transport.getRequestBytes());
+        assertTrue(transport.getCompressedRequestBytes() < body.length / 10);
+        // The small bodies aren't compressed
+        response = transport.execute(new TransportRequest("PATCH", url, headers,
+                                                          "{}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("plain:{}", new String(response.getBody(), StandardCharsets.UTF_8));
+        // The server rejects the gzip body and the request is resent uncompressed
+        String plainUrl = server.getBaseURL() + "plain/records/1/submit";
+        response = transport.executeAsync(new TransportRequest("PATCH", plainUrl, headers, body))
+            .get();
+        assertEquals(200, response.getStatusCode());
+        assertEquals("plain:" + RECORDS, new String(response.getBody(), StandardCharsets.UTF_8));
+        int requests = server.getRequests().size();
+        transport.execute(new TransportRequest("PATCH", plainUrl, headers, body));
+        // The host is remembered, so only one request is sent
+        assertEquals(requests + 1, server.getRequests().size());
+    }
+
+    private static String buildRecords() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < 200; i++) {
+            if (i > 0) {
+                builder.append(",");
+            }
+            builder.append("{\"osti_id\":").append(i)
+                .append(",\"title\":\"A verbose title of the record\",\"workflow_status\":\"R\"}");
+        }
+        return builder.append("]").toString();
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(bytes);
+        }
+        return output.toByteArray();
+    }
+}
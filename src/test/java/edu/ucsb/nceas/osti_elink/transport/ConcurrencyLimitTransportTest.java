@@ -0,0 +1,249 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import edu.ucsb.nceas.osti_elink.Deadline;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the ConcurrencyLimitTransport class
+ * @author Tao
+ */
+public class ConcurrencyLimitTransportTest {
+    private static final String URL = "https://www.osti.gov/elink2api/records?doi=10.15485/1";
+
+    /**
+     * Test the requests over the limit wait until a slot is released
+     * @throws Exception
+     */
+    @Test
+    public void testRequestsWaitForSlots() throws Exception {
+        ControlledTransport delegate = new ControlledTransport();
+        ConcurrencyLimitTransport transport = new ConcurrencyLimitTransport(delegate, 2, 1, 2);
+        CompletableFuture<TransportResponse> first = transport.executeAsync(request(null));
+        CompletableFuture<TransportResponse> second = transport.executeAsync(request(null));
+        CompletableFuture<TransportResponse> third = transport.executeAsync(request(null));
+        CompletableFuture<TransportResponse> attempt1 = delegate.nextAttempt();
+        CompletableFuture<TransportResponse> attempt2 = delegate.nextAttempt();
+        assertNull(delegate.attempts.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(2, transport.getInFlight());
+        assertEquals(1, transport.getWaitingRequests());
+        attempt1.complete(response(200, "first"));
+        assertEquals("first", body(first.get(5, TimeUnit.SECONDS)));
+        // The released slot is given to the waiting request
+        CompletableFuture<TransportResponse> attempt3 = delegate.nextAttempt();
+        assertEquals(0, transport.getWaitingRequests());
+        assertEquals(2, transport.getInFlight());
+        attempt2.complete(response(200, "second"));
+        attempt3.complete(response(200, "third"));
+        assertEquals("second", body(second.get(5, TimeUnit.SECONDS)));
+        assertEquals("third", body(third.get(5, TimeUnit.SECONDS)));
+        assertEquals(0, transport.getInFlight());
+        // A cancelled request gives its slot back
+        CompletableFuture<TransportResponse> cancelled = transport.executeAsync(request(null));
+        CompletableFuture<TransportResponse> attempt4 = delegate.nextAttempt();
+        cancelled.cancel(true);
+        assertTrue(attempt4.isCancelled());
+        assertEquals(0, transport.getInFlight());
+    }
+
+    /**
+     * Test a request waiting for a slot stops at its deadline
+     * @throws Exception
+     */
+    @Test
+    public void testDeadlineWhileWaiting() throws Exception {
+        ControlledTransport delegate = new ControlledTransport();
+        ConcurrencyLimitTransport transport = new ConcurrencyLimitTransport(delegate, 1, 1, 1);
+        CompletableFuture<TransportResponse> first = transport.executeAsync(request(null));
+        CompletableFuture<TransportResponse> attempt1 = delegate.nextAttempt();
+        try {
+            transport.execute(request(Deadline.after(Duration.ofMillis(100))));
+            fail("The request should time out while it waits for a slot");
+        } catch (SocketTimeoutException e) {
+            assertTrue(e.getMessage().contains("deadline"));
+        }
+        try {
+            transport.executeAsync(request(Deadline.after(Duration.ofMillis(100))))
+                .get(5, TimeUnit.SECONDS);
+            fail("The request should time out while it waits for a slot");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+        assertEquals(0, transport.getWaitingRequests());
+        attempt1.complete(response(200, "first"));
+        first.get(5, TimeUnit.SECONDS);
+        assertEquals(0, transport.getInFlight());
+        assertNull(delegate.attempts.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Test the limit shrinks when the service is overloaded and grows back when it recovers
+     * @throws Exception
+     */
+    @Test
+    public void testLimitAdapts() throws Exception {
+        StubTransport delegate = new StubTransport();
+        ConcurrencyLimitTransport transport = new ConcurrencyLimitTransport(delegate, 10, 2, 3);
+        // The initial limit is capped by the max limit
+        assertEquals(3, transport.getLimit());
+        delegate.setResponse(503, "unavailable");
+        for (int i = 0; i < 10; i++) {
+            assertEquals(503, transport.execute(request(null)).getStatusCode());
+        }
+        assertEquals(2, transport.getLimit());
+        assertEquals(10, transport.getDecreases());
+        SlowTransport slow = new SlowTransport(20);
+        transport = new ConcurrencyLimitTransport(slow, 1, 1, 3);
+        for (int i = 0; i < 50 && transport.getLimit() < 2; i++) {
+            transport.execute(request(null));
+        }
+        assertEquals(2, transport.getLimit());
+        // A single caller never uses half of a limit above 2, so the limit doesn't grow further
+        for (int i = 0; i < 10; i++) {
+            transport.execute(request(null));
+        }
+        assertEquals(2, transport.getLimit());
+        slow.failure = new IOException("connection reset");
+        for (int i = 0; i < 5; i++) {
+            try {
+                transport.execute(request(null));
+                fail("The failure should be thrown");
+            } catch (IOException e) {
+                assertEquals("connection reset", e.getMessage());
+            }
+        }
+        assertEquals(1, transport.getLimit());
+        assertEquals(0, transport.getInFlight());
+    }
+
+    /**
+     * Test the limit shrinks once for the overloaded requests sent in the same round trip, and
+     * the slower operation classes have their own latency baselines
+     * @throws Exception
+     */
+    @Test
+    public void testBackOffOncePerRoundTrip() throws Exception {
+        ControlledTransport delegate = new ControlledTransport();
+        ConcurrencyLimitTransport transport = new ConcurrencyLimitTransport(delegate, 3, 1, 3);
+        List<CompletableFuture<TransportResponse>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(transport.executeAsync(request(null)));
+        }
+        for (int i = 0; i < 3; i++) {
+            delegate.nextAttempt().complete(response(503, "unavailable"));
+        }
+        for (CompletableFuture<TransportResponse> result : results) {
+            assertEquals(503, result.get(5, TimeUnit.SECONDS).getStatusCode());
+        }
+        assertEquals(1, transport.getDecreases());
+        assertEquals(2, transport.getLimit());
+        // A request sent after the decrease shrinks the limit again
+        CompletableFuture<TransportResponse> next = transport.executeAsync(request(null));
+        delegate.nextAttempt().complete(response(503, "unavailable"));
+        next.get(5, TimeUnit.SECONDS);
+        assertEquals(2, transport.getDecreases());
+        // An update slower than the searches isn't compared with their latencies
+        transport = new ConcurrencyLimitTransport(delegate, 3, 1, 3);
+        CompletableFuture<TransportResponse> search = transport.executeAsync(request(null));
+        delegate.nextAttempt().complete(response(200, "[]"));
+        search.get(5, TimeUnit.SECONDS);
+        CompletableFuture<TransportResponse> update = transport.executeAsync(
+            new TransportRequest("PATCH", "https://www.osti.gov/elink2api/records/1/save", null,
+                                 "{}".getBytes(StandardCharsets.UTF_8), null));
+        CompletableFuture<TransportResponse> attempt = delegate.nextAttempt();
+        Thread.sleep(50);
+        attempt.complete(response(200, "{}"));
+        update.get(5, TimeUnit.SECONDS);
+        assertEquals(0, transport.getDecreases());
+    }
+
+    private static TransportRequest request(Deadline deadline) {
+        return new TransportRequest("GET", URL, null, null, deadline);
+    }
+
+    private static TransportResponse response(int statusCode, String body) {
+        return new TransportResponse(statusCode, null, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String body(TransportResponse response) {
+        return new String(response.getBody(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A transport whose non-blocking requests are completed by the test
+     */
+    private static class ControlledTransport implements OSTIElinkTransport {
+        private final BlockingQueue<CompletableFuture<TransportResponse>> attempts =
+            new LinkedBlockingQueue<>();
+
+        @Override
+        public TransportResponse execute(TransportRequest request) throws IOException {
+            throw new IOException("Only the non-blocking requests are expected");
+        }
+
+        @Override
+        public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+            CompletableFuture<TransportResponse> attempt = new CompletableFuture<>();
+            attempts.add(attempt);
+            return attempt;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        CompletableFuture<TransportResponse> nextAttempt() throws InterruptedException {
+            return attempts.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * A transport answering the blocking requests after a fixed latency
+     */
+    private static class SlowTransport implements OSTIElinkTransport {
+        private final long latencyMillis;
+        private volatile IOException failure = null;
+
+        SlowTransport(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public TransportResponse execute(TransportRequest request) throws IOException {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return response(200, "[]");
+        }
+
+        @Override
+        public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the HedgingTransport
+ * @author Tao
+ */
+public class HedgingTransportTest {
+    private static final String URL = "https://www.osti.gov/elink2api/records?doi=foo";
+
+    /**
+     * Test a slow first attempt is hedged and the loser is cancelled
+     * @throws Exception
+     */
+    @Test
+    public void testSlowRequestIsHedged() throws Exception {
+        ControlledTransport delegate = new ControlledTransport();
+        HedgingTransport transport = new HedgingTransport(delegate, 95, 50);
+        CompletableFuture<TransportResponse> result =
+            transport.executeAsync(new TransportRequest("GET", URL, null, null));
+        CompletableFuture<TransportResponse> first = delegate.nextAttempt();
+        CompletableFuture<TransportResponse> second = delegate.nextAttempt();
+        assertNotNull(second);
+        assertEquals(1, transport.getHedgesFired());
+        second.complete(response("second"));
+        assertEquals("second", body(result.get(5, TimeUnit.SECONDS)));
+        // The loser is cancelled after the result completes, so wait for it
+        try {
+            first.get(5, TimeUnit.SECONDS);
+            fail("The first attempt should be cancelled");
+        } catch (CancellationException e) {
+            assertTrue(first.isCancelled());
+        }
+        assertEquals(1, transport.getHedgeWins());
+        assertEquals(1, transport.getHedgedRequests());
+        // The latency of a call won by the hedge counts from the first attempt, so it includes
+        // the hedge delay of 50 ms besides the 30 ms of the hedge
+        for (int i = 0; i < 19; i++) {
+            CompletableFuture<TransportResponse> hedged =
+                transport.executeAsync(new TransportRequest("GET", URL, null, null));
+            delegate.nextAttempt();
+            CompletableFuture<TransportResponse> hedge = delegate.nextAttempt();
+            Thread.sleep(30);
+            hedge.complete(response("hedge"));
+            hedged.get(5, TimeUnit.SECONDS);
+        }
+        assertTrue(transport.getHedgeDelay() >= 80);
+    }
+
+    /**
+     * Test a fast request isn't hedged
+     * @throws Exception
+     */
+    @Test
+    public void testFastRequestIsNotHedged() throws Exception {
+        ControlledTransport delegate = new ControlledTransport();
+        delegate.immediate = response("fast");
+        HedgingTransport transport = new HedgingTransport(delegate, 95, 50);
+        for (int i = 0; i < 30; i++) {
+            assertEquals("fast", body(transport.execute(new TransportRequest("GET", URL, null, null))));
+        }
+        Thread.sleep(100);
+        assertEquals(30, delegate.attempts.size());
+        assertEquals(0, transport.getHedgesFired());
+        assertEquals(0, transport.getHedgeWins());
+        // All latencies are below the min delay
+        assertEquals(50, transport.getHedgeDelay());
+    }
+
+    /**
+     * Test the first attempt still wins if it answers after the hedge was sent
+     * @throws Exception
+     */
+    @Test
+    public void testFirstAttemptWins() throws Exception {
+        ControlledTransport delegate = new ControlledTransport();
+        HedgingTransport transport = new HedgingTransport(delegate, 95, 50);
+        CompletableFuture<TransportResponse> result =
+            transport.executeAsync(new TransportRequest("GET", URL, null, null));
+        CompletableFuture<TransportResponse> first = delegate.nextAttempt();
+        CompletableFuture<TransportResponse> second = delegate.nextAttempt();
+        // The failure of the hedge doesn't fail the call while the first attempt is in flight
+        second.completeExceptionally(new IOException("connection reset"));
+        assertFalse(result.isDone());
+        first.complete(response("first"));
+        assertEquals("first", body(result.get(5, TimeUnit.SECONDS)));
+        assertEquals(1, transport.getHedgesFired());
+        assertEquals(0, transport.getHedgeWins());
+    }
+
+    /**
+     * Test a failure before the hedge delay fails the call without a hedge
+     * @throws Exception
+     */
+    @Test
+    public void testFailureIsNotHedged() throws Exception {
+        ControlledTransport delegate = new ControlledTransport();
+        HedgingTransport transport = new HedgingTransport(delegate, 95, 200);
+        CompletableFuture<TransportResponse> result =
+            transport.executeAsync(new TransportRequest("GET", URL, null, null));
+        delegate.nextAttempt().completeExceptionally(new IOException("connection refused"));
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("The test shouldn't get here since the request failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertNull(delegate.attempts.poll(400, TimeUnit.MILLISECONDS));
+        assertEquals(0, transport.getHedgesFired());
+    }
+
+    /**
+     * Test the requests with a body aren't hedged
+     * @throws Exception
+     */
+    @Test
+    public void testUnsafeRequestIsNotHedged() throws Exception {
+        ControlledTransport delegate = new ControlledTransport();
+        HedgingTransport transport = new HedgingTransport(delegate, 95, 10);
+        CompletableFuture<TransportResponse> result = transport.executeAsync(
+            new TransportRequest("POST", URL, null, "{}".getBytes(StandardCharsets.UTF_8)));
+        CompletableFuture<TransportResponse> first = delegate.nextAttempt();
+        assertNull(delegate.attempts.poll(200, TimeUnit.MILLISECONDS));
+        first.complete(response("posted"));
+        assertEquals("posted", body(result.get(5, TimeUnit.SECONDS)));
+        assertEquals(0, transport.getHedgedRequests());
+    }
+
+    private static TransportResponse response(String body) {
+        return new TransportResponse(200, null, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String body(TransportResponse response) {
+        return new String(response.getBody(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A transport whose attempts are completed by the tests
+     */
+    private static class ControlledTransport implements OSTIElinkTransport {
+        private final BlockingQueue<CompletableFuture<TransportResponse>> attempts =
+            new LinkedBlockingQueue<>();
+        private volatile TransportResponse immediate = null;
+
+        @Override
+        public TransportResponse execute(TransportRequest request) throws IOException {
+            throw new IOException("Only the non-blocking requests are expected");
+        }
+
+        @Override
+        public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+            CompletableFuture<TransportResponse> attempt = new CompletableFuture<>();
+            attempts.add(attempt);
+            if (immediate != null) {
+                attempt.complete(immediate);
+            }
+            return attempt;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        CompletableFuture<TransportResponse> nextAttempt() throws InterruptedException {
+            return attempts.poll(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import edu.ucsb.nceas.osti_elink.Deadline;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the RateLimitTransport and TokenBucket classes
+ * @author Tao
+ */
+public class RateLimitTransportTest {
+    private static final String RECORDS = "https://www.osti.gov/elink2api/records";
+
+    /**
+     * Test the requests are classified to the operation classes
+     */
+    @Test
+    public void testClassify() {
+        assertEquals(RateLimitTransport.Operation.MINT,
+                     RateLimitTransport.Operation.classify("POST", RECORDS + "/save"));
+        assertEquals(RateLimitTransport.Operation.UPDATE,
+                     RateLimitTransport.Operation.classify("PATCH", RECORDS + "/1/save"));
+        assertEquals(RateLimitTransport.Operation.PUBLISH,
+                     RateLimitTransport.Operation.classify("PATCH", RECORDS + "/1/submit"));
+        assertEquals(RateLimitTransport.Operation.SEARCH,
+                     RateLimitTransport.Operation.classify("GET", RECORDS + "?doi=10.1"));
+        assertEquals(RateLimitTransport.Operation.OTHER,
+                     RateLimitTransport.Operation.classify(
+                         "POST", "https://www.osti.gov/elink/2416api"));
+    }
+
+    /**
+     * Test a burst is let through and the following requests wait for the refills, while the
+     * other operation classes aren't held back
+     * @throws Exception
+     */
+    @Test
+    public void testBlockingRequestsWait() throws Exception {
+        StubTransport delegate = new StubTransport();
+        RateLimitTransport transport = new RateLimitTransport(delegate, 0, 600, 0, 600, 2);
+        assertNull(transport.getBucket(RateLimitTransport.Operation.MINT));
+        long start = System.nanoTime();
+        transport.execute(request("PATCH", RECORDS + "/1/save", null));
+        transport.execute(request("PATCH", RECORDS + "/2/save", null));
+        assertEquals(0, transport.getDelayedRequests());
+        transport.execute(request("GET", RECORDS, null));
+        transport.execute(request("POST", RECORDS + "/save", null));
+        assertEquals(0, transport.getDelayedRequests());
+        // 600 per minute is a token every 100 ms
+        transport.execute(request("PATCH", RECORDS + "/3/save", null));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(80));
+        assertEquals(1, transport.getDelayedRequests());
+        assertEquals(5, delegate.getRequests().size());
+        // A request whose deadline expires before the next token fails at once
+        RateLimitTransport slow = new RateLimitTransport(delegate, 0, 6, 0, 0, 1);
+        slow.execute(request("PATCH", RECORDS + "/1/save", null));
+        try {
+            slow.execute(request("PATCH", RECORDS + "/1/save",
+                                 Deadline.after(Duration.ofMillis(200))));
+            fail("The request should fail since its deadline is shorter than the wait");
+        } catch (SocketTimeoutException e) {
+            assertEquals(1, slow.getRejectedRequests());
+        }
+        assertEquals(6, delegate.getRequests().size());
+    }
+
+    /**
+     * Test the non-blocking requests are scheduled for their tokens and a cancelled request
+     * returns its token
+     * @throws Exception
+     */
+    @Test
+    public void testNonBlockingRequestsAreScheduled() throws Exception {
+        StubTransport delegate = new StubTransport();
+        RateLimitTransport transport = new RateLimitTransport(delegate, 0, 0, 600, 0, 1);
+        String url = RECORDS + "/1/submit";
+        long start = System.nanoTime();
+        transport.executeAsync(request("PATCH", url, null)).get(5, TimeUnit.SECONDS);
+        CompletableFuture<TransportResponse> second = transport.executeAsync(
+            request("PATCH", url, null));
+        assertFalse(second.isDone());
+        assertEquals(1, delegate.getRequests().size());
+        second.get(5, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(80));
+        assertEquals(2, delegate.getRequests().size());
+        TokenBucket bucket = transport.getBucket(RateLimitTransport.Operation.PUBLISH);
+        CompletableFuture<TransportResponse> cancelled = transport.executeAsync(
+            request("PATCH", url, null));
+        double tokens = bucket.getAvailableTokens();
+        cancelled.cancel(true);
+        assertTrue(bucket.getAvailableTokens() >= tokens + 1);
+        Thread.sleep(200);
+        assertEquals(2, delegate.getRequests().size());
+        try {
+            RateLimitTransport slow = new RateLimitTransport(delegate, 0, 0, 6, 0, 1);
+            slow.executeAsync(request("PATCH", url, null)).get(5, TimeUnit.SECONDS);
+            slow.executeAsync(request("PATCH", url, Deadline.after(Duration.ofMillis(200))))
+                .get(5, TimeUnit.SECONDS);
+            fail("The request should fail since its deadline is shorter than the wait");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    /**
+     * Test the bucket follows the rate-limit headers of the responses
+     * @throws Exception
+     */
+    @Test
+    public void testRateLimitHeaders() throws Exception {
+        HeaderTransport delegate = new HeaderTransport();
+        RateLimitTransport transport = new RateLimitTransport(delegate, 0, 0, 0, 6000, 10);
+        TokenBucket bucket = transport.getBucket(RateLimitTransport.Operation.SEARCH);
+        delegate.headers.put("X-RateLimit-Remaining", "3");
+        transport.execute(request("GET", RECORDS, null));
+        assertTrue(bucket.getAvailableTokens() < 4);
+        // An exhausted quota pauses the bucket until the reset
+        delegate.headers.put("X-RateLimit-Remaining", "0");
+        delegate.headers.put("X-RateLimit-Reset", "5");
+        transport.execute(request("GET", RECORDS, null));
+        assertFalse(bucket.tryAcquire());
+        try {
+            transport.execute(request("GET", RECORDS, Deadline.after(Duration.ofSeconds(1))));
+            fail("The request should fail since the quota resets after its deadline");
+        } catch (SocketTimeoutException e) {
+            assertEquals(1, transport.getRejectedRequests());
+        }
+        assertEquals(2, delegate.requests);
+    }
+
+    /**
+     * Test the token bucket and the parsing of the reset header
+     * @throws Exception
+     */
+    @Test
+    public void testTokenBucket() throws Exception {
+        TokenBucket bucket = new TokenBucket(60, 2);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        assertFalse(bucket.acquire(100));
+        long wait = bucket.reserve(-1);
+        assertTrue(wait > 500 && wait <= 1000);
+        bucket.refund();
+        bucket.adjust(-1, 0);
+        assertTrue(bucket.getAvailableTokens() < 1);
+        assertEquals(0, RateLimitTransport.parseReset(null));
+        assertEquals(0, RateLimitTransport.parseReset("soon"));
+        assertEquals(30000, RateLimitTransport.parseReset("30"));
+        long epoch = System.currentTimeMillis() / 1000 + 60;
+        long reset = RateLimitTransport.parseReset(Long.toString(epoch));
+        assertTrue(reset > 55000 && reset <= 60000);
+        try {
+            new TokenBucket(0, 1);
+            fail("The rate should be positive");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("positive"));
+        }
+    }
+
+    private static TransportRequest request(String method, String url, Deadline deadline) {
+        byte[] body = method.equals("GET") ? null : "{}".getBytes(StandardCharsets.UTF_8);
+        return new TransportRequest(method, url, null, body, deadline);
+    }
+
+    /**
+     * A transport answering the requests with the given headers
+     */
+    private static class HeaderTransport implements OSTIElinkTransport {
+        private final Map<String, String> headers = new HashMap<>();
+        private int requests = 0;
+
+        @Override
+        public TransportResponse execute(TransportRequest request) throws IOException {
+            requests++;
+            return new TransportResponse(200, headers, "[]".getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import edu.ucsb.nceas.osti_elink.LocalOSTIServer;
+import edu.ucsb.nceas.osti_elink.v2.response.JsonResponseHandler;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the RetryTransport against a local server
+ * @author Tao
+ */
+public class RetryTransportTest {
+    private LocalOSTIServer server;
+    private ApacheHttpTransport apache;
+    private RetryTransport transport;
+    // The number of the failures before the server answers 200
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile int failureStatus = 503;
+    private volatile String failureBody = "unavailable";
+    private volatile String retryAfter = null;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalOSTIServer(exchange -> {
+            if (failures.getAndDecrement() > 0) {
+                return new LocalOSTIServer.Response(
+                    failureStatus, failureBody.getBytes(StandardCharsets.UTF_8),
+                    retryAfter == null ? Collections.<String, String>emptyMap()
+                        : Collections.singletonMap("Retry-After", retryAfter));
+            }
+            return new LocalOSTIServer.Response(200, "[]");
+        });
+        apache = new ApacheHttpTransport(null);
+        transport = new RetryTransport(apache, 3, 10, 1000, JsonResponseHandler::getErrorStatuses);
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+        server.stop();
+    }
+
+    /**
+     * Test the transient failures are retried by all the execute methods
+     * @throws Exception
+     */
+    @Test
+    public void testRetryTransientFailures() throws Exception {
+        TransportRequest request = get();
+        failures.set(2);
+        assertEquals(200, transport.execute(request).getStatusCode());
+        assertEquals(2, transport.getRetries());
+        assertEquals(1, transport.getRecoveredRequests());
+        failures.set(2);
+        failureStatus = 502;
+        assertEquals(200, transport.executeAsync(request).get(5, TimeUnit.SECONDS).getStatusCode());
+        failures.set(1);
+        failureStatus = 429;
+        retryAfter = "0";
+        try (StreamingTransportResponse response = transport.executeStreaming(request)) {
+            assertEquals(200, response.getStatusCode());
+            assertEquals("[]", IOUtils.toString(response.getBody(), StandardCharsets.UTF_8));
+        }
+        assertEquals(5, transport.getRetries());
+        assertEquals(3, transport.getRecoveredRequests());
+        assertEquals(0, transport.getExhaustedRequests());
+        // The last failure is returned when the attempts run out
+        failures.set(5);
+        failureStatus = 503;
+        assertEquals(503, transport.execute(request).getStatusCode());
+        assertEquals(1, transport.getExhaustedRequests());
+        assertEquals(7, transport.getRetries());
+    }
+
+    /**
+     * Test the fatal responses aren't retried
+     * @throws Exception
+     */
+    @Test
+    public void testFatalFailures() throws Exception {
+        failures.set(1);
+        failureStatus = 400;
+        assertEquals(400, transport.execute(get()).getStatusCode());
+        failures.set(1);
+        failureStatus = 401;
+        assertEquals(401, transport.executeAsync(get()).get(5, TimeUnit.SECONDS).getStatusCode());
+        // The errors array says it is a client error
+        failures.set(1);
+        failureStatus = 500;
+        failureBody = "{\"errors\":[{\"status\":\"400\",\"detail\":\"Invalid field\"}]}";
+        assertEquals(500, transport.execute(get()).getStatusCode());
+        // A POST is only retried if the server didn't process it
+        failures.set(1);
+        failureBody = "bad gateway";
+        failureStatus = 502;
+        TransportRequest post = new TransportRequest("POST", server.getBaseURL() + "elink2api/records",
+                                                     null, "{}".getBytes(StandardCharsets.UTF_8));
+        assertEquals(502, transport.execute(post).getStatusCode());
+        failures.set(1);
+        failureStatus = 503;
+        assertEquals(503, transport.execute(post).getStatusCode());
+        assertEquals(0, transport.getRetries());
+        failures.set(1);
+        retryAfter = "0";
+        assertEquals(200, transport.execute(post).getStatusCode());
+        assertEquals(1, transport.getRetries());
+        // A mint is never retried after a response
+        failures.set(1);
+        assertEquals(503, transport.execute(request("POST", "elink2api/records/save"))
+            .getStatusCode());
+        // A submit isn't idempotent, while a save is
+        failures.set(1);
+        retryAfter = null;
+        failureStatus = 502;
+        assertEquals(502, transport.execute(request("PATCH", "elink2api/records/6100/submit"))
+            .getStatusCode());
+        failures.set(1);
+        assertEquals(200, transport.execute(request("PATCH", "elink2api/records/6100/save"))
+            .getStatusCode());
+        assertEquals(2, transport.getRetries());
+        // The Retry-After is longer than the max delay
+        failures.set(1);
+        failureStatus = 503;
+        retryAfter = "3600";
+        assertEquals(503, transport.execute(get()).getStatusCode());
+        assertEquals(2, transport.getRetries());
+        assertEquals(1, transport.getExhaustedRequests());
+    }
+
+    /**
+     * Test the connection failures are retried and the last error is thrown
+     * @throws Exception
+     */
+    @Test
+    public void testConnectionFailures() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        TransportRequest request =
+            new TransportRequest("POST", "http://localhost:" + port + "/elink2api/records", null,
+                                 "{}".getBytes(StandardCharsets.UTF_8));
+        try {
+            transport.execute(request);
+            fail("The test shouldn't get here since nothing listens on the port");
+        } catch (IOException e) {
+            assertEquals(2, transport.getRetries());
+            assertEquals(1, transport.getExhaustedRequests());
+        }
+    }
+
+    /**
+     * Test the parsing of the Retry-After header
+     */
+    @Test
+    public void testParseRetryAfter() {
+        assertEquals(0, RetryTransport.parseRetryAfter(null));
+        assertEquals(0, RetryTransport.parseRetryAfter("foo"));
+        assertEquals(120000, RetryTransport.parseRetryAfter("120"));
+        assertEquals(0, RetryTransport.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+        long wait = RetryTransport.parseRetryAfter(
+            org.apache.http.client.utils.DateUtils.formatDate(
+                new java.util.Date(System.currentTimeMillis() + 60000)));
+        assertTrue(wait > 50000 && wait <= 60000);
+    }
+
+    private TransportRequest request(String method, String path) {
+        return new TransportRequest(method, server.getBaseURL() + path, null,
+                                    "{}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private TransportRequest get() {
+        return new TransportRequest("GET", server.getBaseURL() + "elink2api/records?doi=foo",
+                                    null, null);
+    }
+}
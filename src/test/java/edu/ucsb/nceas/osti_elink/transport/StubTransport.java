@@ -0,0 +1,66 @@
+package edu.ucsb.nceas.osti_elink.transport;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-process transport for the tests. It records the requests and answers them with the
+ * given status code and body without any network.
+ * @author Tao
+ */
+public class StubTransport implements OSTIElinkTransport {
+    private final List<TransportRequest> requests = new CopyOnWriteArrayList<>();
+    private volatile int statusCode = 200;
+    private volatile String body = "[]";
+    private volatile boolean closed = false;
+
+    /**
+     * Set the response of the following requests
+     * @param statusCode  the status code of the response
+     * @param body  the body of the response
+     */
+    public void setResponse(int statusCode, String body) {
+        this.statusCode = statusCode;
+        this.body = body;
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        requests.add(request);
+        return new TransportResponse(statusCode, null, body == null ? null : body.getBytes());
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+        CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        try {
+            result.complete(execute(request));
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Get the requests the transport received
+     * @return the list of the requests
+     */
+    public List<TransportRequest> getRequests() {
+        return requests;
+    }
+
+    /**
+     * Determine if the transport was closed
+     * @return true if it was closed; otherwise false.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,260 @@
+package edu.ucsb.nceas.osti_elink.v2.json;
+
+import edu.ucsb.nceas.osti_elink.Deadline;
+import edu.ucsb.nceas.osti_elink.LocalOSTIServer;
+import edu.ucsb.nceas.osti_elink.LookupResult;
+import edu.ucsb.nceas.osti_elink.OSTIElinkAuthenticationException;
+import edu.ucsb.nceas.osti_elink.OSTIElinkException;
+import edu.ucsb.nceas.osti_elink.OSTIElinkNotFoundException;
+import edu.ucsb.nceas.osti_elink.OSTIElinkTimeoutException;
+import edu.ucsb.nceas.osti_elink.RecordCondition;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the non-blocking requests of OSTIv2JsonService against a local server
+ * @author Tao
+ */
+public class OSTIv2JsonServiceAsyncTest {
+    private LocalOSTIServer server;
+    private OSTIv2JsonService service;
+    private String searchResponse;
+    private final AtomicInteger queries = new AtomicInteger();
+    private final AtomicInteger newDoiQueries = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        try (InputStream is = getClass().getClassLoader()
+            .getResourceAsStream("test-files/search-doi-response.json")) {
+            searchResponse = IOUtils.toString(is, StandardCharsets.UTF_8);
+        }
+        server = new LocalOSTIServer(exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            queries.incrementAndGet();
+            if (query.contains("10.15485/2304391")) {
+                return new LocalOSTIServer.Response(200, searchResponse);
+            } else if (query.contains("unauthorized")) {
+                return new LocalOSTIServer.Response(401, "{\"errors\":[]}");
+            } else if (query.contains("10.15485/new") && newDoiQueries.incrementAndGet() > 2) {
+                // The new doi becomes searchable after two queries
+                return new LocalOSTIServer.Response(200, searchResponse);
+            }
+            return new LocalOSTIServer.Response(200, "[]");
+        });
+        service = server.createJsonService(null);
+    }
+
+    @After
+    public void tearDown() {
+        service.close();
+        server.stop();
+    }
+
+    /**
+     * Test the getMetadataAsync method
+     * @throws Exception
+     */
+    @Test
+    public void testGetMetadataAsync() throws Exception {
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(service.getMetadataAsync("doi:10.15485/2304391"));
+        }
+        for (CompletableFuture<String> future : futures) {
+            assertEquals(searchResponse, future.get(30, TimeUnit.SECONDS));
+        }
+        try {
+            service.getMetadataAsync("doi:10.15485/0000").get(30, TimeUnit.SECONDS);
+            fail("Test can't reach here");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OSTIElinkNotFoundException);
+        }
+        try {
+            service.getMetadataAsync("unauthorized").get(30, TimeUnit.SECONDS);
+            fail("Test can't reach here");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OSTIElinkAuthenticationException);
+            assertEquals(401, ((OSTIElinkAuthenticationException) e.getCause()).getStatusCode());
+        }
+        try {
+            service.getMetadataAsync("").get(30, TimeUnit.SECONDS);
+            fail("Test can't reach here");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OSTIElinkException);
+        }
+    }
+
+    /**
+     * Test the awaitRecord method waits for the conditions without blocking the caller
+     * @throws Exception
+     */
+    @Test
+    public void testAwaitRecord() throws Exception {
+        CompletableFuture<String> searchable = service.awaitRecord(
+            "doi:10.15485/new", RecordCondition.SEARCHABLE, Deadline.after(Duration.ofSeconds(30)));
+        assertFalse(searchable.isDone());
+        assertEquals(searchResponse, searchable.get(30, TimeUnit.SECONDS));
+        assertEquals(3, newDoiQueries.get());
+        // The record of the test file is released
+        assertEquals(searchResponse,
+                     service.awaitRecord("doi:10.15485/2304391", service.hasStatus("R"),
+                                         Deadline.after(Duration.ofSeconds(30)))
+                         .get(30, TimeUnit.SECONDS));
+        // It never becomes saved, so the wait stops at the deadline
+        long start = System.currentTimeMillis();
+        try {
+            service.awaitRecord("doi:10.15485/2304391", service.hasStatus("Saved"),
+                                Deadline.after(Duration.ofMillis(700))).get(30, TimeUnit.SECONDS);
+            fail("Test can't reach here");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OSTIElinkTimeoutException);
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+        // A cancelled wait stops querying
+        CompletableFuture<String> cancelled = service.awaitRecord(
+            "doi:10.15485/none", RecordCondition.SEARCHABLE, Deadline.after(Duration.ofSeconds(30)));
+        cancelled.cancel(true);
+        Thread.sleep(100);
+        int sent = queries.get();
+        Thread.sleep(600);
+        assertEquals(sent, queries.get());
+        // The other failures end the wait at once
+        try {
+            service.awaitRecord("unauthorized", RecordCondition.SEARCHABLE,
+                                Deadline.after(Duration.ofSeconds(30))).get(30, TimeUnit.SECONDS);
+            fail("Test can't reach here");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OSTIElinkAuthenticationException);
+        }
+    }
+
+    /**
+     * Test the waits for many dois are coalesced into a few searches
+     * @throws Exception
+     */
+    @Test
+    public void testCoalescedWaits() throws Exception {
+        AtomicInteger batchQueries = new AtomicInteger();
+        server.setResponder(exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            queries.incrementAndGet();
+            if (query.contains(" OR ") && batchQueries.incrementAndGet() == 1) {
+                // The dois aren't searchable at the first search
+                return new LocalOSTIServer.Response(200, "[]");
+            }
+            StringBuilder records = new StringBuilder("[");
+            for (int i = 0; i < 20; i++) {
+                if (query.contains("10.15485/burst-" + i + "\"")) {
+                    records.append(records.length() > 1 ? "," : "").append("{\"doi\":")
+                        .append("\"10.15485/burst-").append(i)
+                        .append("\",\"workflow_status\":\"SA\"}");
+                }
+            }
+            return new LocalOSTIServer.Response(200, records.append("]").toString());
+        });
+        List<CompletableFuture<String>> waits = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            waits.add(service.awaitRecord("doi:10.15485/burst-" + i, service.hasStatus("Saved"),
+                                          Deadline.after(Duration.ofSeconds(30))));
+        }
+        for (int i = 0; i < 20; i++) {
+            assertTrue(waits.get(i).get(30, TimeUnit.SECONDS).contains("burst-" + i + "\""));
+        }
+        // 20 waiters, but only a few searches with batches of 10 dois
+        assertTrue("There were " + queries.get() + " searches", queries.get() <= 6);
+        assertEquals("Saved", service.getStatus("doi:10.15485/burst-3"));
+        // A service rejecting the searches of many dois is searched one by one
+        AtomicInteger rejected = new AtomicInteger();
+        server.setResponder(exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            if (query.contains(" OR ")) {
+                rejected.incrementAndGet();
+                return new LocalOSTIServer.Response(400, "{\"errors\":[]}");
+            } else if (rejected.get() == 0) {
+                return new LocalOSTIServer.Response(200, "[]");
+            }
+            return new LocalOSTIServer.Response(200, "[{\"doi\":\"10.15485/single\"}]");
+        });
+        CompletableFuture<String> first = service.awaitRecord(
+            "doi:10.15485/single", RecordCondition.SEARCHABLE,
+            Deadline.after(Duration.ofSeconds(30)));
+        CompletableFuture<String> second = service.awaitRecord(
+            "doi:10.15485/single-2", RecordCondition.SEARCHABLE,
+            Deadline.after(Duration.ofSeconds(30)));
+        assertTrue(first.get(30, TimeUnit.SECONDS).contains("single"));
+        assertTrue(second.get(30, TimeUnit.SECONDS).contains("single"));
+        assertEquals(1, rejected.get());
+    }
+
+    /**
+     * Test the bulk lookups of many dois by batched searches
+     */
+    @Test
+    public void testBulkLookups() throws Exception {
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger rejecting = new AtomicInteger();
+        server.setResponder(exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            queries.incrementAndGet();
+            if (query.contains(" OR ") && rejecting.get() > 0) {
+                rejected.incrementAndGet();
+                return new LocalOSTIServer.Response(400, "{\"errors\":[]}");
+            }
+            // Only the even dois exist
+            StringBuilder records = new StringBuilder("[");
+            for (int i = 0; i < 25; i += 2) {
+                if (query.contains("10.15485/bulk-" + i + "\"")) {
+                    records.append(records.length() > 1 ? "," : "").append("{\"doi\":")
+                        .append("\"10.15485/BULK-").append(i).append("\",\"osti_id\":")
+                        .append(1000 + i).append(",\"workflow_status\":\"R\"}");
+                }
+            }
+            return new LocalOSTIServer.Response(200, records.append("]").toString());
+        });
+        List<String> dois = new ArrayList<>();
+        for (int i = 24; i >= 0; i--) {
+            dois.add("doi:10.15485/bulk-" + i);
+        }
+        dois.add("doi:10.15485/bulk-3");
+        Map<String, LookupResult<String>> statuses = service.getStatuses(dois);
+        // 25 dois in two searches with the batches of 20 dois
+        assertEquals(2, queries.get());
+        assertEquals(25, statuses.size());
+        assertEquals(dois.subList(0, 25), new ArrayList<>(statuses.keySet()));
+        assertEquals("R", statuses.get("doi:10.15485/bulk-4").get());
+        assertTrue(statuses.get("doi:10.15485/bulk-3").getError()
+                       instanceof OSTIElinkNotFoundException);
+        Map<String, LookupResult<String>> ostiIds = service.resolveOstiIds(dois);
+        assertEquals("1012", ostiIds.get("doi:10.15485/bulk-12").get());
+        assertFalse(ostiIds.get("doi:10.15485/bulk-13").isSuccess());
+        // A service rejecting the searches of many dois is searched one by one
+        rejecting.set(1);
+        queries.set(0);
+        Map<String, LookupResult<String>> records = service.getMetadata(dois);
+        // Both batches were in flight when they were rejected, then 25 single queries
+        assertEquals(2, rejected.get());
+        assertEquals(27, queries.get());
+        assertTrue(records.get("doi:10.15485/bulk-0").get().contains("\"osti_id\":1000"));
+        assertTrue(records.get("doi:10.15485/bulk-1").getError()
+                       instanceof OSTIElinkNotFoundException);
+        assertTrue(service.getMetadata(new ArrayList<>()).isEmpty());
+    }
+}
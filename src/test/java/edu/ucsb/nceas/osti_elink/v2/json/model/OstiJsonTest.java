@@ -0,0 +1,72 @@
+package edu.ucsb.nceas.osti_elink.v2.json.model;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import edu.ucsb.nceas.osti_elink.v2.response.JsonResponseHandler;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test the typed records and their shared json binding
+ * @author Tao
+ */
+public class OstiJsonTest {
+
+    /**
+     * Test a record read from the service is written back with all of its fields
+     * @throws Exception
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        String json;
+        try (InputStream is = getClass().getClassLoader()
+            .getResourceAsStream("test-files/search-osti-id-response.json")) {
+            json = IOUtils.toString(is, StandardCharsets.UTF_8);
+        }
+        OstiRecord record = JsonResponseHandler.readFirstRecord(json);
+        assertEquals(2304331L, (long) record.getOstiId());
+        assertEquals("10.15485/2304331", record.getDoi());
+        assertEquals(WorkflowStatus.RELEASED, record.getStatus());
+        assertEquals("ESS-DIVE", record.getSiteOwnershipCode());
+        assertEquals("unknown", record.findOrganization(Organization.SPONSOR).getName());
+        assertEquals("AC02-05CH11231",
+                     OstiRecord.findIdentifierValue(record.getIdentifiers(), "CN_DOE"));
+        assertEquals("AUTHOR", record.getOtherFields().get("persons").get(0).get("type").asText());
+        JsonNode original = OstiJson.getMapper().readTree(json).get(0);
+        assertEquals(original, OstiJson.getMapper().readTree(OstiJson.writeRecord(record)));
+        // The fields set to null are left out
+        record.setWorkflowStatus(null);
+        record.setSiteUrl("https://example.com/1");
+        JsonNode written = OstiJson.getMapper().readTree(OstiJson.writeRecord(record));
+        assertNull(written.get("workflow_status"));
+        assertEquals("https://example.com/1", written.get("site_url").asText());
+        assertEquals(original.get("persons"), written.get("persons"));
+    }
+
+    /**
+     * Test the records and the statuses which the library doesn't know
+     * @throws Exception
+     */
+    @Test
+    public void testReadRecords() throws Exception {
+        List<OstiRecord> records = OstiJson.readRecords("[{\"osti_id\":\"7\",\"doi\":\"10.1/7\","
+            + "\"workflow_status\":\"XY\"},{\"doi\":\"10.1/8\",\"workflow_status\":\"sa\"}]");
+        assertEquals(2, records.size());
+        assertEquals(7L, (long) records.get(0).getOstiId());
+        assertNull(records.get(0).getStatus());
+        assertEquals("XY", records.get(0).getWorkflowStatus());
+        assertEquals(WorkflowStatus.SAVED, records.get(1).getStatus());
+        assertNull(records.get(1).getOstiId());
+        assertNull(JsonResponseHandler.readFirstRecord("[]"));
+        assertNull(JsonResponseHandler.readFirstRecord("{\"errors\":[]}"));
+        assertEquals("{\"title\":\"t\",\"product_type\":\"DA\"}",
+                     OstiJson.writeRecord(OstiJson.readRecord("{\"product_type\":\"DA\","
+                                                                  + "\"title\":\"t\"}")));
+    }
+}
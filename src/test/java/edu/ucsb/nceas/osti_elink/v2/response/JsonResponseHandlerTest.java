@@ -1,16 +1,19 @@
 package edu.ucsb.nceas.osti_elink.v2.response;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.ucsb.nceas.osti_elink.OSTIElinkException;
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -171,4 +174,78 @@ public class JsonResponseHandlerTest {
         assertFalse(JsonResponseHandler.isEmptyArray(node));
     }
 
+    /**
+     * Test the readRecords and getPathValue methods on streams
+     * @throws Exception
+     */
+    @Test
+    public void testReadRecords() throws Exception {
+        try (InputStream is = getClass().getClassLoader()
+            .getResourceAsStream("test-files/search-doi-response.json")) {
+            JsonNode node = JsonResponseHandler.readRecords(is, "doi", "workflow_status");
+            assertTrue(node.isArray());
+            assertEquals(1, node.size());
+            assertEquals(2, node.get(0).size());
+            assertEquals("10.15485/2304391", node.get(0).get("doi").textValue());
+            assertEquals("R", node.get(0).get("workflow_status").textValue());
+            assertNull(node.get(0).get("osti_id"));
+        }
+        try (InputStream is = getClass().getClassLoader()
+            .getResourceAsStream("test-files/search-osti-id-response.json")) {
+            assertEquals("2304331", JsonResponseHandler.getPathValue(is, "osti_id"));
+        }
+        String json = "[{\"name\": \"John\", \"kids\": [{\"name\": \"Tom\"}]}, "
+            + "{\"name\": \"Mary\", \"age\": 25}]";
+        JsonNode node = JsonResponseHandler.readRecords(
+            new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), "age");
+        assertEquals(2, node.size());
+        assertEquals(0, node.get(0).size());
+        assertEquals(25, node.get(1).get("age").intValue());
+        assertEquals("25", JsonResponseHandler.getPathValue(
+            new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), "age"));
+        assertNull(JsonResponseHandler.getPathValue(
+            new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), "foo"));
+        // The error response is returned as a whole
+        try (InputStream is = getClass().getClassLoader()
+            .getResourceAsStream("test-files/put-error-response.json")) {
+            node = JsonResponseHandler.readRecords(is, "doi");
+            assertNotNull(node.get("errors"));
+        }
+        assertTrue(JsonResponseHandler.isEmptyArray(JsonResponseHandler.readRecords(
+            new ByteArrayInputStream("[ ]".getBytes(StandardCharsets.UTF_8)), "doi")));
+        assertNull(JsonResponseHandler.readRecords(new ByteArrayInputStream(new byte[0]), "doi"));
+        try {
+            JsonResponseHandler.readRecords(
+                new ByteArrayInputStream("[{\"doi\": ".getBytes(StandardCharsets.UTF_8)), "doi");
+            fail("Test can't get there since the json is invalid");
+        } catch (Exception e) {
+            assertTrue(e instanceof JsonProcessingException);
+        }
+    }
+
+    /**
+     * Test the getErrorStatuses method
+     * @throws Exception
+     */
+    @Test
+    public void testGetErrorStatuses() throws Exception {
+        byte[] error;
+        try (InputStream is = getClass().getClassLoader()
+            .getResourceAsStream("test-files/put-error-response.json")) {
+            error = IOUtils.toByteArray(is);
+        }
+        assertEquals(1, JsonResponseHandler.getErrorStatuses(error).size());
+        assertEquals(400, (int) JsonResponseHandler.getErrorStatuses(error).get(0));
+        byte[] success;
+        try (InputStream is = getClass().getClassLoader()
+            .getResourceAsStream("test-files/put-success-response.json")) {
+            success = IOUtils.toByteArray(is);
+        }
+        assertTrue(JsonResponseHandler.getErrorStatuses(success).isEmpty());
+        assertTrue(JsonResponseHandler.getErrorStatuses(null).isEmpty());
+        assertTrue(JsonResponseHandler.getErrorStatuses(
+            "Service Unavailable".getBytes(StandardCharsets.UTF_8)).isEmpty());
+        assertTrue(JsonResponseHandler.getErrorStatuses(
+            "[{\"errors\":[]}]".getBytes(StandardCharsets.UTF_8)).isEmpty());
+    }
 }